@@ -48,7 +48,12 @@ import com.termux.shared.shell.command.ExecutionCommand.ShellCreateMode;
 import com.termux.terminal.TerminalEmulator;
 import com.termux.terminal.TerminalSession;
 import com.termux.terminal.TerminalSessionClient;
+import com.termux.terminal.TerminalSessionStats;
+import com.termux.terminal.TranscriptMemoryBudget;
 
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -105,6 +110,17 @@ public final class TermuxService extends Service implements AppShell.AppShellCli
     /** If the user has executed the {@link TERMUX_SERVICE#ACTION_STOP_SERVICE} intent. */
     boolean mWantsToStop = false;
 
+    /** The maximum size of transcript rows kept on disk per session if {@link TermuxAppSharedProperties#shouldSpillTerminalTranscriptToDisk()}. */
+    private static final long TERMINAL_TRANSCRIPT_FILE_MAX_SIZE = 256 * 1024 * 1024;
+
+    /** The time between checks for idle sessions to hibernate if {@link TermuxAppSharedProperties#getTerminalSessionHibernateAfter()} is set. */
+    private static final long SESSION_HIBERNATE_CHECK_INTERVAL_MILLIS = 60 * 1000;
+
+    private final Runnable mHibernateIdleSessionsRunnable = this::hibernateIdleSessions;
+
+    /** If the {@link TerminalSessionStats} of sessions are collected, see {@link #setTerminalSessionStatsEnabled(boolean)}. */
+    private boolean mTerminalSessionStatsEnabled;
+
     private static final String LOG_TAG = "TermuxService";
 
     @Override
@@ -120,6 +136,8 @@ public final class TermuxService extends Service implements AppShell.AppShellCli
         runStartForeground();
 
         SystemEventReceiver.registerPackageUpdateEvents(this);
+
+        mHandler.postDelayed(mHibernateIdleSessionsRunnable, SESSION_HIBERNATE_CHECK_INTERVAL_MILLIS);
     }
 
     @SuppressLint("Wakelock")
@@ -179,6 +197,8 @@ public final class TermuxService extends Service implements AppShell.AppShellCli
 
         SystemEventReceiver.unregisterPackageUpdateEvents(this);
 
+        mHandler.removeCallbacks(mHibernateIdleSessionsRunnable);
+
         runStopForeground();
     }
 
@@ -200,6 +220,90 @@ public final class TermuxService extends Service implements AppShell.AppShellCli
         return false;
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+
+        // Trim the history of the sessions not being viewed, all of it if the app is about to be killed
+        float keepFraction;
+        if (level == TRIM_MEMORY_COMPLETE || level == TRIM_MEMORY_RUNNING_CRITICAL)
+            keepFraction = 0;
+        else if (level == TRIM_MEMORY_MODERATE || level == TRIM_MEMORY_RUNNING_LOW)
+            keepFraction = 0.5f;
+        else
+            return;
+        // Trimming moves rows to disk if sessions keep their transcripts there, so do it in the background:
+        final float fraction = keepFraction;
+        final List<TerminalSession> sessions = getTerminalSessions();
+        final TranscriptMemoryBudget budget = TranscriptMemoryBudget.getInstance();
+        budget.runInBackground(() -> {
+            budget.trimBackground(fraction);
+            for (TerminalSession session : sessions)
+                Logger.logDebug(LOG_TAG, "Transcript of \"" + session.mSessionName + "\" uses " +
+                    session.getTranscriptMemoryUsage() / 1024 + " KiB after onTrimMemory(" + level + ")");
+        });
+    }
+
+    /**
+     * Move the transcripts of sessions which have been idle for too long to disk on the thread of the
+     * {@link TranscriptMemoryBudget}, and check again later.
+     */
+    private void hibernateIdleSessions() {
+        final long hibernateAfterMillis = mProperties.getTerminalSessionHibernateAfter() * 60 * 1000L;
+        if (hibernateAfterMillis > 0) {
+            final List<TerminalSession> sessions = getTerminalSessions();
+            TranscriptMemoryBudget.getInstance().runInBackground(() -> {
+                for (TerminalSession session : sessions) {
+                    if (session.hibernateIfIdle(hibernateAfterMillis))
+                        Logger.logDebug(LOG_TAG, "Hibernated idle session \"" + session.mSessionName + "\"");
+                }
+            });
+        }
+        mHandler.postDelayed(mHibernateIdleSessionsRunnable, SESSION_HIBERNATE_CHECK_INTERVAL_MILLIS);
+    }
+
+    /**
+     * Get a copy of the terminal sessions of the {@link TermuxSession}s, taken while holding the lock of the service so
+     * that it may be called from binder threads and the copy may be used on other threads.
+     */
+    private synchronized List<TerminalSession> getTerminalSessions() {
+        List<TerminalSession> sessions = new ArrayList<>();
+        for (TermuxSession termuxSession : mShellManager.mTermuxSessions) sessions.add(termuxSession.getTerminalSession());
+        return sessions;
+    }
+
+    /**
+     * Dump the {@link TerminalSessionStats} of all sessions with
+     * `adb shell dumpsys activity service com.termux/.app.TermuxService [stats-on|stats-off]`, where the optional
+     * argument first enables or disables collecting them.
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        if (args != null && args.length > 0) {
+            if ("stats-on".equals(args[0])) {
+                setTerminalSessionStatsEnabled(true);
+            } else if ("stats-off".equals(args[0])) {
+                setTerminalSessionStatsEnabled(false);
+            } else {
+                writer.println("Unknown argument \"" + args[0] + "\", expected stats-on or stats-off");
+                return;
+            }
+        }
+
+        if (!isTerminalSessionStatsEnabled()) {
+            writer.println("Terminal session stats are disabled, enable them with the stats-on argument or the performance overlay");
+            return;
+        }
+        // This runs on a binder thread, so only iterate a copy of the sessions taken under the lock of the service:
+        for (TerminalSession session : getTerminalSessions()) {
+            TerminalSessionStats stats = session.getStats();
+            TerminalSessionStats.Sample sample = session.sampleStats();
+            if (stats == null || sample == null) continue;
+            writer.println("Session \"" + session.mSessionName + "\" (pid " + session.getPid() + "), since stats were enabled:");
+            writer.println("  " + sample.describeSince(stats.getStartSample()).replace("\n", "\n  "));
+        }
+    }
+
     /** Make service run in foreground mode. */
     private void runStartForeground() {
         setupNotificationChannel();
@@ -605,6 +709,16 @@ public final class TermuxService extends Service implements AppShell.AppShellCli
             return null;
         }
 
+        // The emulator is only initialized once the session is attached to a view, so this is not too late
+        newTermuxSession.getTerminalSession().setParseInBackground(mProperties.shouldParseTerminalOutputInBackground());
+        newTermuxSession.getTerminalSession().setOutputFloodThreshold(mProperties.getTerminalOutputFloodThreshold());
+        newTermuxSession.getTerminalSession().setMaxClipboardCopySize(mProperties.getTerminalClipboardCopyMaxSize());
+        newTermuxSession.getTerminalSession().setStatsEnabled(isTerminalSessionStatsEnabled());
+        // Hibernated sessions keep their transcript in the same files as rows evicted from it
+        if (mProperties.shouldSpillTerminalTranscriptToDisk() || mProperties.getTerminalSessionHibernateAfter() > 0)
+            newTermuxSession.getTerminalSession().setTranscriptFileDirectory(new File(getCacheDir(), "terminal-transcripts"),
+                TERMINAL_TRANSCRIPT_FILE_MAX_SIZE);
+
         mShellManager.mTermuxSessions.add(newTermuxSession);
 
         // Remove the execution command from the pending plugin execution commands list since it has
@@ -870,6 +984,20 @@ public final class TermuxService extends Service implements AppShell.AppShellCli
         preferences.setCurrentSession(terminalSession.mHandle);
     }
 
+    /**
+     * Set if the {@link TerminalSessionStats} of all current and new sessions are collected, as while the performance
+     * overlay is shown or with {@link #dump(FileDescriptor, PrintWriter, String[])}.
+     */
+    public synchronized void setTerminalSessionStatsEnabled(boolean enabled) {
+        mTerminalSessionStatsEnabled = enabled;
+        for (TermuxSession termuxSession : mShellManager.mTermuxSessions)
+            termuxSession.getTerminalSession().setStatsEnabled(enabled);
+    }
+
+    public synchronized boolean isTerminalSessionStatsEnabled() {
+        return mTerminalSessionStatsEnabled;
+    }
+
     public synchronized boolean isTermuxSessionsEmpty() {
         return mShellManager.mTermuxSessions.isEmpty();
     }
@@ -0,0 +1,86 @@
+package com.termux.app.terminal;
+
+import android.view.View;
+import android.widget.TextView;
+
+import com.termux.app.TermuxActivity;
+import com.termux.app.TermuxService;
+import com.termux.terminal.TerminalSession;
+import com.termux.terminal.TerminalSessionStats;
+
+/**
+ * An overlay over the terminal showing the {@link TerminalSessionStats} of the current session, with the rates and
+ * averages since it was last updated every {@link #UPDATE_INTERVAL_MILLIS}. The stats of all sessions are collected
+ * while it is shown, see {@link TermuxService#setTerminalSessionStatsEnabled(boolean)}.
+ */
+public class TerminalStatsHud {
+
+    private static final long UPDATE_INTERVAL_MILLIS = 1000;
+
+    private final TermuxActivity mActivity;
+    private final TextView mView;
+    private final Runnable mUpdateRunnable = this::update;
+
+    private boolean mShown;
+    /** The session shown when last updated, and its stats then. */
+    private TerminalSession mSession;
+    private TerminalSessionStats.Sample mLastSample;
+
+    public TerminalStatsHud(TermuxActivity activity, TextView view) {
+        mActivity = activity;
+        mView = view;
+    }
+
+    public boolean isShown() {
+        return mShown;
+    }
+
+    public void toggle() {
+        TermuxService service = mActivity.getTermuxService();
+        if (service == null) return;
+
+        mShown = !mShown;
+        service.setTerminalSessionStatsEnabled(mShown);
+        mView.setVisibility(mShown ? View.VISIBLE : View.GONE);
+        mSession = null;
+        mLastSample = null;
+        if (mShown) {
+            update();
+        } else {
+            mView.removeCallbacks(mUpdateRunnable);
+        }
+    }
+
+    /**
+     * Should be called when mActivity.onStart() is called
+     */
+    public void onStart() {
+        if (mShown) update();
+    }
+
+    /**
+     * Should be called when mActivity.onStop() is called
+     */
+    public void onStop() {
+        mView.removeCallbacks(mUpdateRunnable);
+    }
+
+    private void update() {
+        TerminalSession session = mActivity.getCurrentSession();
+        TerminalSessionStats stats = (session == null) ? null : session.getStats();
+        TerminalSessionStats.Sample sample = (session == null) ? null : session.sampleStats();
+        if (stats == null || sample == null) {
+            mView.setText("");
+        } else {
+            // Switching sessions starts over from when the stats of the new session were enabled:
+            if (session != mSession || mLastSample == null) mLastSample = stats.getStartSample();
+            mView.setText(sample.describeSince(mLastSample));
+        }
+        mSession = session;
+        mLastSample = sample;
+
+        mView.removeCallbacks(mUpdateRunnable);
+        mView.postDelayed(mUpdateRunnable, UPDATE_INTERVAL_MILLIS);
+    }
+
+}
@@ -2,10 +2,13 @@ package com.termux.app.terminal;
 
 import android.annotation.SuppressLint;
 import android.app.AlertDialog;
+import android.app.ProgressDialog;
 import android.content.ClipData;
 import android.content.ClipboardManager;
 import android.content.Context;
+import android.content.DialogInterface;
 import android.media.AudioManager;
+import android.net.Uri;
 import android.os.Environment;
 import android.text.TextUtils;
 import android.view.Gravity;
@@ -41,16 +44,35 @@ import com.termux.shared.termux.data.TermuxUrlUtils;
 import com.termux.shared.view.KeyboardUtils;
 import com.termux.shared.view.ViewUtils;
 import com.termux.terminal.KeyHandler;
+import com.termux.terminal.SelectedTextExtractor;
+import com.termux.terminal.TerminalBuffer;
 import com.termux.terminal.TerminalEmulator;
 import com.termux.terminal.TerminalSession;
-
+import com.termux.terminal.TranscriptMatches;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-
+import java.util.WeakHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import androidx.annotation.Nullable;
+import androidx.core.content.FileProvider;
 import androidx.drawerlayout.widget.DrawerLayout;
 
 public class TermuxTerminalViewClient extends TermuxTerminalViewClientBase {
@@ -71,6 +93,31 @@ public class TermuxTerminalViewClient extends TermuxTerminalViewClientBase {
 
     private List<KeyboardShortcut> mSessionShortcuts;
 
+    /**
+     * The URLs found in the screens of sessions, kept so that history is only searched for URLs once. Only used on
+     * {@link #mUrlExecutor}.
+     */
+    private final WeakHashMap<TerminalBuffer, TranscriptMatches> mTranscriptUrls = new WeakHashMap<>();
+    /** Searches for URLs off the main thread, with a single thread which is stopped while idle. */
+    private final ThreadPoolExecutor mUrlExecutor = new ThreadPoolExecutor(0, 1, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+    /** If a search for the URLs which scrolled into history of the current session is queued on {@link #mUrlExecutor}. */
+    private final AtomicBoolean mUrlUpdateQueued = new AtomicBoolean();
+
+    /**
+     * The max length of selected text which is passed as a string, as strings are parcelled as UTF-16, see
+     * {@link DataUtils#TRANSACTION_SIZE_LIMIT_IN_BYTES}.
+     */
+    private static final int MAX_SELECTED_TEXT_LENGTH = DataUtils.TRANSACTION_SIZE_LIMIT_IN_BYTES / 2;
+    /** The min number of selected rows for which the progress of extracting the selected text is shown. */
+    private static final int SELECTED_TEXT_PROGRESS_MIN_ROWS = 5000;
+    /**
+     * The min age of a file of selected text or of a transcript for it to be deleted when the next one is written, as
+     * the app it was shared with or the clipboard may still read it until then.
+     */
+    private static final long SHARED_FILE_MAX_AGE_MILLIS = 60 * 60 * 1000;
+    /** The prefix of the names of the files transcripts are shared in, see {@link #shareSessionTranscript()}. */
+    private static final String TRANSCRIPT_FILE_PREFIX = "transcript-";
+
     private static final String LOG_TAG = "TermuxTerminalViewClient";
 
     public TermuxTerminalViewClient(TermuxActivity activity, TermuxTerminalSessionActivityClient termuxTerminalSessionActivityClient) {
@@ -234,6 +281,18 @@ public class TermuxTerminalViewClient extends TermuxTerminalViewClientBase {
         mActivity.getDrawer().setDrawerLockMode(copyMode ? DrawerLayout.LOCK_MODE_LOCKED_CLOSED : DrawerLayout.LOCK_MODE_UNLOCKED);
     }
 
+    @Override
+    public void onCopySelectedText(TerminalSession session, SelectedTextExtractor extractor) {
+        extractSelectedText(extractor, (text, uri) -> {
+            if (text != null) {
+                session.onCopyTextToClipboard(text);
+            } else if (mActivity.isVisible()) {
+                ShareUtils.copyUriToClipboard(mActivity, mActivity.getString(R.string.title_share_selected_text), uri,
+                    mActivity.getString(R.string.msg_selected_text_copied_as_file));
+            }
+        });
+    }
+
 
 
     @SuppressLint("RtlHardcoded")
@@ -675,29 +734,273 @@ public class TermuxTerminalViewClient extends TermuxTerminalViewClientBase {
         TerminalSession session = mActivity.getCurrentSession();
         if (session == null) return;
 
-        String transcriptText = ShellUtils.getTerminalSessionTranscriptText(session, false, true);
-        if (transcriptText == null) return;
+        TerminalEmulator emulator = session.getEmulator();
+        if (emulator == null) return;
+
+        // The transcript is shared as a file instead of as text in the intent, which would be truncated to fit in the
+        // binder transaction, see https://github.com/termux/termux-app/issues/1166.
+        new Thread() {
+            @Override
+            public void run() {
+                File transcriptDir = new File(mActivity.getCacheDir(), "transcripts");
+                deleteOldSharedFiles(transcriptDir);
+                File transcriptFile = null;
+                boolean written;
+                try {
+                    transcriptDir.mkdirs();
+                    // A new file each time, as an earlier one may still be read by the app it was shared with:
+                    transcriptFile = File.createTempFile(TRANSCRIPT_FILE_PREFIX, ".txt", transcriptDir);
+                    try (OutputStream out = new FileOutputStream(transcriptFile)) {
+                        // Only lock the emulator while copying each chunk of rows, not while writing them to the file:
+                        written = emulator.getScreen().writeTranscript(emulator, out, false);
+                    }
+                } catch (IOException e) {
+                    Logger.logStackTraceWithMessage(LOG_TAG, "Failed to write transcript to \"" + transcriptFile + "\"", e);
+                    written = false;
+                }
+
+                if (!written) {
+                    if (transcriptFile != null && !transcriptFile.delete())
+                        Logger.logWarn(LOG_TAG, "Failed to delete transcript file \"" + transcriptFile + "\"");
+                    mActivity.runOnUiThread(() -> mActivity.showToast(mActivity.getString(R.string.msg_transcript_not_written), true));
+                    return;
+                }
 
-        // See https://github.com/termux/termux-app/issues/1166.
-        transcriptText = DataUtils.getTruncatedCommandOutput(transcriptText, DataUtils.TRANSACTION_SIZE_LIMIT_IN_BYTES, false, true, false).trim();
-        ShareUtils.shareText(mActivity, mActivity.getString(R.string.title_share_transcript),
-            transcriptText, mActivity.getString(R.string.title_share_transcript_with));
+                Uri transcriptUri = FileProvider.getUriForFile(mActivity, TermuxConstants.TERMUX_TRANSCRIPT_SHARE_URI_AUTHORITY, transcriptFile);
+                mActivity.runOnUiThread(() -> ShareUtils.shareFile(mActivity, mActivity.getString(R.string.title_share_transcript),
+                    transcriptUri, "text/plain", mActivity.getString(R.string.title_share_transcript_with)));
+            }
+        }.start();
     }
 
     public void shareSelectedText() {
         String selectedText = mActivity.getTerminalView().getStoredSelectedText();
         if (DataUtils.isNullOrEmpty(selectedText)) return;
-        ShareUtils.shareText(mActivity, mActivity.getString(R.string.title_share_selected_text),
-            selectedText, mActivity.getString(R.string.title_share_selected_text_with));
+        if (selectedText.length() <= MAX_SELECTED_TEXT_LENGTH) {
+            ShareUtils.shareText(mActivity, mActivity.getString(R.string.title_share_selected_text),
+                selectedText, mActivity.getString(R.string.title_share_selected_text_with));
+            return;
+        }
+
+        writeSelectedText((out, listener) -> {
+            out.append(selectedText);
+            return true;
+        }, null, null, (text, uri) -> ShareUtils.shareFile(mActivity, mActivity.getString(R.string.title_share_selected_text),
+            uri, "text/plain", mActivity.getString(R.string.title_share_selected_text_with)));
+    }
+
+    /** Called on the main thread with either the selected text, or the uri of the file it was written to. */
+    private interface SelectedTextCallback {
+        void onSelectedText(@Nullable String text, @Nullable Uri uri);
+    }
+
+    /** Appends selected text, like {@link SelectedTextExtractor#extract(Appendable, SelectedTextExtractor.ProgressListener)}. */
+    private interface SelectedTextSource {
+        boolean appendTo(Appendable out, @Nullable SelectedTextExtractor.ProgressListener listener) throws IOException;
+    }
+
+    /**
+     * Extract selected text on a background thread, showing its progress if the selection is large. Text longer than
+     * {@link #MAX_SELECTED_TEXT_LENGTH} is written to a file instead of being passed as a string, which would be
+     * truncated to fit in the binder transaction like the transcript in {@link #shareSessionTranscript()}.
+     */
+    private void extractSelectedText(SelectedTextExtractor extractor, SelectedTextCallback callback) {
+        final ProgressDialog progress;
+        if (extractor.getRows() >= SELECTED_TEXT_PROGRESS_MIN_ROWS) {
+            progress = new ProgressDialog(mActivity);
+            progress.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+            progress.setMessage(mActivity.getString(R.string.msg_extracting_selected_text));
+            progress.setMax(extractor.getRows());
+            progress.setOnCancelListener(dialog -> extractor.cancel());
+            progress.setButton(DialogInterface.BUTTON_NEGATIVE, mActivity.getString(android.R.string.cancel),
+                (dialog, which) -> dialog.cancel());
+            progress.show();
+        } else {
+            progress = null;
+        }
+
+        writeSelectedText(extractor::extract, extractor, progress, callback);
+    }
+
+    /**
+     * Write selected text on a background thread, keeping it in memory unless it is longer than
+     * {@link #MAX_SELECTED_TEXT_LENGTH}, in which case it is written to a new file in the transcripts cache dir.
+     */
+    private void writeSelectedText(SelectedTextSource source, @Nullable SelectedTextExtractor extractor,
+                                   @Nullable ProgressDialog progress, SelectedTextCallback callback) {
+        new Thread() {
+            @Override
+            public void run() {
+                File selectedTextDir = new File(mActivity.getCacheDir(), "transcripts");
+                deleteOldSharedFiles(selectedTextDir);
+                boolean extracted;
+                String text;
+                SelectedTextWriter writer = new SelectedTextWriter(selectedTextDir);
+                try {
+                    extracted = source.appendTo(writer, progress == null ? null :
+                        (extractedRows, rows) -> mActivity.runOnUiThread(() -> progress.setProgress(extractedRows)));
+                    text = writer.getText();
+                    writer.close();
+                } catch (IOException e) {
+                    Logger.logStackTraceWithMessage(LOG_TAG, "Failed to write selected text to \"" + writer.getFile() + "\"", e);
+                    writer.closeQuietly();
+                    extracted = false;
+                    text = null;
+                }
+
+                // Do not leave the file of text which was not extracted behind:
+                final File selectedTextFile = writer.getFile();
+                if (!extracted && selectedTextFile != null && !selectedTextFile.delete())
+                    Logger.logWarn(LOG_TAG, "Failed to delete selected text file \"" + selectedTextFile + "\"");
+                final boolean success = extracted;
+                final String selectedText = text;
+                final Uri selectedTextUri = (success && text == null) ?
+                    FileProvider.getUriForFile(mActivity, TermuxConstants.TERMUX_TRANSCRIPT_SHARE_URI_AUTHORITY, selectedTextFile) : null;
+                mActivity.runOnUiThread(() -> {
+                    if (progress != null) progress.dismiss();
+                    if (success) {
+                        callback.onSelectedText(selectedText, selectedTextUri);
+                    } else if (extractor == null || !extractor.isCancelled()) {
+                        mActivity.showToast(mActivity.getString(R.string.msg_selected_text_not_extracted), true);
+                    }
+                });
+            }
+        }.start();
+    }
+
+    /** Delete the files of selected text and transcripts written more than {@link #SHARED_FILE_MAX_AGE_MILLIS} ago. */
+    private static void deleteOldSharedFiles(File sharedFileDir) {
+        File[] files = sharedFileDir.listFiles((dir, name) ->
+            name.startsWith(SelectedTextWriter.FILE_PREFIX) || name.startsWith(TRANSCRIPT_FILE_PREFIX));
+        if (files == null) return;
+        long minLastModified = System.currentTimeMillis() - SHARED_FILE_MAX_AGE_MILLIS;
+        for (File file : files) {
+            if (file.lastModified() < minLastModified && !file.delete())
+                Logger.logWarn(LOG_TAG, "Failed to delete old shared file \"" + file + "\"");
+        }
+    }
+
+    /** Keeps selected text in memory, or writes it to a file once it is longer than {@link #MAX_SELECTED_TEXT_LENGTH}. */
+    private static final class SelectedTextWriter implements Appendable, Closeable {
+        static final String FILE_PREFIX = "selected-text-";
+
+        private final File mDir;
+        private final StringBuilder mText = new StringBuilder();
+        private File mFile;
+        private Writer mFileWriter;
+
+        SelectedTextWriter(File dir) {
+            mDir = dir;
+        }
+
+        @Override
+        public Appendable append(CharSequence text) throws IOException {
+            if (mFileWriter == null && mText.length() + text.length() > MAX_SELECTED_TEXT_LENGTH) {
+                mDir.mkdirs();
+                // A new file each time, as an earlier one may still be read by the app it was shared with:
+                mFile = File.createTempFile(FILE_PREFIX, ".txt", mDir);
+                mFileWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(mFile), StandardCharsets.UTF_8));
+                mFileWriter.append(mText);
+                mText.setLength(0);
+            }
+            if (mFileWriter != null) {
+                mFileWriter.append(text);
+            } else {
+                mText.append(text);
+            }
+            return this;
+        }
+
+        @Override
+        public Appendable append(CharSequence text, int start, int end) throws IOException {
+            return append(text.subSequence(start, end));
+        }
+
+        @Override
+        public Appendable append(char c) throws IOException {
+            return append(String.valueOf(c));
+        }
+
+        /** Get the text if it was kept in memory, or null if it was written to the file. */
+        @Nullable
+        String getText() {
+            return mFileWriter == null ? mText.toString() : null;
+        }
+
+        /** Get the file the text was written to, or null if it was kept in memory. */
+        @Nullable
+        File getFile() {
+            return mFile;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mFileWriter != null) mFileWriter.close();
+        }
+
+        void closeQuietly() {
+            try {
+                close();
+            } catch (IOException e) {
+                // Ignore.
+            }
+        }
+    }
+
+    /**
+     * Should be called when the text of the current session changed, to search the rows which scrolled into its history
+     * for URLs in the background, once they have been searched for by {@link #showUrlSelection()}.
+     */
+    public void onTextChanged(TerminalSession session) {
+        TerminalEmulator emulator = session.getEmulator();
+        if (emulator == null || !mUrlUpdateQueued.compareAndSet(false, true)) return;
+        mUrlExecutor.execute(() -> {
+            mUrlUpdateQueued.set(false);
+            findUrls(emulator, false);
+        });
     }
 
     public void showUrlSelection() {
         TerminalSession session = mActivity.getCurrentSession();
         if (session == null) return;
 
-        String text = ShellUtils.getTerminalSessionTranscriptText(session, true, true);
+        TerminalEmulator emulator = session.getEmulator();
+        if (emulator == null) return;
 
-        LinkedHashSet<CharSequence> urlSet = TermuxUrlUtils.extractUrls(text);
+        // Searching all of history the first time may take a while, so it is done off the main thread:
+        mUrlExecutor.execute(() -> {
+            List<String> urlMatchTexts = findUrls(emulator, true);
+            mActivity.runOnUiThread(() -> {
+                if (mActivity.isVisible()) showUrlSelection(urlMatchTexts);
+            });
+        });
+    }
+
+    /**
+     * Find the URLs in the current screen of an emulator, searching history only for the lines scrolled into it since
+     * the last time. Must be called on {@link #mUrlExecutor}.
+     *
+     * @param search if the screen should be searched if it has not been searched before.
+     * @return the URLs, oldest first, or null if the screen has not been searched before and is not searched.
+     */
+    @Nullable
+    private List<String> findUrls(TerminalEmulator emulator, boolean search) {
+        final TerminalBuffer screen;
+        synchronized (emulator) {
+            screen = emulator.getScreen();
+        }
+        TranscriptMatches urlMatches = mTranscriptUrls.get(screen);
+        if (urlMatches == null) {
+            if (!search) return null;
+            urlMatches = new TranscriptMatches(TermuxUrlUtils.getUrlMatchRegex());
+            mTranscriptUrls.put(screen, urlMatches);
+        }
+        // The session may be parsing output in the background, so only a chunk of rows is searched at a time:
+        return urlMatches.find(emulator, screen);
+    }
+
+    private void showUrlSelection(List<String> urlMatchTexts) {
+        LinkedHashSet<CharSequence> urlSet = new LinkedHashSet<>(urlMatchTexts);
         if (urlSet.isEmpty()) {
             new AlertDialog.Builder(mActivity).setMessage(R.string.title_select_url_none_found).show();
             return;
@@ -795,8 +1098,11 @@ public class TermuxTerminalViewClient extends TermuxTerminalViewClientBase {
         if (!session.isRunning()) return;
 
         String text = ShareUtils.getTextStringFromClipboardIfSet(mActivity, true);
-        if (text != null)
-            session.getEmulator().paste(text);
+        if (text == null) return;
+        TerminalEmulator emulator = session.getEmulator();
+        synchronized (emulator) {
+            emulator.paste(text);
+        }
     }
 
 }
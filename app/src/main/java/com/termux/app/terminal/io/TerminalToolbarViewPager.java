@@ -70,7 +70,7 @@ public class TerminalToolbarViewPager {
                         if (session.isRunning()) {
                             String textToSend = editText.getText().toString();
                             if (textToSend.length() == 0) textToSend = "\r";
-                            session.write(textToSend);
+                            session.writeText(textToSend);
                         } else {
                             mActivity.getTermuxTerminalSessionClient().removeFinishedSession(session);
                         }
@@ -0,0 +1,111 @@
+package com.termux.terminal;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Decodes base64 one character at a time into a buffer of bounded size, so that OSC 52 clipboard copies, which may be
+ * far larger than other escape sequence arguments, can be decoded as they are parsed instead of being collected first.
+ * <p>
+ * Whitespace is skipped, while any other character outside of the base64 alphabet makes the string invalid, except for
+ * a single "?", which is a query for the clipboard contents, see {@link #isQuery()}. Only whitespace and padding may
+ * follow the first padding character.
+ */
+final class Base64StreamDecoder {
+
+    private static final byte[] EMPTY = new byte[0];
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /** The value of each base64 character, or -1 for characters which are not part of the alphabet. */
+    private static final byte[] DECODE_TABLE = new byte[128];
+
+    static {
+        Arrays.fill(DECODE_TABLE, (byte) -1);
+        final String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (int i = 0; i < alphabet.length(); i++) DECODE_TABLE[alphabet.charAt(i)] = (byte) i;
+    }
+
+    private byte[] mBytes = EMPTY;
+    private int mLength;
+    private int mMaxBytes;
+    /** The bits decoded but not yet output as a byte, and how many there are. */
+    private int mBits, mBitCount;
+    /** The number of base64 characters decoded, including padding. */
+    private int mCharCount;
+    private boolean mPadded, mOverflowed, mInvalid, mQuery;
+
+    /** Start decoding a new string, of which at most the specified number of bytes are kept. */
+    void reset(int maxBytes) {
+        mBytes = EMPTY;
+        mLength = 0;
+        mMaxBytes = maxBytes;
+        mBits = mBitCount = mCharCount = 0;
+        mPadded = mOverflowed = mInvalid = mQuery = false;
+    }
+
+    void decode(int c) {
+        if (mOverflowed || mInvalid) return;
+        if (c == ' ' || c == '\t' || c == '\n' || c == '\r') return;
+        if (mQuery) {
+            mQuery = false;
+            mInvalid = true;
+            return;
+        }
+        if (c == '?' && mCharCount == 0) {
+            mQuery = true;
+            return;
+        }
+        mCharCount++;
+        if (c == '=') {
+            mPadded = true;
+            return;
+        }
+        int value = (c < DECODE_TABLE.length) ? DECODE_TABLE[c] : -1;
+        if (value < 0 || mPadded) {
+            mInvalid = true;
+            return;
+        }
+
+        mBits = (mBits << 6) | value;
+        mBitCount += 6;
+        if (mBitCount >= 8) {
+            mBitCount -= 8;
+            if (mLength == mMaxBytes) {
+                mOverflowed = true;
+                return;
+            }
+            if (mLength == mBytes.length) {
+                byte[] bytes = new byte[Math.min(Math.max(2 * mLength, INITIAL_CAPACITY), mMaxBytes)];
+                System.arraycopy(mBytes, 0, bytes, 0, mLength);
+                mBytes = bytes;
+            }
+            mBytes[mLength++] = (byte) (mBits >> mBitCount);
+        }
+    }
+
+    /** If the decoded string was larger than the maximum number of bytes, which were then dropped. */
+    boolean isOverflowed() {
+        return mOverflowed;
+    }
+
+    /** If the string contained characters which are not base64, or data after padding. */
+    boolean isInvalid() {
+        return mInvalid;
+    }
+
+    /** If the string was just "?", which asks for the clipboard contents instead of setting them. */
+    boolean isQuery() {
+        return mQuery;
+    }
+
+    /** If no bytes have been decoded. */
+    boolean isEmpty() {
+        return mLength == 0;
+    }
+
+    /** The bytes decoded so far decoded as UTF-8. */
+    String toUtf8String() {
+        return new String(mBytes, 0, mLength, StandardCharsets.UTF_8);
+    }
+
+}
@@ -0,0 +1,137 @@
+package com.termux.terminal;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A circular byte buffer allowing one producer and one consumer thread, with the same semantics as {@link ByteQueue}
+ * but without taking a lock on every read and write.
+ * <p>
+ * The producer only ever advances {@link #mTail} and the consumer only ever advances {@link #mHead}, so each side just
+ * needs to see the index published by the other side. A thread is only parked when the queue is full (producer) or
+ * empty (consumer), and is unparked by the other side once it has made progress.
+ * <p>
+ * NOTE: Only a single thread at a time may call {@link #write(byte[], int, int)}, and only a single thread at a time may
+ * call {@link #read(byte[], boolean)}.
+ */
+final class LockFreeByteQueue {
+
+    private final byte[] mBuffer;
+    /** The capacity minus one, used to map the ever increasing head and tail positions to indices in {@link #mBuffer}. */
+    private final int mMask;
+    /** The total number of bytes read. Only written by the consumer. */
+    private volatile long mHead;
+    /** The total number of bytes written. Only written by the producer. */
+    private volatile long mTail;
+    private volatile boolean mOpen = true;
+    /** The consumer thread if it is parked waiting for the queue to become non-empty. */
+    private volatile Thread mParkedReader;
+    /** The producer thread if it is parked waiting for the queue to become non-full. */
+    private volatile Thread mParkedWriter;
+    /** Set to make a blocking read return 0 instead of waiting for data, see {@link #wakeUpReader()}. */
+    private volatile boolean mReaderWoken;
+
+    /** @param size the minimum capacity of the queue, which will be rounded up to a power of two. */
+    public LockFreeByteQueue(int size) {
+        int capacity = Integer.highestOneBit(Math.max(size, 2) - 1) << 1;
+        mBuffer = new byte[capacity];
+        mMask = capacity - 1;
+    }
+
+    public int capacity() {
+        return mBuffer.length;
+    }
+
+    /** The number of bytes written but not yet read, which may be outdated as soon as it is returned. */
+    public int available() {
+        return (int) (mTail - mHead);
+    }
+
+    public void close() {
+        mOpen = false;
+        unpark(mParkedReader);
+        unpark(mParkedWriter);
+    }
+
+    /**
+     * Make the current or next blocking {@link #read(byte[], boolean)} on an empty queue return 0 instead of waiting for
+     * data, so that the consumer can stop without closing the queue and dropping what is still queued.
+     */
+    public void wakeUpReader() {
+        mReaderWoken = true;
+        unpark(mParkedReader);
+    }
+
+    public int read(byte[] buffer, boolean block) {
+        final long head = mHead;
+        long tail;
+        while ((tail = mTail) == head && mOpen) {
+            if (!block) return 0;
+            if (mReaderWoken) {
+                mReaderWoken = false;
+                return 0;
+            }
+            mParkedReader = Thread.currentThread();
+            // Check again after announcing that we are about to park, so that a concurrent write is not missed:
+            if (mTail == head && mOpen && !mReaderWoken) LockSupport.park(this);
+            mParkedReader = null;
+            // Ignore interruptions, just as ByteQueue does.
+            Thread.interrupted();
+        }
+        if (!mOpen) return -1;
+
+        final int bytesToRead = (int) Math.min(tail - head, buffer.length);
+        final int index = (int) head & mMask;
+        final int firstRun = Math.min(bytesToRead, mBuffer.length - index);
+        System.arraycopy(mBuffer, index, buffer, 0, firstRun);
+        if (firstRun < bytesToRead) System.arraycopy(mBuffer, 0, buffer, firstRun, bytesToRead - firstRun);
+        mHead = head + bytesToRead;
+
+        unpark(mParkedWriter);
+        return bytesToRead;
+    }
+
+    /**
+     * Attempt to write the specified portion of the provided buffer to the queue.
+     * <p/>
+     * Returns whether the output was totally written, false if it was closed before.
+     */
+    public boolean write(byte[] buffer, int offset, int lengthToWrite) {
+        if (lengthToWrite + offset > buffer.length) {
+            throw new IllegalArgumentException("length + offset > buffer.length");
+        } else if (lengthToWrite <= 0) {
+            throw new IllegalArgumentException("length <= 0");
+        }
+
+        final int capacity = mBuffer.length;
+        long tail = mTail;
+        while (lengthToWrite > 0) {
+            long head;
+            while ((head = mHead) + capacity == tail && mOpen) {
+                mParkedWriter = Thread.currentThread();
+                // Check again after announcing that we are about to park, so that a concurrent read is not missed:
+                if (mHead + capacity == tail && mOpen) LockSupport.park(this);
+                mParkedWriter = null;
+                Thread.interrupted();
+            }
+            if (!mOpen) return false;
+
+            final int bytesToWrite = (int) Math.min(lengthToWrite, head + capacity - tail);
+            final int index = (int) tail & mMask;
+            final int firstRun = Math.min(bytesToWrite, capacity - index);
+            System.arraycopy(buffer, offset, mBuffer, index, firstRun);
+            if (firstRun < bytesToWrite) System.arraycopy(buffer, offset + firstRun, mBuffer, 0, bytesToWrite - firstRun);
+            offset += bytesToWrite;
+            lengthToWrite -= bytesToWrite;
+            tail += bytesToWrite;
+            mTail = tail;
+
+            unpark(mParkedReader);
+        }
+        return true;
+    }
+
+    private static void unpark(Thread thread) {
+        if (thread != null) LockSupport.unpark(thread);
+    }
+
+}
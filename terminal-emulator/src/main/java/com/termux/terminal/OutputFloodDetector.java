@@ -0,0 +1,58 @@
+package com.termux.terminal;
+
+/**
+ * Detects when a process outputs faster than a threshold over a window of time, in which case
+ * {@link TerminalSession} notifies its client about screen updates at a low fixed rate instead of for every frame, as
+ * the intermediate screens could not be read anyway. The output is still parsed as it arrives, so the screen shown once
+ * the output calms down is the same.
+ * <p>
+ * Once flooded, the rate has to fall below half the threshold for the output to be considered calm again, so that output
+ * close to the threshold does not switch between the two modes for every window.
+ */
+final class OutputFloodDetector {
+
+    /** The time over which the output rate is measured. */
+    static final long WINDOW_NANOS = 500_000_000L;
+
+    /** The bytes per second at which output is considered flooding, or 0 if it never is. */
+    private volatile long mThresholdBytesPerSecond;
+    /** The time the current window started at, and the bytes output in it so far. */
+    private long mWindowStart, mWindowBytes;
+    private boolean mFlooded;
+
+    /** @param thresholdBytesPerSecond the output rate at which output is considered flooding, or 0 if it never is. */
+    void setThreshold(long thresholdBytesPerSecond) {
+        mThresholdBytesPerSecond = thresholdBytesPerSecond;
+    }
+
+    /**
+     * Record output, which must be called from one thread at a time.
+     *
+     * @param bytes     the number of bytes output.
+     * @param nanoTime  the current {@link System#nanoTime()}.
+     * @return if the output is flooding, as measured over the last completed window.
+     */
+    boolean onOutput(int bytes, long nanoTime) {
+        final long threshold = mThresholdBytesPerSecond;
+        if (threshold <= 0) {
+            mFlooded = false;
+            mWindowBytes = 0;
+            return false;
+        }
+
+        if (mWindowBytes == 0) {
+            mWindowStart = nanoTime;
+        } else {
+            final long elapsed = nanoTime - mWindowStart;
+            if (elapsed >= WINDOW_NANOS) {
+                final long bytesPerSecond = (long) (mWindowBytes * 1_000_000_000d / elapsed);
+                mFlooded = bytesPerSecond >= (mFlooded ? threshold / 2 : threshold);
+                mWindowStart = nanoTime;
+                mWindowBytes = 0;
+            }
+        }
+        mWindowBytes += bytes;
+        return mFlooded;
+    }
+
+}
@@ -0,0 +1,102 @@
+package com.termux.terminal;
+
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+
+/**
+ * Extracts the text of a selection of a {@link TerminalEmulator} a chunk of rows at a time, so that a selection of a
+ * large part of the transcript can be extracted on a background thread without blocking the output of the session, and
+ * with progress and cancellation.
+ * <p>
+ * The selected rows are identified as {@link TerminalBuffer#mScrolledRows} plus their external row, so the selection is
+ * kept as output scrolls the rows up. The text is not extracted if the rows are no longer in the buffer, as when they
+ * were trimmed from the transcript or the buffer was resized or cleared.
+ */
+public final class SelectedTextExtractor {
+
+    /** The number of rows extracted while holding the lock of the emulator. */
+    static final int CHUNK_ROWS = 512;
+
+    public interface ProgressListener {
+        /** Called on the extracting thread after each chunk of rows has been extracted. */
+        void onProgress(int extractedRows, int rows);
+    }
+
+    private final TerminalEmulator mEmulator;
+    private final TerminalBuffer mBuffer;
+    private final int mTranscriptGeneration;
+    private final int mSelX1, mSelX2;
+    /** The first and last selected rows, as {@link TerminalBuffer#mScrolledRows} plus their external row. */
+    private final long mFirstRow, mLastRow;
+    private volatile boolean mCancelled;
+
+    /** Create an extractor for a selection of the current screen of an emulator, see {@link TerminalBuffer#getSelectedText}. */
+    public SelectedTextExtractor(TerminalEmulator emulator, int selX1, int selY1, int selX2, int selY2) {
+        mEmulator = emulator;
+        mSelX1 = selX1;
+        mSelX2 = selX2;
+        synchronized (emulator) {
+            mBuffer = emulator.getScreen();
+            mTranscriptGeneration = mBuffer.mTranscriptGeneration;
+            if (selY1 < -mBuffer.getActiveTranscriptRows()) selY1 = -mBuffer.getActiveTranscriptRows();
+            if (selY2 >= mBuffer.mScreenRows) selY2 = mBuffer.mScreenRows - 1;
+            mFirstRow = mBuffer.mScrolledRows + selY1;
+            mLastRow = mBuffer.mScrolledRows + Math.max(selY1 - 1, selY2);
+        }
+    }
+
+    /** The number of selected rows. */
+    public int getRows() {
+        return (int) (mLastRow - mFirstRow + 1);
+    }
+
+    /** Stop extracting the text, which may be called from any thread. */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * Extract the selected text, appending the text of each chunk of rows to {@code out} without holding the lock of
+     * the emulator.
+     *
+     * @return false if cancelled, or if the selected rows are no longer in the buffer, in which case only part of the
+     * text may have been appended.
+     */
+    public boolean extract(Appendable out, @Nullable ProgressListener listener) throws IOException {
+        final StringBuilder chunk = new StringBuilder();
+        for (long row = mFirstRow; row <= mLastRow; row += CHUNK_ROWS) {
+            if (mCancelled) return false;
+            final long lastRow = Math.min(row + CHUNK_ROWS - 1, mLastRow);
+            chunk.setLength(0);
+            synchronized (mEmulator) {
+                final TerminalBuffer buffer = mBuffer;
+                if (buffer.mTranscriptGeneration != mTranscriptGeneration) return false;
+                final long scrolledRows = buffer.mScrolledRows;
+                if (row - scrolledRows < -buffer.getActiveTranscriptRows()) return false;
+                buffer.appendSelectedText(chunk, mSelX1, (int) (mFirstRow - scrolledRows), mSelX2, (int) (mLastRow - scrolledRows),
+                    (int) (row - scrolledRows), (int) (lastRow - scrolledRows), true, false);
+            }
+            out.append(chunk);
+            if (listener != null) listener.onProgress((int) (lastRow - mFirstRow + 1), getRows());
+        }
+        return true;
+    }
+
+    /** Extract the selected text as a string, or get null if cancelled or the selected rows are no longer in the buffer. */
+    @Nullable
+    public String extract() {
+        final StringBuilder builder = new StringBuilder();
+        try {
+            return extract(builder, null) ? builder.toString() : null;
+        } catch (IOException e) {
+            // Not thrown by StringBuilder.
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
@@ -1,5 +1,7 @@
 package com.termux.terminal;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Arrays;
 
 /**
@@ -7,9 +9,34 @@ import java.util.Arrays;
  * history.
  * <p>
  * See {@link #externalToInternalRow(int)} for how to map from logical screen rows to array indices.
+ * <p>
+ * Rows are compacted when they scroll off the screen into the transcript, see {@link TerminalRow#compact(TerminalRowPool)},
+ * so that a long transcript does not need full text and style arrays for every row. Rows on the screen are never
+ * compacted, while transcript rows are decoded without being inflated when read. The arrays released by compacted rows
+ * are kept in a {@link TerminalRowPool} and reused for new rows, so scrolling and resizing do not allocate them.
+ * <p>
+ * If a {@link TranscriptFile} has been set, rows evicted from the circular buffer once the transcript is full are
+ * appended to it, and are then part of the transcript as rows before the ones in the circular buffer.
+ * <p>
+ * When the number of columns changes, only the screen and a margin of history are reflowed right away, while older rows
+ * are kept as they are and reflowed when they are scrolled into view or the whole transcript is read, see
+ * {@link #reflowPendingRows(int)}. Until then they are not part of the transcript, nor are the rows in the transcript
+ * file, which are older and are reflowed after them, see {@link #reflowTranscriptFile()}.
  */
 public final class TerminalBuffer {
 
+    /**
+     * The minimum number of history rows to reflow at once, both when the columns change and later when the history
+     * which has not been reflowed yet is needed.
+     */
+    static final int REFLOW_MARGIN_ROWS = 500;
+
+    /** The number of rows reflowed or copied while holding the lock of the emulator when writing the transcript in chunks. */
+    static final int TRANSCRIPT_CHUNK_ROWS = 512;
+
+    /** The number of rotated ranges of rows, enough for a scroll region and fixed rows above and below it. */
+    private static final int MAX_ROTATED_RANGES = 3;
+
     TerminalRow[] mLines;
     /** The length of {@link #mLines}. */
     int mTotalRows;
@@ -19,6 +46,45 @@ public final class TerminalBuffer {
     private int mActiveTranscriptRows = 0;
     /** The index in the circular buffer where the visible screen starts. */
     private int mScreenFirstRow = 0;
+    /**
+     * Ranges of screen rows [mRotatedTop[i], mRotatedBottom[i]) for i < mRotatedRanges, whose rows are rotated up by
+     * mRotation[i] rows in the circular buffer, so that the rows of a scroll region, or the fixed rows around it, are
+     * moved by changing the rotation instead of moving each row, see {@link #externalToInternalRow(int)}. All rows of a
+     * range changed when it was last rotated, at mRotationChange[i], see {@link #getRowChange(int)}.
+     */
+    private final int[] mRotatedTop = new int[MAX_ROTATED_RANGES], mRotatedBottom = new int[MAX_ROTATED_RANGES], mRotation = new int[MAX_ROTATED_RANGES];
+    private final long[] mRotationChange = new long[MAX_ROTATED_RANGES];
+    private int mRotatedRanges;
+    /** The file keeping rows evicted from the circular buffer, or null if they are dropped. */
+    private TranscriptFile mTranscriptFile;
+    /** The arrays released by rows compacted in {@link #mLines}, which all have {@link #mColumns} columns. */
+    private TerminalRowPool mRowPool;
+    /**
+     * The rows of history which have not yet been reflowed since the columns were changed, oldest first, followed by
+     * nulls. They are older than the rows in {@link #mLines} and newer than the ones in {@link #mTranscriptFile}.
+     */
+    private TerminalRow[] mPendingReflowRows;
+    private int mPendingReflowRowCount;
+    /** The style of new blank rows when the columns last changed, for reflowing the rows pending reflow then. */
+    private long mPendingReflowStyle;
+    /**
+     * If the columns have changed since the rows in {@link #mTranscriptFile} were appended, so that they are not part of
+     * the transcript until reflowed, see {@link #reflowTranscriptFile()}.
+     */
+    private boolean mTranscriptFileReflowPending;
+    /** If only the screen and a margin of history are reflowed when the columns change. */
+    private boolean mLazyReflow = true;
+    /**
+     * The number of rows which have scrolled into history, so that {@code mScrolledRows + externalRow} identifies a row
+     * of history as long as {@link #mTranscriptGeneration} is unchanged.
+     */
+    long mScrolledRows;
+    /** Changed when rows of history may have changed or been replaced, as when resizing or clearing history. */
+    int mTranscriptGeneration;
+    /** The number of changes of rows on screen, with which each changed row is stamped in {@link TerminalRow#mChange}. */
+    long mRowChanges;
+    /** The budget this buffer is registered with, which is notified as the transcript grows, or null. */
+    TranscriptMemoryBudget mMemoryBudget;
 
     /**
      * Create a transcript screen.
@@ -33,22 +99,92 @@ public final class TerminalBuffer {
         mTotalRows = totalRows;
         mScreenRows = screenRows;
         mLines = new TerminalRow[totalRows];
+        mRowPool = new TerminalRowPool(columns);
 
         blockSet(0, 0, columns, screenRows, ' ', TextStyle.NORMAL);
     }
 
     public String getTranscriptText() {
+        reflowPendingRows(Integer.MAX_VALUE);
         return getSelectedText(0, -getActiveTranscriptRows(), mColumns, mScreenRows).trim();
     }
 
     public String getTranscriptTextWithoutJoinedLines() {
+        reflowPendingRows(Integer.MAX_VALUE);
         return getSelectedText(0, -getActiveTranscriptRows(), mColumns, mScreenRows, false).trim();
     }
 
     public String getTranscriptTextWithFullLinesJoined() {
+        reflowPendingRows(Integer.MAX_VALUE);
         return getSelectedText(0, -getActiveTranscriptRows(), mColumns, mScreenRows, true, true).trim();
     }
 
+    /**
+     * Write the transcript as UTF-8 to a stream, such as one of a {@link java.nio.channels.FileChannel} from
+     * {@link java.nio.channels.Channels#newOutputStream}, without building it as a string. Wrapped rows are joined into
+     * lines, and blank lines at the start and end are left out. The buffer must not be modified concurrently.
+     *
+     * @param withStyles if colors and effects should be kept as SGR escape sequences.
+     */
+    public void writeTranscript(OutputStream out, boolean withStyles) throws IOException {
+        reflowPendingRows(Integer.MAX_VALUE);
+        TranscriptWriter writer = new TranscriptWriter(out, withStyles);
+        // Compacted transcript rows are decoded into this row instead of being inflated.
+        TerminalRow decodedRow = null;
+        for (int row = -getActiveTranscriptRows(); row < mScreenRows; row++) {
+            TerminalRow lineObject = (row < -mActiveTranscriptRows) ? null : mLines[externalToInternalRow(row)];
+            if (lineObject == null || lineObject.isCompact()) {
+                if (decodedRow == null) decodedRow = new TerminalRow(mColumns, TextStyle.NORMAL);
+                copyRow(row, decodedRow);
+                lineObject = decodedRow;
+            }
+            writer.writeRow(lineObject, !lineObject.mLineWrap || row == mScreenRows - 1);
+        }
+        writer.finish();
+    }
+
+    /**
+     * Write the transcript like {@link #writeTranscript(OutputStream, boolean)}, holding the lock of the emulator only
+     * while reflowing or copying each chunk of {@link #TRANSCRIPT_CHUNK_ROWS} rows, and not while writing them, for use
+     * on a background thread while the session is running. The rows are identified like in
+     * {@link SelectedTextExtractor}, and the last one written is the last row on screen when this is called.
+     *
+     * @return false if the rows are no longer in the buffer, as when they were trimmed from the transcript or the buffer
+     * was resized or cleared, in which case only part of the transcript may have been written.
+     */
+    public boolean writeTranscript(TerminalEmulator emulator, OutputStream out, boolean withStyles) throws IOException {
+        final int transcriptGeneration;
+        final long firstRow, lastRow;
+        final TerminalRow[] chunk;
+        while (true) {
+            synchronized (emulator) {
+                if (!isReflowPending()) {
+                    transcriptGeneration = mTranscriptGeneration;
+                    firstRow = mScrolledRows - getActiveTranscriptRows();
+                    lastRow = mScrolledRows + mScreenRows - 1;
+                    chunk = new TerminalRow[(int) Math.min(TRANSCRIPT_CHUNK_ROWS, lastRow - firstRow + 1)];
+                    for (int i = 0; i < chunk.length; i++) chunk[i] = new TerminalRow(mColumns, TextStyle.NORMAL);
+                    break;
+                }
+                reflowPendingRows((int) Math.min(Integer.MAX_VALUE, (long) getActiveTranscriptRows() + TRANSCRIPT_CHUNK_ROWS));
+            }
+        }
+
+        TranscriptWriter writer = new TranscriptWriter(out, withStyles);
+        for (long row = firstRow; row <= lastRow; row += chunk.length) {
+            final int rows = (int) Math.min(chunk.length, lastRow - row + 1);
+            synchronized (emulator) {
+                if (mTranscriptGeneration != transcriptGeneration) return false;
+                final long scrolledRows = mScrolledRows;
+                if (row - scrolledRows < -getActiveTranscriptRows()) return false;
+                for (int i = 0; i < rows; i++) copyRow((int) (row + i - scrolledRows), chunk[i]);
+            }
+            for (int i = 0; i < rows; i++) writer.writeRow(chunk[i], !chunk[i].mLineWrap || row + i == lastRow);
+        }
+        writer.finish();
+        return true;
+    }
+
     public String getSelectedText(int selX1, int selY1, int selX2, int selY2) {
         return getSelectedText(selX1, selY1, selX2, selY2, true);
     }
@@ -59,12 +195,23 @@ public final class TerminalBuffer {
 
     public String getSelectedText(int selX1, int selY1, int selX2, int selY2, boolean joinBackLines, boolean joinFullLines) {
         final StringBuilder builder = new StringBuilder();
-        final int columns = mColumns;
-
         if (selY1 < -getActiveTranscriptRows()) selY1 = -getActiveTranscriptRows();
         if (selY2 >= mScreenRows) selY2 = mScreenRows - 1;
+        appendSelectedText(builder, selX1, selY1, selX2, selY2, selY1, selY2, joinBackLines, joinFullLines);
+        return builder.toString();
+    }
+
+    /**
+     * Append the text of the rows [firstRow, lastRow] of a selection, which must be within the active rows, so that a
+     * large selection can be appended a few rows at a time, see {@link SelectedTextExtractor}.
+     */
+    void appendSelectedText(StringBuilder builder, int selX1, int selY1, int selX2, int selY2, int firstRow, int lastRow,
+                            boolean joinBackLines, boolean joinFullLines) {
+        final int columns = mColumns;
+        // Compacted transcript rows are decoded into this row instead of being inflated.
+        TerminalRow decodedRow = null;
 
-        for (int row = selY1; row <= selY2; row++) {
+        for (int row = firstRow; row <= lastRow; row++) {
             int x1 = (row == selY1) ? selX1 : 0;
             int x2;
             if (row == selY2) {
@@ -73,7 +220,12 @@ public final class TerminalBuffer {
             } else {
                 x2 = columns;
             }
-            TerminalRow lineObject = mLines[externalToInternalRow(row)];
+            TerminalRow lineObject = (row < -mActiveTranscriptRows) ? null : mLines[externalToInternalRow(row)];
+            if (lineObject == null || lineObject.isCompact()) {
+                if (decodedRow == null) decodedRow = new TerminalRow(columns, TextStyle.NORMAL);
+                copyRow(row, decodedRow);
+                lineObject = decodedRow;
+            }
             int x1Index = lineObject.findStartOfColumn(x1);
             int x2Index = (x2 < mColumns) ? lineObject.findStartOfColumn(x2) : lineObject.getSpaceUsed();
             if (x2Index == x1Index) {
@@ -83,7 +235,7 @@ public final class TerminalBuffer {
             char[] line = lineObject.mText;
             int lastPrintingCharIndex = -1;
             int i;
-            boolean rowLineWrap = getLineWrap(row);
+            boolean rowLineWrap = lineObject.mLineWrap;
             if (rowLineWrap && x2 == columns) {
                 // If the line was wrapped, we shouldn't lose trailing space:
                 lastPrintingCharIndex = x2Index - 1;
@@ -102,7 +254,6 @@ public final class TerminalBuffer {
             if ((!joinBackLines || !rowLineWrap) && (!joinFullLines || !lineFillsWidth)
                 && row < selY2 && row < mScreenRows - 1) builder.append('\n');
         }
-        return builder.toString();
     }
 
     public String getWordAtLocation(int x, int y) {
@@ -144,21 +295,128 @@ public final class TerminalBuffer {
         return text.substring(x1 + 1, x2);
     }
 
+    /**
+     * Find a match of a search, scanning the rows in place one line at a time, and set it in the search. Like reading the
+     * transcript, this may reflow history which has not been reflowed since the columns changed.
+     *
+     * @param row      the external row to start from, which may be {@link #mScreenRows} to search backward from the
+     *                 bottom, or above the top row to search forward from the oldest row of history.
+     * @param column   the column to start from. A match found forward starts at or after it, while a match found backward
+     *                 starts before it.
+     * @param backward if the search should go towards older rows instead of newer ones.
+     * @return if a match was found.
+     */
+    public boolean find(TranscriptSearch search, int row, int column, boolean backward) {
+        search.mFound = false;
+        if (backward) {
+            final boolean fromEnd = row >= mScreenRows;
+            int lineStart = findLineStart(fromEnd ? mScreenRows - 1 : row);
+            int maxColumn = fromEnd ? Integer.MAX_VALUE : (row - lineStart) * mColumns + column;
+            while (true) {
+                appendLine(search, lineStart);
+                if (search.findInLine(0, maxColumn, true)) break;
+                if (lineStart == -getActiveTranscriptRows()) {
+                    // The search has reached the top, but there may be older history which has not been reflowed yet:
+                    if (mPendingReflowRowCount == 0) return false;
+                    reflowPendingRows(mActiveTranscriptRows + REFLOW_MARGIN_ROWS);
+                    if (lineStart == -getActiveTranscriptRows()) return false;
+                }
+                lineStart = findLineStart(lineStart - 1);
+                maxColumn = Integer.MAX_VALUE;
+            }
+            search.setMatch(lineStart, mColumns);
+            return true;
+        } else {
+            if (row < -getActiveTranscriptRows()) {
+                // Reflow all history first, so that the search starts at the oldest row:
+                reflowPendingRows(Integer.MAX_VALUE);
+                row = -getActiveTranscriptRows();
+                column = 0;
+            }
+            int lineStart = findLineStart(row);
+            int minColumn = (row - lineStart) * mColumns + column;
+            while (lineStart < mScreenRows) {
+                int nextLineStart = appendLine(search, lineStart);
+                if (search.findInLine(minColumn, Integer.MAX_VALUE, false)) {
+                    search.setMatch(lineStart, mColumns);
+                    return true;
+                }
+                lineStart = nextLineStart;
+                minColumn = 0;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Find the next match of a search after its last match if it has one, or from the end of the transcript in the
+     * direction of the search otherwise, so that a search which has found no more matches starts over.
+     */
+    public boolean findNext(TranscriptSearch search, boolean backward) {
+        if (search.mFound) {
+            return find(search, search.mStartRow, search.mStartColumn + (backward ? 0 : 1), backward);
+        } else {
+            return find(search, backward ? mScreenRows : Integer.MIN_VALUE, 0, backward);
+        }
+    }
+
+    /** The first row of the line which the specified external row is part of, as rows are wrapped into the rows below them. */
+    int findLineStart(int row) {
+        final int firstRow = -getActiveTranscriptRows();
+        while (row > firstRow && getLineWrap(row - 1)) row--;
+        return row;
+    }
+
+    /** Append the text of the line starting at the specified external row to a search, returning the row after the line. */
+    int appendLine(TranscriptSearch search, int lineStart) {
+        search.resetLine();
+        if (search.mDecodedRow == null || search.mDecodedRow.getColumns() != mColumns)
+            search.mDecodedRow = new TerminalRow(mColumns, TextStyle.NORMAL);
+        for (int row = lineStart; ; row++) {
+            TerminalRow line = (row < -mActiveTranscriptRows) ? null : mLines[externalToInternalRow(row)];
+            if (line == null || line.isCompact()) {
+                copyRow(row, search.mDecodedRow);
+                line = search.mDecodedRow;
+            }
+            boolean lastRow = !line.mLineWrap || row == mScreenRows - 1;
+            search.appendRow(line, (row - lineStart) * mColumns, lastRow);
+            if (lastRow) return row + 1;
+        }
+    }
+
+    /**
+     * The number of rows in history, including the ones in the {@link TranscriptFile} if set, but not the ones still
+     * pending reflow after the columns changed, or the ones in the file while it or newer rows are pending reflow.
+     */
     public int getActiveTranscriptRows() {
-        return mActiveTranscriptRows;
+        return mActiveTranscriptRows + (mTranscriptFile == null || mPendingReflowRowCount > 0 || mTranscriptFileReflowPending ?
+            0 : mTranscriptFile.getRows());
     }
 
     public int getActiveRows() {
-        return mActiveTranscriptRows + mScreenRows;
+        return getActiveTranscriptRows() + mScreenRows;
+    }
+
+    /** Set if only the screen and a margin of history should be reflowed right away when the columns change. */
+    void setLazyReflow(boolean lazyReflow) {
+        mLazyReflow = lazyReflow;
+    }
+
+    /** Set the file to keep rows evicted from the circular buffer in, see {@link TranscriptFile}. */
+    void setTranscriptFile(TranscriptFile transcriptFile) {
+        mTranscriptFile = transcriptFile;
     }
 
     /**
      * Convert a row value from the public external coordinate system to our internal private coordinate system.
      *
      * <pre>
-     * - External coordinate system: -mActiveTranscriptRows to mScreenRows-1, with the screen being 0..mScreenRows-1.
+     * - External coordinate system: -getActiveTranscriptRows() to mScreenRows-1, with the screen being 0..mScreenRows-1.
+     *   Rows before -mActiveTranscriptRows are kept in the {@link TranscriptFile} and have no internal row, but are read
+     *   with {@link #copyRow(int, TerminalRow)}, {@link #getLineWrap(int)} and {@link #getStyleAt(int, int)}.
      * - Internal coordinate system: the mScreenRows lines starting at mScreenFirstRow comprise the screen, while the
-     *   mActiveTranscriptRows lines ending at mScreenFirstRow-1 form the transcript (as a circular buffer).
+     *   mActiveTranscriptRows lines ending at mScreenFirstRow-1 form the transcript (as a circular buffer). Screen rows
+     *   in a rotated range, see {@link #mRotatedRanges}, are rotated within the lines of the range.
      *
      * External ↔ Internal:
      *
@@ -170,22 +428,110 @@ public final class TerminalBuffer {
      * [ mScreenRows-1                  ]     [ mScreenFirstRow + mScreenRows-1         ]
      * </pre>
      *
-     * @param externalRow a row in the external coordinate system.
+     * @param externalRow a row in the external coordinate system, which is not in the transcript file.
      * @return The row corresponding to the input argument in the private coordinate system.
      */
     public int externalToInternalRow(int externalRow) {
         if (externalRow < -mActiveTranscriptRows || externalRow > mScreenRows)
-            throw new IllegalArgumentException("extRow=" + externalRow + ", mScreenRows=" + mScreenRows + ", mActiveTranscriptRows=" + mActiveTranscriptRows);
+            throw new IllegalArgumentException("extRow=" + externalRow + ", mScreenRows=" + mScreenRows + ", mActiveTranscriptRows=" + mActiveTranscriptRows
+                + (externalRow < -mActiveTranscriptRows && externalRow >= -getActiveTranscriptRows() ? " (row in transcript file)" : ""));
+        if (mRotatedRanges != 0) externalRow = rotateRow(externalRow);
         final int internalRow = mScreenFirstRow + externalRow;
         return (internalRow < 0) ? (mTotalRows + internalRow) : (internalRow % mTotalRows);
     }
 
+    /** Get the row which an external row is at before rotating the rotated range it may be in. */
+    private int rotateRow(int externalRow) {
+        for (int i = 0; i < mRotatedRanges; i++) {
+            final int top = mRotatedTop[i], bottom = mRotatedBottom[i];
+            if (externalRow >= top && externalRow < bottom) {
+                externalRow += mRotation[i];
+                return (externalRow >= bottom) ? externalRow - (bottom - top) : externalRow;
+            }
+        }
+        return externalRow;
+    }
+
+    /**
+     * Get the index of the rotated range of the screen rows [top, bottom), which is added without rotation if there is
+     * none. Other ranges overlapping it are unrotated first, as is the first range if there are too many.
+     */
+    private int getRotatedRange(int top, int bottom) {
+        for (int i = mRotatedRanges - 1; i >= 0; i--) {
+            if (mRotatedTop[i] == top && mRotatedBottom[i] == bottom) return i;
+            if (mRotatedTop[i] < bottom && mRotatedBottom[i] > top) unrotateRange(i);
+        }
+        if (mRotatedRanges == MAX_ROTATED_RANGES) unrotateRange(0);
+        final int i = mRotatedRanges++;
+        mRotatedTop[i] = top;
+        mRotatedBottom[i] = bottom;
+        mRotation[i] = 0;
+        mRotationChange[i] = 0;
+        return i;
+    }
+
+    /**
+     * Move the rows of a rotated range into place in the circular buffer, stamping them with the change of the range,
+     * and remove the range. This takes time proportional to its rows, unlike rotating it.
+     */
+    private void unrotateRange(int i) {
+        final int top = mRotatedTop[i], height = mRotatedBottom[i] - top, rotation = mRotation[i];
+        final long change = mRotationChange[i];
+        // Rotate the lines up by the rotation, by reversing both parts and then the whole:
+        final int firstLine = mScreenFirstRow + top;
+        reverseLines(firstLine, 0, rotation);
+        reverseLines(firstLine, rotation, height);
+        reverseLines(firstLine, 0, height);
+        for (int j = 0; j < height; j++) {
+            TerminalRow line = mLines[(firstLine + j) % mTotalRows];
+            if (line != null && line.mChange < change) line.mChange = change;
+        }
+        mRotatedRanges--;
+        System.arraycopy(mRotatedTop, i + 1, mRotatedTop, i, mRotatedRanges - i);
+        System.arraycopy(mRotatedBottom, i + 1, mRotatedBottom, i, mRotatedRanges - i);
+        System.arraycopy(mRotation, i + 1, mRotation, i, mRotatedRanges - i);
+        System.arraycopy(mRotationChange, i + 1, mRotationChange, i, mRotatedRanges - i);
+    }
+
+    /** Unrotate all rotated ranges, before the screen is moved in the circular buffer in other ways than scrolling. */
+    private void unrotateRanges() {
+        while (mRotatedRanges > 0) unrotateRange(mRotatedRanges - 1);
+    }
+
+    /** Reverse the order of the lines [firstLine + from, firstLine + to) in the circular buffer. */
+    private void reverseLines(int firstLine, int from, int to) {
+        for (int i = firstLine + from, j = firstLine + to - 1; i < j; i++, j--) {
+            int internalI = i % mTotalRows, internalJ = j % mTotalRows;
+            TerminalRow line = mLines[internalI];
+            mLines[internalI] = mLines[internalJ];
+            mLines[internalJ] = line;
+        }
+    }
+
+    /** Swap the lines at two internal rows. */
+    private void swapLines(int internalRow1, int internalRow2) {
+        TerminalRow line = mLines[internalRow1];
+        mLines[internalRow1] = mLines[internalRow2];
+        mLines[internalRow2] = line;
+    }
+
+    /** Convert an external row before -mActiveTranscriptRows to the index of the row in the {@link TranscriptFile}. */
+    private int toTranscriptFileRow(int externalRow) {
+        final int fileRow = getActiveTranscriptRows() + externalRow;
+        if (fileRow < 0)
+            throw new IllegalArgumentException("extRow=" + externalRow + ", activeTranscriptRows=" + getActiveTranscriptRows());
+        return fileRow;
+    }
+
     public void setLineWrap(int row) {
         mLines[externalToInternalRow(row)].mLineWrap = true;
     }
 
+    /** If an external row has been line wrapped, which may be a row in the {@link TranscriptFile} or one not yet allocated. */
     public boolean getLineWrap(int row) {
-        return mLines[externalToInternalRow(row)].mLineWrap;
+        if (row < -mActiveTranscriptRows) return mTranscriptFile.getLineWrap(toTranscriptFileRow(row));
+        TerminalRow line = mLines[externalToInternalRow(row)];
+        return line != null && line.mLineWrap;
     }
 
     public void clearLineWrap(int row) {
@@ -201,9 +547,12 @@ public final class TerminalBuffer {
      * @param cursor     An int[2] containing the (column, row) cursor location.
      */
     public void resize(int newColumns, int newRows, int newTotalRows, int[] cursor, long currentStyle, boolean altScreen) {
+        mTranscriptGeneration++;
+        unrotateRanges();
         // newRows > mTotalRows should not normally happen since mTotalRows is TRANSCRIPT_ROWS (10000):
         if (newColumns == mColumns && newRows <= mTotalRows) {
-            // Fast resize where just the rows changed.
+            // Fast resize where just the rows changed. Rows revealed when expanding may need to be reflowed first:
+            if (newRows > mScreenRows) reflowPendingRows(newRows - mScreenRows);
             int shiftDownOfTopRow = mScreenRows - newRows;
             if (shiftDownOfTopRow > 0 && shiftDownOfTopRow < mScreenRows) {
                 // Shrinking. Check if we can skip blank rows at bottom below cursor.
@@ -220,7 +569,7 @@ public final class TerminalBuffer {
                 if (shiftDownOfTopRow != actualShift) {
                     // The new lines revealed by the resizing are not all from the transcript. Blank the below ones.
                     for (int i = 0; i < actualShift - shiftDownOfTopRow; i++)
-                        allocateFullLineIfNecessary((mScreenFirstRow + mScreenRows + i) % mTotalRows).clear(currentStyle);
+                        getLine((mScreenFirstRow + mScreenRows + i) % mTotalRows).clear(currentStyle, mRowPool);
                     shiftDownOfTopRow = actualShift;
                 }
             }
@@ -230,111 +579,142 @@ public final class TerminalBuffer {
             mActiveTranscriptRows = altScreen ? 0 : Math.max(0, mActiveTranscriptRows + shiftDownOfTopRow);
             cursor[1] -= shiftDownOfTopRow;
             mScreenRows = newRows;
+
+            // Rows revealed from the transcript may be modified again, while rows pushed into it can be compacted:
+            for (int i = 0; i < mScreenRows; i++)
+                allocateFullLineIfNecessary(externalToInternalRow(i));
+            for (int i = -Math.min(shiftDownOfTopRow, mActiveTranscriptRows); i < 0; i++) {
+                TerminalRow line = mLines[externalToInternalRow(i)];
+                if (line != null) line.compact(mRowPool);
+            }
         } else {
-            // Copy away old state and update new:
-            TerminalRow[] oldLines = mLines;
-            mLines = new TerminalRow[newTotalRows];
-            for (int i = 0; i < newTotalRows; i++)
-                mLines[i] = new TerminalRow(newColumns, currentStyle);
+            // The old rows, oldest first: the rows still pending reflow since an earlier resize, then the transcript
+            // and screen rows:
+            final int pendingRows = mPendingReflowRowCount;
+            final int oldScreenStart = pendingRows + mActiveTranscriptRows;
+            final TerminalRow[] oldRows = new TerminalRow[oldScreenStart + mScreenRows];
+            if (pendingRows > 0) System.arraycopy(mPendingReflowRows, 0, oldRows, 0, pendingRows);
+            for (int externalOldRow = -mActiveTranscriptRows; externalOldRow < mScreenRows; externalOldRow++)
+                oldRows[oldScreenStart + externalOldRow] = mLines[externalToInternalRow(externalOldRow)];
+
+            // Only reflow the screen and a margin of history now, unless the reflowed rows might not fit. Older rows are
+            // reflowed when they are needed, see reflowPendingRows(int):
+            int start = mLazyReflow ? findReflowStart(oldRows, oldRows.length, oldScreenStart, newRows + REFLOW_MARGIN_ROWS) : 0;
+            if (start > 0 && maxReflowedRows(oldRows, start, oldRows.length, newColumns) > newTotalRows) start = 0;
+
+            // Only the screen rows are allocated up front, transcript rows are allocated as output scrolls into the
+            // transcript, reusing the arrays of the rows compacted as they scroll off the screen:
+            // The rows in the transcript file are reflowed after the rows pending reflow, when they are needed:
+            if (newColumns != mColumns && mTranscriptFile != null && mTranscriptFile.getRows() > 0)
+                mTranscriptFileReflowPending = true;
+            mPendingReflowStyle = currentStyle;
 
-            final int oldActiveTranscriptRows = mActiveTranscriptRows;
-            final int oldScreenFirstRow = mScreenFirstRow;
-            final int oldScreenRows = mScreenRows;
-            final int oldTotalRows = mTotalRows;
+            mLines = new TerminalRow[newTotalRows];
+            if (newColumns != mColumns) mRowPool = new TerminalRowPool(newColumns);
+            for (int i = 0; i < newRows; i++)
+                mLines[i] = new TerminalRow(newColumns, currentStyle, mRowPool);
             mTotalRows = newTotalRows;
             mScreenRows = newRows;
             mActiveTranscriptRows = mScreenFirstRow = 0;
             mColumns = newColumns;
+            mPendingReflowRows = null;
+            mPendingReflowRowCount = 0;
 
-            int newCursorRow = -1;
-            int newCursorColumn = -1;
-            int oldCursorRow = cursor[1];
-            int oldCursorColumn = cursor[0];
-            boolean newCursorPlaced = false;
-
-            int currentOutputExternalRow = 0;
-            int currentOutputExternalColumn = 0;
-
-            // Loop over every character in the initial state.
-            // Blank lines should be skipped only if at end of transcript (just as is done in the "fast" resize), so we
-            // keep track how many blank lines we have skipped if we later on find a non-blank line.
-            int skippedBlankLines = 0;
-            for (int externalOldRow = -oldActiveTranscriptRows; externalOldRow < oldScreenRows; externalOldRow++) {
-                // Do what externalToInternalRow() does but for the old state:
-                int internalOldRow = oldScreenFirstRow + externalOldRow;
-                internalOldRow = (internalOldRow < 0) ? (oldTotalRows + internalOldRow) : (internalOldRow % oldTotalRows);
-
-                TerminalRow oldLine = oldLines[internalOldRow];
-                boolean cursorAtThisRow = externalOldRow == oldCursorRow;
-                // The cursor may only be on a non-null line, which we should not skip:
-                if (oldLine == null || (!(!newCursorPlaced && cursorAtThisRow)) && oldLine.isBlank()) {
-                    skippedBlankLines++;
-                    continue;
-                } else if (skippedBlankLines > 0) {
-                    // After skipping some blank lines we encounter a non-blank line. Insert the skipped blank lines.
-                    for (int i = 0; i < skippedBlankLines; i++) {
-                        if (currentOutputExternalRow == mScreenRows - 1) {
-                            scrollDownOneLine(0, mScreenRows, currentStyle);
-                        } else {
-                            currentOutputExternalRow++;
-                        }
-                        currentOutputExternalColumn = 0;
-                    }
-                    skippedBlankLines = 0;
-                }
+            reflow(oldRows, start, oldRows.length, oldScreenStart + cursor[1], cursor[0], currentStyle, cursor);
 
-                int lastNonSpaceIndex = 0;
-                boolean justToCursor = false;
-                if (cursorAtThisRow || oldLine.mLineWrap) {
-                    // Take the whole line, either because of cursor on it, or if line wrapping.
-                    lastNonSpaceIndex = oldLine.getSpaceUsed();
-                    if (cursorAtThisRow) justToCursor = true;
-                } else {
-                    for (int i = 0; i < oldLine.getSpaceUsed(); i++)
-                        // NEWLY INTRODUCED BUG! Should not index oldLine.mStyle with char indices
-                        if (oldLine.mText[i] != ' '/* || oldLine.mStyle[i] != currentStyle */)
-                            lastNonSpaceIndex = i + 1;
-                }
+            if (start > 0) {
+                Arrays.fill(oldRows, start, oldRows.length, null);
+                mPendingReflowRows = oldRows;
+                mPendingReflowRowCount = start;
+            } else if (!mLazyReflow && mTranscriptFileReflowPending) {
+                reflowTranscriptFile();
+            }
+        }
 
-                int currentOldCol = 0;
-                long styleAtCol = 0;
-                for (int i = 0; i < lastNonSpaceIndex; i++) {
-                    // Note that looping over java character, not cells.
-                    char c = oldLine.mText[i];
-                    int codePoint = (Character.isHighSurrogate(c)) ? Character.toCodePoint(c, oldLine.mText[++i]) : c;
-                    int displayWidth = WcWidth.width(codePoint);
-                    // Use the last style if this is a zero-width character:
-                    if (displayWidth > 0) styleAtCol = oldLine.getStyle(currentOldCol);
-
-                    // Line wrap as necessary:
-                    if (currentOutputExternalColumn + displayWidth > mColumns) {
-                        setLineWrap(currentOutputExternalRow);
-                        if (currentOutputExternalRow == mScreenRows - 1) {
-                            if (newCursorPlaced) newCursorRow--;
-                            scrollDownOneLine(0, mScreenRows, currentStyle);
-                        } else {
-                            currentOutputExternalRow++;
-                        }
-                        currentOutputExternalColumn = 0;
-                    }
+        // Handle cursor scrolling off screen:
+        if (cursor[0] < 0 || cursor[1] < 0) cursor[0] = cursor[1] = 0;
+    }
+
+    /**
+     * Reflow rows into this buffer, which must be empty with its screen starting at the first row of {@link #mLines}.
+     * The output starts at the top of the screen and scrolls into the transcript when it reaches the bottom.
+     *
+     * @param oldRows      rows to reflow, which may have different numbers of columns than this buffer and each other.
+     * @param from         the first row to reflow.
+     * @param to           the row after the last row to reflow.
+     * @param cursorRow    the row with the cursor, or -1.
+     * @param cursorColumn the column of the cursor in its row.
+     * @param currentStyle the style of new blank rows.
+     * @param cursor       set to the new column and external row of the cursor, or -1 if it was not placed.
+     */
+    private void reflow(TerminalRow[] oldRows, int from, int to, int cursorRow, int cursorColumn, long currentStyle, int[] cursor) {
+        // Compacted old rows are decoded into this row instead of being inflated:
+        TerminalRow decodedOldLine = null;
+
+        int newCursorRow = -1;
+        int newCursorColumn = -1;
+        boolean newCursorPlaced = false;
+
+        int currentOutputExternalRow = 0;
+        int currentOutputExternalColumn = 0;
 
-                    int offsetDueToCombiningChar = ((displayWidth <= 0 && currentOutputExternalColumn > 0) ? 1 : 0);
-                    int outputColumn = currentOutputExternalColumn - offsetDueToCombiningChar;
-                    setChar(outputColumn, currentOutputExternalRow, codePoint, styleAtCol);
-
-                    if (displayWidth > 0) {
-                        if (oldCursorRow == externalOldRow && oldCursorColumn == currentOldCol) {
-                            newCursorColumn = currentOutputExternalColumn;
-                            newCursorRow = currentOutputExternalRow;
-                            newCursorPlaced = true;
-                        }
-                        currentOldCol += displayWidth;
-                        currentOutputExternalColumn += displayWidth;
-                        if (justToCursor && newCursorPlaced) break;
+        // Loop over every character in the initial state.
+        // Blank lines should be skipped only if at end of transcript (just as is done in the "fast" resize), so we
+        // keep track how many blank lines we have skipped if we later on find a non-blank line.
+        int skippedBlankLines = 0;
+        for (int oldRow = from; oldRow < to; oldRow++) {
+            TerminalRow oldLine = oldRows[oldRow];
+            boolean cursorAtThisRow = oldRow == cursorRow;
+            // The cursor may only be on a non-null line, which we should not skip:
+            if (oldLine == null || (!(!newCursorPlaced && cursorAtThisRow)) && oldLine.isBlank()) {
+                skippedBlankLines++;
+                continue;
+            } else if (skippedBlankLines > 0) {
+                // After skipping some blank lines we encounter a non-blank line. Insert the skipped blank lines.
+                for (int i = 0; i < skippedBlankLines; i++) {
+                    if (currentOutputExternalRow == mScreenRows - 1) {
+                        scrollDownOneLine(0, mScreenRows, currentStyle);
+                    } else {
+                        currentOutputExternalRow++;
                     }
+                    currentOutputExternalColumn = 0;
                 }
-                // Old row has been copied. Check if we need to insert newline if old line was not wrapping:
-                if (externalOldRow != (oldScreenRows - 1) && !oldLine.mLineWrap) {
+                skippedBlankLines = 0;
+            }
+
+            if (oldLine.isCompact()) {
+                if (decodedOldLine == null || decodedOldLine.getColumns() != oldLine.getColumns())
+                    decodedOldLine = new TerminalRow(oldLine.getColumns(), currentStyle);
+                decodedOldLine.copyFrom(oldLine);
+                oldLine = decodedOldLine;
+            }
+
+            int lastNonSpaceIndex = 0;
+            boolean justToCursor = false;
+            if (cursorAtThisRow || oldLine.mLineWrap) {
+                // Take the whole line, either because of cursor on it, or if line wrapping.
+                lastNonSpaceIndex = oldLine.getSpaceUsed();
+                if (cursorAtThisRow) justToCursor = true;
+            } else {
+                for (int i = 0; i < oldLine.getSpaceUsed(); i++)
+                    // NEWLY INTRODUCED BUG! Should not index oldLine.mStyle with char indices
+                    if (oldLine.mText[i] != ' '/* || oldLine.mStyle[i] != currentStyle */)
+                        lastNonSpaceIndex = i + 1;
+            }
+
+            int currentOldCol = 0;
+            long styleAtCol = 0;
+            for (int i = 0; i < lastNonSpaceIndex; i++) {
+                // Note that looping over java character, not cells.
+                char c = oldLine.mText[i];
+                int codePoint = (Character.isHighSurrogate(c)) ? Character.toCodePoint(c, oldLine.mText[++i]) : c;
+                int displayWidth = WcWidth.width(codePoint);
+                // Use the last style if this is a zero-width character:
+                if (displayWidth > 0) styleAtCol = oldLine.getStyle(currentOldCol);
+
+                // Line wrap as necessary:
+                if (currentOutputExternalColumn + displayWidth > mColumns) {
+                    setLineWrap(currentOutputExternalRow);
                     if (currentOutputExternalRow == mScreenRows - 1) {
                         if (newCursorPlaced) newCursorRow--;
                         scrollDownOneLine(0, mScreenRows, currentStyle);
@@ -343,39 +723,181 @@ public final class TerminalBuffer {
                     }
                     currentOutputExternalColumn = 0;
                 }
-            }
 
-            cursor[0] = newCursorColumn;
-            cursor[1] = newCursorRow;
+                int offsetDueToCombiningChar = ((displayWidth <= 0 && currentOutputExternalColumn > 0) ? 1 : 0);
+                int outputColumn = currentOutputExternalColumn - offsetDueToCombiningChar;
+                setChar(outputColumn, currentOutputExternalRow, codePoint, styleAtCol);
+
+                if (displayWidth > 0) {
+                    if (cursorAtThisRow && cursorColumn == currentOldCol) {
+                        newCursorColumn = currentOutputExternalColumn;
+                        newCursorRow = currentOutputExternalRow;
+                        newCursorPlaced = true;
+                    }
+                    currentOldCol += displayWidth;
+                    currentOutputExternalColumn += displayWidth;
+                    if (justToCursor && newCursorPlaced) break;
+                }
+            }
+            // Old row has been copied. Check if we need to insert newline if old line was not wrapping:
+            if (oldRow != to - 1 && !oldLine.mLineWrap) {
+                if (currentOutputExternalRow == mScreenRows - 1) {
+                    if (newCursorPlaced) newCursorRow--;
+                    scrollDownOneLine(0, mScreenRows, currentStyle);
+                } else {
+                    currentOutputExternalRow++;
+                }
+                currentOutputExternalColumn = 0;
+            }
         }
 
-        // Handle cursor scrolling off screen:
-        if (cursor[0] < 0 || cursor[1] < 0) cursor[0] = cursor[1] = 0;
+        cursor[0] = newCursorColumn;
+        cursor[1] = newCursorRow;
     }
 
     /**
-     * Block copy lines and associated metadata from one location to another in the circular buffer, taking wraparound
-     * into account.
+     * Find the row to start reflowing rows[0..end) from in order to reflow as few rows as possible, but at least enough
+     * for minRows rows to result from the rows before maxStart. The row before it must end a non-blank line, after which
+     * the output of a reflow continues at the start of a new row, so that the rows before it can be reflowed separately
+     * and their output be placed before the output of the rows after it.
      *
-     * @param srcInternal The first line to be copied.
-     * @param len         The number of lines to be copied.
+     * @return the row to start from, or 0 if there is no such row.
+     */
+    private static int findReflowStart(TerminalRow[] rows, int end, int maxStart, int minRows) {
+        // Each line ending before maxStart results in at least one row, as it is followed by at least the cursor row:
+        int lineEnds = 0;
+        for (int start = end; start > 0; start--) {
+            TerminalRow row = rows[start - 1];
+            boolean blank = row == null || row.isBlank();
+            if (start <= maxStart && lineEnds >= minRows && !blank && !row.mLineWrap) return start;
+            if (start <= maxStart && (blank || !row.mLineWrap)) lineEnds++;
+        }
+        return 0;
+    }
+
+    /** An upper bound of the number of rows resulting from reflowing rows[from..to) to the specified number of columns. */
+    private static int maxReflowedRows(TerminalRow[] rows, int from, int to, int columns) {
+        // Each row of output is either started by the end of an old line, or by wrapping after at least all but one of
+        // the columns of the previous row was used, as a wide character which does not fit in the last column is moved:
+        int lineEnds = 0;
+        long oldColumns = 0;
+        for (int i = from; i < to; i++) {
+            if (rows[i] == null || !rows[i].mLineWrap) lineEnds++;
+            if (rows[i] != null) oldColumns += rows[i].getColumns();
+        }
+        return (int) Math.min(Integer.MAX_VALUE, 1 + lineEnds + oldColumns / Math.max(1, columns - 1));
+    }
+
+    /**
+     * Reflow the rows pending since the columns were changed, see {@link #resize(int, int, int, int[], long, boolean)}, a
+     * chunk at a time from the most recent one, until the transcript has at least the specified number of rows.
+     */
+    void reflowPendingRows(int minTranscriptRows) {
+        while (mPendingReflowRowCount > 0 && mActiveTranscriptRows < minTranscriptRows) {
+            final int freeRows = mTotalRows - mScreenRows - mActiveTranscriptRows;
+            if (freeRows == 0) {
+                evictPendingRows();
+                break;
+            }
+            int start = findReflowStart(mPendingReflowRows, mPendingReflowRowCount, mPendingReflowRowCount, REFLOW_MARGIN_ROWS);
+            TerminalRow[] rows = reflowRows(mPendingReflowRows, start, mPendingReflowRowCount);
+            Arrays.fill(mPendingReflowRows, start, mPendingReflowRowCount, null);
+            mPendingReflowRowCount = start;
+
+            // The reflowed rows are placed before the transcript. Those which do not fit are evicted, after the older rows
+            // still pending:
+            int evictedRows = rows.length - freeRows;
+            if (evictedRows > 0) {
+                evictPendingRows();
+                if (mTranscriptFile != null)
+                    for (int i = 0; i < evictedRows; i++) mTranscriptFile.append(rows[i]);
+            }
+            for (int i = rows.length - 1; i >= Math.max(0, evictedRows); i--) {
+                rows[i].compact(mRowPool);
+                mLines[externalToInternalRow(-++mActiveTranscriptRows)] = rows[i];
+            }
+        }
+        if (mPendingReflowRowCount == 0) mPendingReflowRows = null;
+        if (mTranscriptFileReflowPending && mPendingReflowRowCount == 0 && mActiveTranscriptRows < minTranscriptRows)
+            reflowTranscriptFile();
+    }
+
+    /** If rows of history or of the {@link TranscriptFile} are pending reflow since the columns were changed. */
+    boolean isReflowPending() {
+        return mPendingReflowRowCount > 0 || mTranscriptFileReflowPending;
+    }
+
+    /** Reflow the rows pending since the columns were changed like {@link #reflowPendingRows(int)}, to show the specified external row with a margin above it. */
+    void reflowPendingRowsAbove(int externalRow) {
+        reflowPendingRows(REFLOW_MARGIN_ROWS - externalRow);
+    }
+
+    /** Reflow rows[from, to), which are pending reflow since the columns changed, into new rows, oldest first. */
+    private TerminalRow[] reflowRows(TerminalRow[] oldRows, int from, int to) {
+        TerminalBuffer buffer = new TerminalBuffer(mColumns, maxReflowedRows(oldRows, from, to, mColumns), 1);
+        buffer.mLines[0].clear(mPendingReflowStyle);
+        buffer.reflow(oldRows, from, to, -1, 0, mPendingReflowStyle, new int[2]);
+        TerminalRow[] rows = new TerminalRow[buffer.getActiveRows()];
+        for (int i = 0; i < rows.length; i++)
+            rows[i] = buffer.mLines[buffer.externalToInternalRow(i - buffer.mActiveTranscriptRows)];
+        return rows;
+    }
+
+    /**
+     * Drop all rows pending reflow, which are older than the rows in the circular buffer and so are evicted before them,
+     * or reflow them into the {@link TranscriptFile} if set.
+     */
+    private void evictPendingRows() {
+        if (mTranscriptFile != null && mPendingReflowRowCount > 0)
+            for (TerminalRow row : reflowRows(mPendingReflowRows, 0, mPendingReflowRowCount)) mTranscriptFile.append(row);
+        mPendingReflowRows = null;
+        mPendingReflowRowCount = 0;
+    }
+
+    /**
+     * Reflow the rows of the {@link TranscriptFile}, which may have other numbers of columns than this buffer since the
+     * columns changed, into a new file. The rows are read and reflowed a chunk of lines at a time, but the whole file is
+     * rewritten, so this is only done once the rows in the file are needed after the rows pending reflow, which are
+     * newer. A line wrapped from the last row of the file into the oldest row in memory is reflowed as two lines.
      */
-    private void blockCopyLinesDown(int srcInternal, int len) {
-        if (len == 0) return;
-        int totalRows = mTotalRows;
+    void reflowTranscriptFile() {
+        mTranscriptFileReflowPending = false;
+        final TranscriptFile oldFile = mTranscriptFile;
+        final TranscriptFile newFile = oldFile.createEmpty();
+        final int oldFileRows = oldFile.getRows();
+        TerminalRow[] chunk = new TerminalRow[2 * REFLOW_MARGIN_ROWS];
+        int chunkRows = 0;
+        for (int i = 0; i < oldFileRows; i++) {
+            TerminalRow row = oldFile.readRow(i);
+            if (chunkRows == chunk.length) chunk = Arrays.copyOf(chunk, 2 * chunkRows);
+            chunk[chunkRows++] = row;
+            // End each chunk after a non-blank line, so that the output of the next one starts at a new row as it would
+            // if they were reflowed together:
+            final boolean lastRow = i == oldFileRows - 1;
+            if (!lastRow && (chunkRows < REFLOW_MARGIN_ROWS || row.mLineWrap || row.isBlank())) continue;
 
-        int start = len - 1;
-        // Save away line to be overwritten:
-        TerminalRow lineToBeOverWritten = mLines[(srcInternal + start + 1) % totalRows];
-        // Do the copy from bottom to top.
-        for (int i = start; i >= 0; --i)
-            mLines[(srcInternal + i + 1) % totalRows] = mLines[(srcInternal + i) % totalRows];
-        // Put back overwritten line, now above the block:
-        mLines[(srcInternal) % totalRows] = lineToBeOverWritten;
+            // Blank rows at the end are skipped by reflow(), as they are at the end of the transcript:
+            int end = chunkRows;
+            while (end > 0 && chunk[end - 1].isBlank()) end--;
+            if (end > 0) {
+                TerminalRow[] rows = reflowRows(chunk, 0, end);
+                if (lastRow && chunk[end - 1].mLineWrap) rows[rows.length - 1].mLineWrap = true;
+                for (TerminalRow reflowedRow : rows) newFile.append(reflowedRow);
+            }
+            for (int blankRow = end; blankRow < chunkRows; blankRow++)
+                newFile.append(new TerminalRow(mColumns, mPendingReflowStyle));
+            Arrays.fill(chunk, 0, chunkRows, null);
+            chunkRows = 0;
+        }
+        mTranscriptFile = newFile;
     }
 
     /**
      * Scroll the screen down one line. To scroll the whole screen of a 24 line screen, the arguments would be (0, 24).
+     * <p>
+     * The screen is moved down one line in the circular buffer, so that the first scrolled line is scrolled into the
+     * transcript. The fixed lines above and below the scrolled lines are kept in place by rotating them in ranges of
+     * their own, see {@link #mRotatedRanges}, so that this takes constant time with scroll margins too.
      *
      * @param topMargin    First line that is scrolled.
      * @param bottomMargin One line after the last line that is scrolled.
@@ -385,26 +907,107 @@ public final class TerminalBuffer {
         if (topMargin > bottomMargin - 1 || topMargin < 0 || bottomMargin > mScreenRows)
             throw new IllegalArgumentException("topMargin=" + topMargin + ", bottomMargin=" + bottomMargin + ", mScreenRows=" + mScreenRows);
 
-        // Copy the fixed topMargin lines one line down so that they remain on screen in same position:
-        blockCopyLinesDown(mScreenFirstRow, topMargin);
-        // Copy the fixed mScreenRows-bottomMargin lines one line down so that they remain on screen in same
-        // position:
-        blockCopyLinesDown(externalToInternalRow(bottomMargin), mScreenRows - bottomMargin);
+        // Rows rotated in other ranges would move along with the screen, so they are put in place first:
+        for (int i = mRotatedRanges - 1; i >= 0; i--) {
+            final boolean fixedAbove = mRotatedTop[i] == 0 && mRotatedBottom[i] == topMargin;
+            final boolean fixedBelow = mRotatedTop[i] == bottomMargin && mRotatedBottom[i] == mScreenRows;
+            if (!fixedAbove && !fixedBelow) unrotateRange(i);
+        }
+
+        // When the transcript is full, the line at the end of the screen is the oldest transcript line, which is about
+        // to be reused as the new blank line below:
+        final boolean evictingTranscriptLine = mActiveTranscriptRows > 0 && mActiveTranscriptRows == mTotalRows - mScreenRows;
+        if (evictingTranscriptLine && mPendingReflowRowCount > 0) evictPendingRows();
+
+        // The line at the top of the fixed lines above is swapped with the first scrolled line, which then becomes the
+        // last transcript line as the screen moves down, and the fixed lines are rotated down to stay in place:
+        if (topMargin > 0) {
+            final int i = getRotatedRange(0, topMargin);
+            swapLines(mScreenFirstRow % mTotalRows, (mScreenFirstRow + topMargin) % mTotalRows);
+            mRotation[i] = (mRotation[i] + topMargin - 1) % topMargin;
+            mRotationChange[i] = ++mRowChanges;
+        }
+        // Likewise the line at the top of the fixed lines below is swapped with the line after the screen, which then
+        // becomes the new blank line above them:
+        if (bottomMargin < mScreenRows) {
+            final int fixedRows = mScreenRows - bottomMargin;
+            final int i = getRotatedRange(bottomMargin, mScreenRows);
+            swapLines((mScreenFirstRow + mScreenRows) % mTotalRows, (mScreenFirstRow + bottomMargin) % mTotalRows);
+            mRotation[i] = (mRotation[i] + fixedRows - 1) % fixedRows;
+            mRotationChange[i] = ++mRowChanges;
+        }
 
         // Update the screen location in the ring buffer:
         mScreenFirstRow = (mScreenFirstRow + 1) % mTotalRows;
+        mScrolledRows++;
+        if (mMemoryBudget != null && mScrolledRows % TranscriptMemoryBudget.CHECK_INTERVAL_ROWS == 0)
+            mMemoryBudget.onTranscriptGrown();
         // Note that the history has grown if not already full:
         if (mActiveTranscriptRows < mTotalRows - mScreenRows) mActiveTranscriptRows++;
 
-        // Blank the newly revealed line above the bottom margin:
+        // Compact the line which scrolled off the screen into the transcript, whose arrays are then reused for the new
+        // blank line below. When the transcript is full, that line is the oldest transcript line, which is compacted:
         int blankRow = externalToInternalRow(bottomMargin - 1);
+        if (evictingTranscriptLine && mTranscriptFile != null) mTranscriptFile.append(mLines[blankRow]);
+        if (mActiveTranscriptRows > 0) {
+            TerminalRow scrolledOffLine = mLines[externalToInternalRow(-1)];
+            if (scrolledOffLine != null) scrolledOffLine.compact(mRowPool);
+        }
+
+        // Blank the newly revealed line above the bottom margin:
         if (mLines[blankRow] == null) {
-            mLines[blankRow] = new TerminalRow(mColumns, style);
+            mLines[blankRow] = new TerminalRow(mColumns, style, mRowPool);
         } else {
-            mLines[blankRow].clear(style);
+            // A reused line must not keep the line wrap of its old contents, which would join it with the next line:
+            mLines[blankRow].clear(style, mRowPool);
+            mLines[blankRow].mLineWrap = false;
+        }
+        mLines[blankRow].mChange = ++mRowChanges;
+
+        // Rows are considered moved up one row by the scroll, which the fixed rows, changed by their rotation, and the
+        // row scrolled into history from below them were not:
+        if (topMargin > 0 && mActiveTranscriptRows > 0) getLine(externalToInternalRow(-1)).mChange = ++mRowChanges;
+    }
+
+    /**
+     * Move the full width screen rows [top, bottom) down by the specified number of rows, or up if negative, and blank
+     * the rows revealed at the top or bottom with the specified style. The rows are rotated in a range of their own,
+     * see {@link #mRotatedRanges}, so that rows moved out of the region are reused as the blank rows and only those are
+     * changed. Unlike {@link #scrollDownOneLine(int, int, long)}, nothing is scrolled into history.
+     */
+    public void moveRows(int top, int bottom, int rows, long style) {
+        if (top < 0 || top > bottom || bottom > mScreenRows)
+            throw new IllegalArgumentException("top=" + top + ", bottom=" + bottom + ", mScreenRows=" + mScreenRows);
+        final int height = bottom - top;
+        final int distance = Math.min(Math.abs(rows), height);
+        if (distance == 0) return;
+
+        // Rotate the region up, which moves it down when rotating by the height minus the distance:
+        final int i = getRotatedRange(top, bottom);
+        mRotation[i] = (mRotation[i] + ((rows > 0) ? height - distance : distance)) % height;
+        mRotationChange[i] = ++mRowChanges;
+
+        final int firstBlankRow = (rows > 0) ? top : bottom - distance;
+        for (int row = firstBlankRow; row < firstBlankRow + distance; row++) {
+            TerminalRow line = getLine(externalToInternalRow(row));
+            line.clear(style, mRowPool);
+            line.mLineWrap = false;
         }
     }
 
+    /**
+     * The {@link #mRowChanges} when the specified external row was last changed, or 0 if it has not been changed since
+     * the transcript was last replaced, see {@link #mTranscriptGeneration}.
+     */
+    long getRowChange(int externalRow) {
+        if (externalRow < -mActiveTranscriptRows) return 0;
+        TerminalRow line = mLines[externalToInternalRow(externalRow)];
+        long change = line == null ? 0 : line.mChange;
+        for (int i = 0; i < mRotatedRanges; i++)
+            if (externalRow >= mRotatedTop[i] && externalRow < mRotatedBottom[i]) return Math.max(change, mRotationChange[i]);
+        return change;
+    }
+
     /**
      * Block copy characters from one position in the screen to another. The two positions can overlap. All characters
      * of the source and destination must be within the bounds of the screen, or else an InvalidParameterException will
@@ -424,7 +1027,8 @@ public final class TerminalBuffer {
         boolean copyingUp = sy > dy;
         for (int y = 0; y < h; y++) {
             int y2 = copyingUp ? y : (h - (y + 1));
-            TerminalRow sourceRow = allocateFullLineIfNecessary(externalToInternalRow(sy + y2));
+            // Rows on the screen are never compacted, and reading the source does not change it:
+            TerminalRow sourceRow = getLine(externalToInternalRow(sy + y2));
             allocateFullLineIfNecessary(externalToInternalRow(dy + y2)).copyInterval(sourceRow, sx, sx + w, dx);
         }
     }
@@ -444,8 +1048,32 @@ public final class TerminalBuffer {
                 setChar(sx + x, sy + y, val, style);
     }
 
+    /**
+     * Get the line at the specified internal row to be changed, which is inflated if it is compacted and stamped as
+     * changed, see {@link #mRowChanges}. Use {@link #getLine(int)} to only read it.
+     */
     public TerminalRow allocateFullLineIfNecessary(int row) {
-        return (mLines[row] == null) ? (mLines[row] = new TerminalRow(mColumns, 0)) : mLines[row];
+        TerminalRow line = getLine(row);
+        line.inflate(mRowPool);
+        line.mChange = ++mRowChanges;
+        return line;
+    }
+
+    /** Get the line at the specified internal row like {@link #allocateFullLineIfNecessary(int)}, but without inflating it if it is compacted. */
+    TerminalRow getLine(int row) {
+        return (mLines[row] == null) ? (mLines[row] = new TerminalRow(mColumns, 0, mRowPool)) : mLines[row];
+    }
+
+    /**
+     * Copy an external row into a row with the same number of columns, without inflating it if it is compacted. Rows in
+     * the {@link TranscriptFile} are read from it.
+     */
+    void copyRow(int externalRow, TerminalRow destination) {
+        if (externalRow < -mActiveTranscriptRows) {
+            mTranscriptFile.readRow(toTranscriptFileRow(externalRow), destination);
+        } else {
+            destination.copyFrom(getLine(externalToInternalRow(externalRow)));
+        }
     }
 
     public void setChar(int column, int row, int codePoint, long style) {
@@ -455,8 +1083,23 @@ public final class TerminalBuffer {
         allocateFullLineIfNecessary(row).setChar(column, codePoint, style);
     }
 
+    /**
+     * Set a run of printable ASCII characters, all with the same style, starting at the specified column. All
+     * characters must be within the bounds of the screen.
+     */
+    public void setAsciiChars(int column, int row, byte[] chars, int offset, int count, long style) {
+        if (row < 0 || row >= mScreenRows || column < 0 || column + count > mColumns)
+            throw new IllegalArgumentException("TerminalBuffer.setAsciiChars(): row=" + row + ", column=" + column + ", count=" + count + ", mScreenRows=" + mScreenRows + ", mColumns=" + mColumns);
+        row = externalToInternalRow(row);
+        allocateFullLineIfNecessary(row).setAsciiChars(column, chars, offset, count, style);
+    }
+
+    /** Get the style of a cell of an external row, which may be a row in the {@link TranscriptFile}. */
     public long getStyleAt(int externalRow, int column) {
-        return allocateFullLineIfNecessary(externalToInternalRow(externalRow)).getStyle(column);
+        if (externalRow < -mActiveTranscriptRows)
+            return mTranscriptFile.readRow(toTranscriptFileRow(externalRow)).getStyle(column);
+        // Read without inflating a compacted transcript row or marking the row as changed:
+        return getLine(externalToInternalRow(externalRow)).getStyle(column);
     }
 
     /** Support for http://vt100.net/docs/vt510-rm/DECCARA and http://vt100.net/docs/vt510-rm/DECCARA */
@@ -464,6 +1107,7 @@ public final class TerminalBuffer {
                                  int bottom, int right) {
         for (int y = top; y < bottom; y++) {
             TerminalRow line = mLines[externalToInternalRow(y)];
+            line.mChange = ++mRowChanges;
             int startOfLine = (rectangular || y == top) ? left : leftMargin;
             int endOfLine = (rectangular || y + 1 == bottom) ? right : rightMargin;
             for (int x = startOfLine; x < endOfLine; x++) {
@@ -479,11 +1123,62 @@ public final class TerminalBuffer {
                 } else {
                     effect &= ~bits;
                 }
-                line.mStyle[x] = TextStyle.encode(foreColor, backColor, effect);
+                line.setStyle(x, TextStyle.encode(foreColor, backColor, effect));
             }
         }
     }
 
+    /** The number of rows of history kept in memory, which includes the rows pending reflow. */
+    int getTranscriptRowsInMemory() {
+        return mActiveTranscriptRows + mPendingReflowRowCount;
+    }
+
+    /** An estimate of the bytes of heap used by the rows of history kept in memory, see {@link TranscriptMemoryBudget}. */
+    long getTranscriptMemoryUsage() {
+        long bytes = 0;
+        for (int row = -mActiveTranscriptRows; row < 0; row++) {
+            TerminalRow line = mLines[externalToInternalRow(row)];
+            if (line != null) bytes += line.getMemoryUsage();
+        }
+        for (int i = 0; i < mPendingReflowRowCount; i++)
+            if (mPendingReflowRows[i] != null) bytes += mPendingReflowRows[i].getMemoryUsage();
+        return bytes;
+    }
+
+    /**
+     * Remove the oldest rows of history from memory until at most the specified number of rows are left, starting with
+     * the rows pending reflow. The removed rows are moved to the {@link TranscriptFile} if set, and dropped otherwise.
+     */
+    void trimTranscript(int maxRows) {
+        if (getTranscriptRowsInMemory() <= Math.max(0, maxRows)) return;
+        evictPendingRows();
+        final int trimmedRows = mActiveTranscriptRows - Math.max(0, maxRows);
+        for (int i = 0; i < trimmedRows; i++) {
+            final int internalRow = externalToInternalRow(-mActiveTranscriptRows + i);
+            if (mTranscriptFile != null && mLines[internalRow] != null) mTranscriptFile.append(mLines[internalRow]);
+            mLines[internalRow] = null;
+        }
+        if (trimmedRows > 0) mActiveTranscriptRows -= trimmedRows;
+        mTranscriptGeneration++;
+    }
+
+    /**
+     * Move all rows of history kept in memory to the {@link TranscriptFile}, see {@link TerminalEmulator#hibernate()}.
+     *
+     * @return false if there is no transcript file or it can not keep more rows, in which case nothing is done, or if
+     * it failed while moving the rows, in which case the rows not moved were dropped, see {@link #getTranscriptFileFailure()}.
+     */
+    boolean moveTranscriptToFile() {
+        if (mTranscriptFile == null || mTranscriptFile.getFailure() != null) return false;
+        trimTranscript(0);
+        return mTranscriptFile.getFailure() == null;
+    }
+
+    /** The error with which the {@link TranscriptFile} failed to keep rows, or null if it has not failed or is not set. */
+    IOException getTranscriptFileFailure() {
+        return (mTranscriptFile == null) ? null : mTranscriptFile.getFailure();
+    }
+
     public void clearTranscript() {
         if (mScreenFirstRow < mActiveTranscriptRows) {
             Arrays.fill(mLines, mTotalRows + mScreenFirstRow - mActiveTranscriptRows, mTotalRows, null);
@@ -492,6 +1187,11 @@ public final class TerminalBuffer {
             Arrays.fill(mLines, mScreenFirstRow - mActiveTranscriptRows, mScreenFirstRow, null);
         }
         mActiveTranscriptRows = 0;
+        mTranscriptGeneration++;
+        mPendingReflowRows = null;
+        mPendingReflowRowCount = 0;
+        mTranscriptFileReflowPending = false;
+        if (mTranscriptFile != null) mTranscriptFile.clear();
     }
 
 }
@@ -1,7 +1,5 @@
 package com.termux.terminal;
 
-import android.util.Base64;
-
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.Locale;
@@ -25,6 +23,11 @@ import java.util.Stack;
  * <li>http://woldlab.caltech.edu/~diane/kde4.10/workingdir/kubuntu/konsole/doc/developer/old-documents/VT100/techref.
  * html - document for konsole - accessible!</li>
  * </ul>
+ * <p>
+ * The emulator is not thread safe. Its buffers and modes are only read or modified while holding its monitor, since
+ * {@link TerminalSession} appends output on a separate thread when parsing in the background, and the transcript may be
+ * trimmed from another thread by {@link TranscriptMemoryBudget}. This includes the main thread reading modes to encode
+ * input or copying the rows in view to render them.
  */
 public final class TerminalEmulator {
 
@@ -91,9 +94,15 @@ public final class TerminalEmulator {
     /** The number of parameter arguments including colon separated sub-parameters. */
     private static final int MAX_ESCAPE_PARAMETERS = 32;
 
-    /** Needs to be large enough to contain reasonable OSC 52 pastes. */
+    /**
+     * The max length of OSC and device control strings. OSC 52 clipboard copies are decoded as they are parsed instead,
+     * see {@link #mClipboardDecoder}.
+     */
     private static final int MAX_OSC_STRING_LENGTH = 8192;
 
+    /** The default max number of bytes of an OSC 52 clipboard copy, see {@link #setMaxClipboardCopyBytes(int)}. */
+    public static final int DEFAULT_MAX_CLIPBOARD_COPY_BYTES = 1024 * 1024;
+
     /** DECSET 1 - application cursor keys. */
     private static final int DECSET_BIT_APPLICATION_CURSOR_KEYS = 1;
     private static final int DECSET_BIT_REVERSE_VIDEO = 1 << 1;
@@ -145,7 +154,7 @@ public final class TerminalEmulator {
 
     /** The number of terminal transcript rows that can be scrolled back to. */
     public static final int TERMINAL_TRANSCRIPT_ROWS_MIN = 100;
-    public static final int TERMINAL_TRANSCRIPT_ROWS_MAX = 50000;
+    public static final int TERMINAL_TRANSCRIPT_ROWS_MAX = 100000;
     public static final int DEFAULT_TERMINAL_TRANSCRIPT_ROWS = 2000;
 
 
@@ -187,6 +196,13 @@ public final class TerminalEmulator {
 
     /** Holds OSC and device control arguments, which can be strings. */
     private final StringBuilder mOSCOrDeviceControlArgs = new StringBuilder();
+    /**
+     * Decodes the base64 data of an OSC 52 clipboard copy as it is parsed, after the "52;$selection;" arguments, while
+     * {@link #mDecodingClipboard} is set.
+     */
+    private final Base64StreamDecoder mClipboardDecoder = new Base64StreamDecoder();
+    private boolean mDecodingClipboard;
+    private int mMaxClipboardCopyBytes = DEFAULT_MAX_CLIPBOARD_COPY_BYTES;
 
     /**
      * True if the current escape sequence should continue, false if the current escape sequence should be terminated.
@@ -344,10 +360,44 @@ public final class TerminalEmulator {
         setCursorBlinkState(true);
     }
 
+    /** Keep rows evicted from the transcript of the main buffer in the specified file, see {@link TranscriptFile}. */
+    void setTranscriptFile(TranscriptFile transcriptFile) {
+        mMainBuffer.setTranscriptFile(transcriptFile);
+    }
+
+    /**
+     * Move the whole transcript of the main buffer into its {@link TranscriptFile}, so that only the screens are kept on
+     * the heap while the session is idle. Rows of the transcript are then read back from the file as they are shown.
+     *
+     * @return if the transcript was moved, which is only done if the main buffer has a transcript file which has not
+     * failed to keep rows, see {@link TerminalBuffer#moveTranscriptToFile()}.
+     */
+    boolean hibernate() {
+        return mMainBuffer.moveTranscriptToFile();
+    }
+
+    /** The main buffer, which unlike the alternate buffer keeps a transcript. */
+    TerminalBuffer getMainBuffer() {
+        return mMainBuffer;
+    }
+
+    /** The number of rows scrolled up by output in both buffers, see {@link TerminalSessionStats}. */
+    long getScrolledRows() {
+        return mMainBuffer.mScrolledRows + mAltBuffer.mScrolledRows;
+    }
+
     public TerminalBuffer getScreen() {
         return mScreen;
     }
 
+    /**
+     * Reflow the history which has not been reflowed since the columns changed, as far as needed to show the specified
+     * external row at the top of a view with a margin above it.
+     */
+    public void reflowHistoryAbove(int topRow) {
+        mScreen.reflowPendingRowsAbove(topRow);
+    }
+
     public boolean isAlternateBufferActive() {
         return mScreen == mAltBuffer;
     }
@@ -498,8 +548,21 @@ public final class TerminalEmulator {
      * @param length the number of bytes in the array to process
      */
     public void append(byte[] buffer, int length) {
-        for (int i = 0; i < length; i++)
-            processByte(buffer[i]);
+        for (int i = 0; i < length; i++) {
+            if (mEscapeState == ESC_NONE && mUtf8ToFollow == 0 && isPrintableAscii(buffer[i])) {
+                // Fast path for runs of plain text, which bypasses utf-8 decoding and the escape state machine.
+                int runEnd = i + 1;
+                while (runEnd < length && isPrintableAscii(buffer[runEnd])) runEnd++;
+                emitAsciiRun(buffer, i, runEnd);
+                i = runEnd - 1;
+            } else {
+                processByte(buffer[i]);
+            }
+        }
+    }
+
+    private static boolean isPrintableAscii(byte b) {
+        return b >= 32 && b < 127;
     }
 
     private void processByte(byte byteToProcess) {
@@ -1462,8 +1525,12 @@ public final class TerminalEmulator {
                 // http://www.vt100.net/docs/vt100-ug/chapter3.html: "Move the active position to the same horizontal
                 // position on the preceding line. If the active position is at the top margin, a scroll down is performed".
                 if (mCursorRow <= mTopMargin) {
-                    mScreen.blockCopy(mLeftMargin, mTopMargin, mRightMargin - mLeftMargin, mBottomMargin - (mTopMargin + 1), mLeftMargin, mTopMargin + 1);
-                    blockClear(mLeftMargin, mTopMargin, mRightMargin - mLeftMargin);
+                    if (mLeftMargin == 0 && mRightMargin == mColumns) {
+                        mScreen.moveRows(mTopMargin, mBottomMargin, 1, getStyle());
+                    } else {
+                        mScreen.blockCopy(mLeftMargin, mTopMargin, mRightMargin - mLeftMargin, mBottomMargin - (mTopMargin + 1), mLeftMargin, mTopMargin + 1);
+                        blockClear(mLeftMargin, mTopMargin, mRightMargin - mLeftMargin);
+                    }
                 } else {
                     mCursorRow--;
                 }
@@ -1472,7 +1539,7 @@ public final class TerminalEmulator {
             case '0': // SS3, ignore.
                 break;
             case 'P': // Device control string
-                mOSCOrDeviceControlArgs.setLength(0);
+                startOSCOrDeviceControlString();
                 continueSequence(ESC_P);
                 break;
             case '[':
@@ -1482,7 +1549,7 @@ public final class TerminalEmulator {
                 setDecsetinternalBit(DECSET_BIT_APPLICATION_KEYPAD, true);
                 break;
             case ']': // OSC
-                mOSCOrDeviceControlArgs.setLength(0);
+                startOSCOrDeviceControlString();
                 continueSequence(ESC_OSC);
                 break;
             case '>': // DECKPNM
@@ -1627,9 +1694,8 @@ public final class TerminalEmulator {
             {
                 int linesAfterCursor = mBottomMargin - mCursorRow;
                 int linesToInsert = Math.min(getArg0(1), linesAfterCursor);
-                int linesToMove = linesAfterCursor - linesToInsert;
-                mScreen.blockCopy(0, mCursorRow, mColumns, linesToMove, 0, mCursorRow + linesToInsert);
-                blockClear(0, mCursorRow, mColumns, linesToInsert);
+                // Nothing is moved when the cursor is below the scroll region:
+                if (linesAfterCursor > 0) mScreen.moveRows(mCursorRow, mBottomMargin, linesToInsert, getStyle());
             }
             break;
             case 'M': // "${CSI}${N}M" - delete N lines (DL).
@@ -1637,9 +1703,8 @@ public final class TerminalEmulator {
                 mAboutToAutoWrap = false;
                 int linesAfterCursor = mBottomMargin - mCursorRow;
                 int linesToDelete = Math.min(getArg0(1), linesAfterCursor);
-                int linesToMove = linesAfterCursor - linesToDelete;
-                mScreen.blockCopy(0, mCursorRow + linesToDelete, mColumns, linesToMove, 0, mCursorRow);
-                blockClear(0, mCursorRow + linesToMove, mColumns, linesToDelete);
+                // Nothing is moved when the cursor is below the scroll region:
+                if (linesAfterCursor > 0) mScreen.moveRows(mCursorRow, mBottomMargin, -linesToDelete, getStyle());
             }
             break;
             case 'P': // "${CSI}{N}P" - delete ${N} characters (DCH).
@@ -1672,8 +1737,12 @@ public final class TerminalEmulator {
                     final int linesToScrollArg = getArg0(1);
                     final int linesBetweenTopAndBottomMargins = mBottomMargin - mTopMargin;
                     final int linesToScroll = Math.min(linesBetweenTopAndBottomMargins, linesToScrollArg);
-                    mScreen.blockCopy(mLeftMargin, mTopMargin, mRightMargin - mLeftMargin, linesBetweenTopAndBottomMargins - linesToScroll, mLeftMargin, mTopMargin + linesToScroll);
-                    blockClear(mLeftMargin, mTopMargin, mRightMargin - mLeftMargin, linesToScroll);
+                    if (mLeftMargin == 0 && mRightMargin == mColumns) {
+                        mScreen.moveRows(mTopMargin, mBottomMargin, linesToScroll, getStyle());
+                    } else {
+                        mScreen.blockCopy(mLeftMargin, mTopMargin, mRightMargin - mLeftMargin, linesBetweenTopAndBottomMargins - linesToScroll, mLeftMargin, mTopMargin + linesToScroll);
+                        blockClear(mLeftMargin, mTopMargin, mRightMargin - mLeftMargin, linesToScroll);
+                    }
                 } else {
                     // "${CSI}${func};${startx};${starty};${firstrow};${lastrow}T" - initiate highlight mouse tracking.
                     unimplementedSequence(b);
@@ -2012,6 +2081,12 @@ public final class TerminalEmulator {
 
     /** An Operating System Controls (OSC) Set Text Parameters. May come here from BEL or ST. */
     private void doOscSetTextParameters(String bellOrStringTerminator) {
+        if (mDecodingClipboard) {
+            copyDecodedClipboard();
+            finishSequence();
+            return;
+        }
+
         int value = -1;
         String textParameter = "";
         // Extract initial $value from initial "$value;..." string.
@@ -2104,14 +2179,10 @@ public final class TerminalEmulator {
                     }
                 }
                 break;
-            case 52: // Manipulate Selection Data. Skip the optional first selection parameter(s).
-                int startIndex = textParameter.indexOf(";") + 1;
-                try {
-                    String clipboardText = new String(Base64.decode(textParameter.substring(startIndex), 0), StandardCharsets.UTF_8);
-                    mSession.onCopyTextToClipboard(clipboardText);
-                } catch (Exception e) {
-                    Logger.logError(mClient, LOG_TAG, "OSC Manipulate selection, invalid string '" + textParameter + "");
-                }
+            case 52: // Manipulate Selection Data. Without a selection parameter, as it is otherwise decoded while parsed.
+                mClipboardDecoder.reset(mMaxClipboardCopyBytes);
+                for (int i = 0; i < textParameter.length(); i++) mClipboardDecoder.decode(textParameter.charAt(i));
+                copyDecodedClipboard();
                 break;
             case 104:
                 // "104;$c" → Reset Color Number $c. It is reset to the color specified by the corresponding X
@@ -2283,7 +2354,21 @@ public final class TerminalEmulator {
     }
 
     private void collectOSCArgs(int b) {
-        if (mOSCOrDeviceControlArgs.length() < MAX_OSC_STRING_LENGTH) {
+        if (mDecodingClipboard) {
+            mClipboardDecoder.decode(b);
+            if (mClipboardDecoder.isOverflowed()) {
+                // Too large, so give up on it as on other too long strings:
+                copyDecodedClipboard();
+                unknownSequence(b);
+            } else {
+                continueSequence(mEscapeState);
+            }
+        } else if (b == ';' && isClipboardCopyStart()) {
+            // Decode the data of the clipboard copy as it is parsed, as it may be much longer than other strings:
+            mDecodingClipboard = true;
+            mClipboardDecoder.reset(mMaxClipboardCopyBytes);
+            continueSequence(mEscapeState);
+        } else if (mOSCOrDeviceControlArgs.length() < MAX_OSC_STRING_LENGTH) {
             mOSCOrDeviceControlArgs.appendCodePoint(b);
             continueSequence(mEscapeState);
         } else {
@@ -2291,6 +2376,44 @@ public final class TerminalEmulator {
         }
     }
 
+    /** If the OSC arguments collected so far are "52;$selection", so that a ';' starts the data to copy. */
+    private boolean isClipboardCopyStart() {
+        final StringBuilder args = mOSCOrDeviceControlArgs;
+        return args.length() >= 3 && args.charAt(0) == '5' && args.charAt(1) == '2' && args.charAt(2) == ';'
+            && args.indexOf(";", 3) == -1;
+    }
+
+    private void startOSCOrDeviceControlString() {
+        mOSCOrDeviceControlArgs.setLength(0);
+        mDecodingClipboard = false;
+    }
+
+    /**
+     * Copy the text decoded by {@link #mClipboardDecoder} to the clipboard, unless it was too large, invalid or empty.
+     * Queries for the clipboard contents are ignored, as programs should not be able to read the clipboard.
+     */
+    private void copyDecodedClipboard() {
+        mDecodingClipboard = false;
+        if (mClipboardDecoder.isOverflowed()) {
+            logError("Ignoring OSC 52 clipboard copy larger than " + mMaxClipboardCopyBytes + " bytes");
+        } else if (mClipboardDecoder.isInvalid()) {
+            logError("Ignoring OSC 52 clipboard copy which is not valid base64");
+        } else if (!mClipboardDecoder.isQuery() && !mClipboardDecoder.isEmpty()) {
+            mSession.onCopyTextToClipboard(mClipboardDecoder.toUtf8String());
+        }
+        // Free the decoded data, which may be large:
+        mClipboardDecoder.reset(0);
+    }
+
+    /**
+     * Set the max number of bytes of an OSC 52 clipboard copy, after base64 decoding, beyond which it is ignored like
+     * other too long strings. The data is decoded while parsed, so copies do not need more memory than their decoded
+     * size.
+     */
+    public void setMaxClipboardCopyBytes(int maxBytes) {
+        mMaxClipboardCopyBytes = maxBytes;
+    }
+
     private void unimplementedSequence(int b) {
         logError("Unimplemented sequence char '" + (char) b + "' (U+" + String.format("%04x", b) + ")");
         finishSequence();
@@ -2458,13 +2581,7 @@ public final class TerminalEmulator {
 
         if (autoWrap) {
             if (cursorInLastColumn && ((mAboutToAutoWrap && displayWidth == 1) || displayWidth == 2)) {
-                mScreen.setLineWrap(mCursorRow);
-                mCursorCol = mLeftMargin;
-                if (mCursorRow + 1 < mBottomMargin) {
-                    mCursorRow++;
-                } else {
-                    scrollDownOneLine();
-                }
+                doAutoWrap();
             }
         } else if (cursorInLastColumn && displayWidth == 2) {
             // The behaviour when a wide character is output with cursor in the last column when
@@ -2495,6 +2612,62 @@ public final class TerminalEmulator {
         mCursorCol = Math.min(mCursorCol + displayWidth, mRightMargin - 1);
     }
 
+    /** Wrap the cursor to the start of the next line, scrolling if at the bottom margin. */
+    private void doAutoWrap() {
+        mScreen.setLineWrap(mCursorRow);
+        mCursorCol = mLeftMargin;
+        if (mCursorRow + 1 < mBottomMargin) {
+            mCursorRow++;
+        } else {
+            scrollDownOneLine();
+        }
+    }
+
+    /**
+     * Send a run of printable ASCII characters to the screen. Equivalent to calling {@link #emitCodePoint(int)} for
+     * each character, but writes as much of the run as fits before the right margin into the current row at once.
+     *
+     * @param buffer the bytes to display, all in the range [32, 126]
+     * @param start  the index of the first byte to display
+     * @param end    the index after the last byte to display
+     */
+    private void emitAsciiRun(byte[] buffer, int start, int end) {
+        if (mInsertMode || (mUseLineDrawingUsesG0 ? mUseLineDrawingG0 : mUseLineDrawingG1)) {
+            // Characters may be translated or shift the rest of the line, so let emitCodePoint() handle them.
+            for (int i = start; i < end; i++)
+                emitCodePoint(buffer[i]);
+            return;
+        }
+
+        final boolean autoWrap = isDecsetInternalBitSet(DECSET_BIT_AUTOWRAP);
+        final long style = getStyle();
+        mLastEmittedCodePoint = buffer[end - 1];
+
+        while (start < end) {
+            if (mCursorCol < 0 || mCursorCol >= mRightMargin) {
+                // Cursor outside of the row or right margin, which is not worth optimizing for.
+                emitCodePoint(buffer[start++]);
+                continue;
+            }
+            if (autoWrap && mAboutToAutoWrap && mCursorCol == mRightMargin - 1) doAutoWrap();
+
+            int count = Math.min(end - start, mRightMargin - mCursorCol);
+            if (!autoWrap && count < end - start) {
+                // Without autowrap the characters which do not fit overwrite each other in the last column, so only
+                // the last one of them will be visible.
+                mScreen.setAsciiChars(mCursorCol, mCursorRow, buffer, start, count - 1, style);
+                mScreen.setChar(mRightMargin - 1, mCursorRow, buffer[end - 1], style);
+                mCursorCol = mRightMargin - 1;
+                return;
+            }
+
+            mScreen.setAsciiChars(mCursorCol, mCursorRow, buffer, start, count, style);
+            start += count;
+            if (autoWrap) mAboutToAutoWrap = (mCursorCol + count == mRightMargin);
+            mCursorCol = Math.min(mCursorCol + count, mRightMargin - 1);
+        }
+    }
+
     private void setCursorRow(int row) {
         mCursorRow = row;
         mAboutToAutoWrap = false;
@@ -2587,16 +2760,7 @@ public final class TerminalEmulator {
 
     /** If DECSET 2004 is set, prefix paste with "\033[200~" and suffix with "\033[201~". */
     public void paste(String text) {
-        // First: Always remove escape key and C1 control characters [0x80,0x9F]:
-        text = text.replaceAll("(\u001B|[\u0080-\u009F])", "");
-        // Second: Replace all newlines (\n) or CRLF (\r\n) with carriage returns (\r).
-        text = text.replaceAll("\r?\n", "\r");
-
-        // Then: Implement bracketed paste mode if enabled:
-        boolean bracketed = isDecsetInternalBitSet(DECSET_BIT_BRACKETED_PASTE_MODE);
-        if (bracketed) mSession.write("\033[200~");
-        mSession.write(text);
-        if (bracketed) mSession.write("\033[201~");
+        mSession.paste(text, isDecsetInternalBitSet(DECSET_BIT_BRACKETED_PASTE_MODE));
     }
 
     /** http://www.vt100.net/docs/vt510-rm/DECSC */
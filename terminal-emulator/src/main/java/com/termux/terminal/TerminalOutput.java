@@ -15,6 +15,22 @@ public abstract class TerminalOutput {
     /** Write bytes to the terminal client. */
     public abstract void write(byte[] data, int offset, int count);
 
+    /**
+     * Write text pasted into the terminal, see {@link TerminalEmulator#paste(String)}. Escape and C1 control characters
+     * are removed and newlines converted to carriage returns, and if bracketed the text is surrounded with
+     * "\033[200~" and "\033[201~".
+     */
+    public void paste(String text, boolean bracketed) {
+        // First: Always remove escape key and C1 control characters [0x80,0x9F]:
+        text = text.replaceAll("(\u001B|[\u0080-\u009F])", "");
+        // Second: Replace all newlines (\n) or CRLF (\r\n) with carriage returns (\r).
+        text = text.replaceAll("\r?\n", "\r");
+
+        if (bracketed) write("\033[200~");
+        write(text);
+        if (bracketed) write("\033[201~");
+    }
+
     /** Notify the terminal client that the terminal title has changed. */
     public abstract void titleChanged(String oldTitle, String newTitle);
 
@@ -1,11 +1,15 @@
 package com.termux.terminal;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 /**
  * A row in a terminal, composed of a fixed number of cells.
  * <p>
  * The text in the row is stored in a char[] array, {@link #mText}, for quick access during rendering.
+ * <p>
+ * Rows which have scrolled into the transcript are kept compacted by {@link TerminalBuffer}, see {@link #compact(TerminalRowPool)},
+ * in which case {@link #mText} and {@link #mStyle} are null until the row is inflated again with {@link #inflate(TerminalRowPool)}.
  */
 public final class TerminalRow {
 
@@ -37,6 +41,8 @@ public final class TerminalRow {
      */
     private static final int MAX_COMBINING_CHARACTERS_PER_COLUMN = 15;
 
+    private static final byte[] EMPTY_ASCII_TEXT = new byte[0];
+
     /** The number of columns in this terminal row. */
     private final int mColumns;
     /** The text filling this terminal row. */
@@ -45,16 +51,37 @@ public final class TerminalRow {
     private short mSpaceUsed;
     /** If this row has been line wrapped due to text output at the end of line. */
     boolean mLineWrap;
+    /** The {@link TerminalBuffer#mRowChanges} when the row was last changed in a buffer, see {@link TerminalSnapshot}. */
+    long mChange;
     /** The style bits of each cell in the row. See {@link TextStyle}. */
-    final long[] mStyle;
+    long[] mStyle;
     /** If this row might contain chars with width != 1, used for deactivating fast path */
     boolean mHasNonOneWidthOrSurrogateChars;
 
+    /**
+     * The text of a compacted row without trailing spaces, stored one byte per char if it is all ASCII and in
+     * {@link #mCompactText} otherwise. Only one of the two is non-null, and only while the row is compacted.
+     */
+    private byte[] mCompactAsciiText;
+    private char[] mCompactText;
+    /**
+     * The styles of the row as runs of columns, where style {@code mStyleRuns[i]} is used up to column
+     * {@code mStyleRunEnds[i]}. This is the only style storage of a compacted row, while for other rows it is computed
+     * from {@link #mStyle} when needed, see {@link #getStyleRunCount()}, and discarded when a style is changed. The
+     * arrays are never modified once created, so they may be shared with copies of the row.
+     */
+    private long[] mStyleRuns;
+    private short[] mStyleRunEnds;
+
     /** Construct a blank row (containing only whitespace, ' ') with a specified style. */
     public TerminalRow(int columns, long style) {
+        this(columns, style, null);
+    }
+
+    /** Construct a blank row like {@link #TerminalRow(int, long)}, taking its arrays from the pool if possible. */
+    TerminalRow(int columns, long style, TerminalRowPool pool) {
         mColumns = columns;
-        mText = new char[(int) (SPARE_CAPACITY_FACTOR * columns)];
-        mStyle = new long[columns];
+        allocateArrays(pool, 0);
         clear(style);
     }
 
@@ -84,6 +111,229 @@ public final class TerminalRow {
         }
     }
 
+    /** Construct a compacted row, whose contents are set by {@link #readCompact(ByteBuffer)}. */
+    private TerminalRow(int columns) {
+        mColumns = columns;
+    }
+
+    /**
+     * Make this row a copy of the specified row, which must have the same number of columns. The specified row may be
+     * compacted, in which case it is decoded without being inflated.
+     */
+    void copyFrom(TerminalRow row) {
+        if (mText.length < row.mSpaceUsed) mText = new char[Math.max(row.mSpaceUsed, mText.length + mColumns)];
+        if (row.isCompact()) {
+            int textLength = row.decodeCompactText(mText);
+            Arrays.fill(mText, textLength, row.mSpaceUsed, ' ');
+            row.decodeCompactStyles(mStyle);
+        } else {
+            System.arraycopy(row.mText, 0, mText, 0, row.mSpaceUsed);
+            System.arraycopy(row.mStyle, 0, mStyle, 0, mColumns);
+        }
+        mStyleRuns = row.mStyleRuns;
+        mStyleRunEnds = row.mStyleRunEnds;
+        mSpaceUsed = row.mSpaceUsed;
+        mLineWrap = row.mLineWrap;
+        mHasNonOneWidthOrSurrogateChars = row.mHasNonOneWidthOrSurrogateChars;
+    }
+
+    /** If this row is compacted, and so {@link #mText} and {@link #mStyle} may not be accessed until it is inflated. */
+    boolean isCompact() {
+        return mText == null;
+    }
+
+    /**
+     * Replace the text and style arrays of this row with a compact encoding: the text without trailing spaces, stored as
+     * bytes if it is all ASCII, and the styles as runs of columns. This typically takes a small fraction of the memory of
+     * the arrays for rows in the transcript, which are mostly blank or in a single style.
+     *
+     * @param pool the pool to give the released arrays to, so that they can be reused by another row, or null.
+     */
+    void compact(TerminalRowPool pool) {
+        if (isCompact()) return;
+        final char[] text = mText;
+        final long[] style = mStyle;
+
+        int textLength = mSpaceUsed;
+        while (textLength > 0 && text[textLength - 1] == ' ') textLength--;
+        boolean ascii = true;
+        for (int i = 0; i < textLength; i++) {
+            if (text[i] >= 128) {
+                ascii = false;
+                break;
+            }
+        }
+        if (textLength == 0) {
+            mCompactAsciiText = EMPTY_ASCII_TEXT;
+        } else if (ascii) {
+            byte[] asciiText = new byte[textLength];
+            for (int i = 0; i < textLength; i++) asciiText[i] = (byte) text[i];
+            mCompactAsciiText = asciiText;
+        } else {
+            mCompactText = Arrays.copyOf(text, textLength);
+        }
+
+        if (mStyleRuns == null) computeStyleRuns();
+        mText = null;
+        mStyle = null;
+        if (pool != null) pool.release(text, style);
+    }
+
+    /**
+     * Restore the text and style arrays of a compacted row, so that it can be modified again.
+     *
+     * @param pool the pool to take the arrays from if possible, or null to allocate them.
+     */
+    void inflate(TerminalRowPool pool) {
+        if (!isCompact()) return;
+        allocateArrays(pool, mSpaceUsed);
+        Arrays.fill(mText, decodeCompactText(mText), mText.length, ' ');
+        decodeCompactStyles(mStyle);
+        mCompactAsciiText = null;
+        mCompactText = null;
+        // The style runs are still valid, and are kept until a style is changed.
+    }
+
+    /** Set {@link #mText} and {@link #mStyle} to arrays from the pool, or to new ones if none with room for the text are available. */
+    private void allocateArrays(TerminalRowPool pool, int minTextLength) {
+        if (pool != null && pool.obtain(this, minTextLength)) return;
+        mText = new char[Math.max((int) (SPARE_CAPACITY_FACTOR * mColumns), minTextLength)];
+        mStyle = new long[mColumns];
+    }
+
+    /** Decode the text of a compacted row into the specified array, returning the number of chars without trailing spaces. */
+    private int decodeCompactText(char[] text) {
+        if (mCompactAsciiText != null) {
+            final byte[] asciiText = mCompactAsciiText;
+            for (int i = 0; i < asciiText.length; i++) text[i] = (char) asciiText[i];
+            return asciiText.length;
+        } else {
+            System.arraycopy(mCompactText, 0, text, 0, mCompactText.length);
+            return mCompactText.length;
+        }
+    }
+
+    private void computeStyleRuns() {
+        final long[] style = mStyle;
+        int runs = 1;
+        for (int column = 1; column < mColumns; column++)
+            if (style[column] != style[column - 1]) runs++;
+        final long[] styleRuns = new long[runs];
+        final short[] styleRunEnds = new short[runs];
+        int run = 0;
+        for (int column = 1; column < mColumns; column++) {
+            if (style[column] != style[column - 1]) {
+                styleRuns[run] = style[column - 1];
+                styleRunEnds[run++] = (short) column;
+            }
+        }
+        styleRuns[run] = style[mColumns - 1];
+        styleRunEnds[run] = (short) mColumns;
+        mStyleRuns = styleRuns;
+        mStyleRunEnds = styleRunEnds;
+    }
+
+    /**
+     * The number of runs of adjacent columns with the same style, which for most rows is just one to three. Together
+     * with {@link #getStyleRunStyle(int)} and {@link #getStyleRunEnd(int)} this allows iterating over the styles of the
+     * row without comparing them column by column, also when the row is compacted.
+     */
+    public int getStyleRunCount() {
+        if (mStyleRuns == null) computeStyleRuns();
+        return mStyleRuns.length;
+    }
+
+    /** The style of a run, see {@link #getStyleRunCount()}. */
+    public long getStyleRunStyle(int run) {
+        return mStyleRuns[run];
+    }
+
+    /** The column after the last column of a run, see {@link #getStyleRunCount()}. */
+    public int getStyleRunEnd(int run) {
+        return mStyleRunEnds[run];
+    }
+
+    private void decodeCompactStyles(long[] style) {
+        for (int run = 0, column = 0; run < mStyleRuns.length; run++) {
+            int runEnd = mStyleRunEnds[run];
+            Arrays.fill(style, column, runEnd, mStyleRuns[run]);
+            column = runEnd;
+        }
+    }
+
+    /** The number of bytes needed by {@link #writeCompact(ByteBuffer)} for this compacted row. */
+    int getCompactSize() {
+        int textSize = (mCompactAsciiText != null) ? mCompactAsciiText.length : 2 * mCompactText.length;
+        return 9 + textSize + 10 * mStyleRuns.length;
+    }
+
+    /** An estimate of the bytes of heap used by this row and its arrays, see {@link TranscriptMemoryBudget}. */
+    int getMemoryUsage() {
+        // The object itself and the headers of its arrays:
+        int bytes = 64;
+        if (mText != null) bytes += 2 * mText.length + 8 * mStyle.length;
+        if (mCompactAsciiText != null) bytes += mCompactAsciiText.length;
+        if (mCompactText != null) bytes += 2 * mCompactText.length;
+        if (mStyleRuns != null) bytes += 10 * mStyleRuns.length;
+        return bytes;
+    }
+
+    /** Write this compacted row to the specified buffer, from which it can be read with {@link #readCompact(ByteBuffer)}. */
+    void writeCompact(ByteBuffer buffer) {
+        final boolean ascii = mCompactAsciiText != null;
+        buffer.putShort((short) mColumns);
+        buffer.putShort(mSpaceUsed);
+        buffer.put((byte) ((mLineWrap ? 1 : 0) | (mHasNonOneWidthOrSurrogateChars ? 2 : 0) | (ascii ? 4 : 0)));
+        if (ascii) {
+            buffer.putShort((short) mCompactAsciiText.length);
+            buffer.put(mCompactAsciiText);
+        } else {
+            buffer.putShort((short) mCompactText.length);
+            for (char c : mCompactText) buffer.putChar(c);
+        }
+        buffer.putShort((short) mStyleRuns.length);
+        for (int run = 0; run < mStyleRuns.length; run++) {
+            buffer.putLong(mStyleRuns[run]);
+            buffer.putShort(mStyleRunEnds[run]);
+        }
+    }
+
+    /** Read a compacted row written by {@link #writeCompact(ByteBuffer)}. */
+    static TerminalRow readCompact(ByteBuffer buffer) {
+        TerminalRow row = new TerminalRow(buffer.getShort());
+        row.mSpaceUsed = buffer.getShort();
+        int flags = buffer.get();
+        row.mLineWrap = (flags & 1) != 0;
+        row.mHasNonOneWidthOrSurrogateChars = (flags & 2) != 0;
+        int textLength = buffer.getShort();
+        if ((flags & 4) != 0) {
+            row.mCompactAsciiText = (textLength == 0) ? EMPTY_ASCII_TEXT : new byte[textLength];
+            buffer.get(row.mCompactAsciiText);
+        } else {
+            row.mCompactText = new char[textLength];
+            for (int i = 0; i < textLength; i++) row.mCompactText[i] = buffer.getChar();
+        }
+        int runs = buffer.getShort();
+        row.mStyleRuns = new long[runs];
+        row.mStyleRunEnds = new short[runs];
+        for (int run = 0; run < runs; run++) {
+            row.mStyleRuns[run] = buffer.getLong();
+            row.mStyleRunEnds[run] = buffer.getShort();
+        }
+        return row;
+    }
+
+    private void releaseCompactData() {
+        mCompactAsciiText = null;
+        mCompactText = null;
+        mStyleRuns = null;
+        mStyleRunEnds = null;
+    }
+
+    int getColumns() {
+        return mColumns;
+    }
+
     public int getSpaceUsed() {
         return mSpaceUsed;
     }
@@ -127,7 +377,7 @@ public final class TerminalRow {
         }
     }
 
-    private boolean wideDisplayCharacterStartingAt(int column) {
+    boolean wideDisplayCharacterStartingAt(int column) {
         for (int currentCharIndex = 0, currentColumn = 0; currentCharIndex < mSpaceUsed; ) {
             char c = mText[currentCharIndex++];
             int codePoint = Character.isHighSurrogate(c) ? Character.toCodePoint(c, mText[currentCharIndex++]) : c;
@@ -142,8 +392,19 @@ public final class TerminalRow {
     }
 
     public void clear(long style) {
+        clear(style, null);
+    }
+
+    /** Clear the row like {@link #clear(long)}, taking new arrays from the pool if possible if it is compacted. */
+    void clear(long style, TerminalRowPool pool) {
+        if (isCompact()) {
+            releaseCompactData();
+            allocateArrays(pool, 0);
+        }
         Arrays.fill(mText, ' ');
         Arrays.fill(mStyle, style);
+        mStyleRuns = null;
+        mStyleRunEnds = null;
         mSpaceUsed = (short) mColumns;
         mHasNonOneWidthOrSurrogateChars = false;
     }
@@ -154,6 +415,7 @@ public final class TerminalRow {
             throw new IllegalArgumentException("TerminalRow.setChar(): columnToSet=" + columnToSet + ", codePoint=" + codePoint + ", style=" + style);
 
         mStyle[columnToSet] = style;
+        mStyleRuns = null;
 
         final int newCodePointDisplayWidth = WcWidth.width(codePoint);
 
@@ -270,14 +532,46 @@ public final class TerminalRow {
         }
     }
 
+    /** Set a run of printable ASCII characters, which all have a display width of 1, starting at the specified column. */
+    public void setAsciiChars(int columnToSet, byte[] chars, int offset, int count, long style) {
+        if (columnToSet < 0 || columnToSet + count > mStyle.length)
+            throw new IllegalArgumentException("TerminalRow.setAsciiChars(): columnToSet=" + columnToSet + ", count=" + count);
+
+        mStyleRuns = null;
+        if (mHasNonOneWidthOrSurrogateChars) {
+            for (int i = 0; i < count; i++)
+                setChar(columnToSet + i, chars[offset + i], style);
+            return;
+        }
+
+        // Fast path, where each column is stored in exactly one java char.
+        final char[] text = mText;
+        for (int i = 0; i < count; i++)
+            text[columnToSet + i] = (char) chars[offset + i];
+        Arrays.fill(mStyle, columnToSet, columnToSet + count, style);
+    }
+
     boolean isBlank() {
+        if (isCompact()) return (mCompactAsciiText != null ? mCompactAsciiText.length : mCompactText.length) == 0;
         for (int charIndex = 0, charLen = getSpaceUsed(); charIndex < charLen; charIndex++)
             if (mText[charIndex] != ' ') return false;
         return true;
     }
 
     public final long getStyle(int column) {
-        return mStyle[column];
+        return (mStyle != null) ? mStyle[column] : getCompactStyle(column);
+    }
+
+    /** Get the style of a column of a compacted row from its style runs, see {@link #getStyleRunCount()}. */
+    private long getCompactStyle(int column) {
+        int run = 0;
+        while (run < mStyleRuns.length - 1 && column >= mStyleRunEnds[run]) run++;
+        return mStyleRuns[run];
+    }
+
+    void setStyle(int column, long style) {
+        mStyle[column] = style;
+        mStyleRuns = null;
     }
 
 }
@@ -0,0 +1,53 @@
+package com.termux.terminal;
+
+/**
+ * The text and style arrays of rows which have been compacted, kept by a {@link TerminalBuffer} so that they can be
+ * reused by the next row it needs to clear or inflate instead of allocating new ones.
+ * <p>
+ * While output is scrolling, every line which scrolls off the screen into the transcript is compacted just before a new
+ * blank line is needed below it, so only a few arrays are ever kept. Only arrays of rows with the number of columns of
+ * the pool are kept. Text arrays which have grown in {@link TerminalRow#setChar(int, int, long)} to make room for
+ * combining or supplementary characters are kept with their extra capacity.
+ */
+final class TerminalRowPool {
+
+    private static final int MAX_SIZE = 8;
+
+    private final int mColumns;
+    private final char[][] mTexts = new char[MAX_SIZE][];
+    private final long[][] mStyles = new long[MAX_SIZE][];
+    private int mSize;
+
+    TerminalRowPool(int columns) {
+        mColumns = columns;
+    }
+
+    /** The number of pairs of arrays in the pool. */
+    int size() {
+        return mSize;
+    }
+
+    /** Keep the arrays released by a row if they have the columns of the pool and there is room for them. */
+    void release(char[] text, long[] style) {
+        if (style.length != mColumns || mSize == MAX_SIZE) return;
+        mTexts[mSize] = text;
+        mStyles[mSize++] = style;
+    }
+
+    /**
+     * Give the most recently released arrays to a row without arrays, if they have room for the specified number of
+     * chars.
+     *
+     * @return true if the row got arrays from the pool, false if it needs to allocate them.
+     */
+    boolean obtain(TerminalRow row, int minTextLength) {
+        if (mSize == 0 || mTexts[mSize - 1].length < minTextLength) return false;
+        mSize--;
+        row.mText = mTexts[mSize];
+        row.mStyle = mStyles[mSize];
+        mTexts[mSize] = null;
+        mStyles[mSize] = null;
+        return true;
+    }
+
+}
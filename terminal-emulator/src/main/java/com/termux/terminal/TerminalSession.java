@@ -2,10 +2,13 @@ package com.termux.terminal;
 
 import android.annotation.SuppressLint;
 import android.os.Handler;
+import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.system.ErrnoException;
 import android.system.Os;
 import android.system.OsConstants;
+import android.view.Choreographer;
 
 import java.io.File;
 import java.io.FileDescriptor;
@@ -16,13 +19,16 @@ import java.io.InputStream;
 import java.lang.reflect.Field;
 import java.nio.charset.StandardCharsets;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * A terminal session, consisting of a process coupled to a terminal interface.
  * <p>
  * The subprocess will be executed by the constructor, and when the size is made known by a call to
  * {@link #updateSize(int, int, int, int)} terminal emulation will begin and threads will be spawned to handle the subprocess I/O.
- * All terminal emulation and callback methods will be performed on the main thread.
+ * All terminal emulation and callback methods will be performed on the main thread, unless
+ * {@link #setParseInBackground(boolean)} has been enabled, in which case process output is parsed on a separate thread
+ * while holding the monitor of the {@link TerminalEmulator}. Callbacks are still performed on the main thread.
  * <p>
  * The child process may be exited forcefully by using the {@link #finishIfRunning()} method.
  * <p>
@@ -32,6 +38,31 @@ public final class TerminalSession extends TerminalOutput {
 
     private static final int MSG_NEW_INPUT = 1;
     private static final int MSG_PROCESS_EXITED = 4;
+    private static final int MSG_SCREEN_UPDATED = 5;
+
+    /**
+     * The max time to spend parsing process output per display frame, to leave time for rendering and input handling
+     * when the process outputs faster than it can be displayed.
+     */
+    private static final long MAX_DRAIN_NANOS_PER_FRAME = 8_000_000;
+
+    /** The output rate in KiB per second at which output is considered flooding, see {@link OutputFloodDetector}. */
+    public static final int OUTPUT_FLOOD_THRESHOLD_MIN = 0;
+    public static final int OUTPUT_FLOOD_THRESHOLD_MAX = 1024 * 1024;
+    public static final int DEFAULT_OUTPUT_FLOOD_THRESHOLD = 1024;
+
+    /** The time between screen update notifications while output is flooding. */
+    private static final long FLOODED_SCREEN_UPDATE_INTERVAL_MILLIS = 200;
+
+    /** The max size in KiB of an OSC 52 clipboard copy, see {@link TerminalEmulator#setMaxClipboardCopyBytes(int)}. */
+    public static final int CLIPBOARD_COPY_MAX_SIZE_MIN = 0;
+    public static final int CLIPBOARD_COPY_MAX_SIZE_MAX = 64 * 1024;
+    public static final int DEFAULT_CLIPBOARD_COPY_MAX_SIZE = TerminalEmulator.DEFAULT_MAX_CLIPBOARD_COPY_BYTES / 1024;
+
+    /** The minutes without output or being viewed after which a session is hibernated, see {@link #hibernateIfIdle(long)}. */
+    public static final int HIBERNATE_AFTER_MINUTES_MIN = 0;
+    public static final int HIBERNATE_AFTER_MINUTES_MAX = 30 * 24 * 60;
+    public static final int DEFAULT_HIBERNATE_AFTER_MINUTES = 0;
 
     public final String mHandle = UUID.randomUUID().toString();
 
@@ -41,12 +72,37 @@ public final class TerminalSession extends TerminalOutput {
      * A queue written to from a separate thread when the process outputs, and read by main thread to process by
      * terminal emulator.
      */
-    final ByteQueue mProcessToTerminalIOQueue = new ByteQueue(4096);
+    final LockFreeByteQueue mProcessToTerminalIOQueue = new LockFreeByteQueue(4096);
     /**
      * A queue written to from the main thread due to user interaction, and read by another thread which forwards by
      * writing to the {@link #mTerminalFileDescriptor}.
      */
-    final ByteQueue mTerminalToProcessIOQueue = new ByteQueue(4096);
+    final LockFreeByteQueue mTerminalToProcessIOQueue = new LockFreeByteQueue(4096);
+    /**
+     * If a drain of {@link #mProcessToTerminalIOQueue} has been requested but not yet started. Used so that only one
+     * {@link #MSG_NEW_INPUT} message is pending at a time, no matter how many reads the process output is split into.
+     */
+    final AtomicBoolean mDrainPending = new AtomicBoolean();
+    /**
+     * If process output has been parsed in the background but the client has not yet been notified about it, so that
+     * only one {@link #MSG_SCREEN_UPDATED} message is pending at a time.
+     */
+    final AtomicBoolean mScreenUpdatePending = new AtomicBoolean();
+    /**
+     * Writes pasted text and text from {@link #writeText(CharSequence)} to {@link #mTerminalToProcessIOQueue} in the
+     * background, so that large pastes do not block the main thread while the process reads them.
+     */
+    final TextInputWriter mTextInputWriter = new TextInputWriter(mTerminalToProcessIOQueue);
+    /** Detects when process output floods, in which case the client is only notified about the screen at a low rate. */
+    final OutputFloodDetector mOutputFloodDetector = new OutputFloodDetector();
+    /** The {@link SystemClock#elapsedRealtime()} when the process last output or the session was last viewed. */
+    private volatile long mLastActiveMillis = SystemClock.elapsedRealtime();
+    /** The {@link #mLastActiveMillis} when the session was last hibernated, so that it is only hibernated once per idle period. */
+    private long mHibernatedActiveMillis;
+    /** If the session is attached to a view, in which case it is not hibernated, see {@link #setAttachedToView(boolean)}. */
+    private volatile boolean mAttachedToView;
+    /** Counters of the output moving through the terminal, or null if not enabled, see {@link #setStatsEnabled(boolean)}. */
+    private volatile TerminalSessionStats mStats;
     /** Buffer to write translate code points into utf8 before writing to mTerminalToProcessIOQueue */
     private final byte[] mUtf8InputBuffer = new byte[5];
 
@@ -68,7 +124,7 @@ public final class TerminalSession extends TerminalOutput {
     /** Set by the application for user identification of session, not by terminal. */
     public String mSessionName;
 
-    final Handler mMainThreadHandler = new MainThreadHandler();
+    final MainThreadHandler mMainThreadHandler = new MainThreadHandler();
 
     private final String mShellPath;
     private final String mCwd;
@@ -76,6 +132,21 @@ public final class TerminalSession extends TerminalOutput {
     private final String[] mEnv;
     private final Integer mTranscriptRows;
 
+    /** If process output should be parsed on a separate thread instead of the main thread. */
+    private boolean mParseInBackground;
+    /** The thread parsing process output if {@link #mParseInBackground}, see {@link #startParserThread()}. */
+    private Thread mParserThread;
+    /** Set to stop {@link #mParserThread} once it has parsed the output it has read, see {@link #stopParserThread()}. */
+    private volatile boolean mParserStopped;
+
+    /** The directory to keep rows evicted from the in-memory transcript in, or null if they should be dropped. */
+    private File mTranscriptFileDirectory;
+    /** The maximum number of bytes of evicted transcript rows to keep in {@link #mTranscriptFileDirectory}. */
+    private long mTranscriptFileMaxSize;
+
+    /** The max number of bytes of an OSC 52 clipboard copy, see {@link #setMaxClipboardCopySize(int)}. */
+    private int mMaxClipboardCopyBytes = TerminalEmulator.DEFAULT_MAX_CLIPBOARD_COPY_BYTES;
+
 
     private static final String LOG_TAG = "TerminalSession";
 
@@ -99,13 +170,103 @@ public final class TerminalSession extends TerminalOutput {
             mEmulator.updateTerminalSessionClient(client);
     }
 
+    /**
+     * Set if process output should be parsed on a separate thread, so that escape sequence processing does not compete
+     * with rendering and input handling on the main thread. Must be called before the emulator is initialized.
+     * <p>
+     * When enabled, the {@link TerminalEmulator} is only modified while holding its monitor, so code on the main thread
+     * reading from it, like for rendering with a {@link TerminalSnapshot}, should synchronize on it.
+     */
+    public void setParseInBackground(boolean parseInBackground) {
+        if (mEmulator != null) throw new IllegalStateException("Emulator already initialized");
+        mParseInBackground = parseInBackground;
+    }
+
+    public boolean isParsingInBackground() {
+        return mParseInBackground;
+    }
+
+    /**
+     * Keep transcript rows which no longer fit in the in-memory transcript in memory-mapped files in the specified
+     * directory instead of dropping them, see {@link TranscriptFile}. The files are deleted as soon as they are mapped,
+     * so nothing is left behind in the directory. Must be called before the emulator is initialized.
+     *
+     * @param directory The directory to create the files in, or null to drop evicted rows.
+     * @param maxSize   The maximum number of bytes to keep, after which the oldest rows are dropped.
+     */
+    public void setTranscriptFileDirectory(File directory, long maxSize) {
+        if (mEmulator != null) throw new IllegalStateException("Emulator already initialized");
+        mTranscriptFileDirectory = directory;
+        mTranscriptFileMaxSize = maxSize;
+    }
+
+    /**
+     * Set the max size of an OSC 52 clipboard copy, beyond which it is ignored, see
+     * {@link TerminalEmulator#setMaxClipboardCopyBytes(int)}.
+     *
+     * @param kib The max size in KiB, or 0 to ignore all clipboard copies.
+     */
+    public void setMaxClipboardCopySize(int kib) {
+        mMaxClipboardCopyBytes = kib * 1024;
+        if (mEmulator != null) {
+            synchronized (mEmulator) {
+                mEmulator.setMaxClipboardCopyBytes(mMaxClipboardCopyBytes);
+            }
+        }
+    }
+
+    /**
+     * Set the output rate at which the client is only notified about screen updates every
+     * {@link #FLOODED_SCREEN_UPDATE_INTERVAL_MILLIS}, until the output calms down, instead of every frame. The output
+     * is still parsed as it arrives, so only intermediate screens are skipped.
+     *
+     * @param kibPerSecond The threshold in KiB per second, or 0 to always notify about every frame.
+     */
+    public void setOutputFloodThreshold(int kibPerSecond) {
+        mOutputFloodDetector.setThreshold(kibPerSecond * 1024L);
+    }
+
+    /**
+     * Set if the output of this session should be counted as it moves through the terminal, see
+     * {@link TerminalSessionStats}. The counters start from zero each time they are enabled.
+     */
+    public synchronized void setStatsEnabled(boolean enabled) {
+        if (!enabled) {
+            mStats = null;
+        } else if (mStats == null) {
+            mStats = new TerminalSessionStats(mProcessToTerminalIOQueue.capacity(), getScrolledRows());
+        }
+    }
+
+    /** The counters of this session, or null if not enabled, see {@link #setStatsEnabled(boolean)}. */
+    public TerminalSessionStats getStats() {
+        return mStats;
+    }
+
+    /** Get a sample of the counters of this session, or null if not enabled, see {@link #setStatsEnabled(boolean)}. */
+    public TerminalSessionStats.Sample sampleStats() {
+        final TerminalSessionStats stats = mStats;
+        return (stats == null) ? null : stats.sample(mProcessToTerminalIOQueue.available(), getScrolledRows());
+    }
+
+    private long getScrolledRows() {
+        // Read the emulator once, as this may be called from binder threads while the main thread initializes it:
+        final TerminalEmulator emulator = mEmulator;
+        if (emulator == null) return 0;
+        synchronized (emulator) {
+            return emulator.getScrolledRows();
+        }
+    }
+
     /** Inform the attached pty of the new size and reflow or initialize the emulator. */
     public void updateSize(int columns, int rows, int cellWidthPixels, int cellHeightPixels) {
         if (mEmulator == null) {
             initializeEmulator(columns, rows, cellWidthPixels, cellHeightPixels);
         } else {
             JNI.setPtyWindowSize(mTerminalFileDescriptor, rows, columns, cellWidthPixels, cellHeightPixels);
-            mEmulator.resize(columns, rows, cellWidthPixels, cellHeightPixels);
+            synchronized (mEmulator) {
+                mEmulator.resize(columns, rows, cellWidthPixels, cellHeightPixels);
+            }
         }
     }
 
@@ -122,6 +283,10 @@ public final class TerminalSession extends TerminalOutput {
      */
     public void initializeEmulator(int columns, int rows, int cellWidthPixels, int cellHeightPixels) {
         mEmulator = new TerminalEmulator(this, columns, rows, cellWidthPixels, cellHeightPixels, mTranscriptRows, mClient);
+        if (mTranscriptFileDirectory != null)
+            mEmulator.setTranscriptFile(new TranscriptFile(mTranscriptFileDirectory, mTranscriptFileMaxSize));
+        mEmulator.setMaxClipboardCopyBytes(mMaxClipboardCopyBytes);
+        TranscriptMemoryBudget.getInstance().register(mEmulator);
 
         int[] processId = new int[1];
         mTerminalFileDescriptor = JNI.createSubprocess(mShellPath, mCwd, mArgs, mEnv, processId, rows, columns, cellWidthPixels, cellHeightPixels);
@@ -138,8 +303,12 @@ public final class TerminalSession extends TerminalOutput {
                     while (true) {
                         int read = termIn.read(buffer);
                         if (read == -1) return;
+                        mLastActiveMillis = SystemClock.elapsedRealtime();
+                        final TerminalSessionStats stats = mStats;
+                        if (stats != null) stats.onRead(read);
                         if (!mProcessToTerminalIOQueue.write(buffer, 0, read)) return;
-                        mMainThreadHandler.sendEmptyMessage(MSG_NEW_INPUT);
+                        if (!mParseInBackground && mDrainPending.compareAndSet(false, true))
+                            mMainThreadHandler.sendEmptyMessage(MSG_NEW_INPUT);
                     }
                 } catch (Exception e) {
                     // Ignore, just shutting down.
@@ -147,6 +316,8 @@ public final class TerminalSession extends TerminalOutput {
             }
         }.start();
 
+        if (mParseInBackground) startParserThread();
+
         new Thread("TermSessionOutputWriter[pid=" + mShellPid + "]") {
             @Override
             public void run() {
@@ -163,6 +334,8 @@ public final class TerminalSession extends TerminalOutput {
             }
         }.start();
 
+        new Thread(mTextInputWriter, "TermSessionTextInputWriter[pid=" + mShellPid + "]").start();
+
         new Thread("TermSessionWaiter[pid=" + mShellPid + "]") {
             @Override
             public void run() {
@@ -173,18 +346,131 @@ public final class TerminalSession extends TerminalOutput {
 
     }
 
-    /** Write data to the shell process. */
+    /** Start {@link #mParserThread}, which appends process output to the emulator as it arrives. */
+    void startParserThread() {
+        mParserThread = new Thread("TermSessionParser[pid=" + mShellPid + "]") {
+            @Override
+            public void run() {
+                final byte[] buffer = new byte[4096];
+                while (!mParserStopped) {
+                    int bytesRead = mProcessToTerminalIOQueue.read(buffer, true);
+                    if (bytesRead == -1) return;
+                    // Woken up by stopParserThread() without any output to parse:
+                    if (bytesRead == 0) continue;
+                    final TerminalSessionStats stats = mStats;
+                    final int queuedBytes = (stats == null) ? 0 : bytesRead + mProcessToTerminalIOQueue.available();
+                    final long parseNanos;
+                    synchronized (mEmulator) {
+                        // Time the parsing only, not waiting for the lock:
+                        final long startTime = (stats == null) ? 0 : System.nanoTime();
+                        mEmulator.append(buffer, bytesRead);
+                        parseNanos = (stats == null) ? 0 : System.nanoTime() - startTime;
+                    }
+                    if (stats != null) stats.onDrained(queuedBytes, parseNanos);
+                    scheduleScreenUpdate(mOutputFloodDetector.onOutput(bytesRead, System.nanoTime()));
+                }
+            }
+        };
+        mParserThread.start();
+    }
+
+    /**
+     * Stop {@link #mParserThread} once it has appended the output it has already read and wait for it, so that the
+     * output still queued can be drained on the calling thread, which must not hold the emulator monitor.
+     */
+    void stopParserThread() {
+        mParserStopped = true;
+        mProcessToTerminalIOQueue.wakeUpReader();
+        boolean interrupted = false;
+        while (true) {
+            try {
+                mParserThread.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Append all process output still queued to the emulator on the calling thread, after stopping
+     * {@link #mParserThread} if parsing in the background, so that no output is lost when the queue is closed.
+     */
+    void finishParsing() {
+        if (mParseInBackground) {
+            stopParserThread();
+        } else {
+            Choreographer.getInstance().removeFrameCallback(mMainThreadHandler);
+        }
+        mDrainPending.set(false);
+        if (mMainThreadHandler.drain(Long.MAX_VALUE) > 0) notifyScreenUpdate();
+    }
+
+    /**
+     * Append all process output still queued, then the exit status, and notify the client that the session finished.
+     * Called on the main thread once the process has exited.
+     */
+    void onProcessExited(int exitCode) {
+        finishParsing();
+        cleanupResources(exitCode);
+
+        String exitDescription = "\r\n[Process completed";
+        if (exitCode > 0) {
+            // Non-zero process exit.
+            exitDescription += " (code " + exitCode + ")";
+        } else if (exitCode < 0) {
+            // Negated signal.
+            exitDescription += " (signal " + (-exitCode) + ")";
+        }
+        exitDescription += " - press Enter]";
+
+        byte[] bytesToWrite = exitDescription.getBytes(StandardCharsets.UTF_8);
+        synchronized (mEmulator) {
+            mEmulator.append(bytesToWrite, bytesToWrite.length);
+        }
+        notifyScreenUpdate();
+
+        mClient.onSessionFinished(this);
+    }
+
+    /** Write data to the shell process, after any text still being written by {@link #mTextInputWriter}. */
     @Override
     public void write(byte[] data, int offset, int count) {
-        if (mShellPid > 0) mTerminalToProcessIOQueue.write(data, offset, count);
+        if (mShellPid > 0 && !mTextInputWriter.addBytesIfBusy(data, offset, count)) {
+            // The emulator writes responses to escape sequences from the parsing thread, so make sure there is only one
+            // producer for the queue at a time:
+            synchronized (mTerminalToProcessIOQueue) {
+                mTerminalToProcessIOQueue.write(data, offset, count);
+            }
+        }
+    }
+
+    /**
+     * Write text to the shell process encoded in UTF-8 in the background, a chunk at a time as the process reads it, so
+     * that large amounts of text do not block the caller. Data written after it is written after the text.
+     */
+    public void writeText(CharSequence text) {
+        if (mShellPid > 0) mTextInputWriter.addText(text, false, false);
+    }
+
+    /** Write pasted text to the shell process in the background, see {@link #writeText(CharSequence)}. */
+    @Override
+    public void paste(String text, boolean bracketed) {
+        if (mShellPid > 0) mTextInputWriter.addText(text, true, bracketed);
     }
 
-    /** Write the Unicode code point to the terminal encoded in UTF-8. */
+    /**
+     * Write the Unicode code point to the terminal encoded in UTF-8. Ctrl+C, Ctrl+\ and Ctrl+Z, which make the terminal
+     * interrupt, quit or suspend the process, drop the text still being written by {@link #mTextInputWriter} first, so
+     * that they are not only sent after a large paste which the process is slow to read.
+     */
     public void writeCodePoint(boolean prependEscape, int codePoint) {
         if (codePoint > 1114111 || (codePoint >= 0xD800 && codePoint <= 0xDFFF)) {
             // 1114111 (= 2**16 + 1024**2 - 1) is the highest code point, [0xD800,0xDFFF] is the surrogate range.
             throw new IllegalArgumentException("Invalid code point: " + codePoint);
         }
+        if (!prependEscape && (codePoint == 3 || codePoint == 28 || codePoint == 26)) mTextInputWriter.cancelText();
 
         int bufferPosition = 0;
         if (prependEscape) mUtf8InputBuffer[bufferPosition++] = 27;
@@ -220,6 +506,62 @@ public final class TerminalSession extends TerminalOutput {
         return mEmulator;
     }
 
+    /** Note that this session is being viewed, so that its transcript is trimmed last, see {@link TranscriptMemoryBudget}. */
+    public void markViewed() {
+        mLastActiveMillis = SystemClock.elapsedRealtime();
+        if (mEmulator != null) TranscriptMemoryBudget.getInstance().onViewed(mEmulator);
+    }
+
+    /** Set if this session is attached to a view, which may show it at any time, so that it is not hibernated. */
+    public void setAttachedToView(boolean attachedToView) {
+        mAttachedToView = attachedToView;
+    }
+
+    /**
+     * Move the transcript of this session to disk if the process has not output anything and the session has not been
+     * viewed for the specified time, keeping only the screen in memory. A session attached to a view is not hibernated.
+     * Later output is parsed as usual, and the transcript is read back from disk a row at a time as it is shown, see
+     * {@link TerminalEmulator#hibernate()}.
+     * <p>
+     * Only sessions which keep rows evicted from the transcript on disk, see
+     * {@link #setTranscriptFileDirectory(File, long)}, are hibernated. The transcript is written to disk while holding
+     * the lock of the emulator, so call this on a background thread like the one of
+     * {@link TranscriptMemoryBudget#runInBackground(Runnable)}, and only from one thread at a time.
+     *
+     * @return if the session was hibernated.
+     */
+    public boolean hibernateIfIdle(long idleMillis) {
+        final long lastActiveMillis = mLastActiveMillis;
+        if (mEmulator == null || mAttachedToView || lastActiveMillis == mHibernatedActiveMillis) return false;
+        if (SystemClock.elapsedRealtime() - lastActiveMillis < idleMillis) return false;
+        // Only try once per idle period, also if it fails:
+        mHibernatedActiveMillis = lastActiveMillis;
+        synchronized (mEmulator) {
+            if (mEmulator.hibernate()) return true;
+            IOException failure = mEmulator.getMainBuffer().getTranscriptFileFailure();
+            if (failure != null)
+                Logger.logStackTraceWithMessage(mClient, LOG_TAG, "Failed to move the transcript of the session to disk", failure);
+            return false;
+        }
+    }
+
+    /** An estimate of the bytes of heap used by the transcript of this session, see {@link TranscriptMemoryBudget}. */
+    public long getTranscriptMemoryUsage() {
+        if (mEmulator == null) return 0;
+        synchronized (mEmulator) {
+            return mEmulator.getMainBuffer().getTranscriptMemoryUsage();
+        }
+    }
+
+    /**
+     * Notify the {@link #mClient} that the screen has changed from the main thread, unless a notification is already
+     * pending, after {@link #FLOODED_SCREEN_UPDATE_INTERVAL_MILLIS} if the output is flooding.
+     */
+    private void scheduleScreenUpdate(boolean flooded) {
+        if (mScreenUpdatePending.compareAndSet(false, true))
+            mMainThreadHandler.sendEmptyMessageDelayed(MSG_SCREEN_UPDATED, flooded ? FLOODED_SCREEN_UPDATE_INTERVAL_MILLIS : 0);
+    }
+
     /** Notify the {@link #mClient} that the screen has changed. */
     protected void notifyScreenUpdate() {
         mClient.onTextChanged(this);
@@ -227,7 +569,9 @@ public final class TerminalSession extends TerminalOutput {
 
     /** Reset state for terminal emulator state. */
     public void reset() {
-        mEmulator.reset();
+        synchronized (mEmulator) {
+            mEmulator.reset();
+        }
         notifyScreenUpdate();
     }
 
@@ -250,14 +594,24 @@ public final class TerminalSession extends TerminalOutput {
         }
 
         // Stop the reader and writer threads, and close the I/O streams
+        mTextInputWriter.close();
         mTerminalToProcessIOQueue.close();
         mProcessToTerminalIOQueue.close();
         JNI.close(mTerminalFileDescriptor);
     }
 
+    /** Run a client callback on the main thread, posting it there if called from the parsing thread. */
+    private void runOnMainThread(Runnable runnable) {
+        if (Looper.myLooper() == mMainThreadHandler.getLooper()) {
+            runnable.run();
+        } else {
+            mMainThreadHandler.post(runnable);
+        }
+    }
+
     @Override
     public void titleChanged(String oldTitle, String newTitle) {
-        mClient.onTitleChanged(this);
+        runOnMainThread(() -> mClient.onTitleChanged(this));
     }
 
     public synchronized boolean isRunning() {
@@ -271,22 +625,22 @@ public final class TerminalSession extends TerminalOutput {
 
     @Override
     public void onCopyTextToClipboard(String text) {
-        mClient.onCopyTextToClipboard(this, text);
+        runOnMainThread(() -> mClient.onCopyTextToClipboard(this, text));
     }
 
     @Override
     public void onPasteTextFromClipboard() {
-        mClient.onPasteTextFromClipboard(this);
+        runOnMainThread(() -> mClient.onPasteTextFromClipboard(this));
     }
 
     @Override
     public void onBell() {
-        mClient.onBell(this);
+        runOnMainThread(() -> mClient.onBell(this));
     }
 
     @Override
     public void onColorsChanged() {
-        mClient.onColorsChanged(this);
+        runOnMainThread(() -> mClient.onColorsChanged(this));
     }
 
     public int getPid() {
@@ -334,38 +688,69 @@ public final class TerminalSession extends TerminalOutput {
     }
 
     @SuppressLint("HandlerLeak")
-    class MainThreadHandler extends Handler {
+    class MainThreadHandler extends Handler implements Choreographer.FrameCallback {
 
         final byte[] mReceiveBuffer = new byte[4 * 1024];
 
         @Override
         public void handleMessage(Message msg) {
-            int bytesRead = mProcessToTerminalIOQueue.read(mReceiveBuffer, false);
-            if (bytesRead > 0) {
-                mEmulator.append(mReceiveBuffer, bytesRead);
+            if (msg.what == MSG_SCREEN_UPDATED) {
+                mScreenUpdatePending.set(false);
                 notifyScreenUpdate();
+                return;
+            }
+
+            if (msg.what == MSG_NEW_INPUT) {
+                // Wait for the next frame so that all output arriving until then is drained together:
+                Choreographer.getInstance().postFrameCallback(this);
+                return;
             }
 
             if (msg.what == MSG_PROCESS_EXITED) {
-                int exitCode = (Integer) msg.obj;
-                cleanupResources(exitCode);
-
-                String exitDescription = "\r\n[Process completed";
-                if (exitCode > 0) {
-                    // Non-zero process exit.
-                    exitDescription += " (code " + exitCode + ")";
-                } else if (exitCode < 0) {
-                    // Negated signal.
-                    exitDescription += " (signal " + (-exitCode) + ")";
-                }
-                exitDescription += " - press Enter]";
+                onProcessExited((Integer) msg.obj);
+            }
+        }
 
-                byte[] bytesToWrite = exitDescription.getBytes(StandardCharsets.UTF_8);
-                mEmulator.append(bytesToWrite, bytesToWrite.length);
-                notifyScreenUpdate();
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            // Clear the flag before draining, so that output arriving while draining schedules another drain:
+            mDrainPending.set(false);
+            int bytesAppended = drain(MAX_DRAIN_NANOS_PER_FRAME);
+            if (bytesAppended > 0) {
+                if (mOutputFloodDetector.onOutput(bytesAppended, System.nanoTime())) {
+                    scheduleScreenUpdate(true);
+                } else {
+                    notifyScreenUpdate();
+                }
+            }
+        }
 
-                mClient.onSessionFinished(TerminalSession.this);
+        /**
+         * Append the available process output to the emulator until the queue is empty or the time budget is spent, in
+         * which case the rest is left for the next frame.
+         *
+         * @return the number of bytes appended to the emulator.
+         */
+        private int drain(long maxNanos) {
+            final TerminalSessionStats stats = mStats;
+            final int queuedBytes = (stats == null) ? 0 : mProcessToTerminalIOQueue.available();
+            final long startTime = System.nanoTime();
+            int appended = 0;
+            int bytesRead;
+            while ((bytesRead = mProcessToTerminalIOQueue.read(mReceiveBuffer, false)) > 0) {
+                // Other threads, like the one enforcing the TranscriptMemoryBudget, also read and trim the buffers:
+                synchronized (mEmulator) {
+                    mEmulator.append(mReceiveBuffer, bytesRead);
+                }
+                appended += bytesRead;
+                if (System.nanoTime() - startTime >= maxNanos) {
+                    if (mDrainPending.compareAndSet(false, true))
+                        Choreographer.getInstance().postFrameCallback(this);
+                    break;
+                }
             }
+            if (stats != null && appended > 0) stats.onDrained(queuedBytes, System.nanoTime() - startTime);
+            return appended;
         }
 
     }
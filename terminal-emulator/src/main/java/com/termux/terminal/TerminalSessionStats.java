@@ -0,0 +1,172 @@
+package com.termux.terminal;
+
+import java.util.Locale;
+
+/**
+ * Counters of how the output of a {@link TerminalSession} moves through the terminal, from being read from the pty to
+ * being drawn, and of the latency from a keystroke to its echo being drawn, enabled with
+ * {@link TerminalSession#setStatsEnabled(boolean)}.
+ * <p>
+ * The counters are cumulative and each is only written by one thread, the one of the stage it counts, so that they are
+ * cheap to update. Rates and averages are computed from the difference of two {@link Sample}s.
+ */
+public final class TerminalSessionStats {
+
+    /** The capacity of the queue of output read from the pty but not yet parsed. */
+    private final int mQueueCapacity;
+    private final Sample mStartSample;
+
+    /** The bytes read from the pty. Written by the reader thread. */
+    private volatile long mBytesRead;
+    /**
+     * The number of times the output queue was drained, the bytes in the queue at the start of each drain summed, and
+     * the time spent parsing. Written by the thread parsing the output.
+     */
+    private volatile long mDrains, mQueuedBytes, mParseNanos;
+    /** The number of frames drawn and the time spent drawing them. Written by the main thread. */
+    private volatile long mFrames, mRenderNanos;
+    /**
+     * The fraction of width lookups of non-ASCII code points drawn which were cached by the renderer, as of the last
+     * frame. Written by the main thread.
+     */
+    private volatile float mGlyphWidthCacheHitRatio;
+    /** The number of keystrokes whose echo was drawn and the time until it was. Written by the main thread. */
+    private volatile long mEchoes, mEchoNanos;
+    /** The {@link System#nanoTime()} of the first keystroke whose echo has not been drawn yet, or 0 if there is none. */
+    private volatile long mKeystrokeNanos;
+    /** If output was parsed after the {@link #mKeystrokeNanos}, which is taken to be its echo. */
+    private volatile boolean mEchoParsed;
+
+    TerminalSessionStats(int queueCapacity, long scrolledRows) {
+        mQueueCapacity = queueCapacity;
+        mStartSample = new Sample(System.nanoTime(), queueCapacity, 0, 0, 0, 0, 0, scrolledRows, 0, 0, 0, 0, 0);
+    }
+
+    void onRead(int bytes) {
+        mBytesRead += bytes;
+    }
+
+    /**
+     * Record a drain of the output queue.
+     *
+     * @param queuedBytes the bytes in the queue when the drain started.
+     * @param parseNanos  the time spent parsing the output.
+     */
+    void onDrained(int queuedBytes, long parseNanos) {
+        mQueuedBytes += queuedBytes;
+        mParseNanos += parseNanos;
+        mDrains++;
+        if (mKeystrokeNanos != 0) mEchoParsed = true;
+    }
+
+    /** Record a keystroke sent to the process, which must be called from the main thread. */
+    public void onKeystroke(long nanoTime) {
+        if (mKeystrokeNanos != 0) return;
+        mEchoParsed = false;
+        mKeystrokeNanos = nanoTime;
+    }
+
+    /**
+     * Record a frame drawn, which must be called from the main thread.
+     *
+     * @param startNanos the {@link System#nanoTime()} when drawing started.
+     * @param endNanos   the {@link System#nanoTime()} when drawing ended.
+     */
+    public void onFrameRendered(long startNanos, long endNanos) {
+        mRenderNanos += endNanos - startNanos;
+        mFrames++;
+        final long keystrokeNanos = mKeystrokeNanos;
+        if (keystrokeNanos != 0 && mEchoParsed) {
+            mEchoNanos += endNanos - keystrokeNanos;
+            mEchoes++;
+            mKeystrokeNanos = 0;
+        }
+    }
+
+    /**
+     * Record the fraction of width lookups of non-ASCII code points which were cached by the renderer since it was
+     * created, which must be called from the main thread as frames are drawn.
+     */
+    public void onGlyphWidthCacheHitRatio(float hitRatio) {
+        mGlyphWidthCacheHitRatio = hitRatio;
+    }
+
+    /** Get a sample of the counters as of when the stats were enabled. */
+    public Sample getStartSample() {
+        return mStartSample;
+    }
+
+    /**
+     * Get a sample of the current counters.
+     *
+     * @param queuedBytes  the bytes currently in the output queue.
+     * @param scrolledRows the rows scrolled up by output so far, see {@link TerminalEmulator#getScrolledRows()}.
+     */
+    Sample sample(int queuedBytes, long scrolledRows) {
+        return new Sample(System.nanoTime(), mQueueCapacity, queuedBytes, mBytesRead, mDrains, mQueuedBytes, mParseNanos,
+            scrolledRows, mFrames, mRenderNanos, mGlyphWidthCacheHitRatio, mEchoes, mEchoNanos);
+    }
+
+    /** The values of the counters of a {@link TerminalSessionStats} at one point in time. */
+    public static final class Sample {
+
+        public final long mNanoTime;
+        public final int mQueueCapacity, mQueuedBytes;
+        public final long mBytesRead;
+        public final long mDrains, mDrainQueuedBytes, mParseNanos;
+        public final long mScrolledRows;
+        public final long mFrames, mRenderNanos;
+        public final float mGlyphWidthCacheHitRatio;
+        public final long mEchoes, mEchoNanos;
+
+        Sample(long nanoTime, int queueCapacity, int queuedBytes, long bytesRead, long drains, long drainQueuedBytes,
+               long parseNanos, long scrolledRows, long frames, long renderNanos, float glyphWidthCacheHitRatio,
+               long echoes, long echoNanos) {
+            mNanoTime = nanoTime;
+            mQueueCapacity = queueCapacity;
+            mQueuedBytes = queuedBytes;
+            mBytesRead = bytesRead;
+            mDrains = drains;
+            mDrainQueuedBytes = drainQueuedBytes;
+            mParseNanos = parseNanos;
+            mScrolledRows = scrolledRows;
+            mFrames = frames;
+            mRenderNanos = renderNanos;
+            mGlyphWidthCacheHitRatio = glyphWidthCacheHitRatio;
+            mEchoes = echoes;
+            mEchoNanos = echoNanos;
+        }
+
+        /**
+         * Describe the rates and averages of the counters since an earlier sample of the same stats, one stage per
+         * line, as shown by the performance overlay and dumped by the service.
+         */
+        public String describeSince(Sample previous) {
+            final double seconds = Math.max(1, mNanoTime - previous.mNanoTime) / 1e9;
+            final long drains = mDrains - previous.mDrains;
+            final long frames = mFrames - previous.mFrames;
+            final long echoes = mEchoes - previous.mEchoes;
+            return String.format(Locale.US, "read %.1f KiB/s\n", (mBytesRead - previous.mBytesRead) / 1024.0 / seconds) +
+                String.format(Locale.US, "queue %d%%, %s per drain\n", percentOfQueue(mQueuedBytes),
+                    drains == 0 ? "-" : percentOfQueue((mDrainQueuedBytes - previous.mDrainQueuedBytes) / drains) + "%") +
+                String.format(Locale.US, "parse %s per drain, %.1f drains/s\n",
+                    formatMillis(mParseNanos - previous.mParseNanos, drains), drains / seconds) +
+                String.format(Locale.US, "scroll %.1f rows/s\n", (mScrolledRows - previous.mScrolledRows) / seconds) +
+                String.format(Locale.US, "render %s per frame, %.1f fps\n",
+                    formatMillis(mRenderNanos - previous.mRenderNanos, frames), frames / seconds) +
+                String.format(Locale.US, "glyph widths %.1f%% cached\n", mGlyphWidthCacheHitRatio * 100) +
+                String.format(Locale.US, "echo %s, %d keystrokes", formatMillis(mEchoNanos - previous.mEchoNanos, echoes), echoes);
+        }
+
+        private long percentOfQueue(long bytes) {
+            return bytes * 100 / mQueueCapacity;
+        }
+
+        /** Format the average of a total time over a count in milliseconds, or "-" if the count is 0. */
+        private static String formatMillis(long nanos, long count) {
+            return count == 0 ? "-" : String.format(Locale.US, "%.2f ms", nanos / 1e6 / count);
+        }
+
+    }
+
+}
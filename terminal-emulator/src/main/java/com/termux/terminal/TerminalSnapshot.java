@@ -0,0 +1,151 @@
+package com.termux.terminal;
+
+import java.util.Arrays;
+
+/**
+ * A copy of the parts of a {@link TerminalEmulator} needed to render it at a specific scroll position: the rows in
+ * view, the cursor and the current colors.
+ * <p>
+ * A snapshot is taken with {@link #update(TerminalEmulator, int)} while the emulator is not being modified, and can
+ * then be rendered without blocking the thread which parses terminal output, see
+ * {@link TerminalSession#setParseInBackground(boolean)}. Rows are reused between updates so that taking a snapshot
+ * for every frame does not allocate.
+ * <p>
+ * Only the rows which have changed since the previous update are copied, which are reported by
+ * {@link #isRowChanged(int)} so that only they need to be rendered again. Rows scrolled since the previous update are
+ * moved rather than considered changed, see {@link #mShiftedRows}.
+ */
+public final class TerminalSnapshot {
+
+    /** The number of rows and columns in the snapshot. */
+    public int mRows, mColumns;
+    /** The external row of the emulator screen which is the first row in the snapshot. */
+    public int mTopRow;
+    /** The cursor position in external rows of the emulator screen. */
+    public int mCursorRow, mCursorCol;
+    /** The cursor style, one of {@link TerminalEmulator#TERMINAL_CURSOR_STYLES_LIST}. */
+    public int mCursorStyle;
+    public boolean mCursorVisible;
+    public boolean mReverseVideo;
+    /** A copy of {@link TerminalColors#mCurrentColors}. */
+    public final int[] mPalette = new int[TextStyle.NUM_INDEXED_COLORS];
+
+    /** If all rows changed in the last update, in which case {@link #mShiftedRows} is 0. */
+    public boolean mAllRowsChanged;
+    /**
+     * The number of rows that the unchanged rows in view moved up in the last update, or down if negative, as when
+     * output scrolls the screen or the view is scrolled. Rows revealed by the move are changed.
+     */
+    public int mShiftedRows;
+
+    private TerminalRow[] mLines = new TerminalRow[0];
+    /** The rows in view which changed in the last update. */
+    private boolean[] mChangedRows = new boolean[0];
+    /** The buffer and its state in the last update, to find the rows changed since then. */
+    private TerminalBuffer mScreen;
+    private int mTranscriptGeneration;
+    private long mRowChanges;
+    /** The {@link TerminalBuffer#mScrolledRows} plus the {@link #mTopRow} of the last update. */
+    private long mFirstRow;
+
+    /**
+     * Copy the state needed to render the emulator with the specified row at the top. The emulator must not be modified
+     * concurrently, so when it is parsing in the background this must be called while holding its monitor. The emulator
+     * itself is not modified, so history in view should first be reflowed by {@link TerminalEmulator#reflowHistoryAbove(int)}.
+     */
+    public void update(TerminalEmulator emulator, int topRow) {
+        final TerminalBuffer screen = emulator.getScreen();
+
+        final int oldRows = mRows, oldCursorRow = mCursorRow, oldTopRow = mTopRow;
+        final boolean cursorChanged = mCursorRow != emulator.getCursorRow() || mCursorCol != emulator.getCursorCol()
+            || mCursorStyle != emulator.getCursorStyle() || mCursorVisible != emulator.shouldCursorBeVisible();
+        boolean allRowsChanged = screen != mScreen || screen.mTranscriptGeneration != mTranscriptGeneration
+            || mColumns != emulator.mColumns || mReverseVideo != emulator.isReverseVideo()
+            || !Arrays.equals(mPalette, emulator.mColors.mCurrentColors);
+        final long firstRow = screen.mScrolledRows + topRow;
+        final long shiftedRows = firstRow - mFirstRow;
+        if (emulator.mRows != oldRows || Math.abs(shiftedRows) >= oldRows) allRowsChanged = true;
+
+        mRows = emulator.mRows;
+        mTopRow = topRow;
+        mCursorRow = emulator.getCursorRow();
+        mCursorCol = emulator.getCursorCol();
+        mCursorStyle = emulator.getCursorStyle();
+        mCursorVisible = emulator.shouldCursorBeVisible();
+        mReverseVideo = emulator.isReverseVideo();
+        System.arraycopy(emulator.mColors.mCurrentColors, 0, mPalette, 0, mPalette.length);
+
+        if (mColumns != emulator.mColumns) {
+            mColumns = emulator.mColumns;
+            mLines = new TerminalRow[mRows];
+            mChangedRows = new boolean[mRows];
+        } else if (mLines.length < mRows) {
+            TerminalRow[] oldLines = mLines;
+            mLines = new TerminalRow[mRows];
+            System.arraycopy(oldLines, 0, mLines, 0, oldLines.length);
+            mChangedRows = new boolean[mRows];
+        }
+
+        mAllRowsChanged = allRowsChanged;
+        mShiftedRows = allRowsChanged ? 0 : (int) shiftedRows;
+        if (allRowsChanged) {
+            Arrays.fill(mChangedRows, 0, mRows, true);
+        } else {
+            // Move the copied rows along with the rows in view, and then find the ones changed since the last update:
+            rotateRows(mShiftedRows);
+            for (int i = 0; i < mRows; i++) {
+                boolean revealed = (mShiftedRows > 0) ? i >= mRows - mShiftedRows : i < -mShiftedRows;
+                mChangedRows[i] = revealed || screen.getRowChange(topRow + i) > mRowChanges;
+            }
+            // The cursor is drawn in the row it was in and the one it is in:
+            if (cursorChanged || mShiftedRows != 0) {
+                int oldCursorIndex = oldCursorRow - oldTopRow - mShiftedRows;
+                if (oldCursorIndex >= 0 && oldCursorIndex < mRows) mChangedRows[oldCursorIndex] = true;
+                int cursorIndex = mCursorRow - mTopRow;
+                if (cursorIndex >= 0 && cursorIndex < mRows) mChangedRows[cursorIndex] = true;
+            }
+        }
+
+        for (int i = 0; i < mRows; i++) {
+            if (mLines[i] == null) {
+                mLines[i] = new TerminalRow(mColumns, TextStyle.NORMAL);
+                mChangedRows[i] = true;
+            }
+            if (mChangedRows[i]) screen.copyRow(topRow + i, mLines[i]);
+        }
+
+        mScreen = screen;
+        mTranscriptGeneration = screen.mTranscriptGeneration;
+        mRowChanges = screen.mRowChanges;
+        mFirstRow = firstRow;
+    }
+
+    /** Move the first {@link #mRows} rows up by the specified number of rows, or down if negative, wrapping around. */
+    private void rotateRows(int shift) {
+        if (shift == 0) return;
+        if (shift < 0) shift += mRows;
+        // Rotate by reversing both parts and then the whole, which does not need a temporary array:
+        reverseRows(0, shift);
+        reverseRows(shift, mRows);
+        reverseRows(0, mRows);
+    }
+
+    private void reverseRows(int from, int to) {
+        for (int i = from, j = to - 1; i < j; i++, j--) {
+            TerminalRow row = mLines[i];
+            mLines[i] = mLines[j];
+            mLines[j] = row;
+        }
+    }
+
+    /** If an external row in view, see {@link #getRow(int)}, changed in the last update. */
+    public boolean isRowChanged(int externalRow) {
+        return mChangedRows[externalRow - mTopRow];
+    }
+
+    /** Get the copy of an external row of the emulator screen, which must be in the range [mTopRow, mTopRow + mRows). */
+    public TerminalRow getRow(int externalRow) {
+        return mLines[externalRow - mTopRow];
+    }
+
+}
@@ -0,0 +1,212 @@
+package com.termux.terminal;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Text written to a process in the background, encoded into UTF-8 a chunk at a time, so that writing a large paste or
+ * script neither blocks the caller until the process has read it nor encodes it all at once.
+ * <p>
+ * The text is written to the queue the process reads its input from, whose writes block while it is full, so the text
+ * is written no faster than the process reads it. Input added while text is being written, see
+ * {@link #addBytesIfBusy(byte[], int, int)}, is queued behind it so that typing during a paste is not mixed into it.
+ * Text which the process is slow to read can be dropped with {@link #cancelText()}, so that such input does not have to
+ * wait for all of it.
+ * <p>
+ * {@link #run()} writes the queued input and should be called from a thread of its own.
+ */
+final class TextInputWriter implements Runnable {
+
+    /** The number of bytes encoded at a time, the same as the capacity of the queue written to. */
+    static final int CHUNK_SIZE = 4096;
+
+    private static final byte[] BRACKETED_PASTE_START = "\033[200~".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] BRACKETED_PASTE_END = "\033[201~".getBytes(StandardCharsets.UTF_8);
+
+    /** The queue to write to, which is locked while writing to it as other threads write to it too. */
+    private final LockFreeByteQueue mQueue;
+    /** The input waiting to be written. */
+    private final ArrayDeque<Input> mPending = new ArrayDeque<>();
+    /** If input has been taken from {@link #mPending} and is being written. */
+    private boolean mWriting;
+    /** If the text being written should no longer be written, see {@link #cancelText()}. */
+    private boolean mTextCancelled;
+    private boolean mClosed;
+    /** The chunk being encoded, and the number of bytes encoded into it. */
+    private final byte[] mBuffer = new byte[CHUNK_SIZE];
+    private int mPosition;
+
+    TextInputWriter(LockFreeByteQueue queue) {
+        mQueue = queue;
+    }
+
+    /**
+     * Queue text to be written.
+     *
+     * @param paste if the text is pasted, in which case escape and C1 control characters are removed, newlines are
+     *              converted to carriage returns and, if bracketed, it is surrounded with "\033[200~" and "\033[201~".
+     */
+    synchronized void addText(CharSequence text, boolean paste, boolean bracketed) {
+        if (mClosed) return;
+        mPending.add(new Input(text, null, paste, paste && bracketed));
+        notifyAll();
+    }
+
+    /**
+     * Queue a copy of bytes to be written if other input is waiting to be written or being written.
+     *
+     * @return if the bytes were queued, or else they should be written directly.
+     */
+    synchronized boolean addBytesIfBusy(byte[] data, int offset, int count) {
+        if (mClosed || (!mWriting && mPending.isEmpty())) return false;
+        byte[] bytes = new byte[count];
+        System.arraycopy(data, offset, bytes, 0, count);
+        mPending.add(new Input(null, bytes, false, false));
+        return true;
+    }
+
+    /**
+     * Drop the text not yet written, while keeping the bytes added with {@link #addBytesIfBusy(byte[], int, int)}. Text
+     * being written stops after the chunk being written, and is still ended if it is a bracketed paste.
+     */
+    synchronized void cancelText() {
+        for (Iterator<Input> iterator = mPending.iterator(); iterator.hasNext(); )
+            if (iterator.next().mText != null) iterator.remove();
+        if (mWriting) mTextCancelled = true;
+    }
+
+    /** Drop the input not yet written and stop {@link #run()}. */
+    synchronized void close() {
+        mClosed = true;
+        mPending.clear();
+        notifyAll();
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            final Input input;
+            synchronized (this) {
+                mWriting = false;
+                while (mPending.isEmpty() && !mClosed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        // Ignore, just as the queue does.
+                    }
+                }
+                if (mClosed) return;
+                input = mPending.poll();
+                mWriting = true;
+                mTextCancelled = false;
+            }
+            final boolean written;
+            if (input.mBytes != null) {
+                written = write(input.mBytes, input.mBytes.length);
+            } else if (input.mBracketed) {
+                written = write(BRACKETED_PASTE_START, BRACKETED_PASTE_START.length) && writeText(input.mText, true)
+                    && write(BRACKETED_PASTE_END, BRACKETED_PASTE_END.length);
+            } else {
+                written = writeText(input.mText, input.mPaste);
+            }
+            if (!written) return;
+        }
+    }
+
+    /**
+     * Encode text into UTF-8 a chunk at a time and write it, like {@link String#getBytes(java.nio.charset.Charset)}, until
+     * all of it is written or it is cancelled.
+     */
+    private boolean writeText(CharSequence text, boolean paste) {
+        final int length = text.length();
+        mPosition = 0;
+        char previous = 0, highSurrogate = 0;
+        for (int i = 0; i < length; i++) {
+            // Leave room for a code point of up to four bytes and an unpaired surrogate before it:
+            if (mPosition > mBuffer.length - 5) {
+                if (!write(mBuffer, mPosition)) return false;
+                mPosition = 0;
+                synchronized (this) {
+                    if (mTextCancelled) return true;
+                }
+            }
+
+            char c = text.charAt(i);
+            if (paste) {
+                if (c == 27 || (c >= 0x80 && c <= 0x9F)) continue;
+                // Newlines and CRLF are both pasted as a carriage return:
+                boolean crlf = c == '\n' && previous == '\r';
+                previous = c;
+                if (crlf) continue;
+                if (c == '\n') c = '\r';
+            }
+
+            // Surrogates are paired after removing characters from a paste, and replaced with '?' if unpaired:
+            if (highSurrogate != 0) {
+                if (Character.isLowSurrogate(c)) {
+                    encode(Character.toCodePoint(highSurrogate, c));
+                    highSurrogate = 0;
+                    continue;
+                }
+                encode('?');
+                highSurrogate = 0;
+            }
+            if (Character.isHighSurrogate(c)) {
+                highSurrogate = c;
+            } else {
+                encode(Character.isSurrogate(c) ? '?' : c);
+            }
+        }
+        if (highSurrogate != 0) encode('?');
+        return mPosition == 0 || write(mBuffer, mPosition);
+    }
+
+    /** Encode a code point into {@link #mBuffer} at {@link #mPosition}. */
+    private void encode(int codePoint) {
+        final byte[] buffer = mBuffer;
+        int position = mPosition;
+        if (codePoint <= 0b1111111) {
+            buffer[position++] = (byte) codePoint;
+        } else if (codePoint <= 0b11111111111) {
+            buffer[position++] = (byte) (0b11000000 | (codePoint >> 6));
+            buffer[position++] = (byte) (0b10000000 | (codePoint & 0b111111));
+        } else if (codePoint <= 0b1111111111111111) {
+            buffer[position++] = (byte) (0b11100000 | (codePoint >> 12));
+            buffer[position++] = (byte) (0b10000000 | ((codePoint >> 6) & 0b111111));
+            buffer[position++] = (byte) (0b10000000 | (codePoint & 0b111111));
+        } else {
+            buffer[position++] = (byte) (0b11110000 | (codePoint >> 18));
+            buffer[position++] = (byte) (0b10000000 | ((codePoint >> 12) & 0b111111));
+            buffer[position++] = (byte) (0b10000000 | ((codePoint >> 6) & 0b111111));
+            buffer[position++] = (byte) (0b10000000 | (codePoint & 0b111111));
+        }
+        mPosition = position;
+    }
+
+    /** Write to the queue, blocking while it is full, and return false if it or this writer has been closed. */
+    private boolean write(byte[] data, int count) {
+        synchronized (this) {
+            if (mClosed) return false;
+        }
+        synchronized (mQueue) {
+            return mQueue.write(data, 0, count);
+        }
+    }
+
+    private static final class Input {
+        final CharSequence mText;
+        final byte[] mBytes;
+        final boolean mPaste;
+        /** If the text is a paste which should be surrounded with "\033[200~" and "\033[201~". */
+        final boolean mBracketed;
+
+        Input(CharSequence text, byte[] bytes, boolean paste, boolean bracketed) {
+            mText = text;
+            mBytes = bytes;
+            mPaste = paste;
+            mBracketed = bracketed;
+        }
+    }
+
+}
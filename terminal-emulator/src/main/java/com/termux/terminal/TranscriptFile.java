@@ -0,0 +1,157 @@
+package com.termux.terminal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A second tier of transcript storage for a {@link TerminalBuffer}, which keeps the rows evicted from its in-memory
+ * circular buffer in memory-mapped files instead of dropping them.
+ * <p>
+ * Rows are appended in their compacted form, see {@link TerminalRow#writeCompact(ByteBuffer)}, to fixed size segments
+ * which are each mapped from a file that is deleted right after it has been mapped. The data is therefore backed by disk
+ * instead of the heap, and is released when the mapping is garbage collected or the process dies, without leaving stale
+ * files behind. Only an offset per row is kept on the heap. When the maximum size is reached, the oldest segment is
+ * dropped.
+ * <p>
+ * Rows keep the number of columns they had when they were evicted. When the columns of the buffer change, it reflows the
+ * rows into a new file before reading them again, see {@link TerminalBuffer#reflowTranscriptFile()}.
+ */
+final class TranscriptFile {
+
+    private static final int SEGMENT_SIZE = 4 * 1024 * 1024;
+
+    private static final class Segment {
+        final MappedByteBuffer mBuffer;
+        /** The offset in {@link #mBuffer} of each row in the segment. */
+        int[] mRowOffsets = new int[1024];
+        int mRows;
+
+        Segment(MappedByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+    }
+
+    private final File mDirectory;
+    private final int mMaxSegments;
+    private final List<Segment> mSegments = new ArrayList<>();
+    /** The number of rows in all segments. */
+    private int mRows;
+    /** Set if mapping a segment failed, after which evicted rows are dropped just as without a transcript file. */
+    private IOException mFailure;
+
+    /**
+     * @param directory the directory to create the segment files in, which is created if necessary.
+     * @param maxSize   the maximum number of bytes to keep, rounded up to a whole number of segments.
+     */
+    TranscriptFile(File directory, long maxSize) {
+        mDirectory = directory;
+        mMaxSegments = (int) Math.max(1, (maxSize + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+    }
+
+    /** Create an empty file in the same directory and with the same maximum size. */
+    TranscriptFile createEmpty() {
+        return new TranscriptFile(mDirectory, (long) mMaxSegments * SEGMENT_SIZE);
+    }
+
+    /** The number of rows which can be read with {@link #readRow(int, TerminalRow)}. */
+    int getRows() {
+        return mRows;
+    }
+
+    /** The error with which mapping a segment failed, after which rows are no longer kept, or null if it has not failed. */
+    IOException getFailure() {
+        return mFailure;
+    }
+
+    /**
+     * Append a row evicted from the in-memory transcript, compacting it first if necessary.
+     *
+     * @return false if the row was dropped, as mapping a segment has failed, see {@link #getFailure()}.
+     */
+    boolean append(TerminalRow row) {
+        if (mFailure != null) return false;
+        row.compact(null);
+        final int size = row.getCompactSize();
+
+        Segment segment = mSegments.isEmpty() ? null : mSegments.get(mSegments.size() - 1);
+        if (segment == null || segment.mBuffer.remaining() < size) {
+            try {
+                segment = new Segment(mapSegment());
+            } catch (IOException e) {
+                mFailure = e;
+                return false;
+            }
+            if (mSegments.size() == mMaxSegments) mRows -= mSegments.remove(0).mRows;
+            mSegments.add(segment);
+        }
+
+        if (segment.mRows == segment.mRowOffsets.length)
+            segment.mRowOffsets = Arrays.copyOf(segment.mRowOffsets, 2 * segment.mRows);
+        segment.mRowOffsets[segment.mRows++] = segment.mBuffer.position();
+        row.writeCompact(segment.mBuffer);
+        mRows++;
+        return true;
+    }
+
+    /**
+     * Read a row into the specified row, where row 0 is the oldest row in the file.
+     *
+     * @param index       the row to read, in the range [0, {@link #getRows()}).
+     * @param destination the row to copy the contents to, which must have the columns of the stored row.
+     */
+    void readRow(int index, TerminalRow destination) {
+        TerminalRow row = readRow(index);
+        if (row.getColumns() != destination.getColumns())
+            throw new IllegalArgumentException("columns=" + row.getColumns() + ", destination columns=" + destination.getColumns());
+        destination.copyFrom(row);
+    }
+
+    /** Read a row as stored, compacted and with the columns it had when it was appended, where row 0 is the oldest row. */
+    TerminalRow readRow(int index) {
+        for (Segment segment : mSegments) {
+            if (index < segment.mRows) {
+                ByteBuffer buffer = segment.mBuffer.duplicate();
+                buffer.position(segment.mRowOffsets[index]);
+                return TerminalRow.readCompact(buffer);
+            }
+            index -= segment.mRows;
+        }
+        throw new IllegalArgumentException("index=" + index + " beyond rows");
+    }
+
+    /** If the specified row, as for {@link #readRow(int, TerminalRow)}, has been line wrapped, without reading the rest of it. */
+    boolean getLineWrap(int index) {
+        for (Segment segment : mSegments) {
+            if (index < segment.mRows) return (segment.mBuffer.get(segment.mRowOffsets[index] + 4) & 1) != 0;
+            index -= segment.mRows;
+        }
+        throw new IllegalArgumentException("index=" + index + " beyond rows");
+    }
+
+    /** Drop all rows. */
+    void clear() {
+        mSegments.clear();
+        mRows = 0;
+    }
+
+    private MappedByteBuffer mapSegment() throws IOException {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs())
+            throw new IOException("Failed to create directory " + mDirectory);
+        File file = File.createTempFile("transcript", null, mDirectory);
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            // The mapping remains valid after the channel is closed and the file is deleted.
+            return randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+
+}
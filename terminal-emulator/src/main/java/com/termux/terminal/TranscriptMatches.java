@@ -0,0 +1,131 @@
+package com.termux.terminal;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The text matched by a pattern in the transcript and screen of a {@link TerminalBuffer}, such as the URLs in it.
+ * <p>
+ * Lines of history do not change once scrolled into it until history is resized or cleared, so the matches in them are
+ * kept and only the lines scrolled into history since the last {@link #find(TerminalBuffer)} are searched, along with
+ * the screen. An instance must only be used with a single buffer, and by one thread at a time.
+ * <p>
+ * History may be searched on a background thread with {@link #find(TerminalEmulator, TerminalBuffer)}, which only holds
+ * the lock of the emulator while searching each chunk of rows, so that the first search of a long transcript does not
+ * block the output of the session or the rendering of the terminal.
+ */
+public final class TranscriptMatches {
+
+    /** The number of rows of history searched or reflowed while holding the lock of the emulator. */
+    static final int CHUNK_ROWS = 512;
+
+    /** A match in history, and the line it is in. */
+    private static final class Match {
+        /** The first row of the line, as {@link TerminalBuffer#mScrolledRows} plus its external row. */
+        final long mLineRow;
+        final String mText;
+
+        Match(long lineRow, String text) {
+            mLineRow = lineRow;
+            mText = text;
+        }
+    }
+
+    private final TranscriptSearch mSearch;
+    /** The matches in history, oldest first. */
+    private final ArrayDeque<Match> mHistoryMatches = new ArrayDeque<>();
+    /** The first row of the next line of history to search, like {@link Match#mLineRow}, or MIN_VALUE before searching. */
+    private long mNextLineRow = Long.MIN_VALUE;
+    /** The {@link TerminalBuffer#mTranscriptGeneration} which {@link #mHistoryMatches} were found in. */
+    private int mTranscriptGeneration;
+
+    public TranscriptMatches(Pattern pattern) {
+        mSearch = new TranscriptSearch(pattern);
+    }
+
+    /**
+     * Find the text of all non-empty matches, oldest first. The buffer must not be modified concurrently, so when the
+     * emulator is parsing in the background this must be called while holding its monitor.
+     */
+    public List<String> find(TerminalBuffer buffer) {
+        while (!searchHistory(buffer, Integer.MAX_VALUE)) {
+            // Continue until all of history has been searched.
+        }
+        return findAll(buffer);
+    }
+
+    /**
+     * Find the text of all non-empty matches like {@link #find(TerminalBuffer)}, holding the lock of the emulator only
+     * while searching each chunk of {@link #CHUNK_ROWS} rows of history and then the screen, for use on a background
+     * thread.
+     */
+    public List<String> find(TerminalEmulator emulator, TerminalBuffer buffer) {
+        while (true) {
+            synchronized (emulator) {
+                if (searchHistory(buffer, CHUNK_ROWS)) return findAll(buffer);
+            }
+        }
+    }
+
+    /**
+     * Search at most about the specified number of rows of the lines scrolled into history since the last search, or
+     * reflow that many rows of history first when all of it is searched again after it changed.
+     *
+     * @return if all lines of history have been searched, up to a line continuing on screen.
+     */
+    private boolean searchHistory(TerminalBuffer buffer, int maxRows) {
+        if (mNextLineRow == Long.MIN_VALUE || buffer.mTranscriptGeneration != mTranscriptGeneration) {
+            // History has changed, so search all of it again, including rows which have not been reflowed yet:
+            if (buffer.isReflowPending()) {
+                buffer.reflowPendingRows((int) Math.min(Integer.MAX_VALUE, (long) buffer.getActiveTranscriptRows() + maxRows));
+                if (buffer.isReflowPending()) return false;
+            }
+            mHistoryMatches.clear();
+            mNextLineRow = buffer.mScrolledRows - buffer.getActiveTranscriptRows();
+            mTranscriptGeneration = buffer.mTranscriptGeneration;
+        }
+
+        // Drop the matches in lines which have been evicted from history:
+        final long scrolledRows = buffer.mScrolledRows;
+        final int firstRow = -buffer.getActiveTranscriptRows();
+        while (!mHistoryMatches.isEmpty() && mHistoryMatches.peekFirst().mLineRow < scrolledRows + firstRow)
+            mHistoryMatches.removeFirst();
+
+        // Search the lines which have scrolled into history since the last time, up to a line continuing on screen:
+        int lineStart = (int) Math.max(mNextLineRow - scrolledRows, firstRow);
+        final long lastRow = (long) lineStart + maxRows;
+        boolean searched = true;
+        while (lineStart < 0) {
+            if (lineStart >= lastRow) {
+                searched = false;
+                break;
+            }
+            int nextLineStart = buffer.appendLine(mSearch, lineStart);
+            if (nextLineStart > 0) break;
+            Matcher matcher = mSearch.matchLine();
+            while (matcher.find())
+                if (matcher.end() > matcher.start()) mHistoryMatches.add(new Match(scrolledRows + lineStart, matcher.group()));
+            lineStart = nextLineStart;
+        }
+        mNextLineRow = scrolledRows + lineStart;
+        return searched;
+    }
+
+    /** Get the matches kept in history followed by the ones on screen, after all of history has been searched. */
+    private List<String> findAll(TerminalBuffer buffer) {
+        int lineStart = (int) (mNextLineRow - buffer.mScrolledRows);
+        List<String> matches = new ArrayList<>(mHistoryMatches.size());
+        for (Match match : mHistoryMatches) matches.add(match.mText);
+        while (lineStart < buffer.mScreenRows) {
+            lineStart = buffer.appendLine(mSearch, lineStart);
+            Matcher matcher = mSearch.matchLine();
+            while (matcher.find())
+                if (matcher.end() > matcher.start()) matches.add(matcher.group());
+        }
+        return matches;
+    }
+
+}
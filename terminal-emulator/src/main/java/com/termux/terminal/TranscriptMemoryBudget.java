@@ -0,0 +1,255 @@
+package com.termux.terminal;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A budget for the memory used by the transcripts of the main buffers of all {@link TerminalEmulator}s registered with
+ * it, which are the ones of all sessions of the process, see {@link #getInstance()}.
+ * <p>
+ * The memory used is estimated from the rows in memory as the transcripts grow, and when it exceeds the budget the
+ * oldest rows of the transcripts of the least recently viewed sessions are trimmed first, see
+ * {@link TerminalBuffer#trimTranscript(int)}. Trimmed rows are kept in the {@link TranscriptFile} of a buffer if it has
+ * one, and dropped otherwise. Rows are also trimmed on demand with {@link #trimBackground(float)}, as when the system
+ * is low on memory.
+ * <p>
+ * Buffers are only read and trimmed while holding the monitor of their emulator, and never while holding the one of
+ * another emulator, so the budget is enforced on a thread of its own instead of the parsing threads which notice that a
+ * transcript has grown. Other work on transcripts which may take long can be run on the same thread with
+ * {@link #runInBackground(Runnable)}. Emulators are only weakly referenced, and so do not need to be unregistered.
+ */
+public final class TranscriptMemoryBudget {
+
+    /** The number of rows scrolled into the transcript of a buffer between checking the budget. */
+    static final int CHECK_INTERVAL_ROWS = 1024;
+    /** The minimum time between checking the budget, as checking needs to visit all transcript rows. */
+    private static final long CHECK_INTERVAL_NANOS = 1_000_000_000L;
+
+    private static final TranscriptMemoryBudget INSTANCE = new TranscriptMemoryBudget(Runtime.getRuntime().maxMemory() / 4);
+
+    /** The budget shared by all sessions of the process, which by default is a quarter of the max heap size. */
+    public static TranscriptMemoryBudget getInstance() {
+        return INSTANCE;
+    }
+
+    private long mMaxBytes;
+    private final List<Entry> mEntries = new ArrayList<>();
+    /** Incremented when a buffer is viewed, to order {@link Entry#mViewed}. */
+    private long mViews;
+    private long mLastCheckNanos;
+    /** If a check of the budget has been started on the {@link #mCheckThread} but not yet run. */
+    private final AtomicBoolean mCheckPending = new AtomicBoolean();
+    /** The tasks waiting to be run on the {@link #mCheckThread}, see {@link #runInBackground(Runnable)}. */
+    private final ArrayDeque<Runnable> mTasks = new ArrayDeque<>();
+    private Thread mCheckThread;
+
+    TranscriptMemoryBudget(long maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    /** Set the number of bytes that the transcripts of all registered buffers may use. */
+    public void setMaxBytes(long maxBytes) {
+        synchronized (this) {
+            mMaxBytes = maxBytes;
+        }
+        enforce();
+    }
+
+    public synchronized long getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    /** Register an emulator, which is then considered the most recently viewed one. */
+    public void register(TerminalEmulator emulator) {
+        synchronized (this) {
+            Entry entry = new Entry(emulator);
+            entry.mViewed = ++mViews;
+            mEntries.add(entry);
+        }
+        emulator.getMainBuffer().mMemoryBudget = this;
+    }
+
+    /** Note that an emulator is being viewed, so that its transcript is trimmed after the ones of other emulators. */
+    public synchronized void onViewed(TerminalEmulator emulator) {
+        Entry entry = find(emulator);
+        if (entry != null) entry.mViewed = ++mViews;
+    }
+
+    /**
+     * Called by a buffer every {@link #CHECK_INTERVAL_ROWS} rows scrolled into its transcript while holding its lock, to
+     * check the budget on the {@link #mCheckThread} unless it was checked very recently.
+     */
+    void onTranscriptGrown() {
+        synchronized (this) {
+            long now = System.nanoTime();
+            if (now - mLastCheckNanos < CHECK_INTERVAL_NANOS) return;
+            mLastCheckNanos = now;
+        }
+        if (!mCheckPending.compareAndSet(false, true)) return;
+        synchronized (this) {
+            startCheckThread();
+            notifyAll();
+        }
+    }
+
+    /**
+     * Run a task on the {@link #mCheckThread} after the tasks run before it, such as moving transcripts to disk or
+     * trimming them with {@link #trimBackground(float)}, which may take too long to be done on the main thread.
+     */
+    public synchronized void runInBackground(Runnable task) {
+        mTasks.add(task);
+        startCheckThread();
+        notifyAll();
+    }
+
+    /** Start the {@link #mCheckThread} unless already started, which must be done while holding the monitor of this. */
+    private void startCheckThread() {
+        if (mCheckThread != null) return;
+        mCheckThread = new Thread("TranscriptMemoryBudget") {
+            @Override
+            public void run() {
+                while (true) {
+                    final Runnable task;
+                    synchronized (TranscriptMemoryBudget.this) {
+                        while (!mCheckPending.get() && mTasks.isEmpty()) {
+                            try {
+                                TranscriptMemoryBudget.this.wait();
+                            } catch (InterruptedException e) {
+                                // Ignore.
+                            }
+                        }
+                        task = mTasks.poll();
+                    }
+                    if (task != null) task.run();
+                    if (mCheckPending.get()) enforce();
+                }
+            }
+        };
+        mCheckThread.setDaemon(true);
+        mCheckThread.start();
+    }
+
+    /**
+     * Trim the transcripts of the least recently viewed buffers until the memory they use is within the budget. The
+     * transcript of the most recently viewed buffer, which is the one of the session shown, is never trimmed.
+     *
+     * @return the estimated bytes used by the transcripts of all buffers afterwards.
+     */
+    long enforce() {
+        mCheckPending.set(false);
+        final List<Entry> entries;
+        final long maxBytes;
+        synchronized (this) {
+            entries = getEntries();
+            maxBytes = mMaxBytes;
+            // Least recently viewed first:
+            Collections.sort(entries, (a, b) -> Long.compare(a.mViewed, b.mViewed));
+        }
+
+        long totalBytes = 0;
+        for (Entry entry : entries) totalBytes += entry.updateUsage();
+        if (totalBytes <= maxBytes) return totalBytes;
+
+        // The last entry is the most recently viewed one:
+        for (Entry entry : entries.subList(0, entries.size() - 1)) {
+            if (totalBytes <= maxBytes) break;
+            totalBytes -= entry.mBytes;
+            entry.trim(Math.max(0, maxBytes - totalBytes));
+            totalBytes += entry.mBytes;
+        }
+        return totalBytes;
+    }
+
+    /**
+     * Trim the transcripts of all but the most recently viewed buffer to a fraction of their rows in memory, as when the
+     * system is low on memory. Rows moved to a {@link TranscriptFile} are written to it while holding the lock of their
+     * emulator, so call this with {@link #runInBackground(Runnable)} instead of on the main thread.
+     */
+    public void trimBackground(float keepFraction) {
+        final List<Entry> entries;
+        synchronized (this) {
+            entries = getEntries();
+        }
+        Entry mostRecentlyViewed = null;
+        for (Entry entry : entries)
+            if (mostRecentlyViewed == null || entry.mViewed > mostRecentlyViewed.mViewed) mostRecentlyViewed = entry;
+
+        for (Entry entry : entries) {
+            if (entry == mostRecentlyViewed) continue;
+            TerminalEmulator emulator = entry.mEmulator.get();
+            if (emulator == null) continue;
+            synchronized (emulator) {
+                TerminalBuffer buffer = emulator.getMainBuffer();
+                buffer.trimTranscript((int) (buffer.getTranscriptRowsInMemory() * keepFraction));
+                entry.mBytes = buffer.getTranscriptMemoryUsage();
+            }
+        }
+    }
+
+    /**
+     * Get the estimated bytes used by the transcript of the main buffer of a registered emulator, as of when the budget
+     * was last checked or the transcript trimmed.
+     */
+    public synchronized long getUsage(TerminalEmulator emulator) {
+        Entry entry = find(emulator);
+        return (entry == null) ? 0 : entry.mBytes;
+    }
+
+    /** Get a copy of the entries of emulators which are still referenced, dropping the others. */
+    private List<Entry> getEntries() {
+        for (Iterator<Entry> iterator = mEntries.iterator(); iterator.hasNext(); )
+            if (iterator.next().mEmulator.get() == null) iterator.remove();
+        return new ArrayList<>(mEntries);
+    }
+
+    private Entry find(TerminalEmulator emulator) {
+        for (Entry entry : mEntries) if (entry.mEmulator.get() == emulator) return entry;
+        return null;
+    }
+
+    private static final class Entry {
+        final WeakReference<TerminalEmulator> mEmulator;
+        /** The value of {@link #mViews} when the emulator was last viewed. */
+        long mViewed;
+        /** The estimated bytes used by the transcript as of the last check. */
+        volatile long mBytes;
+
+        Entry(TerminalEmulator emulator) {
+            mEmulator = new WeakReference<>(emulator);
+        }
+
+        long updateUsage() {
+            TerminalEmulator emulator = mEmulator.get();
+            if (emulator == null) return mBytes = 0;
+            synchronized (emulator) {
+                return mBytes = emulator.getMainBuffer().getTranscriptMemoryUsage();
+            }
+        }
+
+        /** Trim the oldest rows of the transcript until it uses at most the specified number of bytes. */
+        void trim(long maxBytes) {
+            TerminalEmulator emulator = mEmulator.get();
+            if (emulator == null) {
+                mBytes = 0;
+                return;
+            }
+            synchronized (emulator) {
+                TerminalBuffer buffer = emulator.getMainBuffer();
+                long bytes = buffer.getTranscriptMemoryUsage();
+                int rows = buffer.getTranscriptRowsInMemory();
+                if (bytes > maxBytes && rows > 0) {
+                    // Assume that the rows are of about the same size:
+                    buffer.trimTranscript((int) (rows * (double) maxBytes / bytes));
+                    bytes = buffer.getTranscriptMemoryUsage();
+                }
+                mBytes = bytes;
+            }
+        }
+    }
+
+}
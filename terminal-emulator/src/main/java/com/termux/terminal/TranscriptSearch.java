@@ -0,0 +1,163 @@
+package com.termux.terminal;
+
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A search for text in the transcript and screen of a {@link TerminalBuffer}, see
+ * {@link TerminalBuffer#find(TranscriptSearch, int, int, boolean)}, which also holds the last match found.
+ * <p>
+ * Rows are searched in place one line at a time, where a line is a row together with the rows it wraps into, so that
+ * matches may span wrapped rows. Only the text of the line being searched is copied, into arrays which are reused for
+ * the following lines and searches, so that searching a long transcript does not allocate it as a string.
+ */
+public final class TranscriptSearch {
+
+    /** The start of the last match as an external row and column, see {@link TerminalBuffer#externalToInternalRow(int)}. */
+    public int mStartRow, mStartColumn;
+    /** The last column of the last match, and its row. */
+    public int mEndRow, mEndColumn;
+    /** If {@link #mStartRow}, {@link #mStartColumn}, {@link #mEndRow} and {@link #mEndColumn} are set by a match. */
+    public boolean mFound;
+
+    private final Matcher mMatcher;
+    /** The text of the line being searched, which {@link #mMatcher} is reset to for each line. */
+    private final LineText mLineText = new LineText();
+    /**
+     * The first column of the cell of each char of {@link #mLineText}, and the column after it, counting the columns
+     * of all rows of the line. Combining characters and low surrogates are in the cell of the char before them.
+     */
+    private int[] mCellStarts = new int[256], mCellEnds = new int[256];
+    /** The row that rows are decoded into if they are compacted or in the transcript file. */
+    TerminalRow mDecodedRow;
+
+    /**
+     * @param query      the text to search for.
+     * @param regex      if the query is a regular expression, see {@link Pattern}, instead of literal text.
+     * @param ignoreCase if case should be ignored when matching.
+     * @throws java.util.regex.PatternSyntaxException if the query is an invalid regular expression.
+     */
+    public TranscriptSearch(String query, boolean regex, boolean ignoreCase) {
+        this(Pattern.compile(query, (regex ? 0 : Pattern.LITERAL) | (ignoreCase ? Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE : 0)));
+    }
+
+    TranscriptSearch(Pattern pattern) {
+        mMatcher = pattern.matcher(mLineText);
+    }
+
+    /** Clear the text of the line being searched before appending its rows with {@link #appendRow(TerminalRow, int, boolean)}. */
+    void resetLine() {
+        mLineText.mLength = 0;
+    }
+
+    /**
+     * Append the text of a row to the line being searched.
+     *
+     * @param firstColumn the column in the line of the first column of the row.
+     * @param lastRow     if the row is the last row of the line, whose trailing spaces are then left out.
+     */
+    void appendRow(TerminalRow row, int firstColumn, boolean lastRow) {
+        final char[] text = row.mText;
+        int end = row.getSpaceUsed();
+        if (lastRow) while (end > 0 && text[end - 1] == ' ') end--;
+
+        final int length = mLineText.mLength;
+        if (length + end > mLineText.mChars.length) {
+            int capacity = Math.max(2 * mLineText.mChars.length, length + end);
+            mLineText.mChars = Arrays.copyOf(mLineText.mChars, capacity);
+            mCellStarts = Arrays.copyOf(mCellStarts, capacity);
+            mCellEnds = Arrays.copyOf(mCellEnds, capacity);
+        }
+        System.arraycopy(text, 0, mLineText.mChars, length, end);
+
+        int cellStart = firstColumn, cellEnd = firstColumn;
+        for (int i = 0; i < end; i++) {
+            char c = text[i];
+            if (!Character.isLowSurrogate(c)) {
+                int width = WcWidth.width(Character.isHighSurrogate(c) && i + 1 < end ? Character.toCodePoint(c, text[i + 1]) : c);
+                if (width > 0) {
+                    cellStart = cellEnd;
+                    cellEnd += width;
+                }
+            }
+            mCellStarts[length + i] = cellStart;
+            mCellEnds[length + i] = cellEnd;
+        }
+        mLineText.mLength = length + end;
+    }
+
+    /** Get the matcher reset to the start of the line being searched. */
+    Matcher matchLine() {
+        return mMatcher.reset();
+    }
+
+    /**
+     * Find a non-empty match in the line being searched.
+     *
+     * @param minColumn the first column in the line which the match may start at.
+     * @param maxColumn the column in the line which the match must start before.
+     * @param last      if the last match in the range should be found instead of the first.
+     * @return if a match was found, which is then set with {@link #setMatch(int, int)}.
+     */
+    boolean findInLine(int minColumn, int maxColumn, boolean last) {
+        final Matcher matcher = mMatcher;
+        final int length = mLineText.mLength;
+        // Start matching at the first char in the column, so that a match is found there even if it overlaps one before it:
+        int from = 0;
+        while (from < length && mCellStarts[from] < minColumn) from++;
+        int matchStart = -1, matchEnd = -1;
+        while (from <= length && matcher.find(from)) {
+            from = matcher.start() + 1;
+            if (matcher.end() == matcher.start()) continue;
+            if (mCellStarts[matcher.start()] >= maxColumn) break;
+            matchStart = matcher.start();
+            matchEnd = matcher.end();
+            // Later matches may overlap this one, so the search for the last one continues from the char after its start:
+            if (!last) break;
+        }
+        if (matchStart == -1) return false;
+        mStartColumn = mCellStarts[matchStart];
+        mEndColumn = mCellEnds[matchEnd - 1] - 1;
+        return true;
+    }
+
+    /**
+     * Convert the columns in the line of the match found by {@link #findInLine(int, int, boolean)} into external rows and
+     * columns, and mark it as found.
+     */
+    void setMatch(int firstRowOfLine, int columns) {
+        mStartRow = firstRowOfLine + mStartColumn / columns;
+        mStartColumn %= columns;
+        mEndRow = firstRowOfLine + mEndColumn / columns;
+        mEndColumn %= columns;
+        mFound = true;
+    }
+
+    /** The text of a line, which is reused for all lines searched. */
+    private static final class LineText implements CharSequence {
+        char[] mChars = new char[256];
+        int mLength;
+
+        @Override
+        public int length() {
+            return mLength;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return mChars[index];
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return new String(mChars, start, end - start);
+        }
+
+        @Override
+        public String toString() {
+            return new String(mChars, 0, mLength);
+        }
+    }
+
+}
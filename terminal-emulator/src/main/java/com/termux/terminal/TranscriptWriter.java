@@ -0,0 +1,141 @@
+package com.termux.terminal;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes rows of a {@link TerminalBuffer} as UTF-8 to a stream through a small buffer, optionally with SGR escape
+ * sequences regenerated from their {@link TextStyle}, see {@link TerminalBuffer#writeTranscript(OutputStream, boolean)}.
+ * <p>
+ * Blank lines at the start and end are left out, like the trimmed text of {@link TerminalBuffer#getTranscriptText()}.
+ */
+final class TranscriptWriter {
+
+    private final OutputStream mOut;
+    private final boolean mWithStyles;
+    private final byte[] mBuffer = new byte[8192];
+    private int mLength;
+    /** The style set by the last SGR sequence written. */
+    private long mStyle = TextStyle.NORMAL;
+    /** If any text has been written, before which blank lines are left out. */
+    private boolean mStarted;
+    /** The newlines to write before more text, which are left out at the end. */
+    private int mPendingNewlines;
+
+    TranscriptWriter(OutputStream out, boolean withStyles) {
+        mOut = out;
+        mWithStyles = withStyles;
+    }
+
+    /**
+     * Write the text of a row.
+     *
+     * @param endOfLine if the row ends a line, which is then ended with a newline and has its trailing spaces left out.
+     */
+    void writeRow(TerminalRow row, boolean endOfLine) throws IOException {
+        final char[] text = row.mText;
+        int end = row.getSpaceUsed();
+        if (endOfLine) while (end > 0 && text[end - 1] == ' ') end--;
+
+        if (end > 0) {
+            for (; mPendingNewlines > 0; mPendingNewlines--) writeByte('\n');
+            mStarted = true;
+        }
+        int column = 0;
+        for (int i = 0; i < end; i++) {
+            int codePoint = text[i];
+            if (Character.isHighSurrogate(text[i]) && i + 1 < end) codePoint = Character.toCodePoint(text[i], text[++i]);
+            int width = WcWidth.width(codePoint);
+            if (width > 0) {
+                if (mWithStyles) {
+                    long style = row.getStyle(column);
+                    if (style != mStyle) writeSgr(style);
+                }
+                column += width;
+            }
+            writeCodePoint(codePoint);
+        }
+        if (endOfLine && mStarted) mPendingNewlines++;
+    }
+
+    /** Write a final newline, reset the style if it was changed, and flush everything written to the stream. */
+    void finish() throws IOException {
+        if (mWithStyles && mStyle != TextStyle.NORMAL) writeSgr(TextStyle.NORMAL);
+        if (mStarted) writeByte('\n');
+        mOut.write(mBuffer, 0, mLength);
+        mLength = 0;
+        mOut.flush();
+    }
+
+    private void writeSgr(long style) throws IOException {
+        writeByte(27);
+        writeByte('[');
+        writeByte('0');
+        final int effect = TextStyle.decodeEffect(style);
+        if ((effect & TextStyle.CHARACTER_ATTRIBUTE_BOLD) != 0) writeParameter(1);
+        if ((effect & TextStyle.CHARACTER_ATTRIBUTE_DIM) != 0) writeParameter(2);
+        if ((effect & TextStyle.CHARACTER_ATTRIBUTE_ITALIC) != 0) writeParameter(3);
+        if ((effect & TextStyle.CHARACTER_ATTRIBUTE_UNDERLINE) != 0) writeParameter(4);
+        if ((effect & TextStyle.CHARACTER_ATTRIBUTE_BLINK) != 0) writeParameter(5);
+        if ((effect & TextStyle.CHARACTER_ATTRIBUTE_INVERSE) != 0) writeParameter(7);
+        if ((effect & TextStyle.CHARACTER_ATTRIBUTE_INVISIBLE) != 0) writeParameter(8);
+        if ((effect & TextStyle.CHARACTER_ATTRIBUTE_STRIKETHROUGH) != 0) writeParameter(9);
+        writeColor(TextStyle.decodeForeColor(style), 30);
+        writeColor(TextStyle.decodeBackColor(style), 40);
+        writeByte('m');
+        mStyle = style;
+    }
+
+    /** Write the SGR parameters of a foreground or background color, of which the default colors have none. */
+    private void writeColor(int color, int base) throws IOException {
+        if ((color & 0xff000000) == 0xff000000) {
+            writeParameter(base + 8);
+            writeParameter(2);
+            writeParameter((color >> 16) & 0xff);
+            writeParameter((color >> 8) & 0xff);
+            writeParameter(color & 0xff);
+        } else if (color < 8) {
+            writeParameter(base + color);
+        } else if (color < 16) {
+            writeParameter(base + 60 + color - 8);
+        } else if (color < 256) {
+            writeParameter(base + 8);
+            writeParameter(5);
+            writeParameter(color);
+        }
+    }
+
+    private void writeParameter(int value) throws IOException {
+        writeByte(';');
+        if (value >= 100) writeByte('0' + value / 100);
+        if (value >= 10) writeByte('0' + value / 10 % 10);
+        writeByte('0' + value % 10);
+    }
+
+    private void writeCodePoint(int codePoint) throws IOException {
+        if (codePoint < 0x80) {
+            writeByte(codePoint);
+        } else if (codePoint < 0x800) {
+            writeByte(0xc0 | (codePoint >> 6));
+            writeByte(0x80 | (codePoint & 0x3f));
+        } else if (codePoint < 0x10000) {
+            writeByte(0xe0 | (codePoint >> 12));
+            writeByte(0x80 | ((codePoint >> 6) & 0x3f));
+            writeByte(0x80 | (codePoint & 0x3f));
+        } else {
+            writeByte(0xf0 | (codePoint >> 18));
+            writeByte(0x80 | ((codePoint >> 12) & 0x3f));
+            writeByte(0x80 | ((codePoint >> 6) & 0x3f));
+            writeByte(0x80 | (codePoint & 0x3f));
+        }
+    }
+
+    private void writeByte(int b) throws IOException {
+        if (mLength == mBuffer.length) {
+            mOut.write(mBuffer, 0, mLength);
+            mLength = 0;
+        }
+        mBuffer[mLength++] = (byte) b;
+    }
+
+}
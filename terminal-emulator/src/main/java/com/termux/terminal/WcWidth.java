@@ -1,5 +1,7 @@
 package com.termux.terminal;
 
+import java.util.Arrays;
+
 /**
  * Implementation of wcwidth(3) for Unicode 15.
  *
@@ -490,6 +492,66 @@ public final class WcWidth {
     };
 
 
+    /** The number of code points covered by the lookup table, which are the Basic Multilingual Plane and plane 1 with most emoji. */
+    private static final int TABLE_CODE_POINTS = 0x20000;
+    /** The number of code points in each page of the lookup table, as a shift. */
+    private static final int PAGE_SHIFT = 8;
+    /** The number of longs needed for the widths of a page, stored as two bits per code point. */
+    private static final int LONGS_PER_PAGE = (1 << PAGE_SHIFT) / 32;
+
+    /**
+     * The index of each page of the lookup table in {@link #PAGE_WIDTHS}. Pages with the same widths, such as the many
+     * pages where all code points have width 1, share the same widths.
+     */
+    private static final char[] PAGE_INDEX = new char[TABLE_CODE_POINTS >> PAGE_SHIFT];
+    /** The widths of the code points of the distinct pages of the lookup table, 32 code points per long. */
+    private static final long[] PAGE_WIDTHS;
+
+    static {
+        // Apply the tables in the reverse order of computeWidth(), so that the tables which take precedence there
+        // overwrite the others:
+        long[] widths = new long[TABLE_CODE_POINTS / 32];
+        Arrays.fill(widths, 0x5555555555555555L);
+        fillTable(widths, WIDE_EASTASIAN, 2);
+        fillTable(widths, ZERO_WIDTH, 0);
+        // The control and format characters checked first:
+        fillTable(widths, new int[][]{{0, 31}, {0x07F, 0x09F}, {0x034F, 0x034F}, {0x200B, 0x200F}, {0x2028, 0x202E}, {0x2060, 0x2063}}, 0);
+
+        // Keep only the distinct pages, moving each new one down after the previous distinct page:
+        int pages = 0;
+        for (int page = 0; page < PAGE_INDEX.length; page++) {
+            int existingPage = 0;
+            while (existingPage < pages && !pageEquals(widths, existingPage, page)) existingPage++;
+            if (existingPage == pages) System.arraycopy(widths, page * LONGS_PER_PAGE, widths, pages++ * LONGS_PER_PAGE, LONGS_PER_PAGE);
+            PAGE_INDEX[page] = (char) existingPage;
+        }
+        PAGE_WIDTHS = Arrays.copyOf(widths, pages * LONGS_PER_PAGE);
+    }
+
+    private static boolean pageEquals(long[] widths, int page1, int page2) {
+        for (int i = 0; i < LONGS_PER_PAGE; i++)
+            if (widths[page1 * LONGS_PER_PAGE + i] != widths[page2 * LONGS_PER_PAGE + i]) return false;
+        return true;
+    }
+
+    /** Set the two bit width of the code points in the table, a whole long at a time where possible. */
+    private static void fillTable(long[] widths, int[][] table, int width) {
+        final long widthOfAll = width * 0x5555555555555555L;
+        for (int[] range : table) {
+            final int end = Math.min(range[1] + 1, TABLE_CODE_POINTS);
+            for (int c = range[0]; c < end; ) {
+                if ((c & 31) == 0 && c + 32 <= end) {
+                    widths[c >> 5] = widthOfAll;
+                    c += 32;
+                } else {
+                    int shift = (c & 31) << 1;
+                    widths[c >> 5] = (widths[c >> 5] & ~(3L << shift)) | ((long) width << shift);
+                    c++;
+                }
+            }
+        }
+    }
+
     private static boolean intable(int[][] table, int c) {
         // First quick check f|| Latin1 etc. characters.
         if (c < table[0][0]) return false;
@@ -512,6 +574,15 @@ public final class WcWidth {
 
     /** Return the terminal display width of a code point: 0, 1 || 2. */
     public static int width(int ucs) {
+        if (ucs >= 0 && ucs < TABLE_CODE_POINTS) {
+            long pageWidths = PAGE_WIDTHS[PAGE_INDEX[ucs >> PAGE_SHIFT] * LONGS_PER_PAGE + ((ucs & ((1 << PAGE_SHIFT) - 1)) >> 5)];
+            return (int) (pageWidths >>> ((ucs & 31) << 1)) & 3;
+        }
+        return computeWidth(ucs);
+    }
+
+    /** Compute the width of a code point by searching the tables, which {@link #width(int)} only does outside of its lookup table. */
+    static int computeWidth(int ucs) {
         if (ucs == 0 ||
             ucs == 0x034F ||
             (0x200B <= ucs && ucs <= 0x200F) ||
@@ -30,4 +30,56 @@ public class HistoryTest extends TerminalTestCase {
 		enterString("LMN").assertLinesAre("111", "IJK", "LMN", "444").assertHistoryStartsWith("FGH", "CDE");
 	}
 
+	public void testHistoryRowsAreCompacted() {
+		withTerminalSized(3, 2).enterString("111222333\033[31m444");
+		TerminalBuffer screen = mTerminal.getScreen();
+		assertEquals(2, screen.getActiveTranscriptRows());
+		assertTrue(screen.mLines[screen.externalToInternalRow(-1)].isCompact());
+		assertTrue(screen.mLines[screen.externalToInternalRow(-2)].isCompact());
+		assertFalse(screen.mLines[screen.externalToInternalRow(0)].isCompact());
+		assertEquals("111222333444", screen.getTranscriptText());
+
+		// Reading styles neither inflates compacted rows nor marks rows as changed:
+		long rowChanges = screen.mRowChanges;
+		assertEquals(TextStyle.COLOR_INDEX_FOREGROUND, TextStyle.decodeForeColor(screen.getStyleAt(-2, 0)));
+		assertEquals(TextStyle.COLOR_INDEX_FOREGROUND, TextStyle.decodeForeColor(screen.getStyleAt(-1, 2)));
+		assertEquals(1, TextStyle.decodeForeColor(screen.getStyleAt(1, 0)));
+		assertTrue(screen.mLines[screen.externalToInternalRow(-1)].isCompact());
+		assertEquals(rowChanges, screen.mRowChanges);
+		assertForegroundColorAt(0, 0, TextStyle.COLOR_INDEX_FOREGROUND);
+		assertForegroundColorAt(1, 0, 1);
+	}
+
+	public void testCompactedHistoryWraparound() {
+		// A buffer with two rows of history, so that scrolling reuses the oldest compacted rows:
+		TerminalBuffer screen = new TerminalBuffer(3, 4, 2);
+		for (int i = 1; i <= 6; i++) {
+			if (i > 2) screen.scrollDownOneLine(0, 2, TextStyle.NORMAL);
+			for (int column = 0; column < 3; column++)
+				screen.setChar(column, Math.min(i, 2) - 1, '0' + i, TextStyle.encode(i, TextStyle.COLOR_INDEX_BACKGROUND, 0));
+		}
+		assertEquals(2, screen.getActiveTranscriptRows());
+		assertEquals("333\n444\n555\n666", screen.getTranscriptText());
+		assertEquals(3, TextStyle.decodeForeColor(screen.getStyleAt(-2, 2)));
+		assertEquals(4, TextStyle.decodeForeColor(screen.getStyleAt(-1, 0)));
+	}
+
+	public void testScrollingReusesArraysOfCompactedRows() {
+		TerminalBuffer screen = new TerminalBuffer(3, 5, 2);
+		for (int i = 0; i < 6; i++) {
+			char[] scrolledOffText = screen.mLines[screen.externalToInternalRow(0)].mText;
+			screen.scrollDownOneLine(0, 2, TextStyle.NORMAL);
+			// The arrays of the line which was compacted are used by the new blank line, both while the history grows and
+			// when it is full:
+			assertTrue(screen.mLines[screen.externalToInternalRow(-1)].isCompact());
+			assertSame(scrolledOffText, screen.mLines[screen.externalToInternalRow(1)].mText);
+		}
+
+		// Resizing to fewer columns reflows the rows into new ones, which then reuse arrays while scrolling:
+		screen.resize(2, 2, 5, new int[]{0, 0}, TextStyle.NORMAL, false);
+		char[] scrolledOffText = screen.mLines[screen.externalToInternalRow(0)].mText;
+		screen.scrollDownOneLine(0, 2, TextStyle.NORMAL);
+		assertSame(scrolledOffText, screen.mLines[screen.externalToInternalRow(1)].mText);
+	}
+
 }
@@ -0,0 +1,166 @@
+package com.termux.terminal;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class LockFreeByteQueueTest extends TestCase {
+
+	private interface Queue {
+		boolean write(byte[] buffer, int offset, int length);
+
+		int read(byte[] buffer, boolean block);
+
+		void close();
+	}
+
+	private static Queue lockFreeByteQueue(int size) {
+		final LockFreeByteQueue q = new LockFreeByteQueue(size);
+		return new Queue() {
+			@Override
+			public boolean write(byte[] buffer, int offset, int length) {
+				return q.write(buffer, offset, length);
+			}
+
+			@Override
+			public int read(byte[] buffer, boolean block) {
+				return q.read(buffer, block);
+			}
+
+			@Override
+			public void close() {
+				q.close();
+			}
+		};
+	}
+
+	private static Queue byteQueue(int size) {
+		final ByteQueue q = new ByteQueue(size);
+		return new Queue() {
+			@Override
+			public boolean write(byte[] buffer, int offset, int length) {
+				return q.write(buffer, offset, length);
+			}
+
+			@Override
+			public int read(byte[] buffer, boolean block) {
+				return q.read(buffer, block);
+			}
+
+			@Override
+			public void close() {
+				q.close();
+			}
+		};
+	}
+
+	public void testWakeUpReader() throws Exception {
+		final LockFreeByteQueue q = new LockFreeByteQueue(10);
+		final int[] result = {-2};
+		Thread reader = new Thread(() -> result[0] = q.read(new byte[10], true));
+		reader.start();
+		while (reader.getState() != Thread.State.WAITING) Thread.sleep(1);
+		q.wakeUpReader();
+		reader.join();
+		assertEquals(0, result[0]);
+
+		// The queue stays open with its contents:
+		assertTrue(q.write(new byte[]{1, 2}, 0, 2));
+		q.wakeUpReader();
+		byte[] buffer = new byte[10];
+		assertEquals(2, q.read(buffer, true));
+		assertEquals(0, q.read(buffer, true));
+	}
+
+	public void testCompleteWrites() throws Exception {
+		LockFreeByteQueue q = new LockFreeByteQueue(10);
+		assertTrue(q.write(new byte[]{1, 2, 3}, 0, 3));
+
+		byte[] arr = new byte[10];
+		assertEquals(3, q.read(arr, true));
+		assertTrue(Arrays.equals(new byte[]{1, 2, 3}, Arrays.copyOf(arr, 3)));
+
+		assertTrue(q.write(new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10}, 0, 10));
+		assertEquals(10, q.read(arr, true));
+		assertTrue(Arrays.equals(new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10}, arr));
+	}
+
+	public void testQueueWraparound() throws Exception {
+		LockFreeByteQueue q = new LockFreeByteQueue(10);
+
+		byte[] origArray = new byte[]{1, 2, 3, 4, 5, 6};
+		byte[] readArray = new byte[origArray.length];
+		for (int i = 0; i < 20; i++) {
+			q.write(origArray, 0, origArray.length);
+			assertEquals(origArray.length, q.read(readArray, true));
+			assertTrue(Arrays.equals(origArray, readArray));
+		}
+	}
+
+	public void testWriteNotesClosing() throws Exception {
+		LockFreeByteQueue q = new LockFreeByteQueue(10);
+		q.close();
+		assertFalse(q.write(new byte[]{1, 2, 3}, 0, 3));
+	}
+
+	public void testReadNonBlocking() throws Exception {
+		LockFreeByteQueue q = new LockFreeByteQueue(10);
+		assertEquals(0, q.read(new byte[128], false));
+	}
+
+	public void testReadNotesClosing() throws Exception {
+		final LockFreeByteQueue q = new LockFreeByteQueue(10);
+		Thread closer = new Thread(() -> {
+			try {
+				Thread.sleep(50);
+			} catch (InterruptedException e) {
+				// Ignore.
+			}
+			q.close();
+		});
+		closer.start();
+		assertEquals(-1, q.read(new byte[128], true));
+		closer.join();
+	}
+
+	public void testConcurrentTransfer() throws Exception {
+		byte[] data = new byte[1024 * 1024];
+		new Random(1234).nextBytes(data);
+		assertTrue(Arrays.equals(data, transfer(lockFreeByteQueue(4096), data, 1000)));
+	}
+
+	/** Both queue implementations transfer the same bytes, moving data in chunks like TerminalSession does. */
+	public void testSameTransferAsByteQueue() throws Exception {
+		byte[] data = new byte[256 * 1024];
+		new Random(1234).nextBytes(data);
+		// Chunks smaller than, as large as and larger than the queue, which are then written in parts:
+		for (int chunkSize : new int[]{1, 4095, 4096, 10000}) {
+			byte[] expected = transfer(byteQueue(4096), data, chunkSize);
+			assertTrue(Arrays.equals(data, expected));
+			assertTrue("chunk size " + chunkSize, Arrays.equals(expected, transfer(lockFreeByteQueue(4096), data, chunkSize)));
+		}
+	}
+
+	/** Write the data to the queue from another thread in chunks of the specified size, and return what was read. */
+	private static byte[] transfer(final Queue q, final byte[] data, final int chunkSize) throws InterruptedException {
+		Thread writer = new Thread(() -> {
+			for (int offset = 0; offset < data.length; offset += chunkSize)
+				q.write(data, offset, Math.min(chunkSize, data.length - offset));
+		});
+		writer.start();
+
+		byte[] result = new byte[data.length];
+		byte[] readBuffer = new byte[4096];
+		int totalRead = 0;
+		while (totalRead < data.length) {
+			int read = q.read(readBuffer, true);
+			System.arraycopy(readBuffer, 0, result, totalRead, read);
+			totalRead += read;
+		}
+		writer.join();
+		q.close();
+		return result;
+	}
+
+}
@@ -1,8 +1,9 @@
 package com.termux.terminal;
 
-import android.util.Base64;
-
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
 import java.util.List;
 import java.util.Random;
 
@@ -137,9 +138,52 @@ public class OperatingSystemControlTest extends TerminalTestCase {
 		assertIndexColorsMatch(TerminalColors.COLOR_SCHEME.mDefaultColors);
 	}
 
-	public void disabledTestSetClipboard() {
-		// Cannot run this as a unit test since Base64 is a android.util class.
-		enterString("\033]52;c;" + Base64.encodeToString("Hello, world".getBytes(), 0) + "\007");
+	private static String base64(String text) {
+		return Base64.getEncoder().encodeToString(text.getBytes(StandardCharsets.UTF_8));
+	}
+
+	public void testSetClipboard() {
+		withTerminalSized(5, 2).enterString("\033]52;c;" + base64("Hello, world") + "\007");
+		enterString("\033]52;;" + base64("Hellå, wörld 果") + "\033\\");
+		// Without the selection parameter:
+		enterString("\033]52;" + base64("Hi") + "\007");
+		assertEquals(Arrays.asList("Hello, world", "Hellå, wörld 果", "Hi"), mOutput.clipboardPuts);
+		assertLinesAre("     ", "     ");
+	}
+
+	public void testClipboardQueryIsIgnored() {
+		withTerminalSized(5, 2).enterString("\033]52;c;?\007");
+		enterString("\033]52;?\033\\");
+		assertTrue(mOutput.clipboardPuts.isEmpty());
+		assertEquals("", mOutput.getOutputAndClear());
+		assertLinesAre("     ", "     ");
+	}
+
+	public void testInvalidOrEmptyClipboardIsIgnored() {
+		withTerminalSized(5, 2).enterString("\033]52;c;\007");
+		enterString("\033]52;c;SGk?\007");
+		enterString("\033]52;c;?SGk=\007");
+		enterString("\033]52;c;SGk=SGk=\007");
+		enterString("\033]52;c;====\007");
+		assertTrue(mOutput.clipboardPuts.isEmpty());
+		// Whitespace is allowed:
+		enterString("\033]52;c;S Gk\n=\007");
+		assertEquals(Arrays.asList("Hi"), mOutput.clipboardPuts);
+		assertLinesAre("     ", "     ");
+	}
+
+	public void testSetClipboardLargerThanOscStrings() {
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; text.length() < 200_000; i++) text.append("line ").append(i).append('\n');
+		withTerminalSized(5, 2).enterString("\033]52;c;" + base64(text.toString()) + "\007");
+		assertEquals(Arrays.asList(text.toString()), mOutput.clipboardPuts);
+
+		// Copies larger than the max are ignored:
+		mTerminal.setMaxClipboardCopyBytes(1000);
+		enterString("\033]52;c;" + base64(text.toString()) + "\007");
+		assertEquals(1, mOutput.clipboardPuts.size());
+		enterString("\033]52;c;" + base64("after") + "\007");
+		assertEquals(Arrays.asList(text.toString(), "after"), mOutput.clipboardPuts);
 	}
 
 	public void testResettingTerminalResetsColor() throws Exception {
@@ -0,0 +1,48 @@
+package com.termux.terminal;
+
+import junit.framework.TestCase;
+
+public class OutputFloodDetectorTest extends TestCase {
+
+	private static final long MILLIS = 1_000_000L;
+
+	/** Output the specified number of bytes per millisecond for a duration, returning if flooded at the end. */
+	private static boolean output(OutputFloodDetector detector, long[] time, int bytesPerMillis, long durationMillis) {
+		boolean flooded = false;
+		for (long end = time[0] + durationMillis * MILLIS; time[0] < end; time[0] += MILLIS)
+			flooded = detector.onOutput(bytesPerMillis, time[0]);
+		return flooded;
+	}
+
+	public void testFloodingIsDetectedAfterAWindow() {
+		OutputFloodDetector detector = new OutputFloodDetector();
+		detector.setThreshold(1_000_000);
+		long[] time = {-123 * MILLIS};
+		assertFalse("Output below the threshold is not flooding", output(detector, time, 900, 2000));
+		assertFalse("Flooding is only detected once a window has passed", output(detector, time, 2000, 400));
+		assertTrue(output(detector, time, 2000, 700));
+		// The output has to fall below half the threshold to be calm again:
+		assertTrue(output(detector, time, 600, 2000));
+		assertFalse(output(detector, time, 400, 1100));
+	}
+
+	public void testOutputStoppingEndsFlooding() {
+		OutputFloodDetector detector = new OutputFloodDetector();
+		detector.setThreshold(1_000_000);
+		long[] time = {0};
+		assertTrue(output(detector, time, 10_000, 1100));
+		time[0] += 10_000 * MILLIS;
+		assertFalse(detector.onOutput(10_000, time[0]));
+	}
+
+	public void testZeroThresholdDisables() {
+		OutputFloodDetector detector = new OutputFloodDetector();
+		long[] time = {0};
+		assertFalse(output(detector, time, 1_000_000, 2000));
+		detector.setThreshold(1_000_000);
+		assertTrue(output(detector, time, 10_000, 1100));
+		detector.setThreshold(0);
+		assertFalse(detector.onOutput(10_000, time[0]));
+	}
+
+}
@@ -0,0 +1,81 @@
+package com.termux.terminal;
+
+import java.util.Random;
+
+/**
+ * Compares the throughput of {@link LockFreeByteQueue} with that of {@link ByteQueue}, moving data from a writer thread
+ * to a reader thread in chunks like TerminalSession does. This is not a unit test, as the timings depend on the machine
+ * and its load, so run its main method from the test classpath instead.
+ */
+public final class QueueThroughputBenchmark {
+
+	private static final int QUEUE_SIZE = 4096;
+	private static final int DATA_SIZE = 64 * 1024 * 1024;
+	private static final int ROUNDS = 5;
+
+	private interface Queue {
+		boolean write(byte[] buffer, int offset, int length);
+
+		int read(byte[] buffer, boolean block);
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		byte[] data = new byte[DATA_SIZE];
+		new Random(1234).nextBytes(data);
+		// Chunk sizes of single keystrokes, of small reads from the terminal and of the reads while output floods:
+		for (int chunkSize : new int[]{1, 256, 4096}) {
+			int size = (chunkSize == 1) ? DATA_SIZE / 64 : DATA_SIZE;
+			long byteQueueNanos = Long.MAX_VALUE, lockFreeNanos = Long.MAX_VALUE;
+			for (int round = 0; round < ROUNDS; round++) {
+				final ByteQueue byteQueue = new ByteQueue(QUEUE_SIZE);
+				byteQueueNanos = Math.min(byteQueueNanos, transfer(new Queue() {
+					@Override
+					public boolean write(byte[] buffer, int offset, int length) {
+						return byteQueue.write(buffer, offset, length);
+					}
+
+					@Override
+					public int read(byte[] buffer, boolean block) {
+						return byteQueue.read(buffer, block);
+					}
+				}, data, size, chunkSize));
+
+				final LockFreeByteQueue lockFreeQueue = new LockFreeByteQueue(QUEUE_SIZE);
+				lockFreeNanos = Math.min(lockFreeNanos, transfer(new Queue() {
+					@Override
+					public boolean write(byte[] buffer, int offset, int length) {
+						return lockFreeQueue.write(buffer, offset, length);
+					}
+
+					@Override
+					public int read(byte[] buffer, boolean block) {
+						return lockFreeQueue.read(buffer, block);
+					}
+				}, data, size, chunkSize));
+			}
+			System.out.println(String.format("%5d byte chunks: ByteQueue %6d MB/s, LockFreeByteQueue %6d MB/s", chunkSize,
+				megabytesPerSecond(size, byteQueueNanos), megabytesPerSecond(size, lockFreeNanos)));
+		}
+	}
+
+	/** Write the first bytes of the data to the queue from another thread in chunks, and return the nanos to read them. */
+	private static long transfer(final Queue q, final byte[] data, final int size, final int chunkSize) throws InterruptedException {
+		Thread writer = new Thread(() -> {
+			for (int offset = 0; offset < size; offset += chunkSize)
+				q.write(data, offset, Math.min(chunkSize, size - offset));
+		});
+		long start = System.nanoTime();
+		writer.start();
+		byte[] readBuffer = new byte[4096];
+		for (int totalRead = 0; totalRead < size; )
+			totalRead += q.read(readBuffer, true);
+		long nanos = System.nanoTime() - start;
+		writer.join();
+		return nanos;
+	}
+
+	private static long megabytesPerSecond(long bytes, long nanos) {
+		return (bytes * 1_000_000_000L) / (nanos * 1024 * 1024);
+	}
+
+}
@@ -1,5 +1,7 @@
 package com.termux.terminal;
 
+import java.nio.charset.StandardCharsets;
+
 public class ResizeTest extends TerminalTestCase {
 
 	public void testResizeWhenHasHistory() {
@@ -209,4 +211,95 @@ public class ResizeTest extends TerminalTestCase {
 		resize(5, rows).assertLinesAre("ＱＲ ", "     ", "     ", "     ");
 	}
 
+	public void testLazyReflowOfLongHistory() {
+		TerminalEmulator expected = terminalWithHistory(20, 10, 5000, 3000, false);
+		TerminalEmulator actual = terminalWithHistory(20, 10, 5000, 3000, true);
+		expected.resize(33, 12, INITIAL_CELL_WIDTH_PIXELS, INITIAL_CELL_HEIGHT_PIXELS);
+		actual.resize(33, 12, INITIAL_CELL_WIDTH_PIXELS, INITIAL_CELL_HEIGHT_PIXELS);
+		assertEquals(expected.getCursorRow(), actual.getCursorRow());
+		assertEquals(expected.getCursorCol(), actual.getCursorCol());
+
+		// Only the screen and a margin of history has been reflowed:
+		TerminalBuffer screen = actual.getScreen();
+		int reflowedRows = screen.getActiveTranscriptRows();
+		assertTrue(reflowedRows >= TerminalBuffer.REFLOW_MARGIN_ROWS);
+		assertTrue(reflowedRows < expected.getScreen().getActiveTranscriptRows() / 2);
+		assertSameRows(expected, actual, -reflowedRows);
+
+		// More history is reflowed as it is about to be scrolled into view:
+		actual.reflowHistoryAbove(-reflowedRows);
+		assertTrue(screen.getActiveTranscriptRows() >= reflowedRows + TerminalBuffer.REFLOW_MARGIN_ROWS);
+		assertSameRows(expected, actual, -screen.getActiveTranscriptRows());
+
+		// All of it is reflowed when reading the transcript:
+		assertEquals(expected.getScreen().getTranscriptText(), screen.getTranscriptText());
+		assertEquals(expected.getScreen().getActiveTranscriptRows(), screen.getActiveTranscriptRows());
+		assertSameRows(expected, actual, -screen.getActiveTranscriptRows());
+	}
+
+	public void testLazyReflowWhenResizingAgain() {
+		// Rows which are still pending are reflowed from their original columns, which gives the same result as reflowing
+		// them repeatedly as long as the circular buffer has not wrapped around, after which reused rows may keep a stale
+		// line wrap:
+		TerminalEmulator expected = terminalWithHistory(20, 10, 5000, 1800, false);
+		TerminalEmulator actual = terminalWithHistory(20, 10, 5000, 1800, true);
+		for (TerminalEmulator terminal : new TerminalEmulator[]{expected, actual}) {
+			terminal.resize(33, 12, INITIAL_CELL_WIDTH_PIXELS, INITIAL_CELL_HEIGHT_PIXELS);
+			terminal.resize(33, 8, INITIAL_CELL_WIDTH_PIXELS, INITIAL_CELL_HEIGHT_PIXELS);
+			terminal.resize(17, 10, INITIAL_CELL_WIDTH_PIXELS, INITIAL_CELL_HEIGHT_PIXELS);
+			appendLines(terminal, 1800, 1900);
+		}
+		assertEquals(expected.getCursorRow(), actual.getCursorRow());
+		assertEquals(expected.getCursorCol(), actual.getCursorCol());
+		assertSameRows(expected, actual, -actual.getScreen().getActiveTranscriptRows());
+		assertEquals(expected.getScreen().getTranscriptText(), actual.getScreen().getTranscriptText());
+	}
+
+	public void testPendingRowsAreDroppedWhenHistoryIsFull() {
+		TerminalEmulator expected = terminalWithHistory(20, 10, 1500, 3000, false);
+		TerminalEmulator actual = terminalWithHistory(20, 10, 1500, 3000, true);
+		for (TerminalEmulator terminal : new TerminalEmulator[]{expected, actual}) {
+			terminal.resize(33, 12, INITIAL_CELL_WIDTH_PIXELS, INITIAL_CELL_HEIGHT_PIXELS);
+			appendLines(terminal, 3000, 3600);
+		}
+		assertEquals(expected.getScreen().getTranscriptText(), actual.getScreen().getTranscriptText());
+		assertEquals(expected.getScreen().getActiveTranscriptRows(), actual.getScreen().getActiveTranscriptRows());
+	}
+
+	/** Create a terminal with output including lines which wrap, blank lines and colors. */
+	static TerminalEmulator terminalWithHistory(int columns, int rows, int transcriptRows, int lines, boolean lazyReflow) {
+		TerminalEmulator terminal = new TerminalEmulator(new MockTerminalOutput(), columns, rows, INITIAL_CELL_WIDTH_PIXELS,
+			INITIAL_CELL_HEIGHT_PIXELS, transcriptRows, null);
+		terminal.getScreen().setLazyReflow(lazyReflow);
+		appendLines(terminal, 0, lines);
+		return terminal;
+	}
+
+	static void appendLines(TerminalEmulator terminal, int from, int to) {
+		StringBuilder builder = new StringBuilder();
+		for (int i = from; i < to; i++) {
+			builder.append("line ").append(i);
+			for (int word = 0; word < i % 7; word++) builder.append(" \033[3").append(word).append("mword").append(word);
+			builder.append("\033[0m").append(i % 11 == 0 ? "\r\n\r\n" : "\r\n");
+		}
+		byte[] bytes = builder.toString().getBytes(StandardCharsets.UTF_8);
+		terminal.append(bytes, bytes.length);
+	}
+
+	/** Assert that the rows from the specified external row to the end of the screen have the same text and styles. */
+	static void assertSameRows(TerminalEmulator expected, TerminalEmulator actual, int fromRow) {
+		int columns = actual.mColumns;
+		TerminalRow expectedRow = new TerminalRow(columns, TextStyle.NORMAL);
+		TerminalRow actualRow = new TerminalRow(columns, TextStyle.NORMAL);
+		for (int row = fromRow; row < actual.mRows; row++) {
+			expected.getScreen().copyRow(row, expectedRow);
+			actual.getScreen().copyRow(row, actualRow);
+			assertEquals("row " + row, new String(expectedRow.mText, 0, expectedRow.getSpaceUsed()),
+				new String(actualRow.mText, 0, actualRow.getSpaceUsed()));
+			assertEquals("line wrap of row " + row, expectedRow.mLineWrap, actualRow.mLineWrap);
+			for (int column = 0; column < columns; column++)
+				assertEquals("style of row " + row + ", column " + column, expectedRow.getStyle(column), actualRow.getStyle(column));
+		}
+	}
+
 }
@@ -0,0 +1,57 @@
+package com.termux.terminal;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Times output scrolling a region above a status line, as kept by tmux or screen, for screens of increasing height, so
+ * that the cost per scrolled line shows if it grows with the height of the region. This is not a unit test, as the
+ * timings depend on the machine and its load, so run its main method from the test classpath instead.
+ */
+public final class ScrollRegionBenchmark {
+
+	private static final int COLUMNS = 80;
+	private static final int ROUNDS = 5;
+	/** The lines scrolled by each round. */
+	private static final int LINES = 20_000;
+
+	public static void main(String[] args) {
+		final int[] heights = {24, 100, 500};
+		// Warm up with all heights before measuring any of them:
+		for (int rows : heights) time(rows);
+		for (int rows : heights) {
+			long nanos = time(rows);
+			System.out.println(String.format("%3d rows: %6.0f ns per scrolled line", rows, (double) nanos / LINES));
+		}
+	}
+
+	/** Get the least nanos taken by a round of the workload on a screen with the specified number of rows. */
+	private static long time(int rows) {
+		byte[] data = statusLineWorkload(rows);
+		TerminalEmulator terminal = new TerminalEmulator(new TerminalTestCase.MockTerminalOutput(), COLUMNS, rows,
+			TerminalTestCase.INITIAL_CELL_WIDTH_PIXELS, TerminalTestCase.INITIAL_CELL_HEIGHT_PIXELS, 1000, null);
+		long nanos = Long.MAX_VALUE;
+		for (int round = 0; round < ROUNDS; round++) {
+			long start = System.nanoTime();
+			terminal.append(data, data.length);
+			nanos = Math.min(nanos, System.nanoTime() - start);
+		}
+		if (!terminal.getScreen().getSelectedText(0, rows - 1, COLUMNS - 1, rows - 1).trim().equals("status " + (LINES - 1)))
+			throw new AssertionError("Unexpected status line");
+		return nanos;
+	}
+
+	/**
+	 * Output for a scroll region above a status line on the last row, which scrolls the region up a line at a time and
+	 * updates the status line after each line, with some lines inserted and deleted in the region and reverse indexes.
+	 */
+	private static byte[] statusLineWorkload(int rows) {
+		StringBuilder output = new StringBuilder("\033[1;" + (rows - 1) + "r");
+		for (int i = 0; i < LINES; i++) {
+			output.append("\033[").append(rows - 1).append(";1H\r\noutput line ").append(i);
+			output.append("\033[").append(rows).append(";1H\033[7mstatus ").append(i).append("\033[27m");
+			if (i % 100 == 0) output.append("\033[5;1H\033[3L\033[10;1H\033[2M\033[1;1H\033M\033M");
+		}
+		return output.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+}
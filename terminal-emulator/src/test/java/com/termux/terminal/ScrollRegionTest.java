@@ -164,4 +164,55 @@ public class ScrollRegionTest extends TerminalTestCase {
 		}
 	}
 
+	public void testInsertAndDeleteLinesKeepStyleAndWrap() {
+		withTerminalSized(3, 5).enterString("AAABBBCCCDDDEEE");
+		// Insert blank lines with a background color below the first row, and check they are cleared with it:
+		enterString("\033[2;1H\033[41m\033[2L").assertLinesAre("AAA", "   ", "   ", "BBB", "CCC");
+		assertBackgroundColorAt(1, 2, 1);
+		assertBackgroundColorAt(3, 0, TextStyle.COLOR_INDEX_BACKGROUND);
+		assertFalse(mTerminal.getScreen().getLineWrap(1));
+		// Rows wrapped by the initial output keep their wrap flag when moved:
+		assertTrue(mTerminal.getScreen().getLineWrap(3));
+		enterString("\033[49m\033[3M").assertLinesAre("AAA", "CCC", "   ", "   ", "   ");
+		assertTrue(mTerminal.getScreen().getLineWrap(1));
+		assertFalse(mTerminal.getScreen().getLineWrap(4));
+		// Reverse index at the top margin of a region:
+		enterString("\033[2;4r\033[2;1HXYZ\033[2;1H\033M").assertLinesAre("AAA", "   ", "XYZ", "   ", "   ");
+		enterString("\033[2T").assertLinesAre("AAA", "   ", "   ", "   ", "   ");
+	}
+
+	public void testFixedRowsStayInPlace() {
+		// Fixed rows above and below a scroll region, as the status lines kept by tmux or screen:
+		withTerminalSized(3, 5).enterString("AAA\033[5;1HEEE\033[2;4r\033[2;1H111\r\n222\r\n333");
+		enterString("\r\n444\r\n555\r\n666\r\n777").assertLinesAre("AAA", "555", "666", "777", "EEE");
+		assertHistoryStartsWith("444", "333", "222", "111");
+		// Reverse index and inserted and deleted lines move the region in between:
+		enterString("\033[2;1H\033M").assertLinesAre("AAA", "   ", "555", "666", "EEE");
+		enterString("\033[3;1H\033[L").assertLinesAre("AAA", "   ", "   ", "555", "EEE");
+		enterString("\033[2;1H\033[2M").assertLinesAre("AAA", "555", "   ", "   ", "EEE");
+		enterString("\033[4;1H\r\n888").assertLinesAre("AAA", "   ", "   ", "888", "EEE");
+		assertHistoryStartsWith("555", "444");
+		// The fixed rows can still be written to, and stay in place when resizing:
+		enterString("\033[1;1HBBB\033[5;1HFFF").assertLinesAre("BBB", "   ", "   ", "888", "FFF");
+		resize(3, 6).assertLinesAre("555", "BBB", "   ", "   ", "888", "FFF");
+		enterString("\033[r\033[6;1H\r\n999").assertLinesAre("BBB", "   ", "   ", "888", "FFF", "999");
+	}
+
+	public void testStatusLineWorkload() {
+		// A status line at the bottom and a scrolling region above it with output which scrolls it up line by line,
+		// inserts and deletes lines and scrolls it down with reverse index:
+		withTerminalSized(20, 6).enterString("\033[1;5r");
+		for (int i = 0; i < 50; i++) {
+			enterString("\033[5;1H");
+			for (int line = 0; line < 7; line++) enterString("\r\nline " + i + " " + line);
+			enterString("\033[6;1H\033[7mstatus " + i + "\033[27m");
+			enterString("\033[2;1H\033[2L\033[4;1H\033[M\033[1;1H\033M");
+		}
+		assertLinesAre("                    ", "line 49 2           ", "                    ", "                    ",
+			"line 49 4           ", "status 49           ");
+		assertHistoryStartsWith("line 49 1           ", "line 49 0           ", "line 48 4           ",
+			"                    ", "                    ", "line 48 2           ", "                    ");
+		assertEquals(TextStyle.CHARACTER_ATTRIBUTE_INVERSE, TextStyle.decodeEffect(mTerminal.getScreen().getStyleAt(5, 0)));
+	}
+
 }
@@ -0,0 +1,65 @@
+package com.termux.terminal;
+
+import junit.framework.TestCase;
+
+public class SelectedTextExtractorTest extends TestCase {
+
+	private static TerminalEmulator terminalWithHistory() {
+		return ResizeTest.terminalWithHistory(20, 10, 3000, 2000, true);
+	}
+
+	public void testExtractSameAsSelectedText() {
+		TerminalEmulator terminal = terminalWithHistory();
+		int firstRow = -terminal.getScreen().getActiveTranscriptRows();
+		for (int[] selection : new int[][]{{3, firstRow, 7, 5}, {0, -100, 19, -100}, {5, -2000, 2, -3}, {0, 0, 0, 0}}) {
+			String expected = terminal.getSelectedText(selection[0], selection[1], selection[2], selection[3]);
+			SelectedTextExtractor extractor = new SelectedTextExtractor(terminal, selection[0], selection[1], selection[2], selection[3]);
+			assertEquals(selection[3] - selection[1] + 1, extractor.getRows());
+			assertEquals(expected, extractor.extract());
+		}
+	}
+
+	public void testExtractWhileScrolling() throws Exception {
+		TerminalEmulator terminal = terminalWithHistory();
+		String expected = terminal.getSelectedText(2, -1500, 4, 2);
+		SelectedTextExtractor extractor = new SelectedTextExtractor(terminal, 2, -1500, 4, 2);
+
+		// Output continues while the text is extracted:
+		StringBuilder actual = new StringBuilder();
+		final int[] progress = new int[1];
+		assertTrue(extractor.extract(actual, (extractedRows, rows) -> {
+			assertTrue(extractedRows > progress[0]);
+			assertEquals(extractor.getRows(), rows);
+			progress[0] = extractedRows;
+			ResizeTest.appendLines(terminal, 2000, 2010);
+		}));
+		assertEquals(extractor.getRows(), progress[0]);
+		assertEquals(expected, actual.toString());
+	}
+
+	public void testExtractAfterResize() throws Exception {
+		TerminalEmulator terminal = terminalWithHistory();
+		SelectedTextExtractor extractor = new SelectedTextExtractor(terminal, 0, -1500, 4, 2);
+		assertFalse(extractor.extract(new StringBuilder(), (extractedRows, rows) ->
+			terminal.resize(30, 10, TerminalTestCase.INITIAL_CELL_WIDTH_PIXELS, TerminalTestCase.INITIAL_CELL_HEIGHT_PIXELS)));
+		assertNull(extractor.extract());
+	}
+
+	public void testExtractRowsScrolledOut() {
+		TerminalEmulator terminal = ResizeTest.terminalWithHistory(20, 10, 100, 2000, true);
+		SelectedTextExtractor extractor = new SelectedTextExtractor(terminal, 0, -50, 4, 2);
+		ResizeTest.appendLines(terminal, 2000, 2100);
+		assertNull(extractor.extract());
+	}
+
+	public void testCancel() throws Exception {
+		TerminalEmulator terminal = terminalWithHistory();
+		SelectedTextExtractor extractor = new SelectedTextExtractor(terminal, 0, -1500, 4, 2);
+		StringBuilder actual = new StringBuilder();
+		assertFalse(extractor.extract(actual, (extractedRows, rows) -> extractor.cancel()));
+		assertTrue(extractor.isCancelled());
+		assertTrue(actual.length() > 0);
+		assertTrue(actual.length() < terminal.getSelectedText(0, -1500, 4, 2).length());
+	}
+
+}
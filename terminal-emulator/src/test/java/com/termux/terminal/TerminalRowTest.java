@@ -429,4 +429,128 @@ public class TerminalRowTest extends TestCase {
 		// assertEquals(' ', line.mText[line.findStartOfColumn(COLUMNS - 1)]);
 	}
 
+	public void testCompactAndInflate() {
+		long style = TextStyle.encode(1, 2, TextStyle.CHARACTER_ATTRIBUTE_BOLD);
+		row.setChar(0, 'a', style);
+		row.setChar(1, 'b', style);
+		row.setChar(5, 'c', 0);
+		row.mLineWrap = true;
+		TerminalRow expected = new TerminalRow(COLUMNS, TextStyle.NORMAL);
+		expected.copyFrom(row);
+
+		row.compact(null);
+		assertTrue(row.isCompact());
+		assertNull(row.mText);
+		assertFalse(row.isBlank());
+
+		TerminalRow decoded = new TerminalRow(COLUMNS, TextStyle.NORMAL);
+		decoded.copyFrom(row);
+		assertRowsEqual(expected, decoded);
+		assertTrue(row.isCompact());
+
+		row.inflate(null);
+		assertFalse(row.isCompact());
+		assertRowsEqual(expected, row);
+	}
+
+	public void testCompactNonAscii() {
+		row.setChar(0, ONE_JAVA_CHAR_DISPLAY_WIDTH_TWO_1, 0);
+		row.setChar(2, TWO_JAVA_CHARS_DISPLAY_WIDTH_ONE_1, 0);
+		row.setChar(3, 'ö', 0);
+		TerminalRow expected = new TerminalRow(COLUMNS, TextStyle.NORMAL);
+		expected.copyFrom(row);
+
+		row.compact(null);
+		row.inflate(null);
+		assertRowsEqual(expected, row);
+		assertLineStartsWith(ONE_JAVA_CHAR_DISPLAY_WIDTH_TWO_1, TWO_JAVA_CHARS_DISPLAY_WIDTH_ONE_1, 'ö', ' ');
+	}
+
+	public void testCompactBlank() {
+		row.compact(null);
+		assertTrue(row.isBlank());
+		row.clear(TextStyle.NORMAL);
+		assertFalse(row.isCompact());
+		assertTrue(row.isBlank());
+	}
+
+	public void testCompactReleasesArraysToPool() {
+		TerminalRowPool pool = new TerminalRowPool(COLUMNS);
+		row.setChar(0, 'a', 0);
+		// Make the text array grow, which should be kept by the pool:
+		for (int i = 0; i < COLUMNS; i++)
+			row.setChar(i, TWO_JAVA_CHARS_DISPLAY_WIDTH_ONE_1, 0);
+		char[] text = row.mText;
+		long[] style = row.mStyle;
+		assertTrue(text.length > 2 * COLUMNS);
+		row.compact(pool);
+		assertEquals(1, pool.size());
+
+		TerminalRow recipient = new TerminalRow(COLUMNS, TextStyle.NORMAL);
+		recipient.compact(null);
+		recipient.clear(TextStyle.NORMAL, pool);
+		assertSame(text, recipient.mText);
+		assertSame(style, recipient.mStyle);
+		assertTrue(recipient.isBlank());
+		assertEquals(0, pool.size());
+
+		// Arrays of rows with a different number of columns are not kept:
+		new TerminalRow(COLUMNS + 1, TextStyle.NORMAL).compact(pool);
+		assertEquals(0, pool.size());
+
+		// A row being inflated only takes arrays with room for its text:
+		new TerminalRow(COLUMNS, TextStyle.NORMAL).compact(pool);
+		row.inflate(pool);
+		assertEquals(1, pool.size());
+		assertNotSame(text, row.mText);
+		assertEquals(TWO_JAVA_CHARS_DISPLAY_WIDTH_ONE_1, Character.codePointAt(row.mText, 2 * (COLUMNS - 1)));
+		TerminalRow newRow = new TerminalRow(COLUMNS, TextStyle.NORMAL, pool);
+		assertTrue(newRow.isBlank());
+		assertEquals(0, pool.size());
+	}
+
+	public void testStyleRuns() {
+		long bold = TextStyle.encode(1, 2, TextStyle.CHARACTER_ATTRIBUTE_BOLD);
+		assertStyleRuns(row, TextStyle.NORMAL, COLUMNS);
+
+		row.setChar(0, 'a', bold);
+		row.setChar(1, 'b', bold);
+		assertStyleRuns(row, bold, 2, TextStyle.NORMAL, COLUMNS);
+
+		row.setAsciiChars(COLUMNS - 3, new byte[]{'x', 'y', 'z'}, 0, 3, bold);
+		assertStyleRuns(row, bold, 2, TextStyle.NORMAL, COLUMNS - 3, bold, COLUMNS);
+
+		row.setStyle(1, TextStyle.NORMAL);
+		assertStyleRuns(row, bold, 1, TextStyle.NORMAL, COLUMNS - 3, bold, COLUMNS);
+
+		// The runs are kept when compacting, inflating and copying the row:
+		row.compact(null);
+		assertStyleRuns(row, bold, 1, TextStyle.NORMAL, COLUMNS - 3, bold, COLUMNS);
+		TerminalRow copy = new TerminalRow(COLUMNS, TextStyle.NORMAL);
+		copy.copyFrom(row);
+		assertStyleRuns(copy, bold, 1, TextStyle.NORMAL, COLUMNS - 3, bold, COLUMNS);
+		row.inflate(null);
+		assertStyleRuns(row, bold, 1, TextStyle.NORMAL, COLUMNS - 3, bold, COLUMNS);
+
+		row.clear(bold);
+		assertStyleRuns(row, bold, COLUMNS);
+		assertStyleRuns(copy, bold, 1, TextStyle.NORMAL, COLUMNS - 3, bold, COLUMNS);
+	}
+
+	/** Assert the style runs of a row, specified as pairs of style and end column. */
+	private static void assertStyleRuns(TerminalRow row, long... stylesAndEnds) {
+		assertEquals(stylesAndEnds.length / 2, row.getStyleRunCount());
+		for (int run = 0; run < row.getStyleRunCount(); run++) {
+			assertEquals("style of run " + run, stylesAndEnds[2 * run], row.getStyleRunStyle(run));
+			assertEquals("end of run " + run, stylesAndEnds[2 * run + 1], row.getStyleRunEnd(run));
+		}
+	}
+
+	private static void assertRowsEqual(TerminalRow expected, TerminalRow actual) {
+		assertEquals(expected.getSpaceUsed(), actual.getSpaceUsed());
+		assertEquals(new String(expected.mText, 0, expected.getSpaceUsed()), new String(actual.mText, 0, actual.getSpaceUsed()));
+		assertTrue(Arrays.equals(expected.mStyle, actual.mStyle));
+		assertEquals(expected.mLineWrap, actual.mLineWrap);
+	}
+
 }
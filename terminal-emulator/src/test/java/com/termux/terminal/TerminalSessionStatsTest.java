@@ -0,0 +1,58 @@
+package com.termux.terminal;
+
+import junit.framework.TestCase;
+
+public class TerminalSessionStatsTest extends TestCase {
+
+	public void testCounters() {
+		TerminalSessionStats stats = new TerminalSessionStats(4096, 100);
+		stats.onRead(3000);
+		stats.onRead(1096);
+		stats.onDrained(4096, 2_000_000);
+		stats.onDrained(1024, 1_000_000);
+		stats.onGlyphWidthCacheHitRatio(0.75f);
+		stats.onFrameRendered(0, 4_000_000);
+
+		TerminalSessionStats.Sample sample = stats.sample(2048, 150);
+		assertEquals(4096, sample.mBytesRead);
+		assertEquals(2, sample.mDrains);
+		assertEquals(5120, sample.mDrainQueuedBytes);
+		assertEquals(3_000_000, sample.mParseNanos);
+		assertEquals(1, sample.mFrames);
+		assertEquals(0, sample.mEchoes);
+
+		String description = sample.describeSince(stats.getStartSample());
+		assertTrue(description, description.contains("queue 50%, 62% per drain\n"));
+		assertTrue(description, description.contains("parse 1.50 ms per drain"));
+		assertTrue(description, description.contains("render 4.00 ms per frame"));
+		assertTrue(description, description.contains("glyph widths 75.0% cached\n"));
+		assertTrue(description, description.endsWith("echo -, 0 keystrokes"));
+
+		// Nothing happened since:
+		description = stats.sample(0, 150).describeSince(sample);
+		assertTrue(description, description.startsWith("read 0.0 KiB/s\nqueue 0%, - per drain\nparse - per drain"));
+		assertTrue(description, description.contains("scroll 0.0 rows/s"));
+	}
+
+	public void testEchoLatency() {
+		TerminalSessionStats stats = new TerminalSessionStats(4096, 0);
+		stats.onKeystroke(1_000_000);
+		// Frames before the echo is parsed do not end the measurement, nor do later keystrokes start a new one:
+		stats.onFrameRendered(2_000_000, 3_000_000);
+		stats.onKeystroke(4_000_000);
+		stats.onDrained(1, 0);
+		stats.onFrameRendered(5_000_000, 6_000_000);
+		// Output without a keystroke is not an echo:
+		stats.onDrained(1, 0);
+		stats.onFrameRendered(7_000_000, 8_000_000);
+		stats.onKeystroke(10_000_000);
+		stats.onDrained(1, 0);
+		stats.onFrameRendered(12_000_000, 13_000_000);
+
+		TerminalSessionStats.Sample sample = stats.sample(0, 0);
+		assertEquals(2, sample.mEchoes);
+		assertEquals(5_000_000 + 3_000_000, sample.mEchoNanos);
+		assertTrue(sample.describeSince(stats.getStartSample()).endsWith("echo 4.00 ms, 2 keystrokes"));
+	}
+
+}
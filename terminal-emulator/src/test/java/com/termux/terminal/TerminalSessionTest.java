@@ -0,0 +1,48 @@
+package com.termux.terminal;
+
+import junit.framework.TestCase;
+
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+
+public class TerminalSessionTest extends TestCase {
+
+	/** Output still queued when the process exits is parsed before the queue is closed, not dropped. */
+	public void testFinishParsingInBackgroundDrainsQueuedOutput() throws Exception {
+		TerminalSessionClient client = (TerminalSessionClient) Proxy.newProxyInstance(getClass().getClassLoader(),
+			new Class<?>[]{TerminalSessionClient.class}, (proxy, method, args) -> null);
+		final TerminalSession session = new TerminalSession("/bin/sh", "/", new String[0], new String[0], 1000, client);
+		session.setParseInBackground(true);
+		TerminalEmulator emulator = new TerminalEmulator(session, 20, 5, 10, 20, 1000, client);
+		session.mEmulator = emulator;
+		session.startParserThread();
+
+		StringBuilder expected = new StringBuilder("first\n");
+		Thread finisher = new Thread(session::finishParsing);
+		synchronized (emulator) {
+			// The parser thread reads this and then waits for the emulator:
+			write(session, "first\r\n");
+			while (session.mProcessToTerminalIOQueue.available() > 0) Thread.sleep(1);
+
+			StringBuilder queued = new StringBuilder();
+			for (int i = 0; queued.length() < 4000; i++) {
+				queued.append("line ").append(i).append("\r\n");
+				expected.append("line ").append(i).append('\n');
+			}
+			write(session, queued.toString());
+
+			finisher.start();
+			while (finisher.getState() != Thread.State.WAITING) Thread.sleep(1);
+		}
+		finisher.join();
+
+		assertEquals(0, session.mProcessToTerminalIOQueue.available());
+		assertEquals(expected.toString().trim(), emulator.getScreen().getTranscriptText());
+	}
+
+	private static void write(TerminalSession session, String text) {
+		byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+		assertTrue(session.mProcessToTerminalIOQueue.write(bytes, 0, bytes.length));
+	}
+
+}
@@ -0,0 +1,91 @@
+package com.termux.terminal;
+
+import java.util.Random;
+
+public class TerminalSnapshotTest extends TerminalTestCase {
+
+	private final TerminalSnapshot mSnapshot = new TerminalSnapshot();
+
+	/** Update the snapshot and assert that it has the same rows as a new one. */
+	private void updateAndAssertRows(int topRow) {
+		mSnapshot.update(mTerminal, topRow);
+		TerminalSnapshot expected = new TerminalSnapshot();
+		expected.update(mTerminal, topRow);
+		assertTrue(expected.mAllRowsChanged);
+		for (int row = topRow; row < topRow + mTerminal.mRows; row++) {
+			TerminalRow expectedRow = expected.getRow(row), actualRow = mSnapshot.getRow(row);
+			assertEquals("row " + row, new String(expectedRow.mText, 0, expectedRow.getSpaceUsed()),
+				new String(actualRow.mText, 0, actualRow.getSpaceUsed()));
+			for (int column = 0; column < mTerminal.mColumns; column++)
+				assertEquals("row " + row + ", column " + column, expectedRow.getStyle(column), actualRow.getStyle(column));
+		}
+	}
+
+	private void assertChangedRows(int... rows) {
+		StringBuilder expected = new StringBuilder(), actual = new StringBuilder();
+		for (int row : rows) expected.append(row).append(' ');
+		for (int row = mSnapshot.mTopRow; row < mSnapshot.mTopRow + mSnapshot.mRows; row++)
+			if (mSnapshot.isRowChanged(row)) actual.append(row).append(' ');
+		assertEquals(expected.toString(), actual.toString());
+	}
+
+	public void testOnlyChangedRowsAreCopied() {
+		withTerminalSized(5, 4).enterString("a\r\nb");
+		updateAndAssertRows(0);
+		assertTrue(mSnapshot.mAllRowsChanged);
+
+		enterString("c");
+		updateAndAssertRows(0);
+		assertFalse(mSnapshot.mAllRowsChanged);
+		assertChangedRows(1);
+
+		// The cursor moving redraws the row it was in:
+		enterString("\r\n\r\nd");
+		updateAndAssertRows(0);
+		assertChangedRows(1, 3);
+
+		updateAndAssertRows(0);
+		assertChangedRows();
+	}
+
+	public void testScrolledRowsAreMoved() {
+		withTerminalSized(5, 4).enterString("a\r\nb\r\nc\r\nd");
+		updateAndAssertRows(0);
+		enterString("\r\ne\r\nf");
+		updateAndAssertRows(0);
+		assertEquals(2, mSnapshot.mShiftedRows);
+		assertChangedRows(1, 2, 3);
+
+		// Scrolling the view back moves the rows down:
+		updateAndAssertRows(-1);
+		assertEquals(-1, mSnapshot.mShiftedRows);
+		assertChangedRows(-1);
+		updateAndAssertRows(0);
+		assertEquals(1, mSnapshot.mShiftedRows);
+	}
+
+	public void testScrollRegion() {
+		withTerminalSized(3, 5).enterString("111222333444555");
+		updateAndAssertRows(0);
+		// Scroll the middle three rows:
+		enterString("\033[2;4r\033[4;1H\nXYZ");
+		updateAndAssertRows(0);
+		updateAndAssertRows(-1);
+		enterString("\033[r\033[5;1H\n\n");
+		updateAndAssertRows(0);
+	}
+
+	public void testRandomOutput() {
+		withTerminalSized(7, 5);
+		Random random = new Random(14);
+		String[] outputs = {"abc", "\r\n", "\033[31mxyz\033[0m", "\033[2J", "\033[H", "\033[2;4r", "\033[1;4r", "\033[2;5r", "\033[r", "\033M", "\033[1;3H",
+			"\033[?1049h", "\033[?1049l", "\033[5m", "\033[?5h", "\033[?5l", "果", "\033[3J", "\033[2L", "\033[M", "\033[1P", "\033[?25l", "\033[?25h"};
+		for (int i = 0; i < 2000; i++) {
+			enterString(outputs[random.nextInt(outputs.length)]);
+			if (random.nextInt(20) == 0) resize(5 + random.nextInt(5), 3 + random.nextInt(4));
+			int transcriptRows = mTerminal.getScreen().getActiveTranscriptRows();
+			updateAndAssertRows(random.nextInt(4) == 0 ? -random.nextInt(transcriptRows + 1) : 0);
+		}
+	}
+
+}
@@ -1,6 +1,8 @@
 package com.termux.terminal;
 
 import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
 
 public class TerminalTest extends TerminalTestCase {
 
@@ -347,4 +349,55 @@ public class TerminalTest extends TerminalTestCase {
 		withTerminalSized(11, 2).enterString("01234567890\033[44m\r\tXX").assertLinesAre("01234567XX0", "           ");
 	}
 
+
+	public void testAsciiRuns() {
+		// Runs of plain text are written to rows in one go, make sure wrapping and margins are respected:
+		withTerminalSized(5, 2).enterString("abcdefghijkl").assertLinesAre("fghij", "kl   ").assertCursorAt(1, 2);
+		assertHistoryStartsWith("abcde");
+		withTerminalSized(5, 3).enterString("\033[?7labcdefgh").assertLinesAre("abcdh", "     ", "     ").assertCursorAt(0, 4);
+		withTerminalSized(5, 3).enterString("\033[?69h\033[2;4s\033[1;2Habcdefg").assertLinesAre(" abc ", " def ", " g   ");
+		withTerminalSized(5, 2).enterString("abcde\r\033[4hXY").assertLinesAre("XYabc", "     ").assertCursorAt(0, 2);
+		withTerminalSized(5, 2).enterString("\033[31mab\033[0mcd");
+		assertForegroundColorAt(0, 1, 1);
+		assertForegroundColorAt(0, 2, TextStyle.COLOR_INDEX_FOREGROUND);
+	}
+
+	/** Check that appending bytes in bulk gives the same result as processing one code point at a time. */
+	public void testAsciiRunsMatchCodePointProcessing() {
+		String[] sequences = {"\r", "\n", "\b", "\t", "\033[H", "\033[3;4H", "\033[2;5r", "\033[r", "\033[?69h\033[3;7s", "\033[?69l",
+			"\033[?7l", "\033[?7h", "\033[1;32m", "\033[0m", "\033)0\016", "\017", "\033[2b", "\033[5G", "\033[K"};
+		Random random = new Random(1234);
+		for (int iteration = 0; iteration < 200; iteration++) {
+			StringBuilder input = new StringBuilder();
+			for (int i = 0; i < 40; i++) {
+				if (random.nextInt(3) == 0) {
+					input.append(sequences[random.nextInt(sequences.length)]);
+				} else {
+					int runLength = random.nextInt(30);
+					for (int j = 0; j < runLength; j++)
+						input.append((char) (32 + random.nextInt(95)));
+				}
+			}
+			byte[] bytes = input.toString().getBytes(StandardCharsets.US_ASCII);
+
+			withTerminalSized(9, 5);
+			for (byte b : bytes)
+				mTerminal.processCodePoint(b);
+			TerminalEmulator expected = mTerminal;
+
+			withTerminalSized(9, 5).enterString(input.toString());
+			assertEquals(expected.getCursorRow(), mTerminal.getCursorRow());
+			assertEquals(expected.getCursorCol(), mTerminal.getCursorCol());
+			TerminalBuffer expectedScreen = expected.getScreen();
+			TerminalBuffer actualScreen = mTerminal.getScreen();
+			assertEquals(expectedScreen.getActiveTranscriptRows(), actualScreen.getActiveTranscriptRows());
+			for (int row = -actualScreen.getActiveTranscriptRows(); row < actualScreen.mScreenRows; row++) {
+				assertEquals(expectedScreen.getSelectedText(0, row, 9, row), actualScreen.getSelectedText(0, row, 9, row));
+				assertEquals(expectedScreen.getLineWrap(row), actualScreen.getLineWrap(row));
+				for (int column = 0; column < 9; column++)
+					assertEquals(expectedScreen.getStyleAt(row, column), actualScreen.getStyleAt(row, column));
+			}
+		}
+	}
+
 }
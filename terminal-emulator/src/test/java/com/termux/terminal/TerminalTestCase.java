@@ -149,8 +149,13 @@ public abstract class TerminalTestCase extends TestCase {
 		for (int i = 0; i < lines.length; i++) {
 			if (lines[i] == null) continue;
 			assertTrue("Line exists at multiple places: " + i, linesSet.add(new LineWrapper(lines[i])));
-			char[] text = lines[i].mText;
-			int usedChars = lines[i].getSpaceUsed();
+			TerminalRow line = lines[i];
+			if (line.isCompact()) {
+				line = new TerminalRow(screen.mColumns, TextStyle.NORMAL);
+				line.copyFrom(lines[i]);
+			}
+			char[] text = line.mText;
+			int usedChars = line.getSpaceUsed();
 			int currentColumn = 0;
 			for (int j = 0; j < usedChars; j++) {
 				char c = text[j];
@@ -168,7 +173,7 @@ public abstract class TerminalTestCase extends TestCase {
 				assertFalse("The first column should not start with combining character", currentColumn == 0 && width < 0);
 				if (width > 0) currentColumn += width;
 			}
-			assertEquals("Line whose width does not match screens. line=" + new String(lines[i].mText, 0, lines[i].getSpaceUsed()),
+			assertEquals("Line whose width does not match screens. line=" + new String(text, 0, usedChars),
 					screen.mColumns, currentColumn);
 		}
 
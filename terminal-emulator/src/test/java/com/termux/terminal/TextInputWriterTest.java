@@ -0,0 +1,137 @@
+package com.termux.terminal;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+public class TextInputWriterTest extends TestCase {
+
+	private LockFreeByteQueue mQueue;
+	private TextInputWriter mWriter;
+	private Thread mWriterThread;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mQueue = new LockFreeByteQueue(TextInputWriter.CHUNK_SIZE);
+		mWriter = new TextInputWriter(mQueue);
+		mWriterThread = new Thread(mWriter);
+		mWriterThread.start();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mWriter.close();
+		mQueue.close();
+		mWriterThread.join(5000);
+		assertFalse(mWriterThread.isAlive());
+		super.tearDown();
+	}
+
+	/** Read the specified number of bytes from the queue, as the process would. */
+	private byte[] read(int count) {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		while (output.size() < count) {
+			byte[] buffer = new byte[Math.min(1000, count - output.size())];
+			int read = mQueue.read(buffer, true);
+			assertTrue(read > 0);
+			output.write(buffer, 0, read);
+		}
+		assertEquals(count, output.size());
+		return output.toByteArray();
+	}
+
+	/** Text of many chunks with characters which need to be removed or replaced and characters of all UTF-8 lengths. */
+	private static String randomText(int length) {
+		final String characters = "abc \r\n\033\u0085å果😀\uDE00\uD83D";
+		Random random = new Random(1234);
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < length; i++) text.append(characters.charAt(random.nextInt(characters.length())));
+		return text.toString();
+	}
+
+	public void testWriteText() {
+		String text = randomText(100_000);
+		byte[] expected = text.getBytes(StandardCharsets.UTF_8);
+		mWriter.addText(text, false, false);
+		assertEquals(new String(expected, StandardCharsets.UTF_8), new String(read(expected.length), StandardCharsets.UTF_8));
+	}
+
+	public void testPasteIsWrittenAsByTerminalOutput() {
+		String text = randomText(100_000) + "\r\n\n\r\r\n";
+		TerminalTestCase.MockTerminalOutput output = new TerminalTestCase.MockTerminalOutput();
+		for (boolean bracketed : new boolean[]{false, true}) {
+			output.paste(text, bracketed);
+			byte[] expected = output.getOutputAndClear().getBytes(StandardCharsets.UTF_8);
+			mWriter.addText(text, true, bracketed);
+			assertEquals(new String(expected, StandardCharsets.UTF_8), new String(read(expected.length), StandardCharsets.UTF_8));
+		}
+	}
+
+	public void testInputIsWrittenAfterText() throws Exception {
+		byte[] input = {'x', 'y', 'z'};
+		assertFalse("Input should be written directly when no text is being written", mWriter.addBytesIfBusy(input, 0, 3));
+
+		// The text does not fit in the queue, so it is still being written until it is read:
+		String text = randomText(10 * TextInputWriter.CHUNK_SIZE);
+		byte[] expected = text.getBytes(StandardCharsets.UTF_8);
+		mWriter.addText(text, false, false);
+		assertTrue(mWriter.addBytesIfBusy(input, 1, 2));
+		assertEquals(new String(expected, StandardCharsets.UTF_8) + "yz", new String(read(expected.length + 2), StandardCharsets.UTF_8));
+
+		// Wait for the writer to become idle after having written all the input:
+		long deadline = System.currentTimeMillis() + 5000;
+		while (mWriter.addBytesIfBusy(input, 0, 1)) {
+			assertEquals('x', read(1)[0]);
+			assertTrue(System.currentTimeMillis() < deadline);
+			Thread.sleep(1);
+		}
+	}
+
+	public void testCancelDropsText() {
+		String text = randomText(10 * TextInputWriter.CHUNK_SIZE);
+		mWriter.addText(text, true, true);
+		mWriter.addText("dropped", true, true);
+		// Wait for the writer to be writing the text before cancelling it, with input queued behind it:
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		output.write(read(1)[0]);
+		assertTrue(mWriter.addBytesIfBusy(new byte[]{3}, 0, 1));
+		mWriter.cancelText();
+
+		// The paste is cut short but still ended, and the input queued behind it is written right after it:
+		byte[] buffer = new byte[TextInputWriter.CHUNK_SIZE];
+		while (output.size() == 0 || output.toByteArray()[output.size() - 1] != 3) {
+			int read = mQueue.read(buffer, true);
+			output.write(buffer, 0, read);
+			assertTrue(output.size() < text.length());
+		}
+		String written = new String(output.toByteArray(), StandardCharsets.UTF_8);
+		assertTrue(written.startsWith("\033[200~"));
+		assertTrue(written.endsWith("\033[201~\003"));
+		assertFalse(written.contains("dropped"));
+	}
+
+	public void testCloseDropsText() throws Exception {
+		String text = randomText(10 * TextInputWriter.CHUNK_SIZE);
+		mWriter.addText(text, false, false);
+		mWriter.addText("not written", false, false);
+		// Wait for the writer to be writing the text before closing it:
+		int readBytes = read(1).length;
+		mWriter.close();
+
+		// The writer may be blocked on the full queue, so keep making room in it until it notices that it has been closed:
+		byte[] buffer = new byte[TextInputWriter.CHUNK_SIZE];
+		long deadline = System.currentTimeMillis() + 5000;
+		while (mWriterThread.isAlive()) {
+			readBytes += Math.max(0, mQueue.read(buffer, false));
+			assertTrue(System.currentTimeMillis() < deadline);
+			Thread.sleep(1);
+		}
+		readBytes += Math.max(0, mQueue.read(buffer, false));
+		assertTrue(readBytes < text.getBytes(StandardCharsets.UTF_8).length);
+		assertFalse(mWriter.addBytesIfBusy(new byte[]{'a'}, 0, 1));
+	}
+
+}
@@ -0,0 +1,192 @@
+package com.termux.terminal;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+public class TranscriptFileTest extends TestCase {
+
+	private File mDirectory;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mDirectory = Files.createTempDirectory("transcript-test").toFile();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		assertEquals("Segment files should be deleted once mapped", 0, mDirectory.list().length);
+		assertTrue(mDirectory.delete());
+		super.tearDown();
+	}
+
+	/** Create a buffer with one row of in-memory history which keeps evicted rows in a transcript file. */
+	private TerminalBuffer createBuffer(int columns, long maxSize) {
+		TerminalBuffer buffer = new TerminalBuffer(columns, 3, 2);
+		buffer.setTranscriptFile(new TranscriptFile(mDirectory, maxSize));
+		return buffer;
+	}
+
+	/** Output a line at the bottom of the buffer, scrolling it first unless it is one of the first two lines. */
+	private static void outputLine(TerminalBuffer buffer, int lineNumber, String text, long style) {
+		if (lineNumber >= 2) buffer.scrollDownOneLine(0, 2, TextStyle.NORMAL);
+		for (int column = 0; column < text.length(); column++)
+			buffer.setChar(column, Math.min(lineNumber, 1), text.charAt(column), style);
+	}
+
+	public void testEvictedRowsAreKept() {
+		TerminalBuffer buffer = createBuffer(4, 1024);
+		for (int i = 0; i < 6; i++)
+			outputLine(buffer, i, "row" + i, TextStyle.encode(i, TextStyle.COLOR_INDEX_BACKGROUND, 0));
+		assertEquals(4, buffer.getActiveTranscriptRows());
+		assertEquals(6, buffer.getActiveRows());
+		assertEquals("row0\nrow1\nrow2\nrow3\nrow4\nrow5", buffer.getTranscriptText());
+		assertEquals("w1\nro", buffer.getSelectedText(2, -3, 1, -2));
+
+		TerminalRow row = new TerminalRow(4, TextStyle.NORMAL);
+		buffer.copyRow(-4, row);
+		assertEquals("row0", new String(row.mText, 0, row.getSpaceUsed()));
+		assertEquals(0, TextStyle.decodeForeColor(row.getStyle(3)));
+		buffer.copyRow(-2, row);
+		assertEquals("row2", new String(row.mText, 0, row.getSpaceUsed()));
+		assertEquals(2, TextStyle.decodeForeColor(row.getStyle(0)));
+
+		// Rows in the file are read like the ones in memory:
+		assertEquals(1, TextStyle.decodeForeColor(buffer.getStyleAt(-3, 2)));
+		assertEquals(3, TextStyle.decodeForeColor(buffer.getStyleAt(-1, 0)));
+		assertFalse(buffer.getLineWrap(-4));
+		try {
+			buffer.getLineWrap(-5);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// Expected.
+		}
+
+		buffer.clearTranscript();
+		assertEquals(0, buffer.getActiveTranscriptRows());
+		assertEquals("row4\nrow5", buffer.getTranscriptText());
+	}
+
+	public void testNonAsciiRows() {
+		TerminalBuffer buffer = createBuffer(4, 1024);
+		for (int i = 0; i < 4; i++)
+			outputLine(buffer, i, "åäö" + i, TextStyle.NORMAL);
+		buffer.setChar(0, 1, 0x679C, TextStyle.NORMAL);
+		outputLine(buffer, 4, "abc", TextStyle.NORMAL);
+		outputLine(buffer, 5, "def", TextStyle.NORMAL);
+		assertEquals("åäö0\nåäö1\nåäö2\n果ö3\nabc\ndef", buffer.getTranscriptText());
+	}
+
+	public void testSearchRowsInFile() {
+		TerminalBuffer buffer = createBuffer(4, 1024);
+		for (int i = 0; i < 6; i++) {
+			outputLine(buffer, i, "row" + i, TextStyle.NORMAL);
+			if (i == 0) buffer.setLineWrap(0);
+		}
+		assertTrue(buffer.getLineWrap(-4));
+		TranscriptSearch search = new TranscriptSearch("0row1", false, false);
+		assertTrue(buffer.findNext(search, true));
+		assertEquals(-4, search.mStartRow);
+		assertEquals(3, search.mStartColumn);
+		assertEquals(-3, search.mEndRow);
+		assertEquals(3, search.mEndColumn);
+		assertTrue(buffer.findNext(new TranscriptSearch("row2", false, false), false));
+	}
+
+	public void testRowsAreReflowedWhenColumnsChange() {
+		TerminalEmulator expected = ResizeTest.terminalWithHistory(20, 10, 10000, 0, false);
+		TerminalEmulator actual = ResizeTest.terminalWithHistory(20, 10, 1500, 0, true);
+		actual.setTranscriptFile(new TranscriptFile(mDirectory, 1024 * 1024));
+		for (TerminalEmulator terminal : new TerminalEmulator[]{expected, actual}) {
+			ResizeTest.appendLines(terminal, 0, 1000);
+			// Leave blank rows at the end of the transcript, and start the screen at a new line:
+			byte[] newlines = "\r\n\r\n\r\n\r\n\r\n\r\n\r\n\r\n\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+			terminal.append(newlines, newlines.length);
+		}
+		assertTrue(actual.hibernate());
+
+		for (int columns : new int[]{33, 13}) {
+			for (TerminalEmulator terminal : new TerminalEmulator[]{expected, actual})
+				terminal.resize(columns, 10, TerminalTestCase.INITIAL_CELL_WIDTH_PIXELS, TerminalTestCase.INITIAL_CELL_HEIGHT_PIXELS);
+			// The rows in the file are not part of the transcript until they have been reflowed:
+			assertEquals(0, actual.getScreen().getActiveTranscriptRows());
+			assertEquals(expected.getScreen().getTranscriptText(), actual.getScreen().getTranscriptText());
+			assertEquals(expected.getScreen().getActiveTranscriptRows(), actual.getScreen().getActiveTranscriptRows());
+			ResizeTest.assertSameRows(expected, actual, -actual.getScreen().getActiveTranscriptRows());
+		}
+
+		for (TerminalEmulator terminal : new TerminalEmulator[]{expected, actual})
+			ResizeTest.appendLines(terminal, 1000, 1100);
+		assertEquals(expected.getScreen().getTranscriptText(), actual.getScreen().getTranscriptText());
+	}
+
+	public void testOldestSegmentIsDropped() {
+		TerminalBuffer buffer = createBuffer(80, 1);
+		String line = "0123456789012345678901234567890123456789012345678901234567890123456789012345678";
+		int rowsPerSegment = 0;
+		for (int i = 0; buffer.getActiveTranscriptRows() >= rowsPerSegment; i++) {
+			rowsPerSegment = buffer.getActiveTranscriptRows();
+			outputLine(buffer, i, line, TextStyle.NORMAL);
+		}
+		// The single segment was full, so it was replaced with a new one containing just the latest evicted row:
+		assertTrue(rowsPerSegment > 1000);
+		assertEquals(2, buffer.getActiveTranscriptRows());
+		assertEquals(line + "\n" + line + "\n" + line + "\n" + line, buffer.getTranscriptText());
+	}
+
+	public void testRowsPendingReflowAreEvictedToFile() {
+		TerminalEmulator expected = ResizeTest.terminalWithHistory(20, 10, 1500, 3000, false);
+		TerminalEmulator actual = ResizeTest.terminalWithHistory(20, 10, 1500, 3000, true);
+		for (TerminalEmulator terminal : new TerminalEmulator[]{expected, actual}) {
+			terminal.setTranscriptFile(new TranscriptFile(mDirectory, 1024 * 1024));
+			terminal.resize(33, 12, TerminalTestCase.INITIAL_CELL_WIDTH_PIXELS, TerminalTestCase.INITIAL_CELL_HEIGHT_PIXELS);
+		}
+		// The file is not part of the transcript until the rows pending reflow, which are newer, have been reflowed:
+		assertTrue(actual.getScreen().getActiveTranscriptRows() < expected.getScreen().getActiveTranscriptRows());
+
+		for (TerminalEmulator terminal : new TerminalEmulator[]{expected, actual})
+			ResizeTest.appendLines(terminal, 3000, 4200);
+		assertEquals(expected.getScreen().getTranscriptText(), actual.getScreen().getTranscriptText());
+		assertEquals(expected.getScreen().getActiveTranscriptRows(), actual.getScreen().getActiveTranscriptRows());
+	}
+
+	public void testHibernateMovesTranscriptToFile() {
+		TerminalEmulator expected = ResizeTest.terminalWithHistory(20, 10, 1500, 1000, true);
+		TerminalEmulator actual = ResizeTest.terminalWithHistory(20, 10, 1500, 1000, true);
+		assertFalse("Without a transcript file the transcript is kept", actual.hibernate());
+		for (TerminalEmulator terminal : new TerminalEmulator[]{expected, actual})
+			terminal.setTranscriptFile(new TranscriptFile(mDirectory, 1024 * 1024));
+
+		assertTrue(actual.hibernate());
+		assertEquals(0, actual.getMainBuffer().getTranscriptRowsInMemory());
+		assertEquals(expected.getScreen().getActiveTranscriptRows(), actual.getScreen().getActiveTranscriptRows());
+		ResizeTest.assertSameRows(expected, actual, -actual.getScreen().getActiveTranscriptRows());
+
+		// Output is parsed as usual afterwards:
+		for (TerminalEmulator terminal : new TerminalEmulator[]{expected, actual})
+			ResizeTest.appendLines(terminal, 1000, 2000);
+		assertTrue(actual.getMainBuffer().getTranscriptRowsInMemory() > 0);
+		assertEquals(expected.getScreen().getTranscriptText(), actual.getScreen().getTranscriptText());
+		ResizeTest.assertSameRows(expected, actual, -actual.getScreen().getActiveTranscriptRows());
+	}
+
+	public void testFailureToCreateSegmentDropsRows() throws IOException {
+		File notADirectory = new File(mDirectory, "file");
+		assertTrue(notADirectory.createNewFile());
+		TerminalBuffer buffer = new TerminalBuffer(4, 3, 2);
+		buffer.setTranscriptFile(new TranscriptFile(notADirectory, 1024));
+		for (int i = 0; i < 5; i++)
+			outputLine(buffer, i, "row" + i, TextStyle.NORMAL);
+		assertEquals(1, buffer.getActiveTranscriptRows());
+		assertEquals("row2\nrow3\nrow4", buffer.getTranscriptText());
+		assertNotNull(buffer.getTranscriptFileFailure());
+		assertFalse("Rows are not moved to a file which has failed", buffer.moveTranscriptToFile());
+		assertEquals(1, buffer.getActiveTranscriptRows());
+		assertTrue(notADirectory.delete());
+	}
+
+}
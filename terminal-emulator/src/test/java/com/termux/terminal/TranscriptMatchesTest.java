@@ -0,0 +1,74 @@
+package com.termux.terminal;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+public class TranscriptMatchesTest extends TerminalTestCase {
+
+	private final TranscriptMatches mMatches = new TranscriptMatches(Pattern.compile("x[0-9]+"));
+
+	private void assertMatchesAre(String... expected) {
+		assertEquals(Arrays.asList(expected), mMatches.find(mTerminal.getScreen()));
+	}
+
+	public void testMatchesInHistoryAndScreen() {
+		withTerminalSized(4, 3).enterString("x1 a\r\nbx22\r\n\r\nx3");
+		assertMatchesAre("x1", "x22", "x3");
+		// A match wrapped across rows, of which the first one is in history:
+		enterString("\r\n..x456\r\n\r\n");
+		assertMatchesAre("x1", "x22", "x3", "x456");
+		enterString("\r\n\r\n");
+		assertMatchesAre("x1", "x22", "x3", "x456");
+		// The screen is searched again, as it may change:
+		enterString("\033[2J\033[Hx7");
+		assertMatchesAre("x1", "x22", "x3", "x456", "x7");
+	}
+
+	public void testEvictedLinesAreDropped() {
+		withTerminalSized(5, 2);
+		for (int i = 0; i < 3000; i++) enterString("x" + i + "\r\n");
+		assertEquals(TerminalEmulator.DEFAULT_TERMINAL_TRANSCRIPT_ROWS - 1, mMatches.find(mTerminal.getScreen()).size());
+		assertEquals("x1001", mMatches.find(mTerminal.getScreen()).get(0));
+		enterString("x\r\n");
+		assertEquals("x1002", mMatches.find(mTerminal.getScreen()).get(0));
+		enterString("\r\n\r\n");
+		assertEquals("x1004", mMatches.find(mTerminal.getScreen()).get(0));
+	}
+
+	public void testHistoryIsSearchedAgainAfterChanges() {
+		withTerminalSized(4, 2).enterString("..x12\r\nx3\r\n\r\n");
+		assertMatchesAre("x12", "x3");
+		resize(3, 2);
+		assertMatchesAre("x12", "x3");
+		resize(2, 2);
+		assertMatchesAre("x12", "x3");
+		// Erase the screen and history:
+		enterString("\033[3J\033[2J");
+		assertMatchesAre();
+	}
+
+	public void testSearchInChunks() {
+		withTerminalSized(8, 3);
+		for (int i = 0; i < 1500; i++) enterString("x" + i + "\r\n");
+		// History pending reflow after the columns changed is reflowed a chunk at a time too:
+		resize(6, 3);
+		TerminalBuffer screen = mTerminal.getScreen();
+		assertTrue(screen.isReflowPending());
+		List<String> matches = mMatches.find(mTerminal, screen);
+		assertEquals(new TranscriptMatches(Pattern.compile("x[0-9]+")).find(screen), matches);
+		assertEquals(1500, matches.size());
+		assertEquals("x1499", matches.get(matches.size() - 1));
+
+		// Only the lines scrolled into history since are searched then:
+		enterString("x1500\r\n\r\nx1501");
+		assertMatchesAre(concat(matches, "x1500", "x1501"));
+	}
+
+	private static String[] concat(List<String> matches, String... more) {
+		String[] all = matches.toArray(new String[matches.size() + more.length]);
+		System.arraycopy(more, 0, all, matches.size(), more.length);
+		return all;
+	}
+
+}
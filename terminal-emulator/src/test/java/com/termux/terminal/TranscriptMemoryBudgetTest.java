@@ -0,0 +1,131 @@
+package com.termux.terminal;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class TranscriptMemoryBudgetTest extends TestCase {
+
+	private static TerminalEmulator terminalWithHistory() {
+		return ResizeTest.terminalWithHistory(20, 10, 3000, 2000, true);
+	}
+
+	private static int transcriptRows(TerminalEmulator terminal) {
+		return terminal.getMainBuffer().getTranscriptRowsInMemory();
+	}
+
+	public void testTrimTranscriptKeepsNewestRows() {
+		TerminalEmulator expected = terminalWithHistory();
+		TerminalEmulator actual = terminalWithHistory();
+		actual.getMainBuffer().trimTranscript(100);
+		assertEquals(100, actual.getScreen().getActiveTranscriptRows());
+		assertTrue(actual.getMainBuffer().getTranscriptMemoryUsage() < expected.getMainBuffer().getTranscriptMemoryUsage() / 10);
+		ResizeTest.assertSameRows(expected, actual, -100);
+
+		// Output continues as before:
+		ResizeTest.appendLines(expected, 2000, 2100);
+		ResizeTest.appendLines(actual, 2000, 2100);
+		ResizeTest.assertSameRows(expected, actual, -actual.getScreen().getActiveTranscriptRows());
+	}
+
+	public void testTrimTranscriptPendingReflow() {
+		TerminalEmulator expected = ResizeTest.terminalWithHistory(20, 10, 3000, 2000, false);
+		TerminalEmulator actual = terminalWithHistory();
+		for (TerminalEmulator terminal : new TerminalEmulator[]{expected, actual})
+			terminal.resize(33, 10, TerminalTestCase.INITIAL_CELL_WIDTH_PIXELS, TerminalTestCase.INITIAL_CELL_HEIGHT_PIXELS);
+		assertTrue(actual.getScreen().getActiveTranscriptRows() < transcriptRows(actual));
+
+		actual.getMainBuffer().trimTranscript(200);
+		assertEquals(200, transcriptRows(actual));
+		assertEquals(200, actual.getScreen().getActiveTranscriptRows());
+		ResizeTest.assertSameRows(expected, actual, -200);
+	}
+
+	public void testLeastRecentlyViewedIsTrimmedFirst() {
+		TranscriptMemoryBudget budget = new TranscriptMemoryBudget(Long.MAX_VALUE);
+		TerminalEmulator first = terminalWithHistory();
+		TerminalEmulator second = terminalWithHistory();
+		TerminalEmulator third = terminalWithHistory();
+		budget.register(first);
+		budget.register(second);
+		budget.register(third);
+		budget.onViewed(first);
+
+		long total = budget.enforce();
+		long usage = budget.getUsage(second);
+		assertEquals(first.getMainBuffer().getTranscriptMemoryUsage(), budget.getUsage(first));
+		assertEquals(3 * usage, total);
+		int rows = transcriptRows(second);
+
+		budget.setMaxBytes(total - usage / 2);
+		assertTrue(budget.getUsage(second) <= usage / 2);
+		assertTrue(transcriptRows(second) < rows);
+		assertEquals(rows, transcriptRows(third));
+		assertEquals(rows, transcriptRows(first));
+
+		// The transcript of the most recently viewed session is never trimmed:
+		budget.setMaxBytes(usage / 2);
+		assertEquals(0, transcriptRows(second));
+		assertEquals(0, transcriptRows(third));
+		assertEquals(rows, transcriptRows(first));
+		assertEquals(usage, budget.enforce());
+	}
+
+	public void testTrimBackgroundKeepsViewedTranscript() {
+		TranscriptMemoryBudget budget = new TranscriptMemoryBudget(Long.MAX_VALUE);
+		TerminalEmulator viewed = terminalWithHistory();
+		TerminalEmulator background = terminalWithHistory();
+		budget.register(viewed);
+		budget.register(background);
+		budget.onViewed(viewed);
+		int rows = transcriptRows(viewed);
+
+		budget.trimBackground(0.5f);
+		assertEquals(rows / 2, transcriptRows(background));
+		assertEquals(rows, transcriptRows(viewed));
+		budget.trimBackground(0);
+		assertEquals(0, transcriptRows(background));
+		assertEquals(0, budget.getUsage(background));
+		assertEquals(rows, transcriptRows(viewed));
+	}
+
+	public void testTranscriptGrowthChecksBudget() throws Exception {
+		TranscriptMemoryBudget budget = new TranscriptMemoryBudget(Long.MAX_VALUE);
+		TerminalEmulator terminal = terminalWithHistory();
+		TerminalEmulator viewed = ResizeTest.terminalWithHistory(20, 10, 3000, 0, true);
+		budget.register(terminal);
+		budget.register(viewed);
+		long maxBytes = budget.enforce() / 2;
+		budget.setMaxBytes(maxBytes);
+
+		// Output enough for the transcript to exceed the budget again, with a check of it when the output is done:
+		synchronized (terminal) {
+			ResizeTest.appendLines(terminal, 2000, 2000 + TranscriptMemoryBudget.CHECK_INTERVAL_ROWS);
+			assertTrue(terminal.getMainBuffer().getTranscriptMemoryUsage() > maxBytes);
+		}
+
+		// The budget is checked on another thread:
+		long deadline = System.currentTimeMillis() + 5000;
+		while (true) {
+			synchronized (terminal) {
+				if (terminal.getMainBuffer().getTranscriptMemoryUsage() <= maxBytes) break;
+			}
+			assertTrue(System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+	}
+
+	public void testRunInBackgroundRunsTasksInOrder() throws Exception {
+		TranscriptMemoryBudget budget = new TranscriptMemoryBudget(Long.MAX_VALUE);
+		final StringBuffer ran = new StringBuffer();
+		final Thread testThread = Thread.currentThread();
+		final CountDownLatch done = new CountDownLatch(1);
+		budget.runInBackground(() -> ran.append(Thread.currentThread() == testThread ? "main" : "first"));
+		budget.runInBackground(() -> ran.append(",second"));
+		budget.runInBackground(done::countDown);
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertEquals("first,second", ran.toString());
+	}
+
+}
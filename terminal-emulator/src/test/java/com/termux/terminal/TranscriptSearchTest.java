@@ -0,0 +1,149 @@
+package com.termux.terminal;
+
+public class TranscriptSearchTest extends TerminalTestCase {
+
+	private void assertFound(TranscriptSearch search, int startRow, int startColumn, int endRow, int endColumn) {
+		assertTrue(search.mFound);
+		assertEquals(startRow, search.mStartRow);
+		assertEquals(startColumn, search.mStartColumn);
+		assertEquals(endRow, search.mEndRow);
+		assertEquals(endColumn, search.mEndColumn);
+	}
+
+	public void testFindForwardAndBackward() {
+		withTerminalSized(5, 3).enterString("abc\r\nxabc\r\nab\r\nabc");
+		TerminalBuffer screen = mTerminal.getScreen();
+		assertEquals(1, screen.getActiveTranscriptRows());
+		TranscriptSearch search = new TranscriptSearch("abc", false, false);
+
+		assertTrue(screen.findNext(search, false));
+		assertFound(search, -1, 0, -1, 2);
+		assertTrue(screen.findNext(search, false));
+		assertFound(search, 0, 1, 0, 3);
+		assertTrue(screen.findNext(search, false));
+		assertFound(search, 2, 0, 2, 2);
+		// The search starts over once there are no more matches:
+		assertFalse(screen.findNext(search, false));
+		assertFalse(search.mFound);
+		assertTrue(screen.findNext(search, false));
+		assertFound(search, -1, 0, -1, 2);
+
+		search.mFound = false;
+		assertTrue(screen.findNext(search, true));
+		assertFound(search, 2, 0, 2, 2);
+		assertTrue(screen.findNext(search, true));
+		assertFound(search, 0, 1, 0, 3);
+
+		assertTrue(screen.find(search, 0, 1, false));
+		assertFound(search, 0, 1, 0, 3);
+		assertTrue(screen.find(search, 0, 2, false));
+		assertFound(search, 2, 0, 2, 2);
+		assertTrue(screen.find(search, 0, 1, true));
+		assertFound(search, -1, 0, -1, 2);
+		assertFalse(screen.find(search, -1, 0, true));
+	}
+
+	public void testMatchAcrossWrappedRows() {
+		withTerminalSized(4, 4).enterString("..hello world\r\nhel\r\nlo");
+		TerminalBuffer screen = mTerminal.getScreen();
+		TranscriptSearch search = new TranscriptSearch("hello", false, false);
+		assertTrue(screen.findNext(search, false));
+		assertFound(search, -2, 2, -1, 2);
+		// Rows which are not wrapped are separate lines:
+		assertFalse(screen.findNext(search, false));
+
+		// A backward search from the middle of a wrapped line finds matches starting before it:
+		search = new TranscriptSearch("o", false, false);
+		assertTrue(screen.find(search, 2, 0, true));
+		assertFound(search, 0, 1, 0, 1);
+		assertTrue(screen.find(search, 0, 1, true));
+		assertFound(search, -1, 2, -1, 2);
+		assertTrue(screen.find(search, -1, 2, false));
+		assertFound(search, -1, 2, -1, 2);
+	}
+
+	public void testOverlappingMatches() {
+		withTerminalSized(5, 2).enterString("aaa");
+		TerminalBuffer screen = mTerminal.getScreen();
+		TranscriptSearch search = new TranscriptSearch("aa", false, false);
+		assertTrue(screen.findNext(search, false));
+		assertFound(search, 0, 0, 0, 1);
+		// The next match starts in the middle of the previous one:
+		assertTrue(screen.findNext(search, false));
+		assertFound(search, 0, 1, 0, 2);
+		assertFalse(screen.findNext(search, false));
+
+		search.mFound = false;
+		assertTrue(screen.findNext(search, true));
+		assertFound(search, 0, 1, 0, 2);
+		assertTrue(screen.findNext(search, true));
+		assertFound(search, 0, 0, 0, 1);
+	}
+
+	public void testRegexAndIgnoreCase() {
+		withTerminalSized(10, 3).enterString("Foo12\r\nfoo345\r\nbar");
+		TerminalBuffer screen = mTerminal.getScreen();
+		TranscriptSearch search = new TranscriptSearch("foo[0-9]+", true, false);
+		assertTrue(screen.findNext(search, false));
+		assertFound(search, 1, 0, 1, 5);
+
+		search = new TranscriptSearch("FOO", false, true);
+		assertTrue(screen.findNext(search, false));
+		assertFound(search, 0, 0, 0, 2);
+
+		// Regex metacharacters are literal unless searching with a regex, and empty matches are skipped:
+		assertFalse(screen.findNext(new TranscriptSearch("o+", false, false), false));
+		assertFalse(screen.findNext(new TranscriptSearch("x*", true, false), false));
+		// Trailing spaces at the end of lines are not part of them:
+		assertFalse(screen.findNext(new TranscriptSearch("bar ", false, false), false));
+	}
+
+	public void testWideCharactersAndSurrogates() {
+		withTerminalSized(6, 3).enterString("果果ab\r\nx😀yz");
+		TerminalBuffer screen = mTerminal.getScreen();
+		TranscriptSearch search = new TranscriptSearch("果ab", false, false);
+		assertTrue(screen.findNext(search, false));
+		assertFound(search, 0, 2, 0, 5);
+
+		search = new TranscriptSearch("😀y", false, false);
+		assertTrue(screen.findNext(search, false));
+		assertFound(search, 1, 1, 1, 3);
+	}
+
+	public void testSearchCompactedHistory() {
+		withTerminalSized(5, 2);
+		for (int i = 0; i < 100; i++) enterString("line" + i + "\r\n");
+		TerminalBuffer screen = mTerminal.getScreen();
+		assertTrue(screen.mLines[screen.externalToInternalRow(-50)].isCompact());
+		TranscriptSearch search = new TranscriptSearch("line50", false, false);
+		assertTrue(screen.findNext(search, true));
+		// "line50" is wrapped into two rows:
+		int row = search.mStartRow;
+		assertFound(search, row, 0, row + 1, 0);
+		assertEquals("line5", screen.getSelectedText(0, row, 4, row));
+		assertTrue(screen.mLines[screen.externalToInternalRow(row)].isCompact());
+	}
+
+	public void testSearchHistoryPendingReflow() {
+		TerminalEmulator terminal = ResizeTest.terminalWithHistory(20, 10, 5000, 1000, true);
+		terminal.resize(33, 12, INITIAL_CELL_WIDTH_PIXELS, INITIAL_CELL_HEIGHT_PIXELS);
+		TerminalBuffer screen = terminal.getScreen();
+		int activeTranscriptRows = screen.getActiveTranscriptRows();
+		String oldestLine = screen.getSelectedText(0, -activeTranscriptRows, 32, -activeTranscriptRows);
+
+		TranscriptSearch search = new TranscriptSearch(oldestLine.trim(), false, false);
+		assertTrue(screen.findNext(search, true));
+		assertEquals(activeTranscriptRows, screen.getActiveTranscriptRows());
+
+		// Searching the oldest lines reflows the history above them:
+		search = new TranscriptSearch("line 5 ", false, false);
+		assertTrue(screen.findNext(search, true));
+		assertTrue(screen.getActiveTranscriptRows() > activeTranscriptRows);
+		int row = search.mStartRow;
+		assertEquals("line 5 word0", screen.getSelectedText(0, row, 11, row));
+		assertFalse(screen.findNext(search, true));
+		assertTrue(screen.find(search, row - 1, 0, false));
+		assertEquals(row, search.mStartRow);
+	}
+
+}
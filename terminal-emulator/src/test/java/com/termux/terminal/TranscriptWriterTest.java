@@ -0,0 +1,71 @@
+package com.termux.terminal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+public class TranscriptWriterTest extends TerminalTestCase {
+
+	private String writeTranscript(boolean withStyles) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		mTerminal.getScreen().writeTranscript(out, withStyles);
+		return new String(out.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	public void testWriteText() throws IOException {
+		withTerminalSized(5, 4).enterString("\r\nabcdefg  \r\n\r\nå果😀\r\n\r\n");
+		assertEquals("abcdefg\n\nå果😀\n", writeTranscript(false));
+		assertEquals(mTerminal.getScreen().getTranscriptText() + "\n", writeTranscript(false));
+
+		withTerminalSized(5, 2);
+		assertEquals("", writeTranscript(false));
+	}
+
+	public void testWriteHistory() throws IOException {
+		withTerminalSized(5, 3);
+		StringBuilder expected = new StringBuilder();
+		for (int i = 0; i < 100; i++) {
+			enterString("line" + i + "\r\n");
+			expected.append("line").append(i).append('\n');
+		}
+		assertEquals(expected.toString(), writeTranscript(false));
+	}
+
+	public void testWriteInChunks() throws IOException {
+		withTerminalSized(8, 3);
+		for (int i = 0; i < 1500; i++) enterString((i % 7 == 0) ? "wrapped line " + i + "\r\n" : "x" + i + "\r\n");
+		// History pending reflow after the columns changed is reflowed a chunk at a time too:
+		resize(6, 3);
+		assertTrue(mTerminal.getScreen().isReflowPending());
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertTrue(mTerminal.getScreen().writeTranscript(mTerminal, out, false));
+		assertFalse(mTerminal.getScreen().isReflowPending());
+		assertEquals(writeTranscript(false), new String(out.toByteArray(), StandardCharsets.UTF_8));
+	}
+
+	public void testWriteInChunksStopsWhenResized() throws IOException {
+		withTerminalSized(8, 3);
+		for (int i = 0; i < 2000; i++) enterString(String.format("%07d\r\n", i));
+		OutputStream out = new OutputStream() {
+			@Override
+			public void write(int b) {
+				throw new UnsupportedOperationException();
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+				// Resized while the first chunk is written, outside the lock:
+				if (mTerminal.mColumns == 8) resize(6, 3);
+			}
+		};
+		assertFalse(mTerminal.getScreen().writeTranscript(mTerminal, out, false));
+	}
+
+	public void testWriteStyles() throws IOException {
+		withTerminalSized(10, 2).enterString("a\033[1;31mb\033[0;4;38;5;100;48;2;1;2;3mc\033[0;92md\033[0m e");
+		assertEquals("a\033[0;1;31mb\033[0;4;38;5;100;48;2;1;2;3mc\033[0;92md\033[0m e\n", writeTranscript(true));
+		assertEquals("abcd e\n", writeTranscript(false));
+	}
+
+}
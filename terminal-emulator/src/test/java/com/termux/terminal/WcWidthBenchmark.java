@@ -0,0 +1,48 @@
+package com.termux.terminal;
+
+import java.util.Random;
+
+/**
+ * Compares looking up widths in the table of {@link WcWidth#width(int)} with searching the interval tables like
+ * {@link WcWidth#computeWidth(int)}, for a mix of CJK, emoji, combining and Latin code points. This is not a unit test,
+ * as the timings depend on the machine and its load, so run its main method from the test classpath instead.
+ */
+public final class WcWidthBenchmark {
+
+	private static final int ROUNDS = 10;
+
+	public static void main(String[] args) {
+		int[] codePoints = new int[1 << 20];
+		Random random = new Random(1234);
+		for (int i = 0; i < codePoints.length; i++) {
+			switch (random.nextInt(4)) {
+				case 0: codePoints[i] = 0x4E00 + random.nextInt(0x5200); break; // CJK Unified Ideographs.
+				case 1: codePoints[i] = 0x1F300 + random.nextInt(0x300); break; // Emoji.
+				case 2: codePoints[i] = 0x0300 + random.nextInt(0x70); break; // Combining diacritical marks.
+				default: codePoints[i] = 0xA0 + random.nextInt(0x1E0); break; // Latin.
+			}
+		}
+
+		long searchNanos = Long.MAX_VALUE, lookupNanos = Long.MAX_VALUE;
+		for (int round = 0; round < ROUNDS; round++) {
+			long start = System.nanoTime();
+			long searchSum = sumWidths(codePoints, false);
+			searchNanos = Math.min(searchNanos, System.nanoTime() - start);
+			start = System.nanoTime();
+			long lookupSum = sumWidths(codePoints, true);
+			lookupNanos = Math.min(lookupNanos, System.nanoTime() - start);
+			if (searchSum != lookupSum) throw new AssertionError("Widths differ: " + searchSum + " != " + lookupSum);
+		}
+
+		System.out.println(String.format("Table search: %.1f ns/code point, lookup table: %.1f ns/code point",
+			(double) searchNanos / codePoints.length, (double) lookupNanos / codePoints.length));
+	}
+
+	private static long sumWidths(int[] codePoints, boolean lookup) {
+		long sum = 0;
+		for (int codePoint : codePoints)
+			sum += lookup ? WcWidth.width(codePoint) : WcWidth.computeWidth(codePoint);
+		return sum;
+	}
+
+}
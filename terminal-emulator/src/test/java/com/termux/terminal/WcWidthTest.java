@@ -78,4 +78,13 @@ public class WcWidthTest extends TestCase {
 		assertWidthIs(2, 0x1F643); // UPSIDE-DOWN FACE (Unicode 8).
 	}
 
+	/** The lookup table has the widths found by searching the tables, for every code point and the ones around them. */
+	public void testLookupTableMatchesTables() {
+		for (int codePoint = -1; codePoint <= Character.MAX_CODE_POINT + 1; codePoint++) {
+			int expectedWidth = WcWidth.computeWidth(codePoint);
+			if (WcWidth.width(codePoint) != expectedWidth)
+				assertEquals("codePoint=" + Integer.toHexString(codePoint), expectedWidth, WcWidth.width(codePoint));
+		}
+	}
+
 }
@@ -0,0 +1,106 @@
+package com.termux.view;
+
+import android.graphics.Paint;
+
+import com.termux.terminal.WcWidth;
+
+import java.util.Arrays;
+
+/**
+ * The widths of code points drawn by a {@link TerminalRenderer}: the width measured with its paint, the number of
+ * columns from {@link WcWidth}, and if the two do not match, in which case the code point is drawn scaled. Each code
+ * point is then only measured once instead of for every cell of every frame.
+ * <p>
+ * ASCII is kept in a direct table, and other code points in an open addressing hash table of primitives, which is
+ * cleared when it fills up since the code points in use typically change all at once, as when another program is run.
+ * A renderer is recreated when the typeface or text size changes, which drops its cache.
+ * <p>
+ * A code point is looked up with {@link #lookup(int)}, which returns a slot to read its values from.
+ */
+final class GlyphWidthCache {
+
+    /** The number of slots of the hash table, which must be a power of two. */
+    private static final int CAPACITY_BITS = 12;
+    private static final int CAPACITY = 1 << CAPACITY_BITS;
+    /** The number of code points kept before the table is cleared, to keep probe sequences short. */
+    static final int MAX_SIZE = CAPACITY / 4 * 3;
+    /** The code points below which are kept in the direct table, in the slots after the hash table. */
+    private static final int ASCII = 128;
+
+    private final Paint mPaint;
+    private final float mFontWidth;
+    private final char[] mChars = new char[2];
+
+    /** The code point plus one kept in each slot, so that 0 marks an empty slot. */
+    private final int[] mKeys = new int[CAPACITY];
+    private final float[] mWidths = new float[CAPACITY + ASCII];
+    private final byte[] mWcWidths = new byte[CAPACITY + ASCII];
+    private final boolean[] mWidthMismatches = new boolean[CAPACITY + ASCII];
+    private int mSize;
+    private long mHits, mMisses;
+
+    GlyphWidthCache(Paint paint, float fontWidth) {
+        mPaint = paint;
+        mFontWidth = fontWidth;
+        for (int codePoint = 0; codePoint < ASCII; codePoint++) measure(CAPACITY + codePoint, codePoint);
+    }
+
+    /** Get the slot with the values of the specified code point, measuring it if it is not cached. */
+    int lookup(int codePoint) {
+        if (codePoint >= 0 && codePoint < ASCII) return CAPACITY + codePoint;
+
+        final int key = codePoint + 1;
+        int slot = (key * 0x9E3779B9) >>> (32 - CAPACITY_BITS);
+        while (true) {
+            final int slotKey = mKeys[slot];
+            if (slotKey == key) {
+                mHits++;
+                return slot;
+            }
+            if (slotKey == 0) break;
+            slot = (slot + 1) & (CAPACITY - 1);
+        }
+
+        mMisses++;
+        if (mSize == MAX_SIZE) {
+            Arrays.fill(mKeys, 0);
+            mSize = 0;
+            return lookup(codePoint);
+        }
+        mKeys[slot] = key;
+        mSize++;
+        measure(slot, codePoint);
+        return slot;
+    }
+
+    private void measure(int slot, int codePoint) {
+        final int chars = Character.toChars(codePoint, mChars, 0);
+        final float width = mPaint.measureText(mChars, 0, chars);
+        final int wcWidth = WcWidth.width(codePoint);
+        mWidths[slot] = width;
+        mWcWidths[slot] = (byte) wcWidth;
+        mWidthMismatches[slot] = Math.abs(width / mFontWidth - wcWidth) > 0.01;
+    }
+
+    /** The width of the code point in a slot as measured by the paint. */
+    float getWidth(int slot) {
+        return mWidths[slot];
+    }
+
+    /** The number of columns of the code point in a slot, see {@link WcWidth#width(int)}. */
+    int getWcWidth(int slot) {
+        return mWcWidths[slot];
+    }
+
+    /** If the measured width of the code point in a slot is not the one of its number of columns. */
+    boolean isWidthMismatch(int slot) {
+        return mWidthMismatches[slot];
+    }
+
+    /** The fraction of lookups of non-ASCII code points which were cached, or 0 if there have been none. */
+    float getHitRatio() {
+        final long lookups = mHits + mMisses;
+        return (lookups == 0) ? 0 : (float) mHits / lookups;
+    }
+
+}
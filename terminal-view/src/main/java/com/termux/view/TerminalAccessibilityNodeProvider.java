@@ -0,0 +1,185 @@
+package com.termux.view;
+
+import android.graphics.Rect;
+import android.os.Bundle;
+import android.view.ViewParent;
+import android.view.accessibility.AccessibilityEvent;
+import android.view.accessibility.AccessibilityNodeInfo;
+import android.view.accessibility.AccessibilityNodeProvider;
+import android.widget.TextView;
+
+import com.termux.terminal.TerminalEmulator;
+import com.termux.terminal.TerminalRow;
+import com.termux.terminal.TerminalSnapshot;
+
+/**
+ * Exposes the rows in view of a {@link TerminalView} to accessibility services as virtual views, one per row, whose
+ * virtual view id is the index of the row in view.
+ * <p>
+ * The text of the rows is updated at most every {@link #UPDATE_DELAY_MILLIS} after the view changed, from a
+ * {@link TerminalSnapshot} of its own so that only the rows which changed since the last update are read. Only rows
+ * whose text changed are reported, or the whole view if many rows changed, as when scrolling.
+ */
+final class TerminalAccessibilityNodeProvider extends AccessibilityNodeProvider {
+
+    /** The time to wait after a change for more changes, before updating the rows and notifying about them. */
+    static final long UPDATE_DELAY_MILLIS = 100;
+    /** The number of changed rows above which a change of all rows is reported instead of one change per row. */
+    private static final int MAX_ROW_CHANGE_EVENTS = 4;
+    private static final int NO_ROW = Integer.MIN_VALUE;
+
+    private final TerminalView mView;
+    private final TerminalSnapshot mSnapshot = new TerminalSnapshot();
+    /** The text of each row in view as of the last update, without trailing spaces. */
+    private String[] mRowTexts = new String[0];
+    /** The rows whose text changed in the current update, as many as are reported separately. */
+    private final int[] mChangedRows = new int[MAX_ROW_CHANGE_EVENTS];
+    private int mAccessibilityFocusedRow = NO_ROW;
+
+    private boolean mUpdatePending;
+    private final Runnable mUpdateRunnable = this::update;
+    private final Rect mTempRect = new Rect();
+    private final int[] mTempLocation = new int[2];
+
+    TerminalAccessibilityNodeProvider(TerminalView view) {
+        mView = view;
+    }
+
+    /** Update the rows after {@link #UPDATE_DELAY_MILLIS}, unless an update is already pending. */
+    void scheduleUpdate() {
+        if (mUpdatePending) return;
+        mUpdatePending = true;
+        mView.postDelayed(mUpdateRunnable, UPDATE_DELAY_MILLIS);
+    }
+
+    void cancelUpdate() {
+        mView.removeCallbacks(mUpdateRunnable);
+        mUpdatePending = false;
+    }
+
+    private void update() {
+        mUpdatePending = false;
+        final TerminalEmulator emulator = mView.mEmulator;
+        if (emulator == null) {
+            if (mRowTexts.length > 0) {
+                mRowTexts = new String[0];
+                sendEvent(HOST_VIEW_ID, AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED, AccessibilityEvent.CONTENT_CHANGE_TYPE_SUBTREE);
+            }
+            return;
+        }
+
+        synchronized (emulator) {
+            mSnapshot.update(emulator, mView.mTopRow);
+        }
+        final int rows = mSnapshot.mRows;
+        final int topRow = mSnapshot.mTopRow;
+        final boolean rowsChanged = rows != mRowTexts.length;
+        if (rowsChanged) mRowTexts = new String[rows];
+        // The virtual views are the rows in view, whose text all changes when the rows move:
+        final boolean allRowsChanged = rowsChanged || mSnapshot.mAllRowsChanged || mSnapshot.mShiftedRows != 0;
+
+        int changedRows = 0;
+        for (int i = 0; i < rows; i++) {
+            if (!allRowsChanged && !mSnapshot.isRowChanged(topRow + i)) continue;
+            // Rows are also changed by the cursor moving, which does not change their text:
+            final String text = getRowText(mSnapshot.getRow(topRow + i));
+            if (text.equals(mRowTexts[i])) continue;
+            mRowTexts[i] = text;
+            if (changedRows < MAX_ROW_CHANGE_EVENTS) mChangedRows[changedRows] = i;
+            changedRows++;
+        }
+
+        if (rowsChanged || changedRows > MAX_ROW_CHANGE_EVENTS) {
+            sendEvent(HOST_VIEW_ID, AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED, AccessibilityEvent.CONTENT_CHANGE_TYPE_SUBTREE);
+        } else {
+            for (int i = 0; i < changedRows; i++)
+                sendEvent(mChangedRows[i], AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED, AccessibilityEvent.CONTENT_CHANGE_TYPE_TEXT);
+        }
+    }
+
+    private static String getRowText(TerminalRow row) {
+        final char[] text = row.mText;
+        int length = row.getSpaceUsed();
+        while (length > 0 && text[length - 1] == ' ') length--;
+        return new String(text, 0, length);
+    }
+
+    @Override
+    public AccessibilityNodeInfo createAccessibilityNodeInfo(int virtualViewId) {
+        if (virtualViewId == HOST_VIEW_ID) {
+            AccessibilityNodeInfo info = AccessibilityNodeInfo.obtain(mView);
+            mView.onInitializeAccessibilityNodeInfo(info);
+            for (int i = 0; i < mRowTexts.length; i++) info.addChild(mView, i);
+            // The rows are only read once an accessibility service asks for them:
+            scheduleUpdate();
+            return info;
+        }
+        if (virtualViewId < 0 || virtualViewId >= mRowTexts.length) return null;
+
+        AccessibilityNodeInfo info = AccessibilityNodeInfo.obtain(mView, virtualViewId);
+        info.setPackageName(mView.getContext().getPackageName());
+        info.setClassName(TextView.class.getName());
+        info.setParent(mView);
+        info.setText(mRowTexts[virtualViewId]);
+        info.setEnabled(true);
+        info.setVisibleToUser(true);
+
+        getRowBounds(virtualViewId, mTempRect);
+        info.setBoundsInParent(mTempRect);
+        mView.getLocationOnScreen(mTempLocation);
+        mTempRect.offset(mTempLocation[0], mTempLocation[1]);
+        info.setBoundsInScreen(mTempRect);
+
+        if (mAccessibilityFocusedRow == virtualViewId) {
+            info.setAccessibilityFocused(true);
+            info.addAction(AccessibilityNodeInfo.AccessibilityAction.ACTION_CLEAR_ACCESSIBILITY_FOCUS);
+        } else {
+            info.addAction(AccessibilityNodeInfo.AccessibilityAction.ACTION_ACCESSIBILITY_FOCUS);
+        }
+        return info;
+    }
+
+    /** Get the bounds of a row in view, as drawn by {@link TerminalRenderer}. */
+    private void getRowBounds(int row, Rect bounds) {
+        final TerminalRenderer renderer = mView.mRenderer;
+        final int top = renderer.mFontLineSpacingAndAscent + row * renderer.mFontLineSpacing;
+        bounds.set(0, Math.max(0, top), mView.getWidth(), Math.min(mView.getHeight(), top + renderer.mFontLineSpacing));
+    }
+
+    @Override
+    public boolean performAction(int virtualViewId, int action, Bundle arguments) {
+        if (virtualViewId == HOST_VIEW_ID) return mView.performAccessibilityAction(action, arguments);
+
+        switch (action) {
+            case AccessibilityNodeInfo.ACTION_ACCESSIBILITY_FOCUS:
+                if (mAccessibilityFocusedRow == virtualViewId) return false;
+                mAccessibilityFocusedRow = virtualViewId;
+                sendEvent(virtualViewId, AccessibilityEvent.TYPE_VIEW_ACCESSIBILITY_FOCUSED, 0);
+                return true;
+            case AccessibilityNodeInfo.ACTION_CLEAR_ACCESSIBILITY_FOCUS:
+                if (mAccessibilityFocusedRow != virtualViewId) return false;
+                mAccessibilityFocusedRow = NO_ROW;
+                sendEvent(virtualViewId, AccessibilityEvent.TYPE_VIEW_ACCESSIBILITY_FOCUS_CLEARED, 0);
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private void sendEvent(int virtualViewId, int eventType, int contentChangeTypes) {
+        final ViewParent parent = mView.getParent();
+        if (parent == null) return;
+        AccessibilityEvent event = AccessibilityEvent.obtain(eventType);
+        event.setPackageName(mView.getContext().getPackageName());
+        if (virtualViewId == HOST_VIEW_ID) {
+            mView.onInitializeAccessibilityEvent(event);
+        } else {
+            event.setSource(mView, virtualViewId);
+            event.setClassName(TextView.class.getName());
+            event.getText().add(mRowTexts[virtualViewId]);
+        }
+        if (contentChangeTypes != 0) event.setContentChangeTypes(contentChangeTypes);
+        parent.requestSendAccessibilityEvent(mView, event);
+    }
+
+}
@@ -3,11 +3,16 @@ package com.termux.view;
 import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.PorterDuff;
+import android.graphics.RecordingCanvas;
+import android.graphics.RenderNode;
 import android.graphics.Typeface;
+import android.os.Build;
+
+import androidx.annotation.RequiresApi;
 
-import com.termux.terminal.TerminalBuffer;
 import com.termux.terminal.TerminalEmulator;
 import com.termux.terminal.TerminalRow;
+import com.termux.terminal.TerminalSnapshot;
 import com.termux.terminal.TextStyle;
 import com.termux.terminal.WcWidth;
 
@@ -32,6 +37,21 @@ public final class TerminalRenderer {
     final int mFontLineSpacingAndAscent;
 
     private final float[] asciiMeasures = new float[127];
+    /** If the measured width of each printable ASCII character is the one expected by wcwidth(), see {@link #renderAsciiRow}. */
+    private final boolean[] asciiWidthMatches = new boolean[127];
+    /** The measured widths of the other code points drawn, so that each is only measured once. */
+    private final GlyphWidthCache mGlyphWidths;
+
+    /** Snapshot used when rendering directly from an emulator with {@link #render(TerminalEmulator, Canvas, int, int, int, int, int)}. */
+    private final TerminalSnapshot mSnapshot = new TerminalSnapshot();
+
+    /**
+     * The recorded drawing of each row in view by {@link #renderChangedRows}, or null if the rows were last rendered
+     * otherwise. These are {@link RenderNode}s, which are only available from API 29.
+     */
+    private Object[] mRowNodes;
+    /** The selected columns of the row recorded in each of {@link #mRowNodes}, see {@link #getSelectedColumns}. */
+    private long[] mRowNodeSelections;
 
     public TerminalRenderer(int textSize, Typeface typeface) {
         mTextSize = textSize;
@@ -50,110 +70,260 @@ public final class TerminalRenderer {
         for (int i = 0; i < asciiMeasures.length; i++) {
             sb.setCharAt(0, (char) i);
             asciiMeasures[i] = mTextPaint.measureText(sb, 0, 1);
+            asciiWidthMatches[i] = i >= 32 && Math.abs(asciiMeasures[i] / mFontWidth - 1) <= 0.01;
         }
+        mGlyphWidths = new GlyphWidthCache(mTextPaint, mFontWidth);
+    }
+
+    /**
+     * The fraction of lookups of the widths of non-ASCII code points in rows drawn so far which did not need to measure
+     * the code point, as its width was cached from an earlier row or frame.
+     */
+    public float getGlyphWidthCacheHitRatio() {
+        return mGlyphWidths.getHitRatio();
     }
 
     /** Render the terminal to a canvas with at a specified row scroll, and an optional rectangular selection. */
     public final void render(TerminalEmulator mEmulator, Canvas canvas, int topRow,
                              int selectionY1, int selectionY2, int selectionX1, int selectionX2) {
-        final boolean reverseVideo = mEmulator.isReverseVideo();
-        final int endRow = topRow + mEmulator.mRows;
-        final int columns = mEmulator.mColumns;
-        final int cursorCol = mEmulator.getCursorCol();
-        final int cursorRow = mEmulator.getCursorRow();
-        final boolean cursorVisible = mEmulator.shouldCursorBeVisible();
-        final TerminalBuffer screen = mEmulator.getScreen();
-        final int[] palette = mEmulator.mColors.mCurrentColors;
-        final int cursorShape = mEmulator.getCursorStyle();
-
-        if (reverseVideo)
-            canvas.drawColor(palette[TextStyle.COLOR_INDEX_FOREGROUND], PorterDuff.Mode.SRC);
+        mSnapshot.update(mEmulator, topRow);
+        render(mSnapshot, canvas, selectionY1, selectionY2, selectionX1, selectionX2);
+    }
+
+    /** Render a snapshot of the terminal to a canvas, with an optional rectangular selection. */
+    public final void render(TerminalSnapshot snapshot, Canvas canvas,
+                             int selectionY1, int selectionY2, int selectionX1, int selectionX2) {
+        final int topRow = snapshot.mTopRow;
+        final int endRow = topRow + snapshot.mRows;
+
+        if (snapshot.mReverseVideo)
+            canvas.drawColor(snapshot.mPalette[TextStyle.COLOR_INDEX_FOREGROUND], PorterDuff.Mode.SRC);
 
         float heightOffset = mFontLineSpacingAndAscent;
         for (int row = topRow; row < endRow; row++) {
             heightOffset += mFontLineSpacing;
+            renderRow(snapshot, canvas, row, heightOffset, selectionY1, selectionY2, selectionX1, selectionX2);
+        }
+        mRowNodes = null;
+    }
 
-            final int cursorX = (row == cursorRow && cursorVisible) ? cursorCol : -1;
-            int selx1 = -1, selx2 = -1;
-            if (row >= selectionY1 && row <= selectionY2) {
-                if (row == selectionY1) selx1 = selectionX1;
-                selx2 = (row == selectionY2) ? selectionX2 : mEmulator.mColumns;
+    /**
+     * Render a snapshot like {@link #render(TerminalSnapshot, Canvas, int, int, int, int)}, but only draw the rows which
+     * changed since the previous call again, see {@link TerminalSnapshot#isRowChanged(int)}. The drawing of each row is
+     * recorded and replayed for the rows which did not change, which needs a hardware accelerated canvas from API 29,
+     * and otherwise all rows are drawn.
+     */
+    public final void renderChangedRows(TerminalSnapshot snapshot, Canvas canvas,
+                                        int selectionY1, int selectionY2, int selectionX1, int selectionX2) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q || !canvas.isHardwareAccelerated()) {
+            render(snapshot, canvas, selectionY1, selectionY2, selectionX1, selectionX2);
+        } else {
+            renderRowNodes(snapshot, canvas, selectionY1, selectionY2, selectionX1, selectionX2);
+        }
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.Q)
+    private void renderRowNodes(TerminalSnapshot snapshot, Canvas canvas,
+                                int selectionY1, int selectionY2, int selectionX1, int selectionX2) {
+        final int rows = snapshot.mRows;
+        final int topRow = snapshot.mTopRow;
+        final boolean allRowsChanged = snapshot.mAllRowsChanged || mRowNodes == null || mRowNodes.length != rows;
+        if (allRowsChanged) {
+            if (mRowNodes == null || mRowNodes.length != rows) {
+                mRowNodes = new RenderNode[rows];
+                for (int i = 0; i < rows; i++) mRowNodes[i] = new RenderNode("TerminalRow");
+                mRowNodeSelections = new long[rows];
             }
+        } else if (snapshot.mShiftedRows != 0) {
+            // Move the recorded rows along with the rows of the snapshot:
+            int shift = snapshot.mShiftedRows < 0 ? snapshot.mShiftedRows + rows : snapshot.mShiftedRows;
+            reverseRowNodes(0, shift);
+            reverseRowNodes(shift, rows);
+            reverseRowNodes(0, rows);
+        }
 
-            TerminalRow lineObject = screen.allocateFullLineIfNecessary(screen.externalToInternalRow(row));
-            final char[] line = lineObject.mText;
-            final int charsUsedInLine = lineObject.getSpaceUsed();
-
-            long lastRunStyle = 0;
-            boolean lastRunInsideCursor = false;
-            boolean lastRunInsideSelection = false;
-            int lastRunStartColumn = -1;
-            int lastRunStartIndex = 0;
-            boolean lastRunFontWidthMismatch = false;
-            int currentCharIndex = 0;
-            float measuredWidthForRun = 0.f;
-
-            for (int column = 0; column < columns; ) {
-                final char charAtIndex = line[currentCharIndex];
-                final boolean charIsHighsurrogate = Character.isHighSurrogate(charAtIndex);
-                final int charsForCodePoint = charIsHighsurrogate ? 2 : 1;
-                final int codePoint = charIsHighsurrogate ? Character.toCodePoint(charAtIndex, line[currentCharIndex + 1]) : charAtIndex;
-                final int codePointWcWidth = WcWidth.width(codePoint);
-                final boolean insideCursor = (cursorX == column || (codePointWcWidth == 2 && cursorX == column + 1));
-                final boolean insideSelection = column >= selx1 && column <= selx2;
-                final long style = lineObject.getStyle(column);
-
-                // Check if the measured text width for this code point is not the same as that expected by wcwidth().
-                // This could happen for some fonts which are not truly monospace, or for more exotic characters such as
-                // smileys which android font renders as wide.
-                // If this is detected, we draw this code point scaled to match what wcwidth() expects.
-                final float measuredCodePointWidth = (codePoint < asciiMeasures.length) ? asciiMeasures[codePoint] : mTextPaint.measureText(line,
-                    currentCharIndex, charsForCodePoint);
-                final boolean fontWidthMismatch = Math.abs(measuredCodePointWidth / mFontWidth - codePointWcWidth) > 0.01;
-
-                if (style != lastRunStyle || insideCursor != lastRunInsideCursor || insideSelection != lastRunInsideSelection || fontWidthMismatch || lastRunFontWidthMismatch) {
-                    if (column == 0) {
-                        // Skip first column as there is nothing to draw, just record the current style.
-                    } else {
-                        final int columnWidthSinceLastRun = column - lastRunStartColumn;
-                        final int charsSinceLastRun = currentCharIndex - lastRunStartIndex;
-                        int cursorColor = lastRunInsideCursor ? mEmulator.mColors.mCurrentColors[TextStyle.COLOR_INDEX_CURSOR] : 0;
-                        boolean invertCursorTextColor = false;
-                        if (lastRunInsideCursor && cursorShape == TerminalEmulator.TERMINAL_CURSOR_STYLE_BLOCK) {
-                            invertCursorTextColor = true;
-                        }
-                        drawTextRun(canvas, line, palette, heightOffset, lastRunStartColumn, columnWidthSinceLastRun,
-                            lastRunStartIndex, charsSinceLastRun, measuredWidthForRun,
-                            cursorColor, cursorShape, lastRunStyle, reverseVideo || invertCursorTextColor || lastRunInsideSelection);
+        if (snapshot.mReverseVideo)
+            canvas.drawColor(snapshot.mPalette[TextStyle.COLOR_INDEX_FOREGROUND], PorterDuff.Mode.SRC);
+
+        final int width = (int) Math.ceil(snapshot.mColumns * mFontWidth);
+        for (int i = 0; i < rows; i++) {
+            final RenderNode node = (RenderNode) mRowNodes[i];
+            final int rowTop = mFontLineSpacingAndAscent + i * mFontLineSpacing;
+            // Rows are also recorded again when the part of them which is selected changed, as when scrolling or
+            // dragging a selection:
+            final long selectedColumns = getSelectedColumns(topRow + i, snapshot.mColumns, selectionY1, selectionY2, selectionX1, selectionX2);
+            if (allRowsChanged || snapshot.isRowChanged(topRow + i) || selectedColumns != mRowNodeSelections[i]) {
+                mRowNodeSelections[i] = selectedColumns;
+                // Record the row relative to its top, so that the recording can be moved to another row:
+                RecordingCanvas recordingCanvas = node.beginRecording();
+                recordingCanvas.translate(0, -rowTop);
+                renderRow(snapshot, recordingCanvas, topRow + i, rowTop + mFontLineSpacing, selectionY1, selectionY2, selectionX1, selectionX2);
+                node.endRecording();
+                // Glyphs extending outside of their row are drawn as when rendering without recording:
+                node.setClipToBounds(false);
+            }
+            node.setPosition(0, rowTop, width, rowTop + mFontLineSpacing);
+            canvas.drawRenderNode(node);
+        }
+    }
+
+    /** Render a row of a snapshot, whose bottom is at the specified height. */
+    private void renderRow(TerminalSnapshot snapshot, Canvas canvas, int row, float heightOffset,
+                           int selectionY1, int selectionY2, int selectionX1, int selectionX2) {
+        final boolean reverseVideo = snapshot.mReverseVideo;
+        final int columns = snapshot.mColumns;
+        final int cursorCol = snapshot.mCursorCol;
+        final int cursorRow = snapshot.mCursorRow;
+        final boolean cursorVisible = snapshot.mCursorVisible;
+        final int[] palette = snapshot.mPalette;
+        final int cursorShape = snapshot.mCursorStyle;
+
+        final int cursorX = (row == cursorRow && cursorVisible) ? cursorCol : -1;
+        final long selectedColumns = getSelectedColumns(row, columns, selectionY1, selectionY2, selectionX1, selectionX2);
+        final int selx1 = (int) (selectedColumns >> 32), selx2 = (int) selectedColumns;
+
+        TerminalRow lineObject = snapshot.getRow(row);
+        final char[] line = lineObject.mText;
+        final int charsUsedInLine = lineObject.getSpaceUsed();
+
+        if (renderAsciiRow(canvas, lineObject, columns, palette, heightOffset, cursorX, cursorShape, selx1, selx2, reverseVideo))
+            return;
+
+        long lastRunStyle = 0;
+        boolean lastRunInsideCursor = false;
+        boolean lastRunInsideSelection = false;
+        int lastRunStartColumn = -1;
+        int lastRunStartIndex = 0;
+        boolean lastRunFontWidthMismatch = false;
+        int currentCharIndex = 0;
+        float measuredWidthForRun = 0.f;
+
+        for (int column = 0; column < columns; ) {
+            final char charAtIndex = line[currentCharIndex];
+            final boolean charIsHighsurrogate = Character.isHighSurrogate(charAtIndex);
+            final int charsForCodePoint = charIsHighsurrogate ? 2 : 1;
+            final int codePoint = charIsHighsurrogate ? Character.toCodePoint(charAtIndex, line[currentCharIndex + 1]) : charAtIndex;
+            final int glyphSlot = mGlyphWidths.lookup(codePoint);
+            final int codePointWcWidth = mGlyphWidths.getWcWidth(glyphSlot);
+            final boolean insideCursor = (cursorX == column || (codePointWcWidth == 2 && cursorX == column + 1));
+            final boolean insideSelection = column >= selx1 && column <= selx2;
+            final long style = lineObject.getStyle(column);
+
+            // Check if the measured text width for this code point is not the same as that expected by wcwidth().
+            // This could happen for some fonts which are not truly monospace, or for more exotic characters such as
+            // smileys which android font renders as wide.
+            // If this is detected, we draw this code point scaled to match what wcwidth() expects.
+            final float measuredCodePointWidth = mGlyphWidths.getWidth(glyphSlot);
+            final boolean fontWidthMismatch = mGlyphWidths.isWidthMismatch(glyphSlot);
+
+            if (style != lastRunStyle || insideCursor != lastRunInsideCursor || insideSelection != lastRunInsideSelection || fontWidthMismatch || lastRunFontWidthMismatch) {
+                if (column == 0) {
+                    // Skip first column as there is nothing to draw, just record the current style.
+                } else {
+                    final int columnWidthSinceLastRun = column - lastRunStartColumn;
+                    final int charsSinceLastRun = currentCharIndex - lastRunStartIndex;
+                    int cursorColor = lastRunInsideCursor ? palette[TextStyle.COLOR_INDEX_CURSOR] : 0;
+                    boolean invertCursorTextColor = false;
+                    if (lastRunInsideCursor && cursorShape == TerminalEmulator.TERMINAL_CURSOR_STYLE_BLOCK) {
+                        invertCursorTextColor = true;
                     }
-                    measuredWidthForRun = 0.f;
-                    lastRunStyle = style;
-                    lastRunInsideCursor = insideCursor;
-                    lastRunInsideSelection = insideSelection;
-                    lastRunStartColumn = column;
-                    lastRunStartIndex = currentCharIndex;
-                    lastRunFontWidthMismatch = fontWidthMismatch;
-                }
-                measuredWidthForRun += measuredCodePointWidth;
-                column += codePointWcWidth;
-                currentCharIndex += charsForCodePoint;
-                while (currentCharIndex < charsUsedInLine && WcWidth.width(line, currentCharIndex) <= 0) {
-                    // Eat combining chars so that they are treated as part of the last non-combining code point,
-                    // instead of e.g. being considered inside the cursor in the next run.
-                    currentCharIndex += Character.isHighSurrogate(line[currentCharIndex]) ? 2 : 1;
+                    drawTextRun(canvas, line, palette, heightOffset, lastRunStartColumn, columnWidthSinceLastRun,
+                        lastRunStartIndex, charsSinceLastRun, measuredWidthForRun,
+                        cursorColor, cursorShape, lastRunStyle, reverseVideo || invertCursorTextColor || lastRunInsideSelection);
                 }
+                measuredWidthForRun = 0.f;
+                lastRunStyle = style;
+                lastRunInsideCursor = insideCursor;
+                lastRunInsideSelection = insideSelection;
+                lastRunStartColumn = column;
+                lastRunStartIndex = currentCharIndex;
+                lastRunFontWidthMismatch = fontWidthMismatch;
             }
+            measuredWidthForRun += measuredCodePointWidth;
+            column += codePointWcWidth;
+            currentCharIndex += charsForCodePoint;
+            while (currentCharIndex < charsUsedInLine && WcWidth.width(line, currentCharIndex) <= 0) {
+                // Eat combining chars so that they are treated as part of the last non-combining code point,
+                // instead of e.g. being considered inside the cursor in the next run.
+                currentCharIndex += Character.isHighSurrogate(line[currentCharIndex]) ? 2 : 1;
+            }
+        }
+
+        final int columnWidthSinceLastRun = columns - lastRunStartColumn;
+        final int charsSinceLastRun = currentCharIndex - lastRunStartIndex;
+        int cursorColor = lastRunInsideCursor ? palette[TextStyle.COLOR_INDEX_CURSOR] : 0;
+        boolean invertCursorTextColor = false;
+        if (lastRunInsideCursor && cursorShape == TerminalEmulator.TERMINAL_CURSOR_STYLE_BLOCK) {
+            invertCursorTextColor = true;
+        }
+        drawTextRun(canvas, line, palette, heightOffset, lastRunStartColumn, columnWidthSinceLastRun, lastRunStartIndex, charsSinceLastRun,
+            measuredWidthForRun, cursorColor, cursorShape, lastRunStyle, reverseVideo || invertCursorTextColor || lastRunInsideSelection);
+    }
+
+    /**
+     * Get the first and last selected column of a row, packed into the high and low halves of a long. Both are -1 if
+     * the row is not selected, and the first is -1 if the row is selected from its start.
+     */
+    private static long getSelectedColumns(int row, int columns, int selectionY1, int selectionY2, int selectionX1, int selectionX2) {
+        int selx1 = -1, selx2 = -1;
+        if (row >= selectionY1 && row <= selectionY2) {
+            if (row == selectionY1) selx1 = selectionX1;
+            selx2 = (row == selectionY2) ? selectionX2 : columns;
+        }
+        return ((long) selx1 << 32) | (selx2 & 0xFFFFFFFFL);
+    }
+
+    private void reverseRowNodes(int from, int to) {
+        for (int i = from, j = to - 1; i < j; i++, j--) {
+            Object node = mRowNodes[i];
+            mRowNodes[i] = mRowNodes[j];
+            mRowNodes[j] = node;
+            long selectedColumns = mRowNodeSelections[i];
+            mRowNodeSelections[i] = mRowNodeSelections[j];
+            mRowNodeSelections[j] = selectedColumns;
+        }
+    }
+
+    /**
+     * Render a row which only contains printable ASCII characters whose measured widths match, so that each column is a
+     * single char and runs only break at style, cursor and selection boundaries. The style runs of the row are walked
+     * directly instead of comparing the style of each column.
+     *
+     * @return false if the row contains other characters, in which case nothing was drawn.
+     */
+    private boolean renderAsciiRow(Canvas canvas, TerminalRow lineObject, int columns, int[] palette, float heightOffset,
+                                   int cursorX, int cursorShape, int selx1, int selx2, boolean reverseVideo) {
+        final char[] line = lineObject.mText;
+        if (lineObject.getSpaceUsed() != columns) return false;
+        for (int i = 0; i < columns; i++) {
+            final char c = line[i];
+            if (c >= asciiWidthMatches.length || !asciiWidthMatches[c]) return false;
+        }
 
-            final int columnWidthSinceLastRun = columns - lastRunStartColumn;
-            final int charsSinceLastRun = currentCharIndex - lastRunStartIndex;
-            int cursorColor = lastRunInsideCursor ? mEmulator.mColors.mCurrentColors[TextStyle.COLOR_INDEX_CURSOR] : 0;
-            boolean invertCursorTextColor = false;
-            if (lastRunInsideCursor && cursorShape == TerminalEmulator.TERMINAL_CURSOR_STYLE_BLOCK) {
-                invertCursorTextColor = true;
+        int column = 0;
+        for (int run = 0, runCount = lineObject.getStyleRunCount(); run < runCount; run++) {
+            final long style = lineObject.getStyleRunStyle(run);
+            final int runEnd = lineObject.getStyleRunEnd(run);
+            while (column < runEnd) {
+                // Split the style run where the cursor or selection starts or ends:
+                int end = runEnd;
+                final boolean insideCursor = column == cursorX;
+                if (insideCursor) end = column + 1;
+                else if (cursorX > column && cursorX < end) end = cursorX;
+                final boolean insideSelection = column >= selx1 && column <= selx2;
+                if (insideSelection) end = Math.min(end, selx2 + 1);
+                else if (selx1 > column && selx1 < end) end = selx1;
+
+                float measuredWidth = 0.f;
+                for (int i = column; i < end; i++) measuredWidth += asciiMeasures[line[i]];
+                int cursorColor = insideCursor ? palette[TextStyle.COLOR_INDEX_CURSOR] : 0;
+                boolean invertCursorTextColor = insideCursor && cursorShape == TerminalEmulator.TERMINAL_CURSOR_STYLE_BLOCK;
+                drawTextRun(canvas, line, palette, heightOffset, column, end - column, column, end - column, measuredWidth,
+                    cursorColor, cursorShape, style, reverseVideo || invertCursorTextColor || insideSelection);
+                column = end;
             }
-            drawTextRun(canvas, line, palette, heightOffset, lastRunStartColumn, columnWidthSinceLastRun, lastRunStartIndex, charsSinceLastRun,
-                measuredWidthForRun, cursorColor, cursorShape, lastRunStyle, reverseVideo || invertCursorTextColor || lastRunInsideSelection);
         }
+        return true;
     }
 
     private void drawTextRun(Canvas canvas, char[] text, int[] palette, float y, int startColumn, int runWidthColumns,
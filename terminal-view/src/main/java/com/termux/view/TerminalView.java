@@ -27,6 +27,7 @@ import android.view.View;
 import android.view.ViewConfiguration;
 import android.view.ViewTreeObserver;
 import android.view.accessibility.AccessibilityManager;
+import android.view.accessibility.AccessibilityNodeProvider;
 import android.view.autofill.AutofillManager;
 import android.view.autofill.AutofillValue;
 import android.view.inputmethod.BaseInputConnection;
@@ -40,6 +41,8 @@ import androidx.annotation.RequiresApi;
 import com.termux.terminal.KeyHandler;
 import com.termux.terminal.TerminalEmulator;
 import com.termux.terminal.TerminalSession;
+import com.termux.terminal.TerminalSessionStats;
+import com.termux.terminal.TerminalSnapshot;
 import com.termux.view.textselection.TextSelectionCursorController;
 
 /** View displaying and interacting with a {@link TerminalSession}. */
@@ -54,6 +57,8 @@ public final class TerminalView extends View {
     public TerminalEmulator mEmulator;
 
     public TerminalRenderer mRenderer;
+    /** The copy of {@link #mEmulator} rendered by {@link #onDraw(Canvas)}. */
+    private final TerminalSnapshot mSnapshot = new TerminalSnapshot();
 
     public TerminalViewClient mClient;
 
@@ -124,6 +129,8 @@ public final class TerminalView extends View {
     private String[] mAutoFillHints = new String[0];
 
     private final boolean mAccessibilityEnabled;
+    /** The rows in view as virtual views for accessibility services, created when first requested. */
+    private TerminalAccessibilityNodeProvider mAccessibilityNodeProvider;
 
     /** The {@link KeyEvent} is generated from a virtual keyboard, like manually with the {@link KeyEvent#KeyEvent(int, int)} constructor. */
     public final static int KEY_EVENT_SOURCE_VIRTUAL_KEYBOARD = KeyCharacterMap.VIRTUAL_KEYBOARD; // -1
@@ -142,7 +149,7 @@ public final class TerminalView extends View {
             @Override
             public boolean onUp(MotionEvent event) {
                 mScrollRemainder = 0.0f;
-                if (mEmulator != null && mEmulator.isMouseTrackingActive() && !event.isFromSource(InputDevice.SOURCE_MOUSE) && !isSelectingText() && !scrolledWithFinger) {
+                if (mEmulator != null && isMouseTrackingActive() && !event.isFromSource(InputDevice.SOURCE_MOUSE) && !isSelectingText() && !scrolledWithFinger) {
                     // Quick event processing when mouse tracking is active - do not wait for check of double tapping
                     // for zooming.
                     sendMouseEventCode(event, TerminalEmulator.MOUSE_LEFT_BUTTON, true);
@@ -169,7 +176,7 @@ public final class TerminalView extends View {
             @Override
             public boolean onScroll(MotionEvent e, float distanceX, float distanceY) {
                 if (mEmulator == null) return true;
-                if (mEmulator.isMouseTrackingActive() && e.isFromSource(InputDevice.SOURCE_MOUSE)) {
+                if (isMouseTrackingActive() && e.isFromSource(InputDevice.SOURCE_MOUSE)) {
                     // If moving with mouse pointer while pressing button, report that instead of scroll.
                     // This means that we never report moving with button press-events for touch input,
                     // since we cannot just start sending these events without a starting press event,
@@ -199,12 +206,15 @@ public final class TerminalView extends View {
                 // Do not start scrolling until last fling has been taken care of:
                 if (!mScroller.isFinished()) return true;
 
-                final boolean mouseTrackingAtStartOfFling = mEmulator.isMouseTrackingActive();
+                final boolean mouseTrackingAtStartOfFling;
                 float SCALE = 0.25f;
-                if (mouseTrackingAtStartOfFling) {
-                    mScroller.fling(0, 0, 0, -(int) (velocityY * SCALE), 0, 0, -mEmulator.mRows / 2, mEmulator.mRows / 2);
-                } else {
-                    mScroller.fling(0, mTopRow, 0, -(int) (velocityY * SCALE), 0, 0, -mEmulator.getScreen().getActiveTranscriptRows(), 0);
+                synchronized (mEmulator) {
+                    mouseTrackingAtStartOfFling = mEmulator.isMouseTrackingActive();
+                    if (mouseTrackingAtStartOfFling) {
+                        mScroller.fling(0, 0, 0, -(int) (velocityY * SCALE), 0, 0, -mEmulator.mRows / 2, mEmulator.mRows / 2);
+                    } else {
+                        mScroller.fling(0, mTopRow, 0, -(int) (velocityY * SCALE), 0, 0, -mEmulator.getScreen().getActiveTranscriptRows(), 0);
+                    }
                 }
 
                 post(new Runnable() {
@@ -212,7 +222,7 @@ public final class TerminalView extends View {
 
                     @Override
                     public void run() {
-                        if (mouseTrackingAtStartOfFling != mEmulator.isMouseTrackingActive()) {
+                        if (mouseTrackingAtStartOfFling != isMouseTrackingActive()) {
                             mScroller.abortAnimation();
                             return;
                         }
@@ -289,12 +299,20 @@ public final class TerminalView extends View {
      */
     public boolean attachSession(TerminalSession session) {
         if (session == mTermSession) return false;
+        // The session shown until now was viewed until now, and is not idle yet:
+        if (mTermSession != null) {
+            mTermSession.markViewed();
+            mTermSession.setAttachedToView(false);
+        }
         mTopRow = 0;
 
         mTermSession = session;
         mEmulator = null;
         mCombiningAccent = 0;
 
+        // Trim or hibernate the history of the sessions not shown before the one of this session:
+        session.setAttachedToView(true);
+        session.markViewed();
         updateSize();
 
         // Wait with enabling the scrollbar until we have a terminal to get scroll position from.
@@ -437,17 +455,33 @@ public final class TerminalView extends View {
 
     @Override
     protected int computeVerticalScrollRange() {
-        return mEmulator == null ? 1 : mEmulator.getScreen().getActiveRows();
+        if (mEmulator == null) return 1;
+        synchronized (mEmulator) {
+            return mEmulator.getScreen().getActiveRows();
+        }
     }
 
     @Override
     protected int computeVerticalScrollExtent() {
-        return mEmulator == null ? 1 : mEmulator.mRows;
+        if (mEmulator == null) return 1;
+        synchronized (mEmulator) {
+            return mEmulator.mRows;
+        }
     }
 
     @Override
     protected int computeVerticalScrollOffset() {
-        return mEmulator == null ? 1 : mEmulator.getScreen().getActiveRows() + mTopRow - mEmulator.mRows;
+        if (mEmulator == null) return 1;
+        synchronized (mEmulator) {
+            return mEmulator.getScreen().getActiveRows() + mTopRow - mEmulator.mRows;
+        }
+    }
+
+    /** If mouse events are being sent to the terminal, read while holding the emulator lock as it may be parsing in the background. */
+    private boolean isMouseTrackingActive() {
+        synchronized (mEmulator) {
+            return mEmulator.isMouseTrackingActive();
+        }
     }
 
     public void onScreenUpdated() {
@@ -457,6 +491,22 @@ public final class TerminalView extends View {
     public void onScreenUpdated(boolean skipScrolling) {
         if (mEmulator == null) return;
 
+        synchronized (mEmulator) {
+            updateTopRowAfterScreenUpdate(skipScrolling);
+        }
+
+        invalidate();
+    }
+
+    @Override
+    public AccessibilityNodeProvider getAccessibilityNodeProvider() {
+        if (!mAccessibilityEnabled) return super.getAccessibilityNodeProvider();
+        if (mAccessibilityNodeProvider == null) mAccessibilityNodeProvider = new TerminalAccessibilityNodeProvider(this);
+        return mAccessibilityNodeProvider;
+    }
+
+    private void updateTopRowAfterScreenUpdate(boolean skipScrolling) {
+
         int rowsInHistory = mEmulator.getScreen().getActiveTranscriptRows();
         if (mTopRow < -rowsInHistory) mTopRow = -rowsInHistory;
 
@@ -493,9 +543,6 @@ public final class TerminalView extends View {
         }
 
         mEmulator.clearScrollCounter();
-
-        invalidate();
-        if (mAccessibilityEnabled) setContentDescription(getText());
     }
 
     /** This must be called by the hosting activity in {@link Activity#onContextMenuClosed(Menu)}
@@ -567,23 +614,27 @@ public final class TerminalView extends View {
                 mMouseScrollStartY = y;
             }
         }
-        mEmulator.sendMouseEvent(button, x, y, pressed);
+        synchronized (mEmulator) {
+            mEmulator.sendMouseEvent(button, x, y, pressed);
+        }
     }
 
     /** Perform a scroll, either from dragging the screen or by scrolling a mouse wheel. */
     void doScroll(MotionEvent event, int rowsDown) {
         boolean up = rowsDown < 0;
         int amount = Math.abs(rowsDown);
-        for (int i = 0; i < amount; i++) {
-            if (mEmulator.isMouseTrackingActive()) {
-                sendMouseEventCode(event, up ? TerminalEmulator.MOUSE_WHEELUP_BUTTON : TerminalEmulator.MOUSE_WHEELDOWN_BUTTON, true);
-            } else if (mEmulator.isAlternateBufferActive()) {
-                // Send up and down key events for scrolling, which is what some terminals do to make scroll work in
-                // e.g. less, which shifts to the alt screen without mouse handling.
-                handleKeyCode(up ? KeyEvent.KEYCODE_DPAD_UP : KeyEvent.KEYCODE_DPAD_DOWN, 0);
-            } else {
-                mTopRow = Math.min(0, Math.max(-(mEmulator.getScreen().getActiveTranscriptRows()), mTopRow + (up ? -1 : 1)));
-                if (!awakenScrollBars()) invalidate();
+        synchronized (mEmulator) {
+            for (int i = 0; i < amount; i++) {
+                if (mEmulator.isMouseTrackingActive()) {
+                    sendMouseEventCode(event, up ? TerminalEmulator.MOUSE_WHEELUP_BUTTON : TerminalEmulator.MOUSE_WHEELDOWN_BUTTON, true);
+                } else if (mEmulator.isAlternateBufferActive()) {
+                    // Send up and down key events for scrolling, which is what some terminals do to make scroll work in
+                    // e.g. less, which shifts to the alt screen without mouse handling.
+                    handleKeyCode(up ? KeyEvent.KEYCODE_DPAD_UP : KeyEvent.KEYCODE_DPAD_DOWN, 0);
+                } else {
+                    mTopRow = Math.min(0, Math.max(-(mEmulator.getScreen().getActiveTranscriptRows()), mTopRow + (up ? -1 : 1)));
+                    if (!awakenScrollBars()) invalidate();
+                }
             }
         }
     }
@@ -622,10 +673,14 @@ public final class TerminalView extends View {
                     ClipData.Item clipItem = clipData.getItemAt(0);
                     if (clipItem != null) {
                         CharSequence text = clipItem.coerceToText(getContext());
-                        if (!TextUtils.isEmpty(text)) mEmulator.paste(text.toString());
+                        if (!TextUtils.isEmpty(text)) {
+                            synchronized (mEmulator) {
+                                mEmulator.paste(text.toString());
+                            }
+                        }
                     }
                 }
-            } else if (mEmulator.isMouseTrackingActive()) { // BUTTON_PRIMARY.
+            } else if (isMouseTrackingActive()) { // BUTTON_PRIMARY.
                 switch (event.getAction()) {
                     case MotionEvent.ACTION_DOWN:
                     case MotionEvent.ACTION_UP:
@@ -780,6 +835,7 @@ public final class TerminalView extends View {
         } else if (event.isSystem() && (!mClient.shouldBackButtonBeMappedToEscape() || keyCode != KeyEvent.KEYCODE_BACK)) {
             return super.onKeyDown(keyCode, event);
         } else if (event.getAction() == KeyEvent.ACTION_MULTIPLE && keyCode == KeyEvent.KEYCODE_UNKNOWN) {
+            onKeystroke();
             mTermSession.write(event.getCharacters());
             return true;
         } else if (keyCode == KeyEvent.KEYCODE_LANGUAGE_SWITCH) {
@@ -904,6 +960,7 @@ public final class TerminalView extends View {
             }
 
             // If left alt, send escape before the code point to make e.g. Alt+B and Alt+F work in readline:
+            onKeystroke();
             mTermSession.writeCodePoint(altDown, codePoint);
         }
     }
@@ -918,12 +975,23 @@ public final class TerminalView extends View {
             return true;
 
         TerminalEmulator term = mTermSession.getEmulator();
-        String code = KeyHandler.getCode(keyCode, keyMod, term.isCursorKeysApplicationMode(), term.isKeypadApplicationMode());
+        String code;
+        // The modes may be changed by output parsed in the background:
+        synchronized (term) {
+            code = KeyHandler.getCode(keyCode, keyMod, term.isCursorKeysApplicationMode(), term.isKeypadApplicationMode());
+        }
         if (code == null) return false;
+        onKeystroke();
         mTermSession.write(code);
         return true;
     }
 
+    /** Note a keystroke in the stats of the session if enabled, to measure the time until its echo is drawn. */
+    private void onKeystroke() {
+        TerminalSessionStats stats = mTermSession.getStats();
+        if (stats != null) stats.onKeystroke(System.nanoTime());
+    }
+
     public boolean handleKeyCodeAction(int keyCode, int keyMod) {
         boolean shiftDown = (keyMod & KeyHandler.KEYMOD_SHIFT) != 0;
 
@@ -1007,6 +1075,7 @@ public final class TerminalView extends View {
 
     @Override
     protected void onDraw(Canvas canvas) {
+        final long startNanos = System.nanoTime();
         if (mEmulator == null) {
             canvas.drawColor(0XFF000000);
         } else {
@@ -1016,21 +1085,36 @@ public final class TerminalView extends View {
                 mTextSelectionCursorController.getSelectors(sel);
             }
 
-            mRenderer.render(mEmulator, canvas, mTopRow, sel[0], sel[1], sel[2], sel[3]);
+            // Only hold the emulator lock while copying the rows in view, so that a session parsing in the background
+            // is not blocked while drawing.
+            synchronized (mEmulator) {
+                // The transcript may have been trimmed since scrolling, see TranscriptMemoryBudget:
+                mTopRow = Math.max(mTopRow, -mEmulator.getScreen().getActiveTranscriptRows());
+                // History which has not been reflowed since the columns changed is reflowed as it is about to be scrolled into view:
+                mEmulator.reflowHistoryAbove(mTopRow);
+                mSnapshot.update(mEmulator, mTopRow);
+            }
+            // Only the rows which changed since the last frame are drawn again:
+            mRenderer.renderChangedRows(mSnapshot, canvas, sel[0], sel[1], sel[2], sel[3]);
 
             // render the text selection handles
             renderTextSelection();
+
+            TerminalSessionStats stats = mTermSession.getStats();
+            if (stats != null) {
+                stats.onGlyphWidthCacheHitRatio(mRenderer.getGlyphWidthCacheHitRatio());
+                stats.onFrameRendered(startNanos, System.nanoTime());
+            }
         }
+
+        // Whatever changed what is drawn may also have changed the text of rows in view:
+        if (mAccessibilityNodeProvider != null) mAccessibilityNodeProvider.scheduleUpdate();
     }
 
     public TerminalSession getCurrentSession() {
         return mTermSession;
     }
 
-    private CharSequence getText() {
-        return mEmulator.getScreen().getSelectedText(0, mTopRow, mEmulator.mColumns, mTopRow + mEmulator.mRows);
-    }
-
     public int getCursorX(float x) {
         return (int) (x / mRenderer.mFontWidth);
     }
@@ -1443,6 +1527,8 @@ public final class TerminalView extends View {
     protected void onDetachedFromWindow() {
         super.onDetachedFromWindow();
 
+        if (mAccessibilityNodeProvider != null) mAccessibilityNodeProvider.cancelUpdate();
+
         if (mTextSelectionCursorController != null) {
             // Might solve the following exception
             // android.view.WindowLeaked: Activity com.termux.app.TermuxActivity has leaked window android.widget.PopupWindow
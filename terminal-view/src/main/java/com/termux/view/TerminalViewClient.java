@@ -5,6 +5,7 @@ import android.view.MotionEvent;
 import android.view.ScaleGestureDetector;
 import android.view.View;
 
+import com.termux.terminal.SelectedTextExtractor;
 import com.termux.terminal.TerminalSession;
 
 /**
@@ -40,6 +41,15 @@ public interface TerminalViewClient {
 
     void copyModeChanged(boolean copyMode);
 
+    /**
+     * Copy the text selected in the terminal to the clipboard. The text is not extracted yet, as extracting a large
+     * selection may take a while, see {@link SelectedTextExtractor}. By default it is extracted on this thread.
+     */
+    default void onCopySelectedText(TerminalSession session, SelectedTextExtractor extractor) {
+        String text = extractor.extract();
+        if (text != null) session.onCopyTextToClipboard(text);
+    }
+
 
 
     boolean onKeyDown(int keyCode, KeyEvent e, TerminalSession session);
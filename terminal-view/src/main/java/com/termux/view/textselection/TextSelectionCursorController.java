@@ -13,6 +13,7 @@ import android.view.View;
 
 import androidx.annotation.Nullable;
 
+import com.termux.terminal.SelectedTextExtractor;
 import com.termux.terminal.TerminalBuffer;
 import com.termux.terminal.WcWidth;
 import com.termux.view.R;
@@ -134,8 +135,7 @@ public class TextSelectionCursorController implements CursorController {
 
                 switch (item.getItemId()) {
                     case ACTION_COPY:
-                        String selectedText = getSelectedText();
-                        terminalView.mTermSession.onCopyTextToClipboard(selectedText);
+                        terminalView.mClient.onCopySelectedText(terminalView.mTermSession, getSelectedTextExtractor());
                         terminalView.stopTextSelectionMode();
                         break;
                     case ACTION_PASTE:
@@ -143,10 +143,10 @@ public class TextSelectionCursorController implements CursorController {
                         terminalView.mTermSession.onPasteTextFromClipboard();
                         break;
                     case ACTION_MORE:
-                        // We first store the selected text in case TerminalViewClient needs the
+                        // We first store the selection in case TerminalViewClient needs the
                         // selected text before MORE button was pressed since we are going to
                         // stop selection mode
-                        mStoredSelectedText = getSelectedText();
+                        mStoredSelectedText = getSelectedTextExtractor().extract();
                         // The text selection needs to be stopped before showing context menu,
                         // otherwise handles will show above popup
                         terminalView.stopTextSelectionMode();
@@ -372,7 +372,14 @@ public class TextSelectionCursorController implements CursorController {
 
     /** Get the currently selected text. */
     public String getSelectedText() {
-        return terminalView.mEmulator.getSelectedText(mSelX1, mSelY1, mSelX2, mSelY2);
+        synchronized (terminalView.mEmulator) {
+            return terminalView.mEmulator.getSelectedText(mSelX1, mSelY1, mSelX2, mSelY2);
+        }
+    }
+
+    /** Get an extractor of the currently selected text, to extract it in the background if the selection is large. */
+    public SelectedTextExtractor getSelectedTextExtractor() {
+        return new SelectedTextExtractor(terminalView.mEmulator, mSelX1, mSelY1, mSelX2, mSelY2);
     }
 
     /** Get the selected text stored before "MORE" button was pressed on the context menu. */
@@ -0,0 +1,80 @@
+package com.termux.view;
+
+import android.graphics.Paint;
+
+import com.termux.terminal.WcWidth;
+
+import junit.framework.TestCase;
+
+public class GlyphWidthCacheTest extends TestCase {
+
+	private static final float FONT_WIDTH = 10;
+
+	/** A paint measuring each code point as wide as its number of columns, except 'é', and counting measurements. */
+	private static final class CountingPaint extends Paint {
+		int mMeasured;
+
+		@Override
+		public float measureText(char[] text, int index, int count) {
+			mMeasured++;
+			final int codePoint = Character.codePointAt(text, index);
+			if (codePoint == 'é') return FONT_WIDTH * 1.5f;
+			return FONT_WIDTH * WcWidth.width(codePoint);
+		}
+	}
+
+	public void testHitsAndMisses() {
+		CountingPaint paint = new CountingPaint();
+		GlyphWidthCache cache = new GlyphWidthCache(paint, FONT_WIDTH);
+		int measured = paint.mMeasured;
+		assertEquals(0f, cache.getHitRatio());
+
+		// ASCII is measured up front and not counted:
+		int slot = cache.lookup('A');
+		assertEquals(FONT_WIDTH, cache.getWidth(slot));
+		assertEquals(1, cache.getWcWidth(slot));
+		assertFalse(cache.isWidthMismatch(slot));
+		assertEquals(measured, paint.mMeasured);
+		assertEquals(0f, cache.getHitRatio());
+
+		int wideSlot = cache.lookup('日');
+		assertEquals(measured + 1, paint.mMeasured);
+		assertEquals(2 * FONT_WIDTH, cache.getWidth(wideSlot));
+		assertEquals(2, cache.getWcWidth(wideSlot));
+		assertEquals(0f, cache.getHitRatio());
+
+		assertEquals(wideSlot, cache.lookup('日'));
+		assertEquals(wideSlot, cache.lookup('日'));
+		assertEquals(measured + 1, paint.mMeasured);
+
+		slot = cache.lookup('é');
+		assertTrue(cache.isWidthMismatch(slot));
+		assertEquals(1, cache.getWcWidth(slot));
+		assertEquals(measured + 2, paint.mMeasured);
+		assertEquals(0.5f, cache.getHitRatio());
+	}
+
+	public void testClearedWhenFull() {
+		CountingPaint paint = new CountingPaint();
+		GlyphWidthCache cache = new GlyphWidthCache(paint, FONT_WIDTH);
+		final int first = 0x4E00;
+		for (int i = 0; i < GlyphWidthCache.MAX_SIZE; i++) cache.lookup(first + i);
+		int measured = paint.mMeasured;
+
+		// All are still cached:
+		for (int i = 0; i < GlyphWidthCache.MAX_SIZE; i++) assertEquals(2, cache.getWcWidth(cache.lookup(first + i)));
+		assertEquals(measured, paint.mMeasured);
+
+		// Another code point clears the table, so earlier ones have to be measured again:
+		int slot = cache.lookup('é');
+		assertEquals(measured + 1, paint.mMeasured);
+		assertTrue(cache.isWidthMismatch(slot));
+		assertEquals(slot, cache.lookup('é'));
+		assertEquals(measured + 1, paint.mMeasured);
+		slot = cache.lookup(first);
+		assertEquals(measured + 2, paint.mMeasured);
+		assertEquals(2, cache.getWcWidth(slot));
+		assertEquals(2 * FONT_WIDTH, cache.getWidth(slot));
+	}
+
+}
@@ -80,6 +80,27 @@ public class ShareUtils {
         openSystemAppChooser(context, shareTextIntent, DataUtils.isNullOrEmpty(title) ? context.getString(R.string.title_share_with) : title);
     }
 
+    /**
+     * Share a file by its content uri, which is granted read permission to the receiving app.
+     *
+     * @param context The context for operations.
+     * @param subject The subject for sharing.
+     * @param uri The content uri of the file to share.
+     * @param mimeType The mime type of the file.
+     * @param title The title for share menu.
+     */
+    public static void shareFile(final Context context, final String subject, final Uri uri, final String mimeType, @Nullable final String title) {
+        if (context == null || uri == null) return;
+
+        final Intent shareFileIntent = new Intent(Intent.ACTION_SEND);
+        shareFileIntent.setType(mimeType);
+        shareFileIntent.putExtra(Intent.EXTRA_SUBJECT, subject);
+        shareFileIntent.putExtra(Intent.EXTRA_STREAM, uri);
+        shareFileIntent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+
+        openSystemAppChooser(context, shareFileIntent, DataUtils.isNullOrEmpty(title) ? context.getString(R.string.title_share_with) : title);
+    }
+
 
 
     /** Wrapper for {@link #copyTextToClipboard(Context, String, String, String)} with `null` `clipDataLabel` and `toastString`. */
@@ -118,6 +139,31 @@ public class ShareUtils {
 
 
 
+    /**
+     * Copy the uri to primary clip of the clipboard, as for text that is too long to copy as a string.
+     * Apps that paste it as text read its content with {@link ClipData.Item#coerceToText(Context)}.
+     *
+     * @param context The context for operations.
+     * @param clipDataLabel The label to show to the user describing the copied uri.
+     * @param uri The content uri to copy.
+     * @param toastString If this is not {@code null} or empty, then a toast is shown if copying to
+     *                    clipboard is successful.
+     */
+    public static void copyUriToClipboard(Context context, @Nullable final String clipDataLabel,
+                                          final Uri uri, final String toastString) {
+        if (context == null || uri == null) return;
+
+        ClipboardManager clipboardManager = (ClipboardManager) context.getSystemService(Context.CLIPBOARD_SERVICE);
+        if (clipboardManager == null) return;
+
+        clipboardManager.setPrimaryClip(ClipData.newUri(context.getContentResolver(), clipDataLabel, uri));
+
+        if (toastString != null && !toastString.isEmpty())
+            Logger.showToast(context, toastString, true);
+    }
+
+
+
     /**
      * Wrapper for {@link #getTextFromClipboard(Context, boolean)} that returns primary text {@link String}
      * if its set and not empty.
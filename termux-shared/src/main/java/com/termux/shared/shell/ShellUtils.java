@@ -60,10 +60,13 @@ public class ShellUtils {
 
         String transcriptText;
 
-        if (linesJoined)
-            transcriptText = terminalBuffer.getTranscriptTextWithFullLinesJoined();
-        else
-            transcriptText = terminalBuffer.getTranscriptTextWithoutJoinedLines();
+        // The session may be parsing output in the background.
+        synchronized (terminalEmulator) {
+            if (linesJoined)
+                transcriptText = terminalBuffer.getTranscriptTextWithFullLinesJoined();
+            else
+                transcriptText = terminalBuffer.getTranscriptTextWithoutJoinedLines();
+        }
 
         if (transcriptText == null) return null;
 
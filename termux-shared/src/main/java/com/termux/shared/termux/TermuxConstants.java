@@ -12,7 +12,7 @@ import java.util.Formatter;
 import java.util.List;
 
 /*
- * Version: v0.53.0
+ * Version: v0.54.0
  * SPDX-License-Identifier: MIT
  *
  * Changelog
@@ -282,6 +282,9 @@ import java.util.List;
  * - 0.53.0 (2025-01-12)
  *      - Renamed `TERMUX_API`, `TERMUX_STYLING`, `TERMUX_TASKER`, `TERMUX_WIDGET` classes with `_APP` suffix added.
  *      - Added `TERMUX_*_MAIN_ACTIVITY_NAME` and `TERMUX_*_LAUNCHER_ACTIVITY_NAME` constants to each app class.
+ *
+ * - 0.54.0 (2026-10-17)
+ *      - Added `TERMUX_TRANSCRIPT_SHARE_URI_AUTHORITY`.
  */
 
 /**
@@ -897,6 +900,9 @@ public final class TermuxConstants {
     /** The Uri authority for Termux app file shares */
     public static final String TERMUX_FILE_SHARE_URI_AUTHORITY = TERMUX_PACKAGE_NAME + ".files"; // Default: "com.termux.files"
 
+    /** The Uri authority for Termux app session transcript shares */
+    public static final String TERMUX_TRANSCRIPT_SHARE_URI_AUTHORITY = TERMUX_PACKAGE_NAME + ".transcripts"; // Default: "com.termux.transcripts"
+
     /** The normal comma character (U+002C, &comma;, &#44;, comma) */
     public static final String COMMA_NORMAL = ","; // Default: ","
 
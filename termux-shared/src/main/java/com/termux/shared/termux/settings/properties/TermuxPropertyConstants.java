@@ -9,6 +9,7 @@ import com.termux.shared.settings.properties.SharedProperties;
 import com.termux.shared.termux.TermuxConstants;
 import com.termux.shared.logger.Logger;
 import com.termux.terminal.TerminalEmulator;
+import com.termux.terminal.TerminalSession;
 import com.termux.view.TerminalView;
 
 import java.io.File;
@@ -18,7 +19,7 @@ import java.util.List;
 import java.util.Set;
 
 /*
- * Version: v0.18.0
+ * Version: v0.19.0
  * SPDX-License-Identifier: MIT
  *
  * Changelog
@@ -80,6 +81,13 @@ import java.util.Set;
  *
  * - 0.18.0 (2022-06-13)
  *      - Add `KEY_DISABLE_FILE_SHARE_RECEIVER` and `KEY_DISABLE_FILE_VIEW_RECEIVER`.
+ *
+ * - 0.19.0 (2026-10-17)
+ *      - Add `KEY_TERMINAL_PARSE_IN_BACKGROUND`.
+ *      - Add `KEY_TERMINAL_TRANSCRIPT_SPILL_TO_DISK`.
+ *      - Add `*KEY_TERMINAL_OUTPUT_FLOOD_THRESHOLD*`.
+ *      - Add `*KEY_TERMINAL_CLIPBOARD_COPY_MAX_SIZE*`.
+ *      - Add `*KEY_TERMINAL_SESSION_HIBERNATE_AFTER*`.
  */
 
 /**
@@ -142,6 +150,16 @@ public final class TermuxPropertyConstants {
 
 
 
+    /** Defines the key for whether terminal output should be parsed on a background thread instead of the main thread */
+    public static final String KEY_TERMINAL_PARSE_IN_BACKGROUND =  "terminal-parse-in-background"; // Default: "terminal-parse-in-background"
+
+
+
+    /** Defines the key for whether terminal transcript rows beyond terminal-transcript-rows should be kept on disk instead of being dropped */
+    public static final String KEY_TERMINAL_TRANSCRIPT_SPILL_TO_DISK =  "terminal-transcript-spill-to-disk"; // Default: "terminal-transcript-spill-to-disk"
+
+
+
     /** Defines the key for whether to use black UI */
     @Deprecated
     public static final String KEY_USE_BLACK_UI =  "use-black-ui"; // Default: "use-black-ui"
@@ -247,6 +265,42 @@ public final class TermuxPropertyConstants {
 
 
 
+    /**
+     * Defines the key for the max size in KiB of text that programs can copy to the clipboard with the OSC 52 escape
+     * sequence, beyond which the copy is ignored.
+     * `0` to ignore all copies.
+     */
+    public static final String KEY_TERMINAL_CLIPBOARD_COPY_MAX_SIZE =  "terminal-clipboard-copy-max-size"; // Default: "terminal-clipboard-copy-max-size"
+    public static final int IVALUE_TERMINAL_CLIPBOARD_COPY_MAX_SIZE_MIN = TerminalSession.CLIPBOARD_COPY_MAX_SIZE_MIN;
+    public static final int IVALUE_TERMINAL_CLIPBOARD_COPY_MAX_SIZE_MAX = TerminalSession.CLIPBOARD_COPY_MAX_SIZE_MAX;
+    public static final int DEFAULT_IVALUE_TERMINAL_CLIPBOARD_COPY_MAX_SIZE = TerminalSession.DEFAULT_CLIPBOARD_COPY_MAX_SIZE;
+
+
+
+    /**
+     * Defines the key for the terminal output rate in KiB per second above which the terminal is only redrawn a few
+     * times per second until the output calms down.
+     * `0` to always redraw every frame.
+     */
+    public static final String KEY_TERMINAL_OUTPUT_FLOOD_THRESHOLD =  "terminal-output-flood-threshold"; // Default: "terminal-output-flood-threshold"
+    public static final int IVALUE_TERMINAL_OUTPUT_FLOOD_THRESHOLD_MIN = TerminalSession.OUTPUT_FLOOD_THRESHOLD_MIN;
+    public static final int IVALUE_TERMINAL_OUTPUT_FLOOD_THRESHOLD_MAX = TerminalSession.OUTPUT_FLOOD_THRESHOLD_MAX;
+    public static final int DEFAULT_IVALUE_TERMINAL_OUTPUT_FLOOD_THRESHOLD = TerminalSession.DEFAULT_OUTPUT_FLOOD_THRESHOLD;
+
+
+
+    /**
+     * Defines the key for the minutes without output or being viewed after which the transcript of a terminal session
+     * is moved from memory to disk, in the same files as for terminal-transcript-spill-to-disk, which it implies.
+     * `0` to never hibernate sessions.
+     */
+    public static final String KEY_TERMINAL_SESSION_HIBERNATE_AFTER =  "terminal-session-hibernate-after"; // Default: "terminal-session-hibernate-after"
+    public static final int IVALUE_TERMINAL_SESSION_HIBERNATE_AFTER_MIN = TerminalSession.HIBERNATE_AFTER_MINUTES_MIN;
+    public static final int IVALUE_TERMINAL_SESSION_HIBERNATE_AFTER_MAX = TerminalSession.HIBERNATE_AFTER_MINUTES_MAX;
+    public static final int DEFAULT_IVALUE_TERMINAL_SESSION_HIBERNATE_AFTER = TerminalSession.DEFAULT_HIBERNATE_AFTER_MINUTES;
+
+
+
     /** Defines the key for the terminal transcript rows */
     public static final String KEY_TERMINAL_TRANSCRIPT_ROWS =  "terminal-transcript-rows"; // Default: "terminal-transcript-rows"
     public static final int IVALUE_TERMINAL_TRANSCRIPT_ROWS_MIN = TerminalEmulator.TERMINAL_TRANSCRIPT_ROWS_MIN;
@@ -400,6 +454,8 @@ public final class TermuxPropertyConstants {
         KEY_HIDE_SOFT_KEYBOARD_ON_STARTUP,
         KEY_RUN_TERMUX_AM_SOCKET_SERVER,
         KEY_TERMINAL_ONCLICK_URL_OPEN,
+        KEY_TERMINAL_PARSE_IN_BACKGROUND,
+        KEY_TERMINAL_TRANSCRIPT_SPILL_TO_DISK,
         KEY_USE_CTRL_SPACE_WORKAROUND,
         KEY_USE_FULLSCREEN,
         KEY_USE_FULLSCREEN_WORKAROUND,
@@ -408,10 +464,13 @@ public final class TermuxPropertyConstants {
         /* int */
         KEY_BELL_BEHAVIOUR,
         KEY_DELETE_TMPDIR_FILES_OLDER_THAN_X_DAYS_ON_EXIT,
+        KEY_TERMINAL_CLIPBOARD_COPY_MAX_SIZE,
         KEY_TERMINAL_CURSOR_BLINK_RATE,
         KEY_TERMINAL_CURSOR_STYLE,
         KEY_TERMINAL_MARGIN_HORIZONTAL,
         KEY_TERMINAL_MARGIN_VERTICAL,
+        KEY_TERMINAL_OUTPUT_FLOOD_THRESHOLD,
+        KEY_TERMINAL_SESSION_HIBERNATE_AFTER,
         KEY_TERMINAL_TRANSCRIPT_ROWS,
 
         /* float */
@@ -446,6 +505,8 @@ public final class TermuxPropertyConstants {
         KEY_ENFORCE_CHAR_BASED_INPUT,
         KEY_HIDE_SOFT_KEYBOARD_ON_STARTUP,
         KEY_TERMINAL_ONCLICK_URL_OPEN,
+        KEY_TERMINAL_PARSE_IN_BACKGROUND,
+        KEY_TERMINAL_TRANSCRIPT_SPILL_TO_DISK,
         KEY_USE_CTRL_SPACE_WORKAROUND,
         KEY_USE_FULLSCREEN,
         KEY_USE_FULLSCREEN_WORKAROUND,
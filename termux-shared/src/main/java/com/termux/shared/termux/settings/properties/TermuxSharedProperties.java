@@ -263,6 +263,8 @@ public abstract class TermuxSharedProperties {
                 return (int) getBellBehaviourInternalPropertyValueFromValue(value);
             case TermuxPropertyConstants.KEY_DELETE_TMPDIR_FILES_OLDER_THAN_X_DAYS_ON_EXIT:
                 return (int) getDeleteTMPDIRFilesOlderThanXDaysOnExitInternalPropertyValueFromValue(value);
+            case TermuxPropertyConstants.KEY_TERMINAL_CLIPBOARD_COPY_MAX_SIZE:
+                return (int) getTerminalClipboardCopyMaxSizeInternalPropertyValueFromValue(value);
             case TermuxPropertyConstants.KEY_TERMINAL_CURSOR_BLINK_RATE:
                 return (int) getTerminalCursorBlinkRateInternalPropertyValueFromValue(value);
             case TermuxPropertyConstants.KEY_TERMINAL_CURSOR_STYLE:
@@ -271,6 +273,10 @@ public abstract class TermuxSharedProperties {
                 return (int) getTerminalMarginHorizontalInternalPropertyValueFromValue(value);
             case TermuxPropertyConstants.KEY_TERMINAL_MARGIN_VERTICAL:
                 return (int) getTerminalMarginVerticalInternalPropertyValueFromValue(value);
+            case TermuxPropertyConstants.KEY_TERMINAL_OUTPUT_FLOOD_THRESHOLD:
+                return (int) getTerminalOutputFloodThresholdInternalPropertyValueFromValue(value);
+            case TermuxPropertyConstants.KEY_TERMINAL_SESSION_HIBERNATE_AFTER:
+                return (int) getTerminalSessionHibernateAfterInternalPropertyValueFromValue(value);
             case TermuxPropertyConstants.KEY_TERMINAL_TRANSCRIPT_ROWS:
                 return (int) getTerminalTranscriptRowsInternalPropertyValueFromValue(value);
 
@@ -420,6 +426,60 @@ public abstract class TermuxSharedProperties {
             true, true, LOG_TAG);
     }
 
+    /**
+     * Returns the int for the value if its not null and is between
+     * {@link TermuxPropertyConstants#IVALUE_TERMINAL_CLIPBOARD_COPY_MAX_SIZE_MIN} and
+     * {@link TermuxPropertyConstants#IVALUE_TERMINAL_CLIPBOARD_COPY_MAX_SIZE_MAX},
+     * otherwise returns {@link TermuxPropertyConstants#DEFAULT_IVALUE_TERMINAL_CLIPBOARD_COPY_MAX_SIZE}.
+     *
+     * @param value The {@link String} value to convert.
+     * @return Returns the internal value for value.
+     */
+    public static int getTerminalClipboardCopyMaxSizeInternalPropertyValueFromValue(String value) {
+        return SharedProperties.getDefaultIfNotInRange(TermuxPropertyConstants.KEY_TERMINAL_CLIPBOARD_COPY_MAX_SIZE,
+            DataUtils.getIntFromString(value, TermuxPropertyConstants.DEFAULT_IVALUE_TERMINAL_CLIPBOARD_COPY_MAX_SIZE),
+            TermuxPropertyConstants.DEFAULT_IVALUE_TERMINAL_CLIPBOARD_COPY_MAX_SIZE,
+            TermuxPropertyConstants.IVALUE_TERMINAL_CLIPBOARD_COPY_MAX_SIZE_MIN,
+            TermuxPropertyConstants.IVALUE_TERMINAL_CLIPBOARD_COPY_MAX_SIZE_MAX,
+            true, true, LOG_TAG);
+    }
+
+    /**
+     * Returns the int for the value if its not null and is between
+     * {@link TermuxPropertyConstants#IVALUE_TERMINAL_OUTPUT_FLOOD_THRESHOLD_MIN} and
+     * {@link TermuxPropertyConstants#IVALUE_TERMINAL_OUTPUT_FLOOD_THRESHOLD_MAX},
+     * otherwise returns {@link TermuxPropertyConstants#DEFAULT_IVALUE_TERMINAL_OUTPUT_FLOOD_THRESHOLD}.
+     *
+     * @param value The {@link String} value to convert.
+     * @return Returns the internal value for value.
+     */
+    public static int getTerminalOutputFloodThresholdInternalPropertyValueFromValue(String value) {
+        return SharedProperties.getDefaultIfNotInRange(TermuxPropertyConstants.KEY_TERMINAL_OUTPUT_FLOOD_THRESHOLD,
+            DataUtils.getIntFromString(value, TermuxPropertyConstants.DEFAULT_IVALUE_TERMINAL_OUTPUT_FLOOD_THRESHOLD),
+            TermuxPropertyConstants.DEFAULT_IVALUE_TERMINAL_OUTPUT_FLOOD_THRESHOLD,
+            TermuxPropertyConstants.IVALUE_TERMINAL_OUTPUT_FLOOD_THRESHOLD_MIN,
+            TermuxPropertyConstants.IVALUE_TERMINAL_OUTPUT_FLOOD_THRESHOLD_MAX,
+            true, true, LOG_TAG);
+    }
+
+    /**
+     * Returns the int for the value if its not null and is between
+     * {@link TermuxPropertyConstants#IVALUE_TERMINAL_SESSION_HIBERNATE_AFTER_MIN} and
+     * {@link TermuxPropertyConstants#IVALUE_TERMINAL_SESSION_HIBERNATE_AFTER_MAX},
+     * otherwise returns {@link TermuxPropertyConstants#DEFAULT_IVALUE_TERMINAL_SESSION_HIBERNATE_AFTER}.
+     *
+     * @param value The {@link String} value to convert.
+     * @return Returns the internal value for value.
+     */
+    public static int getTerminalSessionHibernateAfterInternalPropertyValueFromValue(String value) {
+        return SharedProperties.getDefaultIfNotInRange(TermuxPropertyConstants.KEY_TERMINAL_SESSION_HIBERNATE_AFTER,
+            DataUtils.getIntFromString(value, TermuxPropertyConstants.DEFAULT_IVALUE_TERMINAL_SESSION_HIBERNATE_AFTER),
+            TermuxPropertyConstants.DEFAULT_IVALUE_TERMINAL_SESSION_HIBERNATE_AFTER,
+            TermuxPropertyConstants.IVALUE_TERMINAL_SESSION_HIBERNATE_AFTER_MIN,
+            TermuxPropertyConstants.IVALUE_TERMINAL_SESSION_HIBERNATE_AFTER_MAX,
+            true, true, LOG_TAG);
+    }
+
     /**
      * Returns the int for the value if its not null and is between
      * {@link TermuxPropertyConstants#IVALUE_TERMINAL_TRANSCRIPT_ROWS_MIN} and
@@ -614,6 +674,14 @@ public abstract class TermuxSharedProperties {
         return (boolean) getInternalPropertyValue(TermuxPropertyConstants.KEY_TERMINAL_ONCLICK_URL_OPEN, true);
     }
 
+    public boolean shouldParseTerminalOutputInBackground() {
+        return (boolean) getInternalPropertyValue(TermuxPropertyConstants.KEY_TERMINAL_PARSE_IN_BACKGROUND, true);
+    }
+
+    public boolean shouldSpillTerminalTranscriptToDisk() {
+        return (boolean) getInternalPropertyValue(TermuxPropertyConstants.KEY_TERMINAL_TRANSCRIPT_SPILL_TO_DISK, true);
+    }
+
     public boolean isUsingCtrlSpaceWorkaround() {
         return (boolean) getInternalPropertyValue(TermuxPropertyConstants.KEY_USE_CTRL_SPACE_WORKAROUND, true);
     }
@@ -650,6 +718,18 @@ public abstract class TermuxSharedProperties {
         return (int) getInternalPropertyValue(TermuxPropertyConstants.KEY_TERMINAL_MARGIN_VERTICAL, true);
     }
 
+    public int getTerminalClipboardCopyMaxSize() {
+        return (int) getInternalPropertyValue(TermuxPropertyConstants.KEY_TERMINAL_CLIPBOARD_COPY_MAX_SIZE, true);
+    }
+
+    public int getTerminalOutputFloodThreshold() {
+        return (int) getInternalPropertyValue(TermuxPropertyConstants.KEY_TERMINAL_OUTPUT_FLOOD_THRESHOLD, true);
+    }
+
+    public int getTerminalSessionHibernateAfter() {
+        return (int) getInternalPropertyValue(TermuxPropertyConstants.KEY_TERMINAL_SESSION_HIBERNATE_AFTER, true);
+    }
+
     public int getTerminalTranscriptRows() {
         return (int) getInternalPropertyValue(TermuxPropertyConstants.KEY_TERMINAL_TRANSCRIPT_ROWS, true);
     }